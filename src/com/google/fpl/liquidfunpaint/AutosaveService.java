@@ -0,0 +1,709 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+package com.google.fpl.liquidfunpaint;
+
+import com.google.fpl.liquidfun.ParticleSystem;
+import com.google.fpl.liquidfun.World;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Saves the painting in the background as it changes, so it survives the
+ * process being killed.
+ *
+ * Every CAPTURE_INTERVAL seconds of simulation, the STEP phase copies the
+ * particle state into a CanvasFile.Image. That is only a few bulk copies,
+ * done while the world lock is held anyway. If the background thread is
+ * still busy with the previous copy, the capture is skipped.
+ *
+ * The background thread diffs each copy against what it saved last, and
+ * appends the difference to a journal:
+ *  - Groups are compared in buffer order. The leading groups that kept
+ *    their range and flags only get the colors and flags that changed,
+ *    and the motion of the particles that moved: position changes and
+ *    velocities, quantized to 16 bits, in runs of consecutive particles.
+ *  - Everything after them, i.e. added, removed or reshaped groups, is
+ *    written out in full.
+ * Drawing appends new particles at the end of the buffers, so the common
+ * case is a small delta. Every COMPACT_INTERVAL entries, or once the
+ * journal grows past the size of a checkpoint, a full CanvasFile checkpoint
+ * is written and a new journal is started.
+ *
+ * Files are written to a new generation and the old one is deleted after,
+ * so there is always a complete checkpoint to recover from. Journal entries
+ * carry a checksum; recovery stops at the first torn entry.
+ */
+public class AutosaveService implements FramePhaseListener {
+    private static final String TAG = "AutosaveService";
+    // Seconds of simulation between captures
+    private static final float CAPTURE_INTERVAL = 2f;
+    // Journal entries between checkpoints
+    private static final int COMPACT_INTERVAL = 30;
+    // Quantization step of position deltas, in world units
+    private static final float POSITION_QUANTUM = 1f / 4096;
+    // Quantization step of velocities, in world units per second
+    private static final float VELOCITY_QUANTUM = 1f / 256;
+
+    private static final String CHECKPOINT_SUFFIX = ".canvas";
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int JOURNAL_MAGIC = 0x4c464a4e; // "LFJN"
+    private static final int JOURNAL_VERSION = 2;
+    // Sanity limit on the size of one journal entry
+    private static final int MAX_ENTRY_SIZE = 64 * 1024 * 1024;
+
+    private final WorldHost mHost;
+    private final File mDirectory;
+    private float mTimeSinceCapture = 0;
+
+    // Handed between the stepping thread and the background thread, under
+    // the lock of this object. mFreeImage is null while the background
+    // thread owns it.
+    private CanvasFile.Image mFreeImage = new CanvasFile.Image();
+    private CanvasFile.Image mPendingImage = null;
+    private boolean mCheckpointRequested = true;
+    private Thread mThread = null;
+    private volatile boolean mRunning = false;
+
+    // Background thread only
+    // What recovery would produce from the files written so far
+    private final CanvasFile.Image mReference = new CanvasFile.Image();
+    private long mGeneration = 0;
+    private FileOutputStream mJournal = null;
+    private int mJournalEntries = 0;
+    private long mJournalSize = 0;
+    private long mCheckpointSize = 0;
+    private final ByteArrayOutputStream mEntryBytes =
+            new ByteArrayOutputStream();
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * @param host The world to save
+     * @param directory Where to keep checkpoints and journals. Created if
+     *                  needed. Nothing else should be stored there.
+     */
+    public AutosaveService(WorldHost host, File directory) {
+        mHost = host;
+        mDirectory = directory;
+    }
+
+    /** Starts the background thread. */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "Cannot create " + mDirectory);
+            return;
+        }
+        // Continue after whatever generation is already there, so it is
+        // replaced by the first checkpoint.
+        mGeneration = Math.max(mGeneration, findLatestGeneration());
+        mRunning = true;
+        mThread = new Thread(TAG) {
+            @Override
+            public void run() {
+                runBackground();
+            }
+        };
+        mThread.start();
+    }
+
+    /**
+     * Stops the background thread, after it has saved any pending capture.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+            mRunning = false;
+            notifyAll();
+        }
+        if (thread == null) {
+            return;
+        }
+        boolean joined = false;
+        while (!joined) {
+            try {
+                thread.join();
+                joined = true;
+            } catch (InterruptedException ex) {
+                // Keep waiting; the files must not be left half written.
+            }
+        }
+    }
+
+    /**
+     * Makes the next capture a full checkpoint, e.g. after the canvas was
+     * replaced as a whole.
+     */
+    public synchronized void requestCheckpoint() {
+        mCheckpointRequested = true;
+    }
+
+    // Called in the STEP phase, on the thread stepping the world, while
+    // holding the world lock.
+    @Override
+    public void onFramePhase(FramePhase phase, float dt) {
+        mTimeSinceCapture += dt;
+        if (mTimeSinceCapture >= CAPTURE_INTERVAL) {
+            capture();
+        }
+    }
+
+    /**
+     * Captures the canvas right away, e.g. when the app goes to the
+     * background. Takes the world lock.
+     */
+    public void flush() {
+        capture();
+    }
+
+    private void capture() {
+        CanvasFile.Image image;
+        synchronized (this) {
+            if (!mRunning || mFreeImage == null) {
+                // Still saving the previous capture; try again next step.
+                return;
+            }
+            image = mFreeImage;
+            mFreeImage = null;
+        }
+        mTimeSinceCapture = 0;
+
+        World world = mHost.acquireWorld();
+        ParticleSystem ps = mHost.acquireParticleSystem();
+        try {
+            image.capture(world, ps, mHost.getWorldWidth(),
+                          mHost.getWorldHeight());
+        } finally {
+            mHost.releaseParticleSystem();
+            mHost.releaseWorld();
+        }
+
+        synchronized (this) {
+            if (!mRunning) {
+                // Stopped meanwhile; the world may already be wiped.
+                mFreeImage = image;
+                return;
+            }
+            mPendingImage = image;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Rebuilds the last autosaved painting in memory: the newest
+     * checkpoint, then every intact journal entry after it. Call before
+     * start(), then restore the image under the world lock, once the
+     * particle system is large enough for it.
+     * @return The recovered painting, or null if there was nothing to
+     *         recover
+     */
+    public CanvasFile.Image recover() {
+        long generation = findLatestGeneration();
+        if (generation < 0) {
+            return null;
+        }
+        CanvasFile.Image image = new CanvasFile.Image();
+        try {
+            CanvasFile.Image checkpoint =
+                    CanvasFile.map(getFile(generation, CHECKPOINT_SUFFIX));
+            copyImage(checkpoint, image);
+        } catch (IOException ex) {
+            Log.e(TAG, "Cannot read autosave checkpoint: " + ex.getMessage());
+            return null;
+        }
+
+        File journal = getFile(generation, JOURNAL_SUFFIX);
+        int entries = 0;
+        if (journal.exists()) {
+            try {
+                entries = replayJournal(journal, generation, image);
+            } catch (IOException ex) {
+                Log.w(TAG, "Cannot read autosave journal: " + ex.getMessage());
+            }
+        }
+        Log.i(TAG, "Recovered checkpoint " + generation + " and " +
+              entries + " journal entries");
+
+        synchronized (this) {
+            // Start over from a checkpoint of what we recovered.
+            mCheckpointRequested = true;
+            mGeneration = generation;
+        }
+        return image;
+    }
+
+    private void runBackground() {
+        while (true) {
+            CanvasFile.Image image;
+            boolean checkpoint;
+            synchronized (this) {
+                while (mRunning && mPendingImage == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        // Checked by the loop condition
+                    }
+                }
+                if (mPendingImage == null) {
+                    break;
+                }
+                image = mPendingImage;
+                mPendingImage = null;
+                checkpoint = mCheckpointRequested ||
+                        mJournalEntries >= COMPACT_INTERVAL ||
+                        mJournalSize > mCheckpointSize;
+                mCheckpointRequested = false;
+            }
+
+            try {
+                if (checkpoint || mJournal == null) {
+                    writeCheckpoint(image);
+                } else {
+                    appendJournal(image);
+                }
+            } catch (IOException ex) {
+                Log.e(TAG, "Autosave failed: " + ex.getMessage());
+                // Start from a clean checkpoint next time.
+                closeJournal();
+                synchronized (this) {
+                    mCheckpointRequested = true;
+                }
+            }
+
+            synchronized (this) {
+                mFreeImage = image;
+            }
+        }
+        closeJournal();
+    }
+
+    /**
+     * Writes image as a new generation, and only then deletes the previous
+     * one.
+     */
+    private void writeCheckpoint(CanvasFile.Image image) throws IOException {
+        long generation = mGeneration + 1;
+        File temp = getFile(generation, CHECKPOINT_SUFFIX + TEMP_SUFFIX);
+        image.write(temp);
+        File checkpoint = getFile(generation, CHECKPOINT_SUFFIX);
+        if (!temp.renameTo(checkpoint)) {
+            throw new IOException("Cannot rename " + temp);
+        }
+
+        closeJournal();
+        mJournal = new FileOutputStream(getFile(generation, JOURNAL_SUFFIX));
+        DataOutputStream header = new DataOutputStream(mEntryBytes);
+        mEntryBytes.reset();
+        header.writeInt(JOURNAL_MAGIC);
+        header.writeInt(JOURNAL_VERSION);
+        header.writeLong(generation);
+        mEntryBytes.writeTo(mJournal);
+
+        deleteGeneration(mGeneration);
+        mGeneration = generation;
+        mJournalEntries = 0;
+        mJournalSize = 0;
+        mCheckpointSize = checkpoint.length();
+        copyImage(image, mReference);
+    }
+
+    /**
+     * Appends the difference between image and mReference to the journal,
+     * then applies it to mReference by decoding it, exactly as recovery
+     * will, so quantization errors never pile up.
+     */
+    private void appendJournal(CanvasFile.Image image) throws IOException {
+        mEntryBytes.reset();
+        DataOutputStream out = new DataOutputStream(mEntryBytes);
+        encodeDelta(mReference, image, out);
+        out.flush();
+        byte[] entry = mEntryBytes.toByteArray();
+
+        mCrc.reset();
+        mCrc.update(entry);
+        DataOutputStream journal = new DataOutputStream(mJournal);
+        journal.writeInt(entry.length);
+        journal.writeInt((int) mCrc.getValue());
+        journal.write(entry);
+        journal.flush();
+
+        decodeDelta(new DataInputStream(new ByteArrayInputStream(entry)),
+                    mReference);
+        ++mJournalEntries;
+        mJournalSize += 8 + entry.length;
+    }
+
+    /**
+     * Writes the delta from reference to image.
+     */
+    private static void encodeDelta(
+            CanvasFile.Image reference, CanvasFile.Image image,
+            DataOutputStream out) throws IOException {
+        CanvasFile.Header header = image.getHeader();
+        int particleCount = header.mParticleCount;
+        int groupCount = header.mGroupCount;
+
+        // Leading groups that kept their range and flags
+        int prefixGroups = 0;
+        int prefixParticles = 0;
+        int commonGroups = Math.min(
+                groupCount, reference.getHeader().mGroupCount);
+        while (prefixGroups < commonGroups &&
+               image.getGroupStart(prefixGroups) ==
+                       reference.getGroupStart(prefixGroups) &&
+               image.getGroupParticleCount(prefixGroups) ==
+                       reference.getGroupParticleCount(prefixGroups) &&
+               image.getGroupFlags(prefixGroups) ==
+                       reference.getGroupFlags(prefixGroups)) {
+            prefixParticles = image.getGroupStart(prefixGroups) +
+                    image.getGroupParticleCount(prefixGroups);
+            ++prefixGroups;
+        }
+
+        out.writeFloat(header.mWorldWidth);
+        out.writeFloat(header.mWorldHeight);
+        out.writeFloat(header.mGravityX);
+        out.writeFloat(header.mGravityY);
+        out.writeInt(particleCount);
+        out.writeInt(groupCount);
+        out.writeInt(prefixGroups);
+        out.writeInt(prefixParticles);
+
+        // Prefix particles: quantized motion, as runs of particles that
+        // moved, so resting water and walls cost nothing.
+        int runs = 0;
+        for (int i = 0; i < prefixParticles; ++i) {
+            if (hasMoved(reference, image, i) &&
+                (i == 0 || !hasMoved(reference, image, i - 1))) {
+                ++runs;
+            }
+        }
+        out.writeInt(runs);
+        int i = 0;
+        while (i < prefixParticles) {
+            if (!hasMoved(reference, image, i)) {
+                ++i;
+                continue;
+            }
+            int end = i + 1;
+            while (end < prefixParticles && hasMoved(reference, image, end)) {
+                ++end;
+            }
+            out.writeInt(i);
+            out.writeInt(end - i);
+            for (; i < end; ++i) {
+                for (int axis = 0; axis < 2; ++axis) {
+                    out.writeShort(quantizePosition(reference, image, i, axis));
+                }
+                for (int axis = 0; axis < 2; ++axis) {
+                    out.writeShort(quantizeVelocity(image, i, axis));
+                }
+            }
+        }
+        writeChanges(reference.mColors, image.mColors, prefixParticles, out);
+        writeChanges(reference.mFlags, image.mFlags, prefixParticles, out);
+
+        // Everything after the prefix, in full
+        for (int g = prefixGroups; g < groupCount; ++g) {
+            out.writeInt(image.getGroupStart(g));
+            out.writeInt(image.getGroupParticleCount(g));
+            out.writeInt(image.getGroupFlags(g));
+        }
+        for (i = prefixParticles; i < particleCount; ++i) {
+            out.writeFloat(image.mPositions.getFloat(2 * 4 * i));
+            out.writeFloat(image.mPositions.getFloat(2 * 4 * i + 4));
+            out.writeFloat(image.mVelocities.getFloat(2 * 4 * i));
+            out.writeFloat(image.mVelocities.getFloat(2 * 4 * i + 4));
+            out.writeInt(image.mColors.getInt(4 * i));
+            out.writeInt(image.mFlags.getInt(4 * i));
+        }
+    }
+
+    /**
+     * Whether particle i of image differs from reference once quantized,
+     * i.e. whether the journal has to record its motion.
+     */
+    private static boolean hasMoved(
+            CanvasFile.Image reference, CanvasFile.Image image, int i) {
+        for (int axis = 0; axis < 2; ++axis) {
+            if (quantizePosition(reference, image, i, axis) != 0 ||
+                quantizeVelocity(image, i, axis) !=
+                        quantizeVelocity(reference, i, axis)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int quantizePosition(
+            CanvasFile.Image reference, CanvasFile.Image image,
+            int i, int axis) {
+        int offset = 2 * 4 * i + 4 * axis;
+        return quantize(image.mPositions.getFloat(offset) -
+                        reference.mPositions.getFloat(offset),
+                        POSITION_QUANTUM);
+    }
+
+    private static int quantizeVelocity(
+            CanvasFile.Image image, int i, int axis) {
+        return quantize(image.mVelocities.getFloat(2 * 4 * i + 4 * axis),
+                        VELOCITY_QUANTUM);
+    }
+
+    /**
+     * Applies one journal entry to image.
+     */
+    private static void decodeDelta(DataInputStream in, CanvasFile.Image image)
+            throws IOException {
+        CanvasFile.Header header = image.getHeader();
+        float width = in.readFloat();
+        float height = in.readFloat();
+        float gravityX = in.readFloat();
+        float gravityY = in.readFloat();
+        int particleCount = in.readInt();
+        int groupCount = in.readInt();
+        int prefixGroups = in.readInt();
+        int prefixParticles = in.readInt();
+        if (particleCount < 0 || groupCount < 0 ||
+            prefixGroups > Math.min(groupCount, header.mGroupCount) ||
+            prefixParticles > Math.min(particleCount,
+                                       header.mParticleCount)) {
+            throw new IOException("Corrupt journal entry");
+        }
+
+        image.resize(particleCount, groupCount);
+        header.mWorldWidth = width;
+        header.mWorldHeight = height;
+        header.mGravityX = gravityX;
+        header.mGravityY = gravityY;
+
+        // Particles outside the runs kept their motion.
+        int runs = in.readInt();
+        for (int run = 0; run < runs; ++run) {
+            int start = in.readInt();
+            int length = in.readInt();
+            if (start < 0 || length < 0 || length > prefixParticles - start) {
+                throw new IOException("Corrupt journal entry");
+            }
+            for (int i = start; i < start + length; ++i) {
+                for (int axis = 0; axis < 2; ++axis) {
+                    int offset = 2 * 4 * i + 4 * axis;
+                    image.mPositions.putFloat(offset,
+                            image.mPositions.getFloat(offset) +
+                            in.readShort() * POSITION_QUANTUM);
+                }
+                for (int axis = 0; axis < 2; ++axis) {
+                    image.mVelocities.putFloat(2 * 4 * i + 4 * axis,
+                            in.readShort() * VELOCITY_QUANTUM);
+                }
+            }
+        }
+        readChanges(in, image.mColors, prefixParticles);
+        readChanges(in, image.mFlags, prefixParticles);
+
+        for (int g = prefixGroups; g < groupCount; ++g) {
+            image.setGroup(g, in.readInt(), in.readInt(), in.readInt());
+        }
+        for (int i = prefixParticles; i < particleCount; ++i) {
+            image.mPositions.putFloat(2 * 4 * i, in.readFloat());
+            image.mPositions.putFloat(2 * 4 * i + 4, in.readFloat());
+            image.mVelocities.putFloat(2 * 4 * i, in.readFloat());
+            image.mVelocities.putFloat(2 * 4 * i + 4, in.readFloat());
+            image.mColors.putInt(4 * i, in.readInt());
+            image.mFlags.putInt(4 * i, in.readInt());
+            // Recomputed by LiquidFun
+            image.mWeights.putFloat(4 * i, 0);
+        }
+    }
+
+    /**
+     * Writes the particles among the first count whose int value changed,
+     * as a count followed by (index, value) pairs.
+     */
+    private static void writeChanges(
+            ByteBuffer reference, ByteBuffer current, int count,
+            DataOutputStream out) throws IOException {
+        int changes = 0;
+        for (int i = 0; i < count; ++i) {
+            if (reference.getInt(4 * i) != current.getInt(4 * i)) {
+                ++changes;
+            }
+        }
+        out.writeInt(changes);
+        for (int i = 0; i < count; ++i) {
+            int value = current.getInt(4 * i);
+            if (reference.getInt(4 * i) != value) {
+                out.writeInt(i);
+                out.writeInt(value);
+            }
+        }
+    }
+
+    private static void readChanges(
+            DataInputStream in, ByteBuffer buffer, int count)
+            throws IOException {
+        int changes = in.readInt();
+        for (int i = 0; i < changes; ++i) {
+            int index = in.readInt();
+            int value = in.readInt();
+            if (index < 0 || index >= count) {
+                throw new IOException("Corrupt journal entry");
+            }
+            buffer.putInt(4 * index, value);
+        }
+    }
+
+    private static int quantize(float value, float quantum) {
+        return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE,
+                Math.round(value / quantum)));
+    }
+
+    /**
+     * Applies the entries of a journal to image, up to the first one that
+     * is torn or does not match its checksum.
+     * @return The number of entries applied
+     */
+    private int replayJournal(
+            File file, long generation, CanvasFile.Image image)
+            throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        int entries = 0;
+        try {
+            if (in.readInt() != JOURNAL_MAGIC ||
+                in.readInt() != JOURNAL_VERSION ||
+                in.readLong() != generation) {
+                throw new IOException("Journal does not match checkpoint");
+            }
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException ex) {
+                    // Clean end of the journal
+                    break;
+                }
+                int crc = in.readInt();
+                if (length < 0 || length > MAX_ENTRY_SIZE) {
+                    Log.w(TAG, "Journal entry " + entries + " is corrupt");
+                    break;
+                }
+                byte[] entry = new byte[length];
+                in.readFully(entry);
+                mCrc.reset();
+                mCrc.update(entry);
+                if ((int) mCrc.getValue() != crc) {
+                    Log.w(TAG, "Journal entry " + entries + " is corrupt");
+                    break;
+                }
+                decodeDelta(new DataInputStream(
+                        new ByteArrayInputStream(entry)), image);
+                ++entries;
+            }
+        } catch (EOFException ex) {
+            // Torn entry from a process kill mid-write; drop it.
+            Log.w(TAG, "Journal ends mid-entry");
+        } finally {
+            in.close();
+        }
+        return entries;
+    }
+
+    /** Copies one image into another, growing it as needed. */
+    private static void copyImage(
+            CanvasFile.Image from, CanvasFile.Image to) {
+        CanvasFile.Header header = from.getHeader();
+        to.resize(header.mParticleCount, header.mGroupCount);
+        CanvasFile.copyHeader(header, to.getHeader());
+        copyBuffer(from.mPositions, to.mPositions);
+        copyBuffer(from.mVelocities, to.mVelocities);
+        copyBuffer(from.mColors, to.mColors);
+        copyBuffer(from.mWeights, to.mWeights);
+        copyBuffer(from.mFlags, to.mFlags);
+        copyBuffer(from.mGroups, to.mGroups);
+    }
+
+    private static void copyBuffer(ByteBuffer from, ByteBuffer to) {
+        ByteBuffer source = from.duplicate();
+        source.position(0).limit(from.limit());
+        to.position(0);
+        to.put(source);
+        to.position(0);
+    }
+
+    /** Returns the newest generation with a complete checkpoint, or -1. */
+    private long findLatestGeneration() {
+        String[] names = mDirectory.list();
+        long latest = -1;
+        if (names == null) {
+            return latest;
+        }
+        for (int i = 0; i < names.length; ++i) {
+            String name = names[i];
+            if (!name.endsWith(CHECKPOINT_SUFFIX)) {
+                continue;
+            }
+            try {
+                long generation = Long.parseLong(name.substring(
+                        0, name.length() - CHECKPOINT_SUFFIX.length()));
+                latest = Math.max(latest, generation);
+            } catch (NumberFormatException ex) {
+                // Not one of ours
+            }
+        }
+        return latest;
+    }
+
+    private File getFile(long generation, String suffix) {
+        return new File(mDirectory, generation + suffix);
+    }
+
+    private void deleteGeneration(long generation) {
+        getFile(generation, CHECKPOINT_SUFFIX).delete();
+        getFile(generation, JOURNAL_SUFFIX).delete();
+        getFile(generation, CHECKPOINT_SUFFIX + TEMP_SUFFIX).delete();
+    }
+
+    private void closeJournal() {
+        if (mJournal == null) {
+            return;
+        }
+        try {
+            mJournal.close();
+        } catch (IOException ex) {
+            Log.w(TAG, "Cannot close journal: " + ex.getMessage());
+        }
+        mJournal = null;
+    }
+}
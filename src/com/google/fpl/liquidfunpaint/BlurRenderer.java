@@ -17,6 +17,7 @@
 package com.google.fpl.liquidfunpaint;
 
 import com.google.fpl.liquidfunpaint.shader.Material;
+import com.google.fpl.liquidfunpaint.shader.RenderBackend;
 import com.google.fpl.liquidfunpaint.shader.ShaderProgram;
 import com.google.fpl.liquidfunpaint.shader.Texture;
 import com.google.fpl.liquidfunpaint.util.RenderHelper;
@@ -36,7 +37,7 @@ public class BlurRenderer {
     // Small intermediate framebuffer since we do want the image to lose a bit
     // of detail and this allows the fragment shader computation to go way
     // faster.
-    private static final int FB_SIZE = 128;
+    static final int FB_SIZE = 128;
 
     private RenderSurface mBlurSurface;
 
@@ -82,25 +83,25 @@ public class BlurRenderer {
                 "aTexCoord", RenderHelper.SCREEN_QUAD_VERTEX_BUFFER, 3);
 
         // Set the input texture
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(
+        RenderBackend.get().glActiveTexture(GLES20.GL_TEXTURE0);
+        RenderBackend.get().glBindTexture(
                 GLES20.GL_TEXTURE_2D, inputTexture.getTextureId());
 
         // Set the correct uniforms
-        GLES20.glUniform1i(
+        RenderBackend.get().glUniform1i(
                 mXBlurMaterial.getUniformLocation(BLUR_TEXTURE_NAME), 0);
-        GLES20.glUniform1f(
+        RenderBackend.get().glUniform1f(
                 mXBlurMaterial.getUniformLocation("uBlurBufferSize"),
                 1.0f / FB_SIZE);
 
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_FAN, 0, 4);
+        RenderBackend.get().glDrawArrays(GLES20.GL_TRIANGLE_FAN, 0, 4);
 
         mXBlurMaterial.endRender();
         mBlurSurface.endRender();
 
         // Issue a flush call to make sure previous frame buffer commands are
         // sent asap, as we are using it in the next render call.
-        GLES20.glFlush();
+        RenderBackend.get().glFlush();
 
         // Y-blur: blur into spcified output surface
         outputSurface.beginRender(0);
@@ -113,18 +114,18 @@ public class BlurRenderer {
                 "aTexCoord", RenderHelper.SCREEN_QUAD_VERTEX_BUFFER, 3);
 
         // Set texture
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(
+        RenderBackend.get().glActiveTexture(GLES20.GL_TEXTURE0);
+        RenderBackend.get().glBindTexture(
                 GLES20.GL_TEXTURE_2D, mBlurSurface.getTexture().getTextureId());
 
         // Set the correct uniform
-        GLES20.glUniform1i(
+        RenderBackend.get().glUniform1i(
                 mYBlurMaterial.getUniformLocation(BLUR_TEXTURE_NAME), 0);
-        GLES20.glUniform1f(
+        RenderBackend.get().glUniform1f(
                 mYBlurMaterial.getUniformLocation("uBlurBufferSize"),
                 1.0f / FB_SIZE);
 
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_FAN, 0, 4);
+        RenderBackend.get().glDrawArrays(GLES20.GL_TRIANGLE_FAN, 0, 4);
 
         mYBlurMaterial.endRender();
         outputSurface.endRender();
@@ -0,0 +1,554 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+package com.google.fpl.liquidfunpaint;
+
+import com.google.fpl.liquidfun.ParticleColor;
+import com.google.fpl.liquidfun.ParticleDef;
+import com.google.fpl.liquidfun.ParticleGroup;
+import com.google.fpl.liquidfun.ParticleGroupDef;
+import com.google.fpl.liquidfun.ParticleGroupFlag;
+import com.google.fpl.liquidfun.ParticleSystem;
+import com.google.fpl.liquidfun.Vec2;
+import com.google.fpl.liquidfun.World;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Saves a painting to a file and loads it back.
+ *
+ * The file is a fixed header followed by one section per particle buffer,
+ * laid out exactly like the LiquidFun buffers, then the group table:
+ *   header:    magic, version, byte order mark, world width and height,
+ *              gravity, particle count, group count
+ *   particles: positions (2 floats), velocities (2 floats), colors (4
+ *              bytes, RGBA), weights (float), flags (int)
+ *   groups:    buffer index, particle count and group flags of each group,
+ *              in buffer order
+ * The buffers are written straight from direct buffers in native byte
+ * order. Loading maps the file and hands the position section to LiquidFun
+ * as is, recreating each group with a single call per run of particles
+ * that share the same flags.
+ *
+ * Weights are only kept for tools that want to inspect a file; LiquidFun
+ * recomputes them on the next step.
+ */
+public class CanvasFile {
+    private static final String TAG = "CanvasFile";
+    private static final int MAGIC = 0x4c464353; // "LFCS"
+    private static final int VERSION = 1;
+    // Reads back as this value only in the byte order it was written in
+    private static final int BYTE_ORDER_MARK = 0x01020304;
+    private static final int HEADER_SIZE = 10 * 4;
+    static final int GROUP_ENTRY_SIZE = 3 * 4;
+    // Bytes per particle, over all particle sections
+    private static final int PARTICLE_SIZE = 8 + 8 + 4 + 4 + 4;
+
+    private CanvasFile() {}
+
+    /**
+     * Describes what was loaded. Sizes are in world units.
+     */
+    public static class Header {
+        public float mWorldWidth;
+        public float mWorldHeight;
+        public float mGravityX;
+        public float mGravityY;
+        public int mParticleCount;
+        public int mGroupCount;
+    }
+
+    /**
+     * The contents of a canvas file, in memory. Captured from a particle
+     * system under the world lock, then written out or diffed on another
+     * thread. The buffers are reused across captures and only grow.
+     *
+     * Each buffer holds exactly the particle or group count, from 0 to its
+     * limit, in native byte order.
+     */
+    public static class Image {
+        final Header mHeader = new Header();
+        ByteBuffer mPositions;
+        ByteBuffer mVelocities;
+        ByteBuffer mColors;
+        ByteBuffer mWeights;
+        ByteBuffer mFlags;
+        ByteBuffer mGroups;
+
+        public Image() {
+            allocate(0, 0);
+        }
+
+        public Header getHeader() {
+            return mHeader;
+        }
+
+        /**
+         * Makes room for the given counts, and sets the buffer limits to
+         * them. Keeps the contents that still fit.
+         */
+        void resize(int particleCount, int groupCount) {
+            if (particleCount > mFlags.capacity() / 4 ||
+                groupCount > mGroups.capacity() / GROUP_ENTRY_SIZE) {
+                Image old = new Image(this);
+                allocate(Math.max(particleCount, mFlags.capacity() / 4 * 2),
+                         Math.max(groupCount,
+                                  mGroups.capacity() / GROUP_ENTRY_SIZE * 2));
+                copy(old.mPositions, mPositions);
+                copy(old.mVelocities, mVelocities);
+                copy(old.mColors, mColors);
+                copy(old.mWeights, mWeights);
+                copy(old.mFlags, mFlags);
+                copy(old.mGroups, mGroups);
+            }
+            mPositions.clear().limit(2 * 4 * particleCount);
+            mVelocities.clear().limit(2 * 4 * particleCount);
+            mColors.clear().limit(4 * particleCount);
+            mWeights.clear().limit(4 * particleCount);
+            mFlags.clear().limit(4 * particleCount);
+            mGroups.clear().limit(GROUP_ENTRY_SIZE * groupCount);
+            mHeader.mParticleCount = particleCount;
+            mHeader.mGroupCount = groupCount;
+        }
+
+        /**
+         * Copies the state of the world. The caller must hold the world
+         * lock. Only allocates if the particle or group count reached a new
+         * high.
+         */
+        public void capture(
+                World world, ParticleSystem ps, float width, float height) {
+            // Empty groups hold nothing worth saving.
+            int groupCount = 0;
+            for (ParticleGroup group = ps.getParticleGroupList();
+                 group != null; group = group.getNext()) {
+                if (group.getParticleCount() > 0) {
+                    ++groupCount;
+                }
+            }
+            int particleCount = ps.getParticleCount();
+            resize(particleCount, groupCount);
+
+            Vec2 gravity = world.getGravity();
+            mHeader.mGravityX = gravity.getX();
+            mHeader.mGravityY = gravity.getY();
+            gravity.delete();
+            mHeader.mWorldWidth = width;
+            mHeader.mWorldHeight = height;
+
+            ps.copyPositionBuffer(0, particleCount, mPositions);
+            ps.copyVelocityBuffer(0, particleCount, mVelocities);
+            ps.copyColorBuffer(0, particleCount, mColors);
+            ps.copyWeightBuffer(0, particleCount, mWeights);
+            // There is no bulk copy for flags, but they are only ints.
+            for (int i = 0; i < particleCount; ++i) {
+                mFlags.putInt(4 * i, ps.getParticleFlags(i));
+            }
+
+            // LiquidFun keeps the newest group first; store them in buffer
+            // order, which is what readers compare.
+            int index = groupCount;
+            for (ParticleGroup group = ps.getParticleGroupList();
+                 group != null; group = group.getNext()) {
+                if (group.getParticleCount() > 0) {
+                    --index;
+                    setGroup(index, group.getBufferIndex(),
+                             group.getParticleCount(), group.getGroupFlags());
+                }
+            }
+            sortGroups();
+        }
+
+        /** Writes this image to file, replacing it. */
+        public void write(File file) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                    .order(ByteOrder.nativeOrder());
+            header.putInt(MAGIC)
+                  .putInt(VERSION)
+                  .putInt(BYTE_ORDER_MARK)
+                  .putFloat(mHeader.mWorldWidth)
+                  .putFloat(mHeader.mWorldHeight)
+                  .putFloat(mHeader.mGravityX)
+                  .putFloat(mHeader.mGravityY)
+                  .putInt(mHeader.mParticleCount)
+                  .putInt(mHeader.mGroupCount)
+                  .putInt(0); // reserved
+            header.flip();
+
+            ByteBuffer[] sections = {
+                header, mPositions.duplicate(), mVelocities.duplicate(),
+                mColors.duplicate(), mWeights.duplicate(),
+                mFlags.duplicate(), mGroups.duplicate()
+            };
+            long size = 0;
+            for (int i = 0; i < sections.length; ++i) {
+                size += sections[i].remaining();
+            }
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                FileChannel channel = out.getChannel();
+                long written = 0;
+                while (written < size) {
+                    written += channel.write(sections);
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        /**
+         * Recreates the particles of this image in an empty particle
+         * system, and applies the gravity. The caller must hold the world
+         * lock, and make sure the particle system can hold them.
+         */
+        public void restore(World world, ParticleSystem ps) {
+            world.setGravity(mHeader.mGravityX, mHeader.mGravityY);
+            restoreGroups(ps, 0, 0, null);
+        }
+
+        int getGroupStart(int group) {
+            return mGroups.getInt(group * GROUP_ENTRY_SIZE);
+        }
+
+        int getGroupParticleCount(int group) {
+            return mGroups.getInt(group * GROUP_ENTRY_SIZE + 4);
+        }
+
+        int getGroupFlags(int group) {
+            return mGroups.getInt(group * GROUP_ENTRY_SIZE + 8);
+        }
+
+        void setGroup(int group, int start, int count, int flags) {
+            mGroups.putInt(group * GROUP_ENTRY_SIZE, start);
+            mGroups.putInt(group * GROUP_ENTRY_SIZE + 4, count);
+            mGroups.putInt(group * GROUP_ENTRY_SIZE + 8, flags);
+        }
+
+        private Image(Image other) {
+            mPositions = other.mPositions;
+            mVelocities = other.mVelocities;
+            mColors = other.mColors;
+            mWeights = other.mWeights;
+            mFlags = other.mFlags;
+            mGroups = other.mGroups;
+        }
+
+        private void allocate(int particleCapacity, int groupCapacity) {
+            mPositions = allocateBuffer(2 * 4 * particleCapacity);
+            mVelocities = allocateBuffer(2 * 4 * particleCapacity);
+            mColors = allocateBuffer(4 * particleCapacity);
+            mWeights = allocateBuffer(4 * particleCapacity);
+            mFlags = allocateBuffer(4 * particleCapacity);
+            mGroups = allocateBuffer(GROUP_ENTRY_SIZE * groupCapacity);
+        }
+
+        /**
+         * Sorts the group table by buffer index. Insertion sort, as the
+         * table is short and usually nearly sorted already.
+         */
+        private void sortGroups() {
+            for (int i = 1; i < mHeader.mGroupCount; ++i) {
+                int start = getGroupStart(i);
+                int count = getGroupParticleCount(i);
+                int flags = getGroupFlags(i);
+                int j = i - 1;
+                while (j >= 0 && getGroupStart(j) > start) {
+                    setGroup(j + 1, getGroupStart(j),
+                             getGroupParticleCount(j), getGroupFlags(j));
+                    --j;
+                }
+                setGroup(j + 1, start, count, flags);
+            }
+        }
+
+        /**
+         * Appends the groups from firstGroup on, and the groupless
+         * particles from firstParticle on, to a particle system. Particles
+         * keep their order, so if the particle system holds firstParticle
+         * particles, they get the same buffer indices as in this image.
+         * The caller must hold the world lock.
+         * @param created If not null, receives the new groups
+         */
+        void restoreGroups(
+                ParticleSystem ps, int firstGroup, int firstParticle,
+                List<ParticleGroup> created) {
+            int count = mHeader.mParticleCount;
+            ByteBuffer positions = mPositions.duplicate()
+                    .order(ByteOrder.nativeOrder());
+            // Particles not covered by any group
+            boolean[] grouped = new boolean[count];
+            ParticleGroupDef pgd = new ParticleGroupDef();
+            ParticleColor color = new ParticleColor();
+
+            for (int g = firstGroup; g < mHeader.mGroupCount; ++g) {
+                int start = getGroupStart(g);
+                int groupCount = getGroupParticleCount(g);
+                // Whoever keeps track of the new group decides whether it
+                // may be empty, e.g. the ParticleBudget.
+                int groupFlags = getGroupFlags(g) &
+                        ~ParticleGroupFlag.particleGroupCanBeEmpty;
+                // Written so that corrupt values cannot overflow
+                if (start < 0 || start < firstParticle || groupCount <= 0 ||
+                    groupCount > count - start) {
+                    Log.w(TAG, "Skipping out of range group " + g);
+                    continue;
+                }
+
+                // One group per run of particles with the same flags,
+                // joined back into a single group so the membership is
+                // preserved.
+                ParticleGroup group = null;
+                int runStart = start;
+                while (runStart < start + groupCount) {
+                    int runFlags = mFlags.getInt(4 * runStart);
+                    int runEnd = runStart + 1;
+                    while (runEnd < start + groupCount &&
+                           mFlags.getInt(4 * runEnd) == runFlags) {
+                        ++runEnd;
+                    }
+
+                    positions.position(2 * 4 * runStart);
+                    ByteBuffer runPositions = positions.slice();
+                    setColor(color, runStart);
+                    pgd.setFlags(runFlags);
+                    pgd.setGroupFlags(groupFlags);
+                    pgd.setColor(color);
+                    pgd.setParticleCount(runEnd - runStart);
+                    pgd.setPositionData(runPositions);
+                    ParticleGroup run = ps.createParticleGroup(pgd);
+                    if (group == null) {
+                        group = run;
+                    } else {
+                        ps.joinParticleGroups(group, run);
+                    }
+                    runStart = runEnd;
+                }
+                for (int i = start; i < start + groupCount; ++i) {
+                    grouped[i] = true;
+                }
+                if (created != null) {
+                    created.add(group);
+                }
+
+                // Velocities and mixed colors can only be set per particle.
+                int base = group.getBufferIndex();
+                int firstColor = mColors.getInt(4 * start);
+                for (int i = 0; i < groupCount; ++i) {
+                    int index = start + i;
+                    float vx = mVelocities.getFloat(2 * 4 * index);
+                    float vy = mVelocities.getFloat(2 * 4 * index + 4);
+                    if (vx != 0 || vy != 0) {
+                        ps.setParticleVelocity(base + i, vx, vy);
+                    }
+                    if (mColors.getInt(4 * index) != firstColor) {
+                        setColor(color, index);
+                        ps.setParticleColor(base + i, color);
+                    }
+                }
+            }
+
+            // Groupless particles are rare; recreate them one by one.
+            ParticleDef pd = null;
+            for (int i = firstParticle; i < count; ++i) {
+                if (grouped[i]) {
+                    continue;
+                }
+                if (pd == null) {
+                    pd = new ParticleDef();
+                }
+                setColor(color, i);
+                pd.setFlags(mFlags.getInt(4 * i));
+                pd.setPosition(mPositions.getFloat(2 * 4 * i),
+                               mPositions.getFloat(2 * 4 * i + 4));
+                pd.setVelocity(mVelocities.getFloat(2 * 4 * i),
+                               mVelocities.getFloat(2 * 4 * i + 4));
+                pd.setColor(color);
+                ps.createParticle(pd);
+            }
+
+            // Clean up native objects
+            if (pd != null) {
+                pd.delete();
+            }
+            pgd.delete();
+            color.delete();
+        }
+
+        /** Sets color from the RGBA bytes of a particle. */
+        private void setColor(ParticleColor color, int index) {
+            color.set(
+                    (short) (mColors.get(4 * index) & 0xFF),
+                    (short) (mColors.get(4 * index + 1) & 0xFF),
+                    (short) (mColors.get(4 * index + 2) & 0xFF),
+                    (short) (mColors.get(4 * index + 3) & 0xFF));
+        }
+    }
+
+    /**
+     * Writes the particle system and world state to file. The caller must
+     * hold the world lock.
+     * @param width Width of the world, in world units
+     * @param height Height of the world, in world units
+     */
+    public static void save(
+            File file, World world, ParticleSystem ps, float width,
+            float height) throws IOException {
+        Image image = new Image();
+        image.capture(world, ps, width, height);
+        image.write(file);
+    }
+
+    /**
+     * Recreates the particles of a saved file in an empty particle system,
+     * and applies the saved gravity. The caller must hold the world lock,
+     * and make sure the particle system can hold the particle count given
+     * by readHeader().
+     */
+    public static Header load(File file, World world, ParticleSystem ps)
+            throws IOException {
+        Image image = map(file);
+        image.restore(world, ps);
+        return image.mHeader;
+    }
+
+    /**
+     * Maps a file into a read-only Image, without copying it.
+     */
+    public static Image map(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer map = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            map.order(ByteOrder.nativeOrder());
+            Header header = readHeader(map);
+            int count = header.mParticleCount;
+            long expectedSize = HEADER_SIZE +
+                    (long) count * PARTICLE_SIZE +
+                    (long) header.mGroupCount * GROUP_ENTRY_SIZE;
+            if (map.capacity() < expectedSize) {
+                throw new IOException("Truncated canvas file");
+            }
+
+            Image image = new Image();
+            copyHeader(header, image.mHeader);
+            int offset = HEADER_SIZE;
+            image.mPositions = section(map, offset, 2 * 4 * count);
+            offset += 2 * 4 * count;
+            image.mVelocities = section(map, offset, 2 * 4 * count);
+            offset += 2 * 4 * count;
+            image.mColors = section(map, offset, 4 * count);
+            offset += 4 * count;
+            image.mWeights = section(map, offset, 4 * count);
+            offset += 4 * count;
+            image.mFlags = section(map, offset, 4 * count);
+            offset += 4 * count;
+            image.mGroups = section(
+                    map, offset, GROUP_ENTRY_SIZE * header.mGroupCount);
+            return image;
+        } finally {
+            // The mapping stays valid after the channel is closed.
+            in.close();
+        }
+    }
+
+    /**
+     * Reads only the header of a file, e.g. to size the particle system
+     * before load().
+     */
+    public static Header readHeader(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                    .order(ByteOrder.nativeOrder());
+            FileChannel channel = in.getChannel();
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    throw new IOException("Truncated canvas file");
+                }
+            }
+            header.flip();
+            return readHeader(header);
+        } finally {
+            in.close();
+        }
+    }
+
+    static void copyHeader(Header from, Header to) {
+        to.mWorldWidth = from.mWorldWidth;
+        to.mWorldHeight = from.mWorldHeight;
+        to.mGravityX = from.mGravityX;
+        to.mGravityY = from.mGravityY;
+        to.mParticleCount = from.mParticleCount;
+        to.mGroupCount = from.mGroupCount;
+    }
+
+    private static Header readHeader(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a canvas file");
+        }
+        int version = buffer.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("Unsupported canvas file version " + version);
+        }
+        if (buffer.getInt(8) != BYTE_ORDER_MARK) {
+            throw new IOException(
+                    "Canvas file was written with a different byte order");
+        }
+        Header header = new Header();
+        header.mWorldWidth = buffer.getFloat(12);
+        header.mWorldHeight = buffer.getFloat(16);
+        header.mGravityX = buffer.getFloat(20);
+        header.mGravityY = buffer.getFloat(24);
+        header.mParticleCount = buffer.getInt(28);
+        header.mGroupCount = buffer.getInt(32);
+        if (header.mParticleCount < 0 || header.mGroupCount < 0) {
+            throw new IOException("Corrupt canvas file");
+        }
+        return header;
+    }
+
+    private static ByteBuffer allocateBuffer(int size) {
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    }
+
+    /** Copies from the start of one buffer to another, as far as it fits. */
+    private static void copy(ByteBuffer from, ByteBuffer to) {
+        ByteBuffer source = from.duplicate();
+        source.position(0).limit(Math.min(from.limit(), to.capacity()));
+        to.clear();
+        to.put(source);
+        to.clear();
+    }
+
+    /** Returns a view of size bytes of buffer, from offset. */
+    private static ByteBuffer section(ByteBuffer buffer, int offset, int size) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(offset + size).position(offset);
+        return view.slice().order(ByteOrder.nativeOrder());
+    }
+}
@@ -16,7 +16,6 @@
 */
 package com.google.fpl.liquidfunpaint;
 
-import com.google.fpl.liquidfun.World;
 import com.google.fpl.liquidfunpaint.tool.Tool;
 import com.google.fpl.liquidfunpaint.tool.Tool.ToolType;
 
@@ -30,6 +29,10 @@ import android.view.Surface;
 import android.view.View;
 import android.view.View.OnTouchListener;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
 /**
  * Basic controller that listens to touch and sensor inputs
  */
@@ -41,6 +44,12 @@ public class Controller implements OnTouchListener, SensorEventListener {
 
     private static final String TAG = "Controller";
     private static final float GRAVITY = 10f;
+    // Accelerometer change, in m/s^2, that wakes the canvas from rest
+    private static final float SENSOR_WAKE_DELTA = 0.5f;
+    // Last accelerometer reading applied to the world
+    private float mLastSensorX = 0;
+    private float mLastSensorY = 0;
+    private InputRecorder mRecorder = null;
 
     public Controller(Activity activity) {
         // Get rotation and set the vector
@@ -73,6 +82,11 @@ public class Controller implements OnTouchListener, SensorEventListener {
 
     @Override
     public boolean onTouch(View v, MotionEvent e) {
+        // Wake first, so the event is stamped after the time spent idle
+        Renderer.getInstance().wake();
+        if (mRecorder != null) {
+            mRecorder.recordTouch(v, e);
+        }
         if (mTool != null) {
             mTool.onTouch(v, e);
         }
@@ -86,27 +100,59 @@ public class Controller implements OnTouchListener, SensorEventListener {
     @Override
     public void onSensorChanged(SensorEvent event) {
         if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
-            float x = event.values[0];
-            float y = event.values[1];
-
-            World world = Renderer.getInstance().acquireWorld();
-            try {
-                world.setGravity(
-                        mGravityVec[0] * x - mGravityVec[1] * y,
-                        mGravityVec[1] * x + mGravityVec[0] * y);
-            } finally {
-                Renderer.getInstance().releaseWorld();
-            }
+            onAccelerometerChanged(event.values[0], event.values[1]);
+        }
+    }
+
+    /**
+     * Applies an accelerometer reading to the world gravity. Called for
+     * every sensor event.
+     */
+    public void onAccelerometerChanged(float x, float y) {
+        // Sensor noise alone should not keep us from resting, but a
+        // real tilt wakes us up. While at rest, small changes are not
+        // applied at all, so they don't pile up in the command queue.
+        float dx = x - mLastSensorX;
+        float dy = y - mLastSensorY;
+        Renderer renderer = Renderer.getInstance();
+        if (dx * dx + dy * dy > SENSOR_WAKE_DELTA * SENSOR_WAKE_DELTA) {
+            renderer.wake();
+        } else if (renderer.isIdle()) {
+            return;
+        }
+        mLastSensorX = x;
+        mLastSensorY = y;
+
+        setGravity(mGravityVec[0] * x - mGravityVec[1] * y,
+                   mGravityVec[1] * x + mGravityVec[0] * y);
+    }
+
+    /**
+     * Sets the world gravity. Called for every accelerometer reading that
+     * gets applied, and by the InputReplayer, so a replay neither depends
+     * on the sensor filtering nor on the screen rotation.
+     */
+    public void setGravity(float x, float y) {
+        if (mRecorder != null) {
+            mRecorder.recordGravity(x, y);
         }
+        // Queued, so the sensor thread never waits on a step.
+        Renderer.getInstance().getWorldCommandQueue().setGravity(x, y);
     }
 
     public void setColor(int color) {
+        if (mRecorder != null) {
+            mRecorder.recordColor(color);
+        }
         if (mTool != null) {
             mTool.setColor(color);
         }
     }
 
     public void setTool(ToolType type) {
+        if (mRecorder != null) {
+            mRecorder.recordTool(type);
+        }
         Tool oldTool = mTool;
         mTool = Tool.getTool(type);
 
@@ -120,8 +166,79 @@ public class Controller implements OnTouchListener, SensorEventListener {
         }
     }
 
+    /** Pauses or resumes the simulation, e.g. while drawing rigid bodies */
+    public void setSimulating(boolean simulating) {
+        Renderer renderer = Renderer.getInstance();
+        renderer.wake();
+        if (mRecorder != null) {
+            mRecorder.recordSimulation(simulating);
+        }
+        if (simulating) {
+            renderer.startSimulation();
+        } else {
+            renderer.pauseSimulation();
+        }
+    }
+
+    /** Clears the canvas and resets all tools. */
     public void reset() {
+        Renderer renderer = Renderer.getInstance();
+        renderer.wake();
+        if (mRecorder != null) {
+            mRecorder.recordReset();
+        }
+        renderer.reset();
         Tool.resetAllTools();
     }
+
+    /** Takes back the last stroke. */
+    public void undo() {
+        Renderer renderer = Renderer.getInstance();
+        renderer.wake();
+        if (mRecorder != null) {
+            mRecorder.recordUndo();
+        }
+        renderer.getUndoHistory().undo();
+    }
+
+    /** Puts back the last stroke taken back by undo(). */
+    public void redo() {
+        Renderer renderer = Renderer.getInstance();
+        renderer.wake();
+        if (mRecorder != null) {
+            mRecorder.recordRedo();
+        }
+        renderer.getUndoHistory().redo();
+    }
+
+    /**
+     * Replaces the canvas with a painting saved by Renderer.saveCanvas(),
+     * and resets all tools, as their groups belonged to the old canvas.
+     */
+    public void loadCanvas(File file) throws IOException {
+        Renderer.getInstance().loadCanvas(file);
+        Tool.resetAllTools();
+    }
+
+    /**
+     * Starts recording all input to out, for InputReplayer. Clears the
+     * canvas first, so the log holds everything that gets drawn.
+     * @param simulating Whether the simulation is currently running
+     */
+    public void startRecording(OutputStream out, boolean simulating)
+            throws IOException {
+        stopRecording();
+        reset();
+        mRecorder = new InputRecorder(
+                out, (mTool != null) ? mTool.getType() : null, simulating);
+    }
+
+    /** Stops recording, and closes the log. */
+    public void stopRecording() {
+        if (mRecorder != null) {
+            mRecorder.close();
+            mRecorder = null;
+        }
+    }
 }
 
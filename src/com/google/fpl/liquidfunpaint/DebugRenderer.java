@@ -23,6 +23,7 @@ import com.google.fpl.liquidfun.Vec2;
 import com.google.fpl.liquidfun.World;
 import com.google.fpl.liquidfunpaint.shader.Material;
 import com.google.fpl.liquidfunpaint.shader.Material.AttributeInfo;
+import com.google.fpl.liquidfunpaint.shader.RenderBackend;
 import com.google.fpl.liquidfunpaint.shader.ShaderProgram;
 import com.google.fpl.liquidfunpaint.shader.Texture;
 
@@ -235,8 +236,8 @@ public class DebugRenderer extends Draw {
             // This captures everything we need to draw into buffers
             world.drawDebugData();
 
-            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-            GLES20.glViewport(
+            RenderBackend.get().glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            RenderBackend.get().glViewport(
                     0, 0, Renderer.getInstance().sScreenWidth,
                     Renderer.getInstance().sScreenHeight);
             drawPolygons(mTransformFromWorld);
@@ -258,14 +259,14 @@ public class DebugRenderer extends Draw {
                 mPolygonColorAttr, mPolygonColorBuffer, 0);
 
         // Set uniforms
-        GLES20.glUniformMatrix4fv(
+        RenderBackend.get().glUniformMatrix4fv(
             mPolygonMaterial.getUniformLocation("uTransform"),
             1,
             false,
             transformFromWorld,
             0);
 
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, numElements);
+        RenderBackend.get().glDrawArrays(GLES20.GL_TRIANGLES, 0, numElements);
 
         mPolygonMaterial.endRender();
     }
@@ -273,8 +274,9 @@ public class DebugRenderer extends Draw {
     private void drawCircles(float[] transformFromWorld) {
         mCircleMaterial.beginRender();
 
-        GLES20.glEnable(GLES20.GL_BLEND);
-        GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        RenderBackend.get().glEnable(GLES20.GL_BLEND);
+        RenderBackend.get().glBlendFunc(
+                GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
 
         int numElements = mCirclePointSizeBuffer.position() / 4;
 
@@ -286,11 +288,11 @@ public class DebugRenderer extends Draw {
                 mCirclePointSizeAttr, mCirclePointSizeBuffer, 0);
 
         // Set uniforms
-        GLES20.glUniformMatrix4fv(
+        RenderBackend.get().glUniformMatrix4fv(
                 mCircleMaterial.getUniformLocation("uTransform"),
                 1, false, transformFromWorld, 0);
 
-        GLES20.glDrawArrays(GLES20.GL_POINTS, 0, numElements);
+        RenderBackend.get().glDrawArrays(GLES20.GL_POINTS, 0, numElements);
 
         mCircleMaterial.endRender();
     }
@@ -306,11 +308,11 @@ public class DebugRenderer extends Draw {
                 mLineColorAttr, mLineColorBuffer, 0);
 
         // Set uniforms
-        GLES20.glUniformMatrix4fv(
+        RenderBackend.get().glUniformMatrix4fv(
                 mLineMaterial.getUniformLocation("uTransform"),
                 1, false, transformFromWorld, 0);
 
-        GLES20.glDrawArrays(GLES20.GL_LINES, 0, numElements);
+        RenderBackend.get().glDrawArrays(GLES20.GL_LINES, 0, numElements);
 
         mLineMaterial.endRender();
     }
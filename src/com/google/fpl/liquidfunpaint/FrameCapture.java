@@ -0,0 +1,359 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+package com.google.fpl.liquidfunpaint;
+
+import com.google.fpl.liquidfunpaint.shader.RenderBackend;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads back rendered frames and encodes them on worker threads, e.g. into
+ * a PNG sequence for demo recordings.
+ *
+ * Pixel buffers come from a fixed pool: the frame being read back, the
+ * frames waiting in the encoder queue, and one per worker being encoded.
+ * The render thread reads into one buffer while the workers encode the
+ * others, and nothing is allocated per frame. When the pool runs dry, the
+ * OverflowPolicy decides whether the render thread waits for the encoders,
+ * or which frame is dropped.
+ *
+ * OpenGL ES 2.0 has no pixel buffer objects, so the readback itself is
+ * synchronous; only the encoding is taken off the render thread. Frames
+ * are read through a PixelSource, so any renderer that can produce RGBA
+ * pixels can be captured, not only the GLSurfaceView.
+ */
+public class FrameCapture {
+    private static final String TAG = "FrameCapture";
+
+    /** What to do with a new frame when all buffers are in use. */
+    public enum OverflowPolicy {
+        /** Wait for an encoder to free a buffer; slows rendering down. */
+        BLOCK,
+        /** Skip the new frame. */
+        DROP_NEWEST,
+        /** Drop the oldest frame still waiting to be encoded. */
+        DROP_OLDEST,
+    }
+
+    /** Produces the pixels of the current frame. */
+    public interface PixelSource {
+        /**
+         * Fills out with width x height RGBA pixels, bottom row first, as
+         * glReadPixels() does.
+         */
+        void readPixels(int width, int height, ByteBuffer out);
+    }
+
+    /** Encodes frames. Called from several worker threads at once. */
+    public interface FrameEncoder {
+        /**
+         * @param frameIndex Index of the frame since capture started;
+         *                   dropped frames leave gaps
+         * @param pixels RGBA pixels, bottom row first. Only valid during
+         *               the call.
+         */
+        void encode(int frameIndex, ByteBuffer pixels, int width, int height)
+                throws IOException;
+    }
+
+    /** Reads the currently bound framebuffer. Call on the GL thread. */
+    public static final PixelSource GL_PIXEL_SOURCE = new PixelSource() {
+        @Override
+        public void readPixels(int width, int height, ByteBuffer out) {
+            RenderBackend.get().glReadPixels(
+                    0, 0, width, height, GLES20.GL_RGBA,
+                    GLES20.GL_UNSIGNED_BYTE, out);
+        }
+    };
+
+    /**
+     * Writes each frame to its own PNG file, named after the frame index,
+     * so the sequence sorts in order whichever worker finished first.
+     */
+    public static class PngSequenceEncoder implements FrameEncoder {
+        private final File mDirectory;
+        // Per worker: the bitmap we compress, and the pixels flipped to be
+        // top row first, as Bitmap wants them.
+        private final ThreadLocal<Bitmap> mBitmap = new ThreadLocal<Bitmap>();
+        private final ThreadLocal<ByteBuffer> mFlipped =
+                new ThreadLocal<ByteBuffer>();
+
+        public PngSequenceEncoder(File directory) {
+            mDirectory = directory;
+        }
+
+        @Override
+        public void encode(
+                int frameIndex, ByteBuffer pixels, int width, int height)
+                throws IOException {
+            Bitmap bitmap = mBitmap.get();
+            if (bitmap == null || bitmap.getWidth() != width ||
+                bitmap.getHeight() != height) {
+                if (bitmap != null) {
+                    bitmap.recycle();
+                }
+                bitmap = Bitmap.createBitmap(
+                        width, height, Bitmap.Config.ARGB_8888);
+                mBitmap.set(bitmap);
+            }
+            ByteBuffer flipped = mFlipped.get();
+            int rowSize = 4 * width;
+            if (flipped == null || flipped.capacity() < rowSize * height) {
+                flipped = ByteBuffer.allocateDirect(rowSize * height)
+                        .order(ByteOrder.nativeOrder());
+                mFlipped.set(flipped);
+            }
+
+            flipped.clear();
+            ByteBuffer row = pixels.duplicate();
+            for (int y = height - 1; y >= 0; --y) {
+                row.limit(rowSize * (y + 1)).position(rowSize * y);
+                flipped.put(row);
+            }
+            flipped.flip();
+            bitmap.copyPixelsFromBuffer(flipped);
+
+            File file = new File(mDirectory, String.format(
+                    Locale.US, "frame_%06d.png", frameIndex));
+            OutputStream out =
+                    new BufferedOutputStream(new FileOutputStream(file));
+            try {
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /** A pooled pixel buffer, and the frame it currently holds. */
+    private static class Frame {
+        ByteBuffer mPixels = null;
+        int mWidth;
+        int mHeight;
+        int mIndex;
+
+        void setSize(int width, int height) {
+            int size = 4 * width * height;
+            if (mPixels == null || mPixels.capacity() < size) {
+                mPixels = ByteBuffer.allocateDirect(size)
+                        .order(ByteOrder.nativeOrder());
+            }
+            mPixels.clear().limit(size);
+            mWidth = width;
+            mHeight = height;
+        }
+    }
+
+    // Tells a worker to exit
+    private static final Frame STOP = new Frame();
+
+    private final FrameEncoder mEncoder;
+    private final OverflowPolicy mPolicy;
+    private final BlockingQueue<Frame> mFreeFrames;
+    private final BlockingQueue<Frame> mQueue;
+    private final Thread[] mWorkers;
+    // Guards the last check of mRunning before a frame is queued, so no
+    // frame can be queued behind the stop markers.
+    private final Object mQueueLock = new Object();
+    private volatile boolean mRunning = false;
+
+    // Render thread only
+    private int mFrameIndex = 0;
+
+    private final AtomicInteger mEncodedCount = new AtomicInteger();
+    private final AtomicInteger mDroppedCount = new AtomicInteger();
+
+    /**
+     * @param workerCount Number of encoder threads
+     * @param queueCapacity Number of frames that can wait for an encoder.
+     *                      The pool holds that many buffers, plus one per
+     *                      worker.
+     */
+    public FrameCapture(FrameEncoder encoder, int workerCount,
+                        int queueCapacity, OverflowPolicy policy) {
+        if (workerCount < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException(
+                    "Need at least one worker and one queued frame");
+        }
+        mEncoder = encoder;
+        mPolicy = policy;
+        int frameCount = queueCapacity + workerCount;
+        mFreeFrames = new ArrayBlockingQueue<Frame>(frameCount);
+        for (int i = 0; i < frameCount; ++i) {
+            mFreeFrames.add(new Frame());
+        }
+        // Room for every frame, plus the stop markers, so adding to the
+        // queue never blocks; the pool is what bounds it.
+        mQueue = new ArrayBlockingQueue<Frame>(frameCount + workerCount);
+        mWorkers = new Thread[workerCount];
+    }
+
+    /** Starts the encoder threads. */
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        for (int i = 0; i < mWorkers.length; ++i) {
+            mWorkers[i] = new Thread(TAG + i) {
+                @Override
+                public void run() {
+                    runWorker();
+                }
+            };
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * Stops capturing, waits for the queued frames to be encoded, and stops
+     * the encoder threads.
+     */
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        synchronized (mQueueLock) {
+            mRunning = false;
+            for (int i = 0; i < mWorkers.length; ++i) {
+                mQueue.add(STOP);
+            }
+        }
+        for (int i = 0; i < mWorkers.length; ++i) {
+            boolean joined = false;
+            while (!joined) {
+                try {
+                    mWorkers[i].join();
+                    joined = true;
+                } catch (InterruptedException ex) {
+                    // Keep waiting; the files must not be left half written.
+                }
+            }
+            mWorkers[i] = null;
+        }
+        Log.i(TAG, "Encoded " + mEncodedCount.get() + " frames, dropped " +
+              mDroppedCount.get());
+    }
+
+    /**
+     * Reads the current frame from source and queues it for encoding.
+     * Call on the thread that owns the pixels, e.g. the GL thread right
+     * after drawing. A frame read while stop() runs is not captured.
+     */
+    public void capture(int width, int height, PixelSource source) {
+        if (!mRunning) {
+            return;
+        }
+        Frame frame = obtainFrame();
+        if (frame == null) {
+            mDroppedCount.incrementAndGet();
+            ++mFrameIndex;
+            return;
+        }
+        frame.setSize(width, height);
+        source.readPixels(width, height, frame.mPixels);
+        frame.mIndex = mFrameIndex++;
+        synchronized (mQueueLock) {
+            if (!mRunning) {
+                mFreeFrames.add(frame);
+                return;
+            }
+            mQueue.add(frame);
+        }
+    }
+
+    public int getEncodedCount() {
+        return mEncodedCount.get();
+    }
+
+    public int getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Takes a free buffer according to the policy.
+     * @return The buffer, or null if this frame has to be dropped
+     */
+    private Frame obtainFrame() {
+        Frame frame = mFreeFrames.poll();
+        if (frame != null) {
+            return frame;
+        }
+        switch (mPolicy) {
+            case BLOCK:
+                try {
+                    return mFreeFrames.take();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            case DROP_OLDEST:
+                // Reuse the oldest waiting frame. If the workers hold them
+                // all, there is nothing to replace; drop this one.
+                frame = mQueue.poll();
+                if (frame == STOP) {
+                    mQueue.add(STOP);
+                    return null;
+                }
+                if (frame != null) {
+                    mDroppedCount.incrementAndGet();
+                }
+                return frame;
+            case DROP_NEWEST:
+            default:
+                return null;
+        }
+    }
+
+    private void runWorker() {
+        while (true) {
+            Frame frame;
+            try {
+                frame = mQueue.take();
+            } catch (InterruptedException ex) {
+                continue;
+            }
+            if (frame == STOP) {
+                return;
+            }
+            try {
+                mEncoder.encode(frame.mIndex, frame.mPixels, frame.mWidth,
+                                frame.mHeight);
+                mEncodedCount.incrementAndGet();
+            } catch (IOException ex) {
+                Log.e(TAG, "Cannot encode frame " + frame.mIndex + ": " +
+                      ex.getMessage());
+                mDroppedCount.incrementAndGet();
+            }
+            mFreeFrames.add(frame);
+        }
+    }
+}
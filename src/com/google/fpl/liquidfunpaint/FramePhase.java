@@ -0,0 +1,42 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+package com.google.fpl.liquidfunpaint;
+
+/**
+ * The ordered phases of one frame, as dispatched by the FrameScheduler.
+ */
+public enum FramePhase {
+    /**
+     * Before the world is stepped, without the world lock. Listeners queue
+     * world changes through the WorldCommandQueue.
+     */
+    PRE_STEP,
+    /**
+     * Right after the world is stepped, while the world lock is held.
+     * Listeners may access the world directly, but must be quick.
+     */
+    STEP,
+    /**
+     * After the step's particle state is published, without the world lock.
+     */
+    POST_STEP,
+    /**
+     * On the GLSurfaceView thread, before the frame is drawn. Dispatched
+     * every frame, even when the world is not stepped on this thread.
+     */
+    PRE_RENDER,
+}
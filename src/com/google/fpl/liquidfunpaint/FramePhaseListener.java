@@ -0,0 +1,30 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+package com.google.fpl.liquidfunpaint;
+
+/**
+ * Listener for one or more phases of the frame loop. Register it with
+ * FrameScheduler.addListener().
+ */
+public interface FramePhaseListener {
+    /**
+     * Called once per frame for each phase this listener is registered for.
+     * @param phase The phase being dispatched
+     * @param dt The time step for this frame, in seconds
+     */
+    void onFramePhase(FramePhase phase, float dt);
+}
@@ -0,0 +1,104 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+package com.google.fpl.liquidfunpaint;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Dispatches the phases of the frame loop to registered listeners.
+ *
+ * Each phase keeps its listeners in an array that is replaced, never
+ * modified, when listeners are added or removed. Dispatching only reads the
+ * current array, so it allocates nothing and takes no lock, and listeners
+ * can be added or removed from any thread, including from within a listener.
+ */
+public class FrameScheduler {
+    private static final FramePhaseListener[] NO_LISTENERS =
+            new FramePhaseListener[0];
+    private static final FramePhase[] PHASES = FramePhase.values();
+
+    // Serializes writers only
+    private final Object mLock = new Object();
+    private final AtomicReferenceArray<FramePhaseListener[]> mListeners =
+            new AtomicReferenceArray<FramePhaseListener[]>(PHASES.length);
+
+    public FrameScheduler() {
+        for (int i = 0; i < PHASES.length; ++i) {
+            mListeners.set(i, NO_LISTENERS);
+        }
+    }
+
+    /**
+     * Registers a listener for a phase. Listeners of the same phase are
+     * called in the order they were added. Adding a listener twice has no
+     * effect.
+     */
+    public void addListener(FramePhase phase, FramePhaseListener listener) {
+        if (listener == null) {
+            throw new NullPointerException("listener == null");
+        }
+        synchronized (mLock) {
+            FramePhaseListener[] listeners = mListeners.get(phase.ordinal());
+            if (indexOf(listeners, listener) >= 0) {
+                return;
+            }
+            FramePhaseListener[] newListeners =
+                    Arrays.copyOf(listeners, listeners.length + 1);
+            newListeners[listeners.length] = listener;
+            mListeners.set(phase.ordinal(), newListeners);
+        }
+    }
+
+    /** Unregisters a listener from a phase, if it was registered. */
+    public void removeListener(
+            FramePhase phase, FramePhaseListener listener) {
+        synchronized (mLock) {
+            FramePhaseListener[] listeners = mListeners.get(phase.ordinal());
+            int index = indexOf(listeners, listener);
+            if (index < 0) {
+                return;
+            }
+            FramePhaseListener[] newListeners = NO_LISTENERS;
+            if (listeners.length > 1) {
+                newListeners = new FramePhaseListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, newListeners, 0, index);
+                System.arraycopy(listeners, index + 1, newListeners, index,
+                                 listeners.length - index - 1);
+            }
+            mListeners.set(phase.ordinal(), newListeners);
+        }
+    }
+
+    /** Calls every listener registered for the phase, in order. */
+    public void dispatch(FramePhase phase, float dt) {
+        FramePhaseListener[] listeners = mListeners.get(phase.ordinal());
+        for (int i = 0; i < listeners.length; ++i) {
+            listeners[i].onFramePhase(phase, dt);
+        }
+    }
+
+    private static int indexOf(
+            FramePhaseListener[] listeners, FramePhaseListener listener) {
+        for (int i = 0; i < listeners.length; ++i) {
+            if (listeners[i] == listener) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
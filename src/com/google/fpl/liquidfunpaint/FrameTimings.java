@@ -0,0 +1,134 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+package com.google.fpl.liquidfunpaint;
+
+import com.google.fpl.liquidfunpaint.util.TimingHistogram;
+
+/**
+ * Per-phase timing of the frame loop.
+ *
+ * Each TimingPhase has its own TimingHistogram. Timing a phase is a pair of
+ * System.nanoTime() calls and a few atomic increments, and never allocates,
+ * so it stays on in release builds. The histograms can be read from any
+ * thread, e.g. by the debug overlay or through dump().
+ *
+ * Render phases time how long it takes to issue the GL commands on the CPU;
+ * the GPU may run them later.
+ */
+public class FrameTimings {
+    private static final long ONE_SEC = 1000000000L;
+    private static final long NANOS_PER_MICRO = 1000;
+    // Anything slower than a 60 fps frame is jank.
+    public static final long JANK_THRESHOLD_NANOS = ONE_SEC / 60;
+
+    /**
+     * Timed phases of the frame loop
+     */
+    public enum TimingPhase {
+        /** Position buffer copy into the particle snapshot */
+        COPY_POSITION,
+        /** Color buffer copy into the particle snapshot */
+        COPY_COLOR,
+        /** Weight buffer copy into the particle snapshot */
+        COPY_WEIGHT,
+        /** World.step() */
+        WORLD_STEP,
+        /** Uploading the particle buffers to the vertex buffer object */
+        VERTEX_UPLOAD,
+        /** Drawing water particles to their render surface */
+        WATER_PASS,
+        /** Blurring the water render surface */
+        WATER_BLUR,
+        /** Drawing walls or other non-water particles to their surface */
+        NON_WATER_PASS,
+        /** Blurring a non-water render surface */
+        NON_WATER_BLUR,
+        /** Redrawing the cached paper and walls */
+        STATIC_LAYER,
+        /** Drawing the paper and the walls, or their cached copy */
+        PAPER,
+        /** Compositing the water render surface to screen */
+        WATER_SCREEN,
+        /** Compositing the non-water render surface to screen */
+        NON_WATER_SCREEN,
+        /** Reading the frame back for a FrameCapture */
+        CAPTURE_READBACK,
+        /** The whole of Renderer.onDrawFrame() */
+        FRAME,
+    }
+
+    private static final TimingPhase[] PHASES = TimingPhase.values();
+
+    private final TimingHistogram[] mHistograms =
+            new TimingHistogram[PHASES.length];
+
+    public FrameTimings() {
+        for (int i = 0; i < PHASES.length; ++i) {
+            mHistograms[i] = new TimingHistogram(JANK_THRESHOLD_NANOS);
+        }
+    }
+
+    /**
+     * Starts timing a phase.
+     * @return The start time, to pass to end()
+     */
+    public long begin() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Ends timing a phase started with begin().
+     * @return The end time, so it can be used as the start of the next phase
+     */
+    public long end(TimingPhase phase, long startTime) {
+        long time = System.nanoTime();
+        mHistograms[phase.ordinal()].record(time - startTime);
+        return time;
+    }
+
+    public TimingHistogram getHistogram(TimingPhase phase) {
+        return mHistograms[phase.ordinal()];
+    }
+
+    /** Clears all histograms. */
+    public void reset() {
+        for (int i = 0; i < PHASES.length; ++i) {
+            mHistograms[i].reset();
+        }
+    }
+
+    /**
+     * Appends one line per phase, with its p50, p95 and p99 in microseconds
+     * and its jank count. Only allocates if out has to grow, so a reused
+     * StringBuilder can be dumped into repeatedly.
+     */
+    public void dump(StringBuilder out) {
+        out.append("phase p50/p95/p99 us, jank\n");
+        for (int i = 0; i < PHASES.length; ++i) {
+            TimingHistogram histogram = mHistograms[i];
+            out.append(PHASES[i].name()).append(' ')
+               .append(histogram.getPercentileNanos(50) / NANOS_PER_MICRO)
+               .append('/')
+               .append(histogram.getPercentileNanos(95) / NANOS_PER_MICRO)
+               .append('/')
+               .append(histogram.getPercentileNanos(99) / NANOS_PER_MICRO)
+               .append(", ")
+               .append(histogram.getJankCount())
+               .append('\n');
+        }
+    }
+}
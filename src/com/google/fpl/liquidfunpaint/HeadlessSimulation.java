@@ -0,0 +1,422 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+package com.google.fpl.liquidfunpaint;
+
+import com.google.fpl.liquidfun.Body;
+import com.google.fpl.liquidfun.ParticleFlag;
+import com.google.fpl.liquidfun.ParticleGroup;
+import com.google.fpl.liquidfun.ParticleGroupDef;
+import com.google.fpl.liquidfun.ParticleSystem;
+import com.google.fpl.liquidfun.PolygonShape;
+import com.google.fpl.liquidfun.World;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs a LiquidFun world without any Activity, GLSurfaceView or rendering,
+ * to measure simulation throughput.
+ *
+ * The world is set up exactly like the Renderer's, through SimulationWorld.
+ * Scenes drive it the same way they would drive the Renderer: through the
+ * WorldHost acquire/release contract, by registering with the
+ * FrameScheduler for the step phases, and by submitting to the
+ * WorldCommandQueue. The ParticleBudget retires particles like it does in
+ * the app.
+ *
+ * main() and scenes that only use the world and the queue run on a plain
+ * JVM with the LiquidFun native libraries, except that the queue and the
+ * ParticleBudget report overflows through android.util.Log, so a stand-in
+ * for it must be on the classpath. Tools need the Android framework (View,
+ * MotionEvent); tools created with Tool.createTools(this) drive this host
+ * the same way only on a device or under Robolectric.
+ */
+public class HeadlessSimulation implements WorldHost {
+    private static final long ONE_SEC = 1000000000L;
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    // Defaults for main(); a landscape phone canvas
+    private static final float DEFAULT_WORLD_WIDTH = 5f;
+    private static final float DEFAULT_WORLD_HEIGHT = 3f;
+    private static final float DEFAULT_GRAVITY = -10f;
+    private static final int DEFAULT_STEPS = 600;
+    private static final int DEFAULT_PARTICLE_COUNT = 5000;
+
+    private World mWorld;
+    private ParticleSystem mParticleSystem;
+    private Body mBoundaryBody;
+    private final float mWorldWidth;
+    private final float mWorldHeight;
+    private final Lock mWorldLock = new ReentrantLock();
+    private final FrameScheduler mFrameScheduler = new FrameScheduler();
+    private final WorldCommandQueue mWorldCommandQueue =
+            new WorldCommandQueue();
+    private final ParticleBudget mParticleBudget = new ParticleBudget(this);
+    private final ParticleGroupIndex mGroupIndex = new ParticleGroupIndex();
+    // Particle state published after each step, e.g. for the MoveTool
+    private final ParticleSnapshotRing mSnapshotRing;
+    private final FrameTimings mFrameTimings = new FrameTimings();
+    // See Renderer.mParticleContentVersion
+    private int mParticleContentVersion = 0;
+
+    /**
+     * Results of one run().
+     */
+    public static class Report {
+        /** Number of steps taken */
+        public int mSteps;
+        /** Particle count after the last step */
+        public int mParticleCount;
+        /** Wall clock time of the whole run, in seconds */
+        public double mElapsedSeconds;
+        /** Particles stepped per second of step time */
+        public double mParticlesPerSecond;
+        /** Step time percentiles, in milliseconds */
+        public double mStepMillisP50;
+        public double mStepMillisP95;
+        public double mStepMillisP99;
+        public double mStepMillisMax;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d steps in %.2f s, %d particles, %.0f particles/s, " +
+                    "step ms p50 %.3f p95 %.3f p99 %.3f max %.3f",
+                    mSteps, mElapsedSeconds, mParticleCount,
+                    mParticlesPerSecond, mStepMillisP50, mStepMillisP95,
+                    mStepMillisP99, mStepMillisMax);
+        }
+    }
+
+    /**
+     * Creates a world with boundaries around a width x height canvas, and
+     * no gravity, like the Renderer's.
+     */
+    public HeadlessSimulation(
+            float width, float height, int maxParticleCount) {
+        mWorldWidth = width;
+        mWorldHeight = height;
+        mWorld = new World(0, 0);
+        mParticleSystem =
+                SimulationWorld.createParticleSystem(mWorld, maxParticleCount);
+        mBoundaryBody =
+                SimulationWorld.createBoundaries(mWorld, width, height);
+        mWorld.setDestructionListener(mGroupIndex.getDestructionListener());
+        mSnapshotRing = new ParticleSnapshotRing(maxParticleCount);
+        mFrameScheduler.addListener(FramePhase.STEP, mParticleBudget);
+    }
+
+    /** Deletes the world and its native objects. */
+    public void delete() {
+        World world = acquireWorld();
+        try {
+            // Queued commands refer to the world's particles
+            mWorldCommandQueue.discardAll();
+            mParticleBudget.reset();
+            if (mBoundaryBody != null) {
+                mBoundaryBody.delete();
+                mBoundaryBody = null;
+            }
+            if (world != null) {
+                world.delete();
+                mWorld = null;
+                mParticleSystem = null;
+            }
+        } finally {
+            releaseWorld();
+        }
+    }
+
+    /**
+     * Applies the queued commands and steps the world once, dispatching the
+     * PRE_STEP, STEP and POST_STEP phases around it like the Renderer does,
+     * and publishes a ParticleSnapshot of the result.
+     * @return The time spent in World.step(), in nanoseconds
+     */
+    public long step(float dt) {
+        mFrameScheduler.dispatch(FramePhase.PRE_STEP, dt);
+
+        long stepNanos;
+        World world = acquireWorld();
+        try {
+            if (mWorldCommandQueue.applyAll(world, mParticleSystem)) {
+                ++mParticleContentVersion;
+            }
+            long start = System.nanoTime();
+            SimulationWorld.step(world, dt);
+            stepNanos = System.nanoTime() - start;
+            mFrameScheduler.dispatch(FramePhase.STEP, dt);
+
+            mGroupIndex.refresh(mParticleSystem);
+            mSnapshotRing.getWriteSnapshot().capture(
+                    mParticleSystem, mGroupIndex, null,
+                    mParticleContentVersion, mFrameTimings);
+            mSnapshotRing.publish();
+        } finally {
+            releaseWorld();
+        }
+
+        mFrameScheduler.dispatch(FramePhase.POST_STEP, dt);
+        return stepNanos;
+    }
+
+    /**
+     * Steps the world by SimulationWorld.TIME_STEP a number of times.
+     * @param steps Number of steps to take
+     * @param stepsPerSecond Rate to step at, in real time. 0 or less steps as
+     *                       fast as possible.
+     * @return Throughput and step time statistics for the run
+     */
+    public Report run(int steps, float stepsPerSecond) {
+        long[] stepTimes = new long[steps];
+        long totalStepNanos = 0;
+        long particleSteps = 0;
+        long periodNanos =
+                (stepsPerSecond > 0) ? (long) (ONE_SEC / stepsPerSecond) : 0;
+
+        long startTime = System.nanoTime();
+        long nextStepTime = startTime;
+        int taken = 0;
+        while (taken < steps) {
+            particleSteps += getParticleCount();
+            stepTimes[taken] = step(SimulationWorld.TIME_STEP);
+            totalStepNanos += stepTimes[taken];
+            ++taken;
+
+            if (periodNanos > 0) {
+                nextStepTime += periodNanos;
+                long sleepNanos = nextStepTime - System.nanoTime();
+                if (sleepNanos > 0) {
+                    try {
+                        Thread.sleep(sleepNanos / NANOS_PER_MILLI,
+                                     (int) (sleepNanos % NANOS_PER_MILLI));
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+
+        Report report = new Report();
+        report.mSteps = taken;
+        report.mParticleCount = getParticleCount();
+        report.mElapsedSeconds =
+                (double) (System.nanoTime() - startTime) / ONE_SEC;
+        if (totalStepNanos > 0) {
+            report.mParticlesPerSecond =
+                    (double) particleSteps * ONE_SEC / totalStepNanos;
+        }
+        if (taken > 0) {
+            Arrays.sort(stepTimes, 0, taken);
+            report.mStepMillisP50 = percentileMillis(stepTimes, taken, 50);
+            report.mStepMillisP95 = percentileMillis(stepTimes, taken, 95);
+            report.mStepMillisP99 = percentileMillis(stepTimes, taken, 99);
+            report.mStepMillisMax =
+                    (double) stepTimes[taken - 1] / NANOS_PER_MILLI;
+        }
+        return report;
+    }
+
+    private static double percentileMillis(
+            long[] sorted, int count, int percentile) {
+        // Nearest-rank percentile
+        int rank = (int) Math.ceil(percentile / 100.0 * count);
+        int index = Math.max(0, Math.min(count - 1, rank - 1));
+        return (double) sorted[index] / NANOS_PER_MILLI;
+    }
+
+    private int getParticleCount() {
+        ParticleSystem ps = acquireParticleSystem();
+        try {
+            return ps.getParticleCount();
+        } finally {
+            releaseParticleSystem();
+        }
+    }
+
+    /**
+     * Fills the lower left of the canvas with a block of particleCount water
+     * particles. The block is half the canvas wide, and grows wider if it
+     * would not fit in its height.
+     * @throws IllegalArgumentException if the canvas cannot hold that many
+     *                                  particles
+     */
+    public void createWaterBlock(float width, float height, int particleCount) {
+        // LiquidFun spaces particles 0.75 diameters apart by default, and
+        // fills a box on a grid of that stride. Leave one extra row and
+        // column, and destroy what goes beyond particleCount.
+        float stride = 0.75f * 2 * SimulationWorld.PARTICLE_RADIUS;
+        int maxRows = (int) (height / stride) - 1;
+        int columns = Math.max(1, (int) (width / 2 / stride));
+        if ((long) columns * maxRows < particleCount) {
+            columns = (particleCount + maxRows - 1) / Math.max(1, maxRows);
+        }
+        int rows = (particleCount + columns - 1) / columns;
+        float blockWidth = (columns + 1) * stride;
+        float blockHeight = (rows + 1) * stride;
+        if (maxRows < 1 || blockWidth > width || blockHeight > height) {
+            throw new IllegalArgumentException(String.format(Locale.US,
+                    "%d particles do not fit a %.2f x %.2f canvas",
+                    particleCount, width, height));
+        }
+
+        // Create native objects
+        PolygonShape shape = new PolygonShape();
+        ParticleGroupDef pgd = new ParticleGroupDef();
+        shape.setAsBox(
+                blockWidth / 2, blockHeight / 2,
+                blockWidth / 2, blockHeight / 2, 0);
+        pgd.setShape(shape);
+        pgd.setFlags(ParticleFlag.waterParticle);
+
+        ParticleSystem ps = acquireParticleSystem();
+        try {
+            int start = ps.getParticleCount();
+            ps.createParticleGroup(pgd);
+            int created = ps.getParticleCount() - start;
+            if (created < particleCount) {
+                throw new IllegalStateException(String.format(Locale.US,
+                        "Created %d of %d particles; the particle system " +
+                        "is full", created, particleCount));
+            }
+            // Destroyed particles are removed by the next step.
+            for (int i = start + particleCount; i < start + created; ++i) {
+                ps.destroyParticle(i);
+            }
+        } finally {
+            releaseParticleSystem();
+            // Clean up native objects
+            pgd.delete();
+            shape.delete();
+        }
+    }
+
+    @Override
+    public World acquireWorld() {
+        mWorldLock.lock();
+        return mWorld;
+    }
+
+    @Override
+    public void releaseWorld() {
+        mWorldLock.unlock();
+    }
+
+    @Override
+    public ParticleSystem acquireParticleSystem() {
+        mWorldLock.lock();
+        return mParticleSystem;
+    }
+
+    @Override
+    public void releaseParticleSystem() {
+        mWorldLock.unlock();
+    }
+
+    @Override
+    public FrameScheduler getFrameScheduler() {
+        return mFrameScheduler;
+    }
+
+    @Override
+    public WorldCommandQueue getWorldCommandQueue() {
+        return mWorldCommandQueue;
+    }
+
+    @Override
+    public ParticleBudget getParticleBudget() {
+        return mParticleBudget;
+    }
+
+    @Override
+    public ParticleGroupIndex getParticleGroupIndex() {
+        return mGroupIndex;
+    }
+
+    @Override
+    public float getWorldWidth() {
+        return mWorldWidth;
+    }
+
+    @Override
+    public float getWorldHeight() {
+        return mWorldHeight;
+    }
+
+    @Override
+    public ParticleSnapshot getLastPublishedSnapshot() {
+        return mSnapshotRing.getLastPublished();
+    }
+
+    /** There is no undo history here; strokes are not recorded. */
+    @Override
+    public void markStroke() {
+    }
+
+    @Override
+    public void onGroupDestroyed(ParticleGroup group) {
+        mParticleBudget.onGroupDestroyed(group);
+    }
+
+    @Override
+    public void onGroupRestored(ParticleGroup group) {
+        mGroupIndex.markDirty();
+        if (ParticleGroupIndex.isWallGroup(group.getGroupFlags())) {
+            mGroupIndex.markWallsChanged();
+        }
+        mParticleBudget.onGroupTouched(
+                group, ParticleBudget.guessToolType(mParticleSystem, group));
+    }
+
+    /**
+     * Runs a dam break: a block of water collapsing under gravity, and
+     * prints the Report. The LiquidFun native libraries must be on
+     * java.library.path.
+     * Usage: HeadlessSimulation [steps] [particleCount] [stepsPerSecond]
+     */
+    public static void main(String[] args) {
+        int steps = (args.length > 0) ?
+                Integer.parseInt(args[0]) : DEFAULT_STEPS;
+        int particleCount = (args.length > 1) ?
+                Integer.parseInt(args[1]) : DEFAULT_PARTICLE_COUNT;
+        float stepsPerSecond = (args.length > 2) ?
+                Float.parseFloat(args[2]) : 0;
+
+        System.loadLibrary("liquidfun");
+        System.loadLibrary("liquidfun_jni");
+
+        HeadlessSimulation sim = new HeadlessSimulation(
+                DEFAULT_WORLD_WIDTH, DEFAULT_WORLD_HEIGHT, particleCount);
+        try {
+            World world = sim.acquireWorld();
+            try {
+                world.setGravity(0, DEFAULT_GRAVITY);
+            } finally {
+                sim.releaseWorld();
+            }
+            sim.createWaterBlock(
+                    DEFAULT_WORLD_WIDTH, DEFAULT_WORLD_HEIGHT, particleCount);
+
+            System.out.println(sim.run(steps, stepsPerSecond));
+        } finally {
+            sim.delete();
+        }
+    }
+}
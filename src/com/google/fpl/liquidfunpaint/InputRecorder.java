@@ -0,0 +1,259 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+package com.google.fpl.liquidfunpaint;
+
+import com.google.fpl.liquidfunpaint.tool.Tool;
+import com.google.fpl.liquidfunpaint.tool.Tool.ToolType;
+
+import android.util.Log;
+import android.view.MotionEvent;
+import android.view.View;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records the input that drives the canvas into a compact binary log, so it
+ * can be fed back with InputReplayer for repeatable load scenarios.
+ *
+ * Every event is stamped with the number of world updates done so far,
+ * rather than wall clock time, so a replay that steps the world once per
+ * frame applies each event before the same step as it was applied live.
+ * The count keeps advancing while the canvas is at rest, see
+ * Renderer.getUpdateCount(). Gravity is recorded as applied to the world,
+ * after the accelerometer filtering, so replays do not depend on it.
+ *
+ * Log format, big-endian:
+ *   header: magic, version, time step, simulating flag, current tool,
+ *           then the color of every tool
+ *   events: type byte, update count delta as an unsigned varint, payload
+ * Touch coordinates are stored as 16-bit fractions of the view size, so a
+ * log can be replayed on a view of any size.
+ *
+ * All record methods are called from the UI thread; any write error stops
+ * the recording rather than the input.
+ */
+public class InputRecorder {
+    private static final String TAG = "InputRecorder";
+
+    static final int MAGIC = 0x4c464952; // "LFIR"
+    static final int VERSION = 2;
+
+    // Event types
+    static final int EVENT_TOUCH = 1;
+    static final int EVENT_TOOL = 2;
+    static final int EVENT_COLOR = 3;
+    static final int EVENT_GRAVITY = 4;
+    static final int EVENT_SIMULATION = 5;
+    static final int EVENT_RESET = 6;
+    static final int EVENT_UNDO = 7;
+    static final int EVENT_REDO = 8;
+
+    // Stands in for a null tool
+    static final int NO_TOOL = 0xFF;
+    // Full scale of the quantized touch coordinates
+    static final float COORDINATE_SCALE = 0xFFFF;
+
+    private DataOutputStream mOut;
+    private long mLastUpdateCount;
+
+    /**
+     * Starts a log with the current tool and simulation state. The caller
+     * is expected to reset the canvas right after, so that the log
+     * describes everything that was drawn.
+     */
+    public InputRecorder(
+            OutputStream out, ToolType currentTool, boolean simulating)
+            throws IOException {
+        mOut = new DataOutputStream(new BufferedOutputStream(out));
+        mOut.writeInt(MAGIC);
+        mOut.writeShort(VERSION);
+        mOut.writeFloat(SimulationWorld.TIME_STEP);
+        mOut.writeBoolean(simulating);
+        writeTool(currentTool);
+        ToolType[] types = ToolType.values();
+        mOut.writeByte(types.length);
+        for (int i = 0; i < types.length; ++i) {
+            Tool tool = Tool.getTool(types[i]);
+            mOut.writeInt(tool != null ? tool.getColor() : 0);
+        }
+        mLastUpdateCount = Renderer.getInstance().getUpdateCount();
+    }
+
+    /** Flushes and closes the log. */
+    public synchronized void close() {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            mOut.close();
+        } catch (IOException ex) {
+            Log.e(TAG, "Cannot close input log: " + ex.getMessage());
+        }
+        mOut = null;
+    }
+
+    public synchronized boolean isRecording() {
+        return mOut != null;
+    }
+
+    /**
+     * Records one touch event, with its historical samples, for all of its
+     * pointers.
+     */
+    public synchronized void recordTouch(View v, MotionEvent e) {
+        if (!beginEvent(EVENT_TOUCH)) {
+            return;
+        }
+        try {
+            float scaleX = COORDINATE_SCALE / Math.max(v.getWidth(), 1);
+            float scaleY = COORDINATE_SCALE / Math.max(v.getHeight(), 1);
+            int pointerCount = e.getPointerCount();
+            int historySize = e.getHistorySize();
+
+            mOut.writeByte(e.getActionMasked());
+            mOut.writeByte(e.getActionIndex());
+            mOut.writeByte(pointerCount);
+            writeVarint(historySize);
+            for (int p = 0; p < pointerCount; ++p) {
+                mOut.writeByte(e.getPointerId(p));
+            }
+            for (int h = 0; h < historySize; ++h) {
+                for (int p = 0; p < pointerCount; ++p) {
+                    writeCoordinate(e.getHistoricalX(p, h) * scaleX);
+                    writeCoordinate(e.getHistoricalY(p, h) * scaleY);
+                }
+            }
+            for (int p = 0; p < pointerCount; ++p) {
+                writeCoordinate(e.getX(p) * scaleX);
+                writeCoordinate(e.getY(p) * scaleY);
+            }
+        } catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    public synchronized void recordTool(ToolType type) {
+        if (!beginEvent(EVENT_TOOL)) {
+            return;
+        }
+        try {
+            writeTool(type);
+        } catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    public synchronized void recordColor(int color) {
+        if (!beginEvent(EVENT_COLOR)) {
+            return;
+        }
+        try {
+            mOut.writeInt(color);
+        } catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    /** Records the gravity applied to the world. */
+    public synchronized void recordGravity(float x, float y) {
+        if (!beginEvent(EVENT_GRAVITY)) {
+            return;
+        }
+        try {
+            mOut.writeFloat(x);
+            mOut.writeFloat(y);
+        } catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    public synchronized void recordSimulation(boolean simulating) {
+        if (!beginEvent(EVENT_SIMULATION)) {
+            return;
+        }
+        try {
+            mOut.writeBoolean(simulating);
+        } catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    public synchronized void recordReset() {
+        beginEvent(EVENT_RESET);
+    }
+
+    public synchronized void recordUndo() {
+        beginEvent(EVENT_UNDO);
+    }
+
+    public synchronized void recordRedo() {
+        beginEvent(EVENT_REDO);
+    }
+
+    /**
+     * Writes the type and update count of an event.
+     * @return False if we are not recording
+     */
+    private boolean beginEvent(int type) {
+        if (mOut == null) {
+            return false;
+        }
+        // Never go back, e.g. if we raced with the end of an idle period
+        long updateCount = Math.max(
+                Renderer.getInstance().getUpdateCount(), mLastUpdateCount);
+        try {
+            mOut.writeByte(type);
+            writeVarint(updateCount - mLastUpdateCount);
+            mLastUpdateCount = updateCount;
+        } catch (IOException ex) {
+            fail(ex);
+            return false;
+        }
+        return true;
+    }
+
+    private void writeTool(ToolType type) throws IOException {
+        mOut.writeByte(type != null ? type.ordinal() : NO_TOOL);
+    }
+
+    private void writeCoordinate(float value) throws IOException {
+        mOut.writeShort(Math.round(
+                Math.max(0, Math.min(value, COORDINATE_SCALE))));
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            mOut.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        mOut.writeByte((int) value);
+    }
+
+    private void fail(IOException ex) {
+        Log.e(TAG, "Cannot write input log; recording stopped: " +
+              ex.getMessage());
+        try {
+            mOut.close();
+        } catch (IOException closeEx) {
+            // Already failing
+        }
+        mOut = null;
+    }
+}
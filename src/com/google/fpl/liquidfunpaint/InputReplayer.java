@@ -0,0 +1,379 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+package com.google.fpl.liquidfunpaint;
+
+import com.google.fpl.liquidfunpaint.Renderer.SimulationMode;
+import com.google.fpl.liquidfunpaint.tool.Tool;
+import com.google.fpl.liquidfunpaint.tool.Tool.ToolType;
+
+import android.util.Log;
+import android.view.MotionEvent;
+import android.view.MotionEvent.PointerCoords;
+import android.view.MotionEvent.PointerProperties;
+import android.view.View;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Feeds a log written by InputRecorder back through the Controller, and
+ * steps the world itself by the recorded time step, so the same log always
+ * produces the same sequence of steps. Use it to benchmark a gesture that
+ * is hard to reproduce by hand.
+ *
+ * While replaying, the Renderer is in SimulationMode.EXTERNAL: the
+ * GLSurfaceView thread keeps drawing, but only the replay steps the world.
+ * Like the live canvas, the replay does not step while the canvas is at
+ * rest, but keeps counting updates. The input is handed to the Controller
+ * on the UI thread, as it would be live. Live touch input should be
+ * disabled for the duration.
+ */
+public class InputReplayer {
+    private static final String TAG = "InputReplayer";
+    private static final int MAX_POINTERS = 16;
+    private static final long MILLIS_PER_SEC = 1000;
+
+    private final Controller mController;
+    private final View mView;
+    private final DataInputStream mIn;
+    private final float mTimeStep;
+    private final ToolType mInitialTool;
+    private final boolean mInitialSimulating;
+    private final int[] mInitialColors;
+
+    // Number of updates done by the replay so far
+    private long mUpdateCount = 0;
+    // Update count at which the next event is due, or -1 at the end
+    private long mNextEventUpdate;
+    private int mNextEventType;
+    private long mDownTime = 0;
+
+    // Reused to build touch events
+    private final PointerProperties[] mProperties =
+            new PointerProperties[MAX_POINTERS];
+    private final PointerCoords[] mCoords = new PointerCoords[MAX_POINTERS];
+
+    /**
+     * Reads the header of a log.
+     * @param controller The controller to feed the input to
+     * @param view The view touches are replayed on; they are scaled to its
+     *             size
+     * @throws IOException If the log is not readable or not a supported
+     *                     version
+     */
+    public InputReplayer(Controller controller, View view, InputStream in)
+            throws IOException {
+        mController = controller;
+        mView = view;
+        mIn = new DataInputStream(new BufferedInputStream(in));
+
+        if (mIn.readInt() != InputRecorder.MAGIC) {
+            throw new IOException("Not an input log");
+        }
+        int version = mIn.readShort();
+        if (version != InputRecorder.VERSION) {
+            throw new IOException("Unsupported input log version " + version);
+        }
+        mTimeStep = mIn.readFloat();
+        mInitialSimulating = mIn.readBoolean();
+        mInitialTool = readTool();
+        mInitialColors = new int[mIn.readUnsignedByte()];
+        for (int i = 0; i < mInitialColors.length; ++i) {
+            mInitialColors[i] = mIn.readInt();
+        }
+
+        for (int i = 0; i < MAX_POINTERS; ++i) {
+            mProperties[i] = new PointerProperties();
+            mCoords[i] = new PointerCoords();
+        }
+        readEventHeader();
+    }
+
+    /**
+     * Replays the whole log, then closes it. Blocks until done, so do not
+     * call this from the UI or GLSurfaceView thread.
+     * @return The number of steps taken
+     */
+    public long replay() throws IOException {
+        SimulationMode previousMode =
+                Renderer.getInstance().getSimulationMode();
+        setSimulationMode(SimulationMode.EXTERNAL);
+        try {
+            start();
+            while (step()) {
+                // Keep stepping until the log runs out
+            }
+        } finally {
+            mIn.close();
+            setSimulationMode(previousMode);
+        }
+        return mUpdateCount;
+    }
+
+    /**
+     * Restores the tool state the log was recorded with, and clears the
+     * canvas. Called by replay(); only call it directly when driving the
+     * replay with step().
+     */
+    public void start() throws IOException {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                ToolType[] types = ToolType.values();
+                for (int i = 0;
+                     i < Math.min(types.length, mInitialColors.length); ++i) {
+                    Tool tool = Tool.getTool(types[i]);
+                    if (tool != null) {
+                        tool.setColor(mInitialColors[i]);
+                    }
+                }
+                mController.setTool(mInitialTool);
+                mController.setSimulating(mInitialSimulating);
+                mController.reset();
+            }
+        });
+    }
+
+    /**
+     * Applies the events recorded before the next update, then steps once,
+     * unless the canvas is at rest.
+     * @return False once the log has been fully replayed
+     */
+    public boolean step() throws IOException {
+        if (mNextEventUpdate < 0) {
+            return false;
+        }
+        while (mNextEventUpdate >= 0 && mNextEventUpdate <= mUpdateCount) {
+            try {
+                applyEvent(mNextEventType);
+            } catch (EOFException ex) {
+                // Truncated log, e.g. the app was killed while recording
+                Log.w(TAG, "Input log ends mid-event");
+                mNextEventUpdate = -1;
+                break;
+            }
+            readEventHeader();
+        }
+        // The live canvas does not step while at rest either; input wakes
+        // it up again.
+        Renderer renderer = Renderer.getInstance();
+        if (!renderer.isIdle()) {
+            renderer.update(mTimeStep);
+        }
+        ++mUpdateCount;
+        return true;
+    }
+
+    /** Reads the payload of an event, and applies it on the UI thread. */
+    private void applyEvent(int type) throws IOException {
+        switch (type) {
+            case InputRecorder.EVENT_TOUCH:
+                replayTouch();
+                return;
+            case InputRecorder.EVENT_TOOL: {
+                final ToolType tool = readTool();
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mController.setTool(tool);
+                    }
+                });
+                return;
+            }
+            case InputRecorder.EVENT_COLOR: {
+                final int color = mIn.readInt();
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mController.setColor(color);
+                    }
+                });
+                return;
+            }
+            case InputRecorder.EVENT_GRAVITY: {
+                final float x = mIn.readFloat();
+                final float y = mIn.readFloat();
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mController.setGravity(x, y);
+                    }
+                });
+                return;
+            }
+            case InputRecorder.EVENT_SIMULATION: {
+                final boolean simulating = mIn.readBoolean();
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mController.setSimulating(simulating);
+                    }
+                });
+                return;
+            }
+            case InputRecorder.EVENT_RESET:
+            case InputRecorder.EVENT_UNDO:
+            case InputRecorder.EVENT_REDO: {
+                final int command = type;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (command == InputRecorder.EVENT_RESET) {
+                            mController.reset();
+                        } else if (command == InputRecorder.EVENT_UNDO) {
+                            mController.undo();
+                        } else {
+                            mController.redo();
+                        }
+                    }
+                });
+                return;
+            }
+            default:
+                throw new IOException("Unknown input log event " + type);
+        }
+    }
+
+    private void setSimulationMode(final SimulationMode mode)
+            throws IOException {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Renderer.getInstance().setSimulationMode(mode);
+            }
+        });
+    }
+
+    /**
+     * Runs r on the UI thread, where the Controller expects its input, and
+     * waits for it, so the input is in before the next step.
+     */
+    private void runOnUiThread(final Runnable r) throws IOException {
+        final CountDownLatch done = new CountDownLatch(1);
+        boolean posted = mView.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    r.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        if (!posted) {
+            throw new IOException("Replay view is not attached");
+        }
+        try {
+            done.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Replay interrupted");
+        }
+    }
+
+    /** Rebuilds a MotionEvent, history included, and hands it over. */
+    private void replayTouch() throws IOException {
+        int actionMasked = mIn.readUnsignedByte();
+        int actionIndex = mIn.readUnsignedByte();
+        int pointerCount = mIn.readUnsignedByte();
+        int historySize = (int) readVarint();
+        if (pointerCount > MAX_POINTERS) {
+            throw new IOException("Too many pointers: " + pointerCount);
+        }
+        for (int p = 0; p < pointerCount; ++p) {
+            mProperties[p].clear();
+            mProperties[p].id = mIn.readUnsignedByte();
+        }
+
+        float scaleX = mView.getWidth() / InputRecorder.COORDINATE_SCALE;
+        float scaleY = mView.getHeight() / InputRecorder.COORDINATE_SCALE;
+        long eventTime = mUpdateCount * (long) (mTimeStep * MILLIS_PER_SEC);
+        if (actionMasked == MotionEvent.ACTION_DOWN) {
+            mDownTime = eventTime;
+        }
+        int action = actionMasked |
+                (actionIndex << MotionEvent.ACTION_POINTER_INDEX_SHIFT);
+
+        // The first sample creates the event; later ones are added as
+        // batches, which turns the earlier ones into history.
+        MotionEvent event = null;
+        for (int h = 0; h <= historySize; ++h) {
+            for (int p = 0; p < pointerCount; ++p) {
+                mCoords[p].clear();
+                mCoords[p].x = mIn.readUnsignedShort() * scaleX;
+                mCoords[p].y = mIn.readUnsignedShort() * scaleY;
+            }
+            if (event == null) {
+                event = MotionEvent.obtain(
+                        mDownTime, eventTime, action, pointerCount,
+                        mProperties, mCoords, 0, 0, 1, 1, 0, 0, 0, 0);
+            } else {
+                event.addBatch(eventTime, mCoords, 0);
+            }
+        }
+        final MotionEvent e = event;
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mController.onTouch(mView, e);
+                e.recycle();
+            }
+        });
+    }
+
+    /** Reads the type and due time of the next event, if any. */
+    private void readEventHeader() throws IOException {
+        int type = mIn.read();
+        if (type < 0) {
+            mNextEventUpdate = -1;
+            return;
+        }
+        mNextEventType = type;
+        long delta;
+        try {
+            delta = readVarint();
+        } catch (EOFException ex) {
+            Log.w(TAG, "Input log ends mid-event");
+            mNextEventUpdate = -1;
+            return;
+        }
+        mNextEventUpdate = Math.max(mNextEventUpdate, 0) + delta;
+    }
+
+    private ToolType readTool() throws IOException {
+        int ordinal = mIn.readUnsignedByte();
+        ToolType[] types = ToolType.values();
+        return ordinal < types.length ? types[ordinal] : null;
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = mIn.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -41,6 +41,7 @@ import android.widget.ImageView;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -72,6 +73,7 @@ public class MainActivity extends Activity implements OnTouchListener {
 
     private boolean mUsingTool = false;
     private static final int ANIMATION_DURATION = 300;
+    private static final String AUTOSAVE_DIRECTORY = "autosave";
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -147,6 +149,10 @@ public class MainActivity extends Activity implements OnTouchListener {
 
         Renderer renderer = Renderer.getInstance();
         Renderer.getInstance().init(this);
+        Tool.createTools(renderer);
+        // Bring back the painting if the process was killed, and keep
+        // saving it from now on.
+        renderer.enableAutosave(new File(getFilesDir(), AUTOSAVE_DIRECTORY));
         mController = new Controller(this);
 
         // Set up the OpenGL WorldView
@@ -166,6 +172,7 @@ public class MainActivity extends Activity implements OnTouchListener {
         }
 
         mWorldView.setRenderer(renderer);
+        renderer.setSurfaceView(mWorldView);
         renderer.startSimulation();
 
         // Set default tool colors
@@ -229,6 +236,7 @@ public class MainActivity extends Activity implements OnTouchListener {
         super.onResume();
         mController.onResume();
         mWorldView.onResume();
+        Renderer.getInstance().onResume();
         Renderer.getInstance().totalFrames = -10000;
 
     }
@@ -237,6 +245,7 @@ public class MainActivity extends Activity implements OnTouchListener {
     protected void onPause() {
         super.onPause();
         mController.onPause();
+        Renderer.getInstance().onPause();
         mWorldView.onPause();
     }
 
@@ -339,14 +348,14 @@ public class MainActivity extends Activity implements OnTouchListener {
             case MotionEvent.ACTION_DOWN:
                 mUsingTool = true;
                 if (mSelected.getId() == R.id.rigid) {
-                    Renderer.getInstance().pauseSimulation();
+                    mController.setSimulating(false);
                 }
                 break;
             case MotionEvent.ACTION_CANCEL:
             case MotionEvent.ACTION_UP:
                 mUsingTool = false;
                 if (mSelected.getId() == R.id.rigid) {
-                    Renderer.getInstance().startSimulation();
+                    mController.setSimulating(true);
                 }
                 break;
             default:
@@ -369,7 +378,6 @@ public class MainActivity extends Activity implements OnTouchListener {
                     select(v, null);
                     break;
                 case MotionEvent.ACTION_UP:
-                    Renderer.getInstance().reset();
                     mController.reset();
                     // Could refactor out to a deselect() function, but this is
                     // the only place that needs it now.
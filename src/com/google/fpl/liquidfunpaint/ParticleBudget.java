@@ -0,0 +1,433 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+package com.google.fpl.liquidfunpaint;
+
+import com.google.fpl.liquidfun.ParticleFlag;
+import com.google.fpl.liquidfun.ParticleGroup;
+import com.google.fpl.liquidfun.ParticleGroupFlag;
+import com.google.fpl.liquidfun.ParticleSystem;
+import com.google.fpl.liquidfunpaint.tool.Tool.ToolType;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+
+/**
+ * Keeps headroom in the particle system, so new strokes never silently stop
+ * creating particles when the canvas is full.
+ *
+ * Tools report every particle group they create or add to. When the free
+ * capacity drops below LOW_HEADROOM, we pick groups to retire according to
+ * the EvictionPolicy of the ToolType that created them, until HIGH_HEADROOM
+ * would be free again. Retired particles are destroyed gradually: a bounded
+ * number of them each step, oldest first, so the frame cost stays bounded.
+ *
+ * Groups are joined oldest to newest, so the lowest buffer indices of a group
+ * are its oldest particles. Policies can retire a group as a whole (e.g.
+ * rigid bodies), or only as many of its oldest particles as needed (e.g.
+ * the single water group that all water strokes join). A group retired as
+ * a whole is left alone while it is being drawn into; of a group retired
+ * partially, only the particles that were already there MIN_IDLE_TIME ago
+ * can go, so the water drawn earlier stays evictable during a stroke.
+ *
+ * Everything here runs on the thread stepping the world, while holding the
+ * world lock: in the STEP frame phase, and from Tool.createParticleGroup().
+ */
+public class ParticleBudget implements FramePhaseListener {
+    private static final String TAG = "ParticleBudget";
+    // Start retiring when less than this fraction of capacity is free...
+    private static final float LOW_HEADROOM = 0.1f;
+    // ...and retire until this fraction would be free again.
+    private static final float HIGH_HEADROOM = 0.2f;
+    // Below this, a stroke is about to be cut short; retire faster.
+    private static final float EMERGENCY_HEADROOM = 0.02f;
+    // Fraction of capacity destroyed per step while retiring, so a full
+    // retirement is spread over a few tenths of a second.
+    private static final float RETIRE_FRACTION_PER_STEP = 0.005f;
+    private static final int EMERGENCY_RETIRE_MULTIPLIER = 4;
+    // Never retire particles drawn more recently than this, in seconds, so
+    // we don't eat the stroke being drawn.
+    private static final float MIN_IDLE_TIME = 1f;
+
+    /**
+     * Decides which groups are retired first.
+     */
+    public interface EvictionPolicy {
+        /** Rank of groups that must never be retired. */
+        float NEVER = Float.MAX_VALUE;
+
+        /**
+         * @return The eviction rank of the group; groups with lower ranks
+         *         are retired first. NEVER to keep the group.
+         */
+        float getRank(TrackedGroup group);
+    }
+
+    /** Retires the group created first. */
+    public static final EvictionPolicy OLDEST_FIRST = new EvictionPolicy() {
+        @Override
+        public float getRank(TrackedGroup group) {
+            return group.getCreationTime();
+        }
+    };
+
+    /** Retires the group that was drawn into least recently. */
+    public static final EvictionPolicy LEAST_RECENTLY_TOUCHED =
+            new EvictionPolicy() {
+        @Override
+        public float getRank(TrackedGroup group) {
+            return group.getLastTouchTime();
+        }
+    };
+
+    /** Never retires anything. */
+    public static final EvictionPolicy NEVER_EVICT = new EvictionPolicy() {
+        @Override
+        public float getRank(TrackedGroup group) {
+            return NEVER;
+        }
+    };
+
+    /**
+     * How groups of one ToolType are retired.
+     */
+    private static class TypePolicy {
+        // Types with lower priorities are retired before higher ones.
+        final int mPriority;
+        final EvictionPolicy mPolicy;
+        final boolean mRetireWholeGroups;
+
+        TypePolicy(int priority, EvictionPolicy policy,
+                   boolean retireWholeGroups) {
+            mPriority = priority;
+            mPolicy = policy;
+            mRetireWholeGroups = retireWholeGroups;
+        }
+    }
+
+    /**
+     * A particle group created by a tool, as seen by the budget.
+     */
+    public static class TrackedGroup {
+        private final ParticleGroup mGroup;
+        private final ToolType mType;
+        // Whether we set particleGroupCanBeEmpty on the group ourselves
+        private final boolean mAddedCanBeEmpty;
+        private final float mCreationTime;
+        private float mLastTouchTime;
+        // Particles still to be destroyed from the start of the group
+        private int mRetiring = 0;
+        // Leading particles that are at least MIN_IDLE_TIME old. Updated
+        // from a particle count sampled at most every MIN_IDLE_TIME, so it
+        // lags by up to twice that.
+        private int mSettledCount = 0;
+        private int mSampledCount;
+        private float mSampleTime;
+
+        private TrackedGroup(ParticleGroup group, ToolType type,
+                             boolean addedCanBeEmpty, float time) {
+            mGroup = group;
+            mType = type;
+            mAddedCanBeEmpty = addedCanBeEmpty;
+            mCreationTime = time;
+            mLastTouchTime = time;
+            mSampledCount = group.getParticleCount();
+            mSampleTime = time;
+        }
+
+        public ToolType getType() {
+            return mType;
+        }
+
+        /** In seconds of simulation time */
+        public float getCreationTime() {
+            return mCreationTime;
+        }
+
+        /** In seconds of simulation time */
+        public float getLastTouchTime() {
+            return mLastTouchTime;
+        }
+
+        public int getParticleCount() {
+            return mGroup.getParticleCount();
+        }
+    }
+
+    private final WorldHost mHost;
+    private final EnumMap<ToolType, TypePolicy> mPolicies =
+            new EnumMap<ToolType, TypePolicy>(ToolType.class);
+    private final List<TrackedGroup> mGroups = new ArrayList<TrackedGroup>();
+    // Simulation time, in seconds
+    private float mTime = 0;
+    // Sum of TrackedGroup.mRetiring
+    private int mRetiringCount = 0;
+    private boolean mCapacityExhausted = false;
+
+    public ParticleBudget(WorldHost host) {
+        mHost = host;
+        // Water goes first, then rigid bodies, and pencil walls last.
+        setPolicy(ToolType.WATER, 0, OLDEST_FIRST, false);
+        setPolicy(ToolType.RIGID, 1, LEAST_RECENTLY_TOUCHED, true);
+        setPolicy(ToolType.PENCIL, 2, OLDEST_FIRST, false);
+    }
+
+    /**
+     * Sets how groups created by a tool type are retired.
+     * Call this while holding the world lock, or before stepping starts.
+     * @param priority Types with lower priorities are retired first
+     * @param policy Orders the groups within a priority
+     * @param retireWholeGroups True to always retire a group as a whole;
+     *                          false to only retire its oldest particles
+     */
+    public void setPolicy(ToolType type, int priority, EvictionPolicy policy,
+                          boolean retireWholeGroups) {
+        mPolicies.put(
+                type, new TypePolicy(priority, policy, retireWholeGroups));
+    }
+
+    /**
+     * Records that a tool created or added to a group. Must be called with
+     * the group that survives the join.
+     * Called while holding the world lock.
+     */
+    public void onGroupTouched(ParticleGroup group, ToolType type) {
+        for (int i = 0; i < mGroups.size(); ++i) {
+            TrackedGroup tracked = mGroups.get(i);
+            if (tracked.mGroup == group) {
+                tracked.mLastTouchTime = mTime;
+                return;
+            }
+        }
+
+        // LiquidFun destroys groups that become empty, which would leave us
+        // with a dangling group. Keep them alive until we stop tracking them.
+        int flags = group.getGroupFlags();
+        boolean addCanBeEmpty =
+                (flags & ParticleGroupFlag.particleGroupCanBeEmpty) == 0;
+        if (addCanBeEmpty) {
+            group.setGroupFlags(
+                    flags | ParticleGroupFlag.particleGroupCanBeEmpty);
+        }
+        mGroups.add(new TrackedGroup(group, type, addCanBeEmpty, mTime));
+    }
+
+    /**
+     * Stops tracking a group, e.g. before it is destroyed.
+     * Called while holding the world lock.
+     */
+    public void onGroupDestroyed(ParticleGroup group) {
+        for (int i = 0; i < mGroups.size(); ++i) {
+            TrackedGroup tracked = mGroups.get(i);
+            if (tracked.mGroup == group) {
+                mRetiringCount -= tracked.mRetiring;
+                mGroups.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Guesses which tool drew a group, from the tools' flags, e.g. for
+     * groups that were loaded or restored.
+     * Called while holding the world lock.
+     */
+    public static ToolType guessToolType(
+            ParticleSystem ps, ParticleGroup group) {
+        if ((group.getGroupFlags() &
+             ParticleGroupFlag.rigidParticleGroup) != 0) {
+            return ToolType.RIGID;
+        }
+        int flags = ps.getParticleFlags(group.getBufferIndex());
+        if ((flags & ParticleFlag.wallParticle) != 0) {
+            return ToolType.PENCIL;
+        }
+        return ToolType.WATER;
+    }
+
+    /**
+     * Records that a tool could not create all the particles it asked for,
+     * so we retire more aggressively on the next step.
+     * Called while holding the world lock.
+     */
+    public void onCapacityExhausted() {
+        if (!mCapacityExhausted) {
+            Log.w(TAG, "Particle capacity exhausted; retiring old particles");
+        }
+        mCapacityExhausted = true;
+    }
+
+    /**
+     * Forgets all groups, e.g. when the world is deleted.
+     * Called while holding the world lock.
+     */
+    public void reset() {
+        mGroups.clear();
+        mRetiringCount = 0;
+        mCapacityExhausted = false;
+    }
+
+    @Override
+    public void onFramePhase(FramePhase phase, float dt) {
+        mTime += dt;
+        ParticleSystem ps = mHost.acquireParticleSystem();
+        try {
+            releaseEmptyGroups();
+            updateSettledCounts();
+
+            int capacity = ps.getMaxParticleCount();
+            int headroom = capacity - ps.getParticleCount() - mRetiringCount;
+            if (headroom < LOW_HEADROOM * capacity || mCapacityExhausted) {
+                scheduleRetirement((int) (HIGH_HEADROOM * capacity) - headroom);
+            }
+
+            int quota = Math.max(1, (int) (RETIRE_FRACTION_PER_STEP * capacity));
+            if (headroom < EMERGENCY_HEADROOM * capacity ||
+                mCapacityExhausted) {
+                quota *= EMERGENCY_RETIRE_MULTIPLIER;
+            }
+            destroyRetiring(ps, quota);
+            mCapacityExhausted = false;
+        } finally {
+            mHost.releaseParticleSystem();
+        }
+    }
+
+    /**
+     * Stops tracking groups that were emptied, e.g. by the eraser. If we
+     * were the ones keeping them alive, LiquidFun is free to destroy them
+     * again.
+     */
+    private void releaseEmptyGroups() {
+        for (int i = mGroups.size() - 1; i >= 0; --i) {
+            TrackedGroup tracked = mGroups.get(i);
+            if (tracked.mAddedCanBeEmpty &&
+                tracked.mGroup.getParticleCount() == 0) {
+                tracked.mGroup.setGroupFlags(
+                        tracked.mGroup.getGroupFlags() &
+                        ~ParticleGroupFlag.particleGroupCanBeEmpty);
+                mRetiringCount -= tracked.mRetiring;
+                mGroups.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Particles sampled MIN_IDLE_TIME ago are settled now. Groups only grow
+     * at the end, and we destroy from the start, so they are a prefix.
+     */
+    private void updateSettledCounts() {
+        for (int i = 0; i < mGroups.size(); ++i) {
+            TrackedGroup tracked = mGroups.get(i);
+            if (mTime - tracked.mSampleTime >= MIN_IDLE_TIME) {
+                tracked.mSettledCount = tracked.mSampledCount;
+                tracked.mSampledCount = tracked.getParticleCount();
+                tracked.mSampleTime = mTime;
+            }
+        }
+    }
+
+    /**
+     * Number of particles of a group that may still be scheduled for
+     * retirement.
+     */
+    private int getRetirable(TrackedGroup tracked, TypePolicy policy) {
+        int count = tracked.getParticleCount();
+        if (policy.mRetireWholeGroups) {
+            return (mTime - tracked.mLastTouchTime < MIN_IDLE_TIME) ?
+                    0 : count - tracked.mRetiring;
+        }
+        // Other particles may have been erased since the count was sampled
+        return Math.min(tracked.mSettledCount, count) - tracked.mRetiring;
+    }
+
+    /**
+     * Marks particles to retire, cheapest groups first, until needed
+     * particles are scheduled or there is nothing left to retire.
+     */
+    private void scheduleRetirement(int needed) {
+        while (needed > 0) {
+            TrackedGroup victim = null;
+            TypePolicy victimPolicy = null;
+            float victimRank = EvictionPolicy.NEVER;
+            for (int i = 0; i < mGroups.size(); ++i) {
+                TrackedGroup tracked = mGroups.get(i);
+                TypePolicy policy = mPolicies.get(tracked.mType);
+                if (policy == null || getRetirable(tracked, policy) <= 0) {
+                    continue;
+                }
+                float rank = policy.mPolicy.getRank(tracked);
+                if (rank == EvictionPolicy.NEVER) {
+                    continue;
+                }
+                if (victim == null ||
+                    policy.mPriority < victimPolicy.mPriority ||
+                    (policy.mPriority == victimPolicy.mPriority &&
+                     rank < victimRank)) {
+                    victim = tracked;
+                    victimPolicy = policy;
+                    victimRank = rank;
+                }
+            }
+            if (victim == null) {
+                return;
+            }
+
+            int available = getRetirable(victim, victimPolicy);
+            int retiring = victimPolicy.mRetireWholeGroups ?
+                    available : Math.min(available, needed);
+            victim.mRetiring += retiring;
+            mRetiringCount += retiring;
+            needed -= retiring;
+        }
+    }
+
+    /**
+     * Destroys up to quota retiring particles, from the start of their
+     * groups. Destroyed particles are removed at the next step.
+     */
+    private void destroyRetiring(ParticleSystem ps, int quota) {
+        for (int i = 0; i < mGroups.size() && quota > 0; ++i) {
+            TrackedGroup tracked = mGroups.get(i);
+            if (tracked.mRetiring == 0) {
+                continue;
+            }
+            int particleCount = tracked.getParticleCount();
+            if (particleCount == 0) {
+                // Someone else emptied the group first
+                mRetiringCount -= tracked.mRetiring;
+                tracked.mRetiring = 0;
+                continue;
+            }
+            // Particles destroyed last step are gone by now, so the oldest
+            // remaining ones are at the start of the group again.
+            int count = Math.min(
+                    Math.min(tracked.mRetiring, quota), particleCount);
+            int start = tracked.mGroup.getBufferIndex();
+            for (int j = 0; j < count; ++j) {
+                ps.destroyParticle(start + j);
+            }
+            tracked.mRetiring -= count;
+            tracked.mSettledCount = Math.max(0, tracked.mSettledCount - count);
+            tracked.mSampledCount = Math.max(0, tracked.mSampledCount - count);
+            mRetiringCount -= count;
+            quota -= count;
+        }
+    }
+}
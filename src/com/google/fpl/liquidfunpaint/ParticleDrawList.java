@@ -0,0 +1,125 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+package com.google.fpl.liquidfunpaint;
+
+import java.util.Arrays;
+
+/**
+ * The draw calls for the particle groups of a ParticleSnapshot, per render
+ * pass.
+ *
+ * Group ranges are sorted by buffer index, and contiguous or overlapping
+ * ranges drawn in the same pass are merged into a single glDrawArrays()
+ * range. Strokes of the same tool mostly end up next to each other in the
+ * particle buffer, so the number of draws follows the number of material
+ * kinds on the canvas rather than the number of strokes.
+ */
+public class ParticleDrawList {
+    /** Pass drawing water particles, with their weights */
+    public static final int WATER_PASS = 0;
+    /** Pass drawing all other particles */
+    public static final int NON_WATER_PASS = 1;
+    /**
+     * NON_WATER_PASS split in two: the pencil walls, which never move, and
+     * the other particles. ParticleRenderer draws them as separate layers,
+     * so it can cache the walls. Merged draws of NON_WATER_PASS may span
+     * both.
+     */
+    public static final int MOVING_PASS = 2;
+    public static final int WALL_PASS = 3;
+    private static final int PASS_COUNT = 4;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Group indices, sorted by buffer index in the upper bits
+    private long[] mSortedGroups = new long[INITIAL_CAPACITY];
+    // Draw ranges per pass, as first index and count pairs
+    private int[][] mDraws = new int[PASS_COUNT][2 * INITIAL_CAPACITY];
+    private final int[] mDrawCounts = new int[PASS_COUNT];
+
+    /** Rebuilds the draws from the group ranges of snapshot. */
+    public void build(ParticleSnapshot snapshot) {
+        int groupCount = snapshot.getGroupCount();
+        if (groupCount > mSortedGroups.length) {
+            // Only happens when the group count reaches a new high
+            int capacity = Math.max(groupCount, 2 * mSortedGroups.length);
+            mSortedGroups = new long[capacity];
+            for (int pass = 0; pass < PASS_COUNT; ++pass) {
+                mDraws[pass] = new int[2 * capacity];
+            }
+        }
+        for (int i = 0; i < groupCount; ++i) {
+            mSortedGroups[i] =
+                    ((long) snapshot.getGroupBufferIndex(i) << 32) | i;
+        }
+        Arrays.sort(mSortedGroups, 0, groupCount);
+
+        Arrays.fill(mDrawCounts, 0);
+        for (int i = 0; i < groupCount; ++i) {
+            int group = (int) mSortedGroups[i];
+            int count = snapshot.getGroupParticleCount(group);
+            if (count <= 0) {
+                continue;
+            }
+            int first = snapshot.getGroupBufferIndex(group);
+            int flags = snapshot.getGroupFlags(group);
+            if (ParticleGroupIndex.isWaterGroup(flags)) {
+                addRange(WATER_PASS, first, count);
+            } else {
+                addRange(NON_WATER_PASS, first, count);
+                addRange(ParticleGroupIndex.isWallGroup(flags) ?
+                         WALL_PASS : MOVING_PASS, first, count);
+            }
+        }
+    }
+
+    /**
+     * Appends a range to a pass, merging it into the last draw if they
+     * touch. Ranges must come in order of their first index.
+     */
+    private void addRange(int pass, int first, int count) {
+        int[] draws = mDraws[pass];
+        int drawCount = mDrawCounts[pass];
+        if (drawCount > 0) {
+            int lastFirst = draws[2 * drawCount - 2];
+            int lastEnd = lastFirst + draws[2 * drawCount - 1];
+            if (first <= lastEnd) {
+                draws[2 * drawCount - 1] =
+                        Math.max(lastEnd, first + count) - lastFirst;
+                return;
+            }
+        }
+        draws[2 * drawCount] = first;
+        draws[2 * drawCount + 1] = count;
+        mDrawCounts[pass] = drawCount + 1;
+    }
+
+    /** @return The number of draws in a pass */
+    public int getDrawCount(int pass) {
+        return mDrawCounts[pass];
+    }
+
+    /** @return The first particle index of a draw */
+    public int getFirst(int pass, int draw) {
+        return mDraws[pass][2 * draw];
+    }
+
+    /** @return The number of particles of a draw */
+    public int getCount(int pass, int draw) {
+        return mDraws[pass][2 * draw + 1];
+    }
+}
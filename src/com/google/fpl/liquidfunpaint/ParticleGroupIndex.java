@@ -0,0 +1,243 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+package com.google.fpl.liquidfunpaint;
+
+import com.google.fpl.liquidfun.DestructionListener;
+import com.google.fpl.liquidfun.ParticleGroup;
+import com.google.fpl.liquidfun.ParticleGroupFlag;
+import com.google.fpl.liquidfun.ParticleSystem;
+
+import java.util.Arrays;
+
+/**
+ * A cached copy of the particle group list: the buffer range and flags of
+ * every group, with the groups of the water pass first.
+ *
+ * Walking the native group list costs several JNI calls per group, and the
+ * list only changes when groups are created, joined or destroyed, or when
+ * destroyed particles are removed. So we only walk it again after one of
+ * these:
+ * - the tools, the UndoHistory or a loaded canvas call markDirty() after
+ *   creating or joining groups,
+ * - LiquidFun says goodbye to a group, through getDestructionListener(),
+ *   which covers joins and groups destroyed for being empty,
+ * - the particle count changed since the last refresh().
+ *
+ * It also keeps a wall version, which changes whenever the pencil walls
+ * may look different: when their group ranges change, when a wall group
+ * is created or any group destroyed, or when the canvas is cleared or
+ * resized. Walls never move otherwise, so renderers can cache them until
+ * the version changes.
+ *
+ * Only used on the thread stepping the world, while holding the world
+ * lock.
+ */
+public class ParticleGroupIndex {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final DestructionListener mDestructionListener =
+            new DestructionListener() {
+        @Override
+        public void sayGoodbye(ParticleGroup group) {
+            mDirty = true;
+            // It may have been a wall, and its range may be taken over by
+            // a new one before the next refresh().
+            ++mWallVersion;
+        }
+    };
+
+    private boolean mDirty = true;
+    private int mParticleCount = -1;
+    private int mGroupCount = 0;
+    private int mWaterGroupCount = 0;
+    private int[] mBufferIndices = new int[INITIAL_CAPACITY];
+    private int[] mParticleCounts = new int[INITIAL_CAPACITY];
+    private int[] mGroupFlags = new int[INITIAL_CAPACITY];
+
+    private int mWallVersion = 0;
+    // Buffer index and particle count of the wall groups, as pairs
+    private int mWallRangeCount = 0;
+    private int[] mWallRanges = new int[2 * INITIAL_CAPACITY];
+
+    /** Group flags of the WaterTool's groups. */
+    public static final int WATER_GROUP_FLAGS =
+            ParticleGroupFlag.particleGroupCanBeEmpty;
+    /** Group flags of the PencilTool's groups. */
+    public static final int WALL_GROUP_FLAGS =
+            ParticleGroupFlag.solidParticleGroup |
+            ParticleGroupFlag.particleGroupCanBeEmpty;
+    // The ParticleBudget may make any group able to be empty
+    private static final int IGNORED_GROUP_FLAGS =
+            ParticleGroupFlag.particleGroupCanBeEmpty;
+
+    /**
+     * @return True if groups with these flags are drawn in the water pass.
+     *         The ParticleBudget may have made the group able to be empty,
+     *         so that flag is ignored.
+     */
+    public static boolean isWaterGroup(int groupFlags) {
+        return (groupFlags & ~IGNORED_GROUP_FLAGS) ==
+               (WATER_GROUP_FLAGS & ~IGNORED_GROUP_FLAGS);
+    }
+
+    /**
+     * @return True if groups with these flags hold pencil walls, which
+     *         never move. As for isWaterGroup(), particleGroupCanBeEmpty
+     *         is ignored.
+     */
+    public static boolean isWallGroup(int groupFlags) {
+        return (groupFlags & ~IGNORED_GROUP_FLAGS) ==
+               (WALL_GROUP_FLAGS & ~IGNORED_GROUP_FLAGS);
+    }
+
+    /** Set this on every world whose groups we index. */
+    public DestructionListener getDestructionListener() {
+        return mDestructionListener;
+    }
+
+    /** Records that groups were created or joined. */
+    public void markDirty() {
+        mDirty = true;
+    }
+
+    /**
+     * Records that the walls may look different in a way their group ranges
+     * do not show, e.g. a wall group was created, or particles were
+     * remapped to a new canvas size.
+     */
+    public void markWallsChanged() {
+        ++mWallVersion;
+    }
+
+    /**
+     * Walks the group list again if it may have changed.
+     * @return True if the index was rebuilt
+     */
+    public boolean refresh(ParticleSystem ps) {
+        int particleCount = ps.getParticleCount();
+        if (!mDirty && particleCount == mParticleCount) {
+            return false;
+        }
+
+        // Water groups fill the front, other groups the back; the back is
+        // then reversed into list order.
+        int capacity = Math.max(ps.getParticleGroupCount(), 1);
+        if (capacity > mBufferIndices.length) {
+            capacity = Math.max(capacity, 2 * mBufferIndices.length);
+            mBufferIndices = new int[capacity];
+            mParticleCounts = new int[capacity];
+            mGroupFlags = new int[capacity];
+        }
+        int front = 0;
+        int back = mBufferIndices.length;
+        ParticleGroup group = ps.getParticleGroupList();
+        while (group != null && front < back) {
+            int flags = group.getGroupFlags();
+            int slot = isWaterGroup(flags) ? front++ : --back;
+            mBufferIndices[slot] = group.getBufferIndex();
+            mParticleCounts[slot] = group.getParticleCount();
+            mGroupFlags[slot] = flags;
+            group = group.getNext();
+        }
+        int otherCount = mBufferIndices.length - back;
+        System.arraycopy(mBufferIndices, back, mBufferIndices, front,
+                         otherCount);
+        System.arraycopy(mParticleCounts, back, mParticleCounts, front,
+                         otherCount);
+        System.arraycopy(mGroupFlags, back, mGroupFlags, front, otherCount);
+        reverse(mBufferIndices, front, front + otherCount);
+        reverse(mParticleCounts, front, front + otherCount);
+        reverse(mGroupFlags, front, front + otherCount);
+
+        mWaterGroupCount = front;
+        mGroupCount = front + otherCount;
+        mParticleCount = particleCount;
+        mDirty = false;
+        updateWallRanges();
+        return true;
+    }
+
+    /** Bumps the wall version if the wall group ranges changed. */
+    private void updateWallRanges() {
+        if (2 * mGroupCount > mWallRanges.length) {
+            mWallRanges = Arrays.copyOf(mWallRanges, 2 * mBufferIndices.length);
+        }
+        int count = 0;
+        boolean changed = false;
+        for (int i = mWaterGroupCount; i < mGroupCount; ++i) {
+            if (!isWallGroup(mGroupFlags[i])) {
+                continue;
+            }
+            if (count >= mWallRangeCount ||
+                mWallRanges[2 * count] != mBufferIndices[i] ||
+                mWallRanges[2 * count + 1] != mParticleCounts[i]) {
+                changed = true;
+                mWallRanges[2 * count] = mBufferIndices[i];
+                mWallRanges[2 * count + 1] = mParticleCounts[i];
+            }
+            ++count;
+        }
+        if (changed || count != mWallRangeCount) {
+            ++mWallVersion;
+        }
+        mWallRangeCount = count;
+    }
+
+    private static void reverse(int[] array, int from, int to) {
+        for (int i = from, j = to - 1; i < j; ++i, --j) {
+            int swap = array[i];
+            array[i] = array[j];
+            array[j] = swap;
+        }
+    }
+
+    /** Forgets all groups, e.g. when the world is deleted. */
+    public void clear() {
+        mGroupCount = 0;
+        mWaterGroupCount = 0;
+        mParticleCount = -1;
+        mDirty = true;
+        mWallRangeCount = 0;
+        ++mWallVersion;
+    }
+
+    /** @return The number of groups; the water groups come first */
+    public int getGroupCount() {
+        return mGroupCount;
+    }
+
+    public int getWaterGroupCount() {
+        return mWaterGroupCount;
+    }
+
+    public int getBufferIndex(int group) {
+        return mBufferIndices[group];
+    }
+
+    public int getParticleCount(int group) {
+        return mParticleCounts[group];
+    }
+
+    public int getGroupFlags(int group) {
+        return mGroupFlags[group];
+    }
+
+    /** @return A number that changes whenever the walls may have changed */
+    public int getWallVersion() {
+        return mWallVersion;
+    }
+}
@@ -17,13 +17,13 @@
 
 package com.google.fpl.liquidfunpaint;
 
-import com.google.fpl.liquidfun.ParticleGroup;
-import com.google.fpl.liquidfun.ParticleSystem;
+import com.google.fpl.liquidfunpaint.FrameTimings.TimingPhase;
 import com.google.fpl.liquidfunpaint.shader.Material;
 import com.google.fpl.liquidfunpaint.shader.ParticleMaterial;
+import com.google.fpl.liquidfunpaint.shader.RenderBackend;
 import com.google.fpl.liquidfunpaint.shader.Texture;
+import com.google.fpl.liquidfunpaint.shader.VertexBuffer;
 import com.google.fpl.liquidfunpaint.shader.WaterParticleMaterial;
-import com.google.fpl.liquidfunpaint.tool.Tool;
 import com.google.fpl.liquidfunpaint.util.FileHelper;
 
 import android.content.Context;
@@ -36,8 +36,7 @@ import org.json.*;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Renderer to draw particle water, objects, and wall. It draws particles as
@@ -45,13 +44,28 @@ import java.util.List;
  * 1) Draws particles to a texture
  * 2) Blurs it out
  * 3) Applies threshold.
- * This only executes on the GLSurfaceView thread.
+ * The pencil walls, the water and the other particles each go through these
+ * steps on their own, and are composited over the paper in that order. So
+ * water is drawn over the walls, and walls and rigid bodies touching each
+ * other are thresholded as two separate shapes.
+ * Walls never move, so the paper with the walls over it is cached in a
+ * screen sized static layer until their groups change. Each frame copies it
+ * to screen in place of the paper.
+ * This only executes on the GLSurfaceView thread, and only reads the latest
+ * ParticleSnapshot published by Renderer, never the LiquidFun world itself.
  */
 public class ParticleRenderer {
     private static final String TAG = "PtlRenderer";
-    private static final String JSON_FILE = "materials/particlerenderer.json";
-    private static final String PAPER_MATERIAL_NAME = "paper";
-    private static final String DIFFUSE_TEXTURE_NAME = "uDiffuseTexture";
+    // Also read by SoftwareParticleRenderer, so both draw the same look
+    static final String JSON_FILE = "materials/particlerenderer.json";
+    static final String WATER_PARTICLE_MATERIAL_NAME =
+            "waterParticlePointSprite";
+    static final String WATER_SCREEN_MATERIAL_NAME = "waterParticleToScreen";
+    static final String OTHER_PARTICLE_MATERIAL_NAME =
+            "otherParticlePointSprite";
+    static final String OTHER_SCREEN_MATERIAL_NAME = "otherParticleToScreen";
+    static final String PAPER_MATERIAL_NAME = "paper";
+    static final String DIFFUSE_TEXTURE_NAME = "uDiffuseTexture";
 
     // Framebuffer for the particles to render on.
     public static final int FB_SIZE = 256;
@@ -61,31 +75,87 @@ public class ParticleRenderer {
     private BlurRenderer mBlurRenderer;
     private ScreenRenderer mWaterScreenRenderer;
     private ScreenRenderer mScreenRenderer;
+    private ScreenRenderer mWallScreenRenderer;
     private Texture mPaperTexture;
 
-    private final RenderSurface[] mRenderSurface = new RenderSurface[2];
+    // Water, other non-water particles, and walls
+    private final RenderSurface[] mRenderSurface = new RenderSurface[3];
     private final float[] mTransformFromTexture = new float[16];
     private final float[] mTransformFromWorld = new float[16];
 
-    private ByteBuffer mParticleColorBuffer;
-    private ByteBuffer mParticlePositionBuffer;
-    private ByteBuffer mParticleWeightBuffer;
-
-    private List<ParticleGroup> mParticleRenderList =
-            new ArrayList<ParticleGroup>(256);
+    // The snapshot being drawn, for the duration of draw().
+    private ParticleSnapshot mSnapshot;
+    // Merged group ranges of mSnapshot, per pass
+    private final ParticleDrawList mDrawList = new ParticleDrawList();
+
+    // Interpolation factor between the previous step (0) and the latest
+    // step (1). Only set on the GLSurfaceView thread.
+    private float mInterpolation = 1;
+    // This frame's particles as interleaved vertices, in the layout of
+    // ParticleSnapshot.VERTEX_SIZE, so vertex fetch reads a single stream.
+    // Either the vertices of mSnapshot, or mVertexData when interpolating;
+    // for the duration of draw().
+    private ByteBuffer mFrameVertices;
+    // Interpolated vertices, when drawing between two steps
+    private ByteBuffer mVertexData;
+    // Larger buffer waiting to be swapped in at the start of draw()
+    private final AtomicReference<ByteBuffer> mPendingVertexData =
+            new AtomicReference<ByteBuffer>();
+    private int mReservedCapacity;
+
+    // Holds a copy of mFrameVertices when drawing from a buffer object.
+    // Otherwise the draws read mFrameVertices from client memory.
+    private boolean mUseVertexBuffer = true;
+    private VertexBuffer mVertexBuffer = null;
+
+    // The paper with the thresholded walls over it, as drawn to screen. Only
+    // redrawn when the wall version of the snapshot changes.
+    private boolean mUseStaticLayer = true;
+    private RenderSurface mStaticLayer = null;
+    private int mStaticLayerVersion = ParticleSnapshot.UNTRACKED_WALL_VERSION;
+
+    public ParticleRenderer(int capacity) {
+        mVertexData = allocateVertexData(capacity);
+        mReservedCapacity = capacity;
+    }
 
-    public ParticleRenderer() {
-        mParticlePositionBuffer = ByteBuffer
-                .allocateDirect(2 * 4 * Renderer.MAX_PARTICLE_COUNT)
-                .order(ByteOrder.nativeOrder());
-        mParticleColorBuffer = ByteBuffer
-                .allocateDirect(4 * Renderer.MAX_PARTICLE_COUNT)
-                .order(ByteOrder.nativeOrder());
-        mParticleWeightBuffer = ByteBuffer
-                .allocateDirect(4 * Renderer.MAX_PARTICLE_COUNT)
+    private static ByteBuffer allocateVertexData(int capacity) {
+        return ByteBuffer
+                .allocateDirect(ParticleSnapshot.VERTEX_SIZE * capacity)
                 .order(ByteOrder.nativeOrder());
     }
 
+    /**
+     * Makes sure we can draw at least capacity particles. Allocates, so
+     * call this when the capacity changes, not every frame. The new buffer is
+     * swapped in on the GLSurfaceView thread at the next draw().
+     */
+    public void reserve(int capacity) {
+        if (capacity <= mReservedCapacity) {
+            return;
+        }
+        mPendingVertexData.set(allocateVertexData(capacity));
+        mReservedCapacity = capacity;
+    }
+
+    /**
+     * Chooses between uploading the particle data to a buffer object once
+     * per frame, and letting every draw read it from client memory.
+     * This should only execute on the GLSurfaceView thread.
+     */
+    public void setUseVertexBuffer(boolean useVertexBuffer) {
+        mUseVertexBuffer = useVertexBuffer;
+    }
+
+    /**
+     * Chooses between caching the paper and the walls in a static layer, and
+     * drawing both every frame. Both look the same.
+     * This should only execute on the GLSurfaceView thread.
+     */
+    public void setUseStaticLayer(boolean useStaticLayer) {
+        mUseStaticLayer = useStaticLayer;
+    }
+
     /**
      * Once per frame operations
      */
@@ -96,149 +166,247 @@ public class ParticleRenderer {
      * This should only execute on the GLSurfaceView thread.
      */
     public void draw() {
-        // Per frame resets of buffers
-        mParticlePositionBuffer.rewind();
-        mParticleColorBuffer.rewind();
-        mParticleWeightBuffer.rewind();
-        mParticleRenderList.clear();
-
-        ParticleSystem ps = Renderer.getInstance().acquireParticleSystem();
-        try {
-            int worldParticleCount = ps.getParticleCount();
-            // grab the most current particle buffers
-            ps.copyPositionBuffer(
-                    0, worldParticleCount, mParticlePositionBuffer);
-            ps.copyColorBuffer(
-                    0, worldParticleCount, mParticleColorBuffer);
-            ps.copyWeightBuffer(
-                    0, worldParticleCount, mParticleWeightBuffer);
+        // Only read the latest published state; we never take the world lock
+        // while drawing.
+        mSnapshot = Renderer.getInstance().acquireParticleSnapshot();
+        ByteBuffer pending = mPendingVertexData.getAndSet(null);
+        if (pending != null) {
+            mVertexData = pending;
+        }
 
-            GLES20.glClearColor(0, 0, 0, 0);
+        // The producer wrote the vertices of the latest step; only blend
+        // positions when drawing between two steps.
+        if (mInterpolation < 1 && mSnapshot.canInterpolate()) {
+            // The snapshot never holds more particles than we reserved for
+            if (ParticleSnapshot.VERTEX_SIZE * mSnapshot.getParticleCount() >
+                    mVertexData.capacity()) {
+                Log.w(TAG, "Vertex data too small for the snapshot, skipping");
+                return;
+            }
+            mSnapshot.writeInterpolatedVertices(mInterpolation, mVertexData);
+            mFrameVertices = mVertexData;
+        } else {
+            mFrameVertices = mSnapshot.getVertexBuffer();
+        }
+        mFrameVertices.rewind();
+        mDrawList.build(mSnapshot);
 
-            // Draw the particles
-            drawParticles();
+        if (mUseVertexBuffer) {
+            uploadVertexBuffer();
+        }
 
-            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-            GLES20.glViewport(
-                    0, 0, Renderer.getInstance().sScreenWidth,
-                    Renderer.getInstance().sScreenHeight);
+        RenderBackend.get().glClearColor(0, 0, 0, 0);
+
+        // The walls can only be cached if we know when they change
+        int wallVersion = mSnapshot.getWallVersion();
+        boolean cacheWalls = mUseStaticLayer &&
+                wallVersion != ParticleSnapshot.UNTRACKED_WALL_VERSION;
+        boolean drewWalls = false;
+        if (!cacheWalls) {
+            drewWalls = drawNonWaterParticles(
+                    ParticleDrawList.WALL_PASS, mRenderSurface[2]);
+        } else if (wallVersion != mStaticLayerVersion) {
+            drawStaticLayer();
+            mStaticLayerVersion = wallVersion;
+        }
 
-            // Draw the paper texture.
-            TextureRenderer.getInstance().drawTexture(
-                    mPaperTexture, Renderer.MAT4X4_IDENTITY, -1, -1, 1, 1);
+        // Draw the particles
+        drawWaterParticles();
+        boolean drewMoving = drawNonWaterParticles(
+                ParticleDrawList.MOVING_PASS, mRenderSurface[1]);
+
+        RenderBackend.get().glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        RenderBackend.get().glViewport(
+                0, 0, Renderer.getInstance().sScreenWidth,
+                Renderer.getInstance().sScreenHeight);
+
+        FrameTimings timings = Renderer.getInstance().getFrameTimings();
+        long time = timings.begin();
+
+        // Draw the paper texture and the walls, or their cached copy
+        if (cacheWalls) {
+            TextureRenderer.getInstance().copyTexture(
+                    mStaticLayer.getTexture());
+        } else {
+            drawPaperAndWalls(drewWalls);
+        }
+        time = timings.end(TimingPhase.PAPER, time);
 
-            // Copy the water particles to screen
-            mWaterScreenRenderer.draw(mTransformFromTexture);
+        // Copy the water particles to screen
+        mWaterScreenRenderer.draw(mTransformFromTexture);
+        time = timings.end(TimingPhase.WATER_SCREEN, time);
 
-            // Copy the other particles to screen
+        // Copy the other particles to screen
+        if (drewMoving) {
             mScreenRenderer.draw(mTransformFromTexture);
-        } finally {
-            Renderer.getInstance().releaseParticleSystem();
         }
+        timings.end(TimingPhase.NON_WATER_SCREEN, time);
     }
 
-    private void drawParticles() {
-        drawWaterParticles();
-        drawNonWaterParticles();
+    /**
+     * Sets how far we are between the previous and the latest step, in
+     * [0, 1]. Positions are interpolated when this is less than 1.
+     * This should only execute on the GLSurfaceView thread.
+     */
+    public void setInterpolation(float interpolation) {
+        mInterpolation = interpolation;
     }
 
     /**
-     * Issue the correct draw call for the ParticleGroup that is passed in.
+     * Copies the vertices of this frame to the vertex buffer, so every group
+     * draw of both passes reads them from there.
      */
-    private void drawParticleGroup(ParticleGroup pg) {
-        // Get the buffer offsets
-        int particleCount = pg.getParticleCount();
-        int instanceOffset = pg.getBufferIndex();
-
-        // Draw!
-        GLES20.glDrawArrays(
-                GLES20.GL_POINTS, instanceOffset, particleCount);
+    private void uploadVertexBuffer() {
+        FrameTimings timings = Renderer.getInstance().getFrameTimings();
+        long time = timings.begin();
+
+        int size = ParticleSnapshot.VERTEX_SIZE * mSnapshot.getParticleCount();
+        mVertexBuffer.beginUpload(size);
+        mVertexBuffer.upload(0, mFrameVertices, size);
+        VertexBuffer.unbind();
+
+        timings.end(TimingPhase.VERTEX_UPLOAD, time);
     }
 
     /**
-     * Draw all the water particles, and save all the other particle groups
-     * into a list. We draw these to temp mRenderSurface[0].
+     * Points the particle attributes of material at this frame's data,
+     * in the vertex buffer or in client memory.
+     */
+    private void setParticleAttributes(Material material, boolean weights) {
+        // The attribute offsets within a vertex were given to addAttribute()
+        if (mUseVertexBuffer) {
+            material.setVertexAttributeBuffer("aPosition", mVertexBuffer, 0);
+            material.setVertexAttributeBuffer("aColor", mVertexBuffer, 0);
+            if (weights) {
+                material.setVertexAttributeBuffer(
+                        "aWeight", mVertexBuffer, 0);
+            }
+        } else {
+            material.setVertexAttributeBuffer(
+                    "aPosition", mFrameVertices, 0);
+            material.setVertexAttributeBuffer("aColor", mFrameVertices, 0);
+            if (weights) {
+                material.setVertexAttributeBuffer(
+                        "aWeight", mFrameVertices, 0);
+            }
+        }
+    }
+
+    /**
+     * Issue the draw calls of a pass, one per merged range of particle
+     * groups.
+     */
+    private void drawPass(int pass) {
+        for (int i = 0; i < mDrawList.getDrawCount(pass); ++i) {
+            RenderBackend.get().glDrawArrays(
+                    GLES20.GL_POINTS, mDrawList.getFirst(pass, i),
+                    mDrawList.getCount(pass, i));
+        }
+    }
+
+    /**
+     * Draw all the water particles. We draw these to temp mRenderSurface[0].
      */
     private void drawWaterParticles() {
+        FrameTimings timings = Renderer.getInstance().getFrameTimings();
+        long time = timings.begin();
+
         // Draw all water particles to temp render surface 0
         mRenderSurface[0].beginRender(GLES20.GL_COLOR_BUFFER_BIT);
 
         mWaterParticleMaterial.beginRender();
 
         // Set attribute arrays
-        mWaterParticleMaterial.setVertexAttributeBuffer(
-                "aPosition", mParticlePositionBuffer, 0);
-        mWaterParticleMaterial.setVertexAttributeBuffer(
-                "aColor", mParticleColorBuffer, 0);
-        mWaterParticleMaterial.setVertexAttributeBuffer(
-                "aWeight", mParticleWeightBuffer, 0);
+        setParticleAttributes(mWaterParticleMaterial, true);
 
         // Set uniforms
-        GLES20.glUniformMatrix4fv(
+        RenderBackend.get().glUniformMatrix4fv(
                 mWaterParticleMaterial.getUniformLocation("uTransform"),
                 1, false, mTransformFromWorld, 0);
 
-        // Go through each particle group
-        ParticleSystem ps = Renderer.getInstance().acquireParticleSystem();
-        try {
-            ParticleGroup currGroup = ps.getParticleGroupList();
-
-            while (currGroup != null) {
-                // Only draw water particles in this pass; queue other groups
-                if (currGroup.getGroupFlags() ==
-                    Tool.getTool(Tool.ToolType.WATER).getParticleGroupFlags()) {
-                    drawParticleGroup(currGroup);
-                } else {
-                    mParticleRenderList.add(currGroup);
-                }
-
-                currGroup = currGroup.getNext();
-            }
-        } finally {
-            Renderer.getInstance().releaseParticleSystem();
-        }
+        // Only draw water particles in this pass
+        drawPass(ParticleDrawList.WATER_PASS);
 
         mWaterParticleMaterial.endRender();
 
         mRenderSurface[0].endRender();
+        time = timings.end(TimingPhase.WATER_PASS, time);
 
         mBlurRenderer.draw(mRenderSurface[0].getTexture(), mRenderSurface[0]);
+        timings.end(TimingPhase.WATER_BLUR, time);
+    }
+
+    /**
+     * Draw the particles of a non-water pass to a temp render surface:
+     * mRenderSurface[1] for the moving particles, mRenderSurface[2] for the
+     * walls.
+     * @return False if there was nothing to draw, and the surface was left
+     *         alone
+     */
+    private boolean drawNonWaterParticles(int pass, RenderSurface surface) {
+        if (mDrawList.getDrawCount(pass) == 0) {
+            return false;
+        }
+
+        FrameTimings timings = Renderer.getInstance().getFrameTimings();
+        long time = timings.begin();
+
+        surface.beginRender(GLES20.GL_COLOR_BUFFER_BIT);
+        splatParticles(pass);
+        surface.endRender();
+        time = timings.end(TimingPhase.NON_WATER_PASS, time);
+
+        mBlurRenderer.draw(surface.getTexture(), surface);
+        timings.end(TimingPhase.NON_WATER_BLUR, time);
+        return true;
     }
 
     /**
-     * Draw all saved ParticleGroups to temp mRenderSurface[1].
+     * Draws the paper, and the walls in mRenderSurface[2] over it, to the
+     * bound frame buffer.
      */
-    private void drawNonWaterParticles() {
-        // Draw all non-water particles to temp render surface 1
-        mRenderSurface[1].beginRender(GLES20.GL_COLOR_BUFFER_BIT);
+    private void drawPaperAndWalls(boolean drewWalls) {
+        TextureRenderer.getInstance().drawTexture(
+                mPaperTexture, Renderer.MAT4X4_IDENTITY, -1, -1, 1, 1);
+        if (drewWalls) {
+            mWallScreenRenderer.draw(mTransformFromTexture);
+        }
+    }
+
+    /**
+     * Redraws the static layer: the paper and the thresholded walls, as
+     * drawPaperAndWalls() draws them to screen.
+     */
+    private void drawStaticLayer() {
+        FrameTimings timings = Renderer.getInstance().getFrameTimings();
+        long time = timings.begin();
 
+        boolean drewWalls = drawNonWaterParticles(
+                ParticleDrawList.WALL_PASS, mRenderSurface[2]);
+        mStaticLayer.beginRender(GLES20.GL_COLOR_BUFFER_BIT);
+        drawPaperAndWalls(drewWalls);
+        mStaticLayer.endRender();
+
+        timings.end(TimingPhase.STATIC_LAYER, time);
+    }
+
+    /**
+     * Draw the particles of a non-water pass to the bound render surface.
+     */
+    private void splatParticles(int pass) {
         mParticleMaterial.beginRender();
 
         // Set attribute arrays
-        mParticleMaterial.setVertexAttributeBuffer(
-                "aPosition", mParticlePositionBuffer, 0);
-        mParticleMaterial.setVertexAttributeBuffer(
-                "aColor", mParticleColorBuffer, 0);
+        setParticleAttributes(mParticleMaterial, false);
 
         // Set uniforms
-        GLES20.glUniformMatrix4fv(
+        RenderBackend.get().glUniformMatrix4fv(
             mParticleMaterial.getUniformLocation("uTransform"),
                 1, false, mTransformFromWorld, 0);
 
-        ParticleSystem ps = Renderer.getInstance().acquireParticleSystem();
-        try {
-            // Go through all the particleGroups in the render list
-            for (ParticleGroup currGroup : mParticleRenderList) {
-                drawParticleGroup(currGroup);
-            }
-        } finally {
-            Renderer.getInstance().releaseParticleSystem();
-        }
+        drawPass(pass);
 
         mParticleMaterial.endRender();
-
-        mRenderSurface[1].endRender();
-        mBlurRenderer.draw(mRenderSurface[1].getTexture(), mRenderSurface[1]);
     }
 
     public void onSurfaceChanged(int width, int height) {
@@ -256,6 +424,11 @@ public class ParticleRenderer {
                 2f / Renderer.getInstance().sRenderWorldWidth,
                 2 * ratio / Renderer.getInstance().sRenderWorldHeight,
                 1);
+
+        // The static layer is drawn at screen size, and the walls map to
+        // other pixels now
+        mStaticLayer.resize(width, height);
+        mStaticLayerVersion = ParticleSnapshot.UNTRACKED_WALL_VERSION;
     }
 
     public void onSurfaceCreated(Context context) {
@@ -264,61 +437,77 @@ public class ParticleRenderer {
             mRenderSurface[i] = new RenderSurface(FB_SIZE, FB_SIZE);
             mRenderSurface[i].setClearColor(Color.argb(0, 255, 255, 255));
         }
+        // Cleared to white like the screen, and sized in onSurfaceChanged()
+        mStaticLayer = new RenderSurface(FB_SIZE, FB_SIZE);
+        mStaticLayer.setClearColor(Color.WHITE);
+        mStaticLayerVersion = ParticleSnapshot.UNTRACKED_WALL_VERSION;
 
         // Create the blur renderer
         mBlurRenderer = new BlurRenderer();
 
+        // The old buffer object went away with the old context
+        mVertexBuffer = new VertexBuffer();
+
         // Read in our specific json file
         String materialFile = FileHelper.loadAsset(
                 context.getAssets(), JSON_FILE);
         try {
             JSONObject json = new JSONObject(materialFile);
 
-            // Water particle material. We are utilizing the position and color
-            // buffers returned from LiquidFun directly.
+            // Water particle material. Both particle materials read the
+            // interleaved vertices written by ParticleSnapshot.
             mWaterParticleMaterial = new WaterParticleMaterial(
-                    context, json.getJSONObject("waterParticlePointSprite"));
+                    context, json.getJSONObject(WATER_PARTICLE_MATERIAL_NAME));
 
             // Initialize attributes specific to this material
             mWaterParticleMaterial.addAttribute(
                     "aPosition", 2, Material.AttrComponentType.FLOAT,
-                    4, false, 0);
+                    4, false, ParticleSnapshot.VERTEX_SIZE,
+                    ParticleSnapshot.VERTEX_POSITION_OFFSET);
             mWaterParticleMaterial.addAttribute(
                     "aColor", 4, Material.AttrComponentType.UNSIGNED_BYTE,
-                    1, true, 0);
+                    1, true, ParticleSnapshot.VERTEX_SIZE,
+                    ParticleSnapshot.VERTEX_COLOR_OFFSET);
             mWaterParticleMaterial.addAttribute(
                     "aWeight", 1, Material.AttrComponentType.FLOAT,
-                    1, false, 0);
+                    4, false, ParticleSnapshot.VERTEX_SIZE,
+                    ParticleSnapshot.VERTEX_WEIGHT_OFFSET);
             mWaterParticleMaterial.setBlendFunc(
                     Material.BlendFactor.ONE,
                     Material.BlendFactor.ONE_MINUS_SRC_ALPHA);
 
-            // Non-water particle material. We are utilizing the position and
-            // color buffers returned from LiquidFun directly.
+            // Non-water particle material
             mParticleMaterial = new ParticleMaterial(
-                    context, json.getJSONObject("otherParticlePointSprite"));
+                    context, json.getJSONObject(OTHER_PARTICLE_MATERIAL_NAME));
 
             // Initialize attributes specific to this material
             mParticleMaterial.addAttribute(
                     "aPosition", 2, Material.AttrComponentType.FLOAT,
-                    4, false, 0);
+                    4, false, ParticleSnapshot.VERTEX_SIZE,
+                    ParticleSnapshot.VERTEX_POSITION_OFFSET);
             mParticleMaterial.addAttribute(
                     "aColor", 4, Material.AttrComponentType.UNSIGNED_BYTE,
-                    1, true, 0);
+                    1, true, ParticleSnapshot.VERTEX_SIZE,
+                    ParticleSnapshot.VERTEX_COLOR_OFFSET);
             mParticleMaterial.setBlendFunc(
                     Material.BlendFactor.ONE,
                     Material.BlendFactor.ONE_MINUS_SRC_ALPHA);
 
             // Scrolling texture when we copy water particles from FBO to screen
             mWaterScreenRenderer = new ScreenRenderer(
-                    context, json.getJSONObject("waterParticleToScreen"),
+                    context, json.getJSONObject(WATER_SCREEN_MATERIAL_NAME),
                     mRenderSurface[0].getTexture());
 
             // Scrolling texture when we copy water particles from FBO to screen
             mScreenRenderer = new ScreenRenderer(
-                    context, json.getJSONObject("otherParticleToScreen"),
+                    context, json.getJSONObject(OTHER_SCREEN_MATERIAL_NAME),
                     mRenderSurface[1].getTexture());
 
+            // The walls are thresholded like the other non-water particles
+            mWallScreenRenderer = new ScreenRenderer(
+                    context, json.getJSONObject(OTHER_SCREEN_MATERIAL_NAME),
+                    mRenderSurface[2].getTexture());
+
             // Texture for paper
             JSONObject materialData = json.getJSONObject(PAPER_MATERIAL_NAME);
             String textureName = materialData.getString(DIFFUSE_TEXTURE_NAME);
@@ -328,9 +517,10 @@ public class ParticleRenderer {
         }
     }
 
+    /**
+     * Nothing to clear here: the next published ParticleSnapshot carries the
+     * state of the new world.
+     */
     public void reset() {
-        mParticlePositionBuffer.clear();
-        mParticleColorBuffer.clear();
-        mParticleWeightBuffer.clear();
     }
 }
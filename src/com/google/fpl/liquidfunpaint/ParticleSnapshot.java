@@ -0,0 +1,705 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+package com.google.fpl.liquidfunpaint;
+
+import com.google.fpl.liquidfun.ParticleFlag;
+import com.google.fpl.liquidfun.ParticleSystem;
+import com.google.fpl.liquidfunpaint.FrameTimings.TimingPhase;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A copy of the particle state after one step: the position, color and
+ * weight buffers, plus the buffer range and flags of every particle group.
+ *
+ * Snapshots are filled by the thread that steps the world, and handed to the
+ * GLSurfaceView thread through a ParticleSnapshotRing. Once published, a
+ * snapshot is never written to until the consumer has moved on, so it can be
+ * read without holding the world lock.
+ *
+ * The particle buffers can grow at runtime. New buffers are allocated by
+ * reserve(), off the frame loop, and are only swapped in by the producer at
+ * the start of the next capture(), when no one else can be reading them.
+ *
+ * capture() only copies what may have changed since this snapshot was last
+ * filled: each snapshot remembers which group ranges it holds, and ranges
+ * that are still in place keep the positions of wall particles and the
+ * colors of particles that do not mix colors. Weights are only copied for
+ * the groups drawn in the water pass, the only one reading them.
+ *
+ * Every range copied is also written to an interleaved vertex buffer, so
+ * the renderer can draw the latest step as is. Only drawing between two
+ * steps has to blend positions, with writeInterpolatedVertices().
+ */
+public class ParticleSnapshot {
+    private static final int INITIAL_GROUP_CAPACITY = 256;
+    // Initial number of cached views of the particle buffers, per buffer
+    private static final int SLICE_CACHE_SIZE = 16;
+
+    // The buffers capture() copies into
+    private static final int POSITIONS = 0;
+    private static final int COLORS = 1;
+    private static final int WEIGHTS = 2;
+    private static final int BUFFER_KINDS = 3;
+    private static final int[] PARTICLE_SIZES = { 2 * 4, 4, 4 };
+    private static final TimingPhase[] COPY_PHASES = {
+            TimingPhase.COPY_POSITION, TimingPhase.COPY_COLOR,
+            TimingPhase.COPY_WEIGHT };
+
+    /**
+     * Layout of the interleaved vertices in getVertexBuffer(): a float2
+     * position, ubyte4 color and float weight, 16 bytes in all.
+     */
+    public static final int VERTEX_SIZE = 16;
+    public static final int VERTEX_POSITION_OFFSET = 0;
+    public static final int VERTEX_COLOR_OFFSET = 8;
+    public static final int VERTEX_WEIGHT_OFFSET = 12;
+
+    /** Wall version of snapshots not filled from a ParticleGroupIndex */
+    public static final int UNTRACKED_WALL_VERSION = -1;
+
+    /**
+     * Direct buffers for a given particle capacity. Never resized; replaced
+     * as a whole when the capacity grows.
+     */
+    private static class Buffers {
+        final int mCapacity;
+        final ByteBuffer mPositionBuffer;
+        final ByteBuffer mColorBuffer;
+        final ByteBuffer mWeightBuffer;
+        // The three buffers above, interleaved as described by VERTEX_SIZE
+        final ByteBuffer mVertexBuffer;
+        // Positions from the step before this one, for interpolation.
+        final ByteBuffer mPreviousPositionBuffer;
+
+        // Views with their own position and limit. The consumer moves the
+        // position of the main buffers around while drawing; the producer
+        // reads the previous snapshot through these at the same time.
+        final ByteBuffer mPositionReadView;
+        final FloatBuffer mPositionFloats;
+        final FloatBuffer mPreviousPositionFloats;
+        final ByteBuffer mVertexReadView;
+
+        // The bindings copy to the start of the buffer they are given, so
+        // ranges are copied into slices. Group ranges rarely move, so
+        // slices are kept around rather than allocated every frame: per
+        // buffer kind, sorted by offset, as many as there are runs.
+        final ByteBuffer[][] mSlices =
+                new ByteBuffer[BUFFER_KINDS][SLICE_CACHE_SIZE];
+        final int[][] mSliceOffsets =
+                new int[BUFFER_KINDS][SLICE_CACHE_SIZE];
+        final int[] mSliceCounts = new int[BUFFER_KINDS];
+
+        Buffers(int capacity) {
+            mCapacity = capacity;
+            mPositionBuffer = ByteBuffer
+                    .allocateDirect(2 * 4 * capacity)
+                    .order(ByteOrder.nativeOrder());
+            mColorBuffer = ByteBuffer
+                    .allocateDirect(4 * capacity)
+                    .order(ByteOrder.nativeOrder());
+            mWeightBuffer = ByteBuffer
+                    .allocateDirect(4 * capacity)
+                    .order(ByteOrder.nativeOrder());
+            mVertexBuffer = ByteBuffer
+                    .allocateDirect(VERTEX_SIZE * capacity)
+                    .order(ByteOrder.nativeOrder());
+            mPreviousPositionBuffer = ByteBuffer
+                    .allocateDirect(2 * 4 * capacity)
+                    .order(ByteOrder.nativeOrder());
+
+            mPositionReadView =
+                    mPositionBuffer.duplicate().order(ByteOrder.nativeOrder());
+            mPositionFloats = mPositionReadView.asFloatBuffer();
+            mPreviousPositionFloats = mPreviousPositionBuffer.asFloatBuffer();
+            mVertexReadView =
+                    mVertexBuffer.duplicate().order(ByteOrder.nativeOrder());
+        }
+
+        ByteBuffer getBuffer(int kind) {
+            switch (kind) {
+                case POSITIONS:
+                    return mPositionBuffer;
+                case COLORS:
+                    return mColorBuffer;
+                default:
+                    return mWeightBuffer;
+            }
+        }
+
+        /**
+         * Drops the cached slices of a kind if there are far more of them
+         * than runs to copy, e.g. after many groups went away.
+         */
+        void trimSlices(int kind, int runCount) {
+            if (mSliceCounts[kind] > 2 * runCount + SLICE_CACHE_SIZE) {
+                Arrays.fill(mSlices[kind], 0, mSliceCounts[kind], null);
+                mSliceCounts[kind] = 0;
+            }
+        }
+
+        /** Returns a view of a buffer starting at offset bytes. */
+        ByteBuffer getSlice(int kind, int offset) {
+            int count = mSliceCounts[kind];
+            int index =
+                    Arrays.binarySearch(mSliceOffsets[kind], 0, count, offset);
+            if (index >= 0) {
+                return mSlices[kind][index];
+            }
+            index = -index - 1;
+
+            // Only happens when a run starts somewhere new
+            if (count == mSlices[kind].length) {
+                mSlices[kind] = Arrays.copyOf(mSlices[kind], 2 * count);
+                mSliceOffsets[kind] =
+                        Arrays.copyOf(mSliceOffsets[kind], 2 * count);
+            }
+            ByteBuffer[] slices = mSlices[kind];
+            int[] offsets = mSliceOffsets[kind];
+            System.arraycopy(slices, index, slices, index + 1, count - index);
+            System.arraycopy(offsets, index, offsets, index + 1, count - index);
+            // Take a copy, so the consumer moving the buffer position
+            // around can not get in the way.
+            ByteBuffer buffer = getBuffer(kind).duplicate();
+            buffer.clear().position(offset);
+            slices[index] = buffer.slice();
+            offsets[index] = offset;
+            mSliceCounts[kind] = count + 1;
+            return slices[index];
+        }
+    }
+
+    private Buffers mBuffers;
+    // Larger buffers waiting to be swapped in by the producer
+    private final AtomicReference<Buffers> mPendingBuffers =
+            new AtomicReference<Buffers>();
+    // Largest capacity reserved so far
+    private int mReservedCapacity;
+    private int mParticleCount = 0;
+    private int mPreviousParticleCount = 0;
+    // Whether the previous positions belong to the same particles
+    private boolean mCanInterpolate = false;
+
+    // Particle group ranges, in the order of the group list.
+    private int mGroupCount = 0;
+    private int[] mGroupBufferIndices = new int[INITIAL_GROUP_CAPACITY];
+    private int[] mGroupParticleCounts = new int[INITIAL_GROUP_CAPACITY];
+    private int[] mGroupFlags = new int[INITIAL_GROUP_CAPACITY];
+    // ParticleGroupIndex.getWallVersion() at the time of the capture
+    private int mWallVersion = UNTRACKED_WALL_VERSION;
+
+    // Group ranges whose data this snapshot holds, sorted by buffer index,
+    // as of mSyncedVersion. Written by capture(), and thrown away by
+    // anything else that fills the buffers.
+    private int mSyncedCount = 0;
+    private int mSyncedVersion = 0;
+    private int mSyncedParticleCount = -1;
+    private int mSyncedGroupCount = -1;
+    private int[] mSyncedStarts = new int[INITIAL_GROUP_CAPACITY];
+    private int[] mSyncedLengths = new int[INITIAL_GROUP_CAPACITY];
+    private int[] mSyncedGroupFlags = new int[INITIAL_GROUP_CAPACITY];
+    private int[] mSyncedParticleFlags = new int[INITIAL_GROUP_CAPACITY];
+    // Filled by capture() before becoming the synced ranges
+    private int mNextSyncedCount = 0;
+    private int[] mNextStarts = new int[INITIAL_GROUP_CAPACITY];
+    private int[] mNextLengths = new int[INITIAL_GROUP_CAPACITY];
+    private int[] mNextGroupFlags = new int[INITIAL_GROUP_CAPACITY];
+    private int[] mNextParticleFlags = new int[INITIAL_GROUP_CAPACITY];
+    // Group list indices, sorted by buffer index in the upper bits
+    private long[] mSortedGroups = new long[INITIAL_GROUP_CAPACITY];
+    // Ranges to copy per buffer kind, as start and end pairs, merged while
+    // they are contiguous
+    private int[][] mRuns = new int[BUFFER_KINDS][2 * INITIAL_GROUP_CAPACITY];
+    private final int[] mRunCounts = new int[BUFFER_KINDS];
+
+    public ParticleSnapshot(int capacity) {
+        mBuffers = new Buffers(capacity);
+        mReservedCapacity = capacity;
+    }
+
+    /**
+     * Makes sure the next capture() can hold at least capacity particles.
+     * Allocates, so call this when the capacity changes, not every frame.
+     * Safe to call from any thread, but not concurrently with itself.
+     */
+    public void reserve(int capacity) {
+        if (capacity <= mReservedCapacity) {
+            return;
+        }
+        mPendingBuffers.set(new Buffers(capacity));
+        mReservedCapacity = capacity;
+    }
+
+    public int getCapacity() {
+        return mBuffers.mCapacity;
+    }
+
+    /**
+     * Copies the current state of the particle system into this snapshot,
+     * skipping the ranges this snapshot already holds that cannot have
+     * changed. The caller must hold the world lock.
+     * @param ps The particle system to copy from
+     * @param groups The groups of ps, refreshed
+     * @param previous The previously published snapshot, if positions should
+     *                 be kept for interpolation. May be null.
+     * @param contentVersion Changes whenever particles may have been moved,
+     *                       recolored or reordered other than by stepping,
+     *                       e.g. by commands or loading a canvas. Ranges
+     *                       held for another version are copied again.
+     * @param timings Where to record the time each buffer copy takes
+     */
+    public void capture(
+            ParticleSystem ps, ParticleGroupIndex groups,
+            ParticleSnapshot previous, int contentVersion,
+            FrameTimings timings) {
+        if (startCapture(previous) || contentVersion != mSyncedVersion) {
+            mSyncedCount = 0;
+        }
+
+        // The particle system should never hold more than we reserved, but
+        // never write past the end of the buffers if it does.
+        int worldParticleCount =
+                Math.min(ps.getParticleCount(), mBuffers.mCapacity);
+        // Destroying particles shifts the ranges after them, which could
+        // line up with ranges we hold for other groups.
+        if (worldParticleCount != mSyncedParticleCount) {
+            mSyncedCount = 0;
+        }
+        mParticleCount = worldParticleCount;
+
+        for (int i = 0; i < groups.getGroupCount(); ++i) {
+            appendGroup(
+                    groups.getBufferIndex(i),
+                    groups.getParticleCount(i),
+                    groups.getGroupFlags(i));
+        }
+        if (mGroupCount != mSyncedGroupCount) {
+            // Groups were created, joined or destroyed
+            mSyncedCount = 0;
+        }
+
+        copyGroupRanges(ps, timings);
+        mWallVersion = groups.getWallVersion();
+        mSyncedVersion = contentVersion;
+        mSyncedParticleCount = worldParticleCount;
+        mSyncedGroupCount = mGroupCount;
+
+        // Equal counts are not enough: commands, or destroying some
+        // particles while drawing as many, reorder them.
+        mCanInterpolate = mPreviousParticleCount > 0 &&
+                mPreviousParticleCount == mParticleCount &&
+                previous.mSyncedVersion == contentVersion &&
+                hasSameGroups(previous);
+    }
+
+    /** @return True if other holds the same group ranges and flags. */
+    private boolean hasSameGroups(ParticleSnapshot other) {
+        if (other.mGroupCount != mGroupCount) {
+            return false;
+        }
+        for (int i = 0; i < mGroupCount; ++i) {
+            if (other.mGroupBufferIndices[i] != mGroupBufferIndices[i] ||
+                other.mGroupParticleCounts[i] != mGroupParticleCounts[i] ||
+                other.mGroupFlags[i] != mGroupFlags[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the buffers of every group range that may have changed, in
+     * buffer order, merging contiguous ranges into one copy.
+     */
+    private void copyGroupRanges(ParticleSystem ps, FrameTimings timings) {
+        ensureSyncCapacity(mGroupCount);
+        for (int i = 0; i < mGroupCount; ++i) {
+            mSortedGroups[i] = ((long) mGroupBufferIndices[i] << 32) | i;
+        }
+        Arrays.sort(mSortedGroups, 0, mGroupCount);
+
+        mNextSyncedCount = 0;
+        for (int kind = 0; kind < BUFFER_KINDS; ++kind) {
+            mRunCounts[kind] = 0;
+        }
+        for (int i = 0; i < mGroupCount; ++i) {
+            int group = (int) mSortedGroups[i];
+            int start = mGroupBufferIndices[group];
+            int length = Math.min(
+                    mGroupParticleCounts[group], mParticleCount - start);
+            int groupFlags = mGroupFlags[group];
+            if (length <= 0) {
+                continue;
+            }
+
+            // Particle flags of the group, from its first particle; tools
+            // never mix particle flags within a group.
+            int synced = findSyncedRange(start, length, groupFlags);
+            int particleFlags = (synced >= 0) ?
+                    mSyncedParticleFlags[synced] :
+                    ps.getParticleFlags(start);
+
+            if (synced < 0 ||
+                (particleFlags & ParticleFlag.wallParticle) == 0) {
+                addToRun(POSITIONS, start, length);
+            }
+            if (synced < 0 ||
+                (particleFlags & ParticleFlag.colorMixingParticle) != 0) {
+                addToRun(COLORS, start, length);
+            }
+            if (ParticleGroupIndex.isWaterGroup(groupFlags)) {
+                addToRun(WEIGHTS, start, length);
+            }
+
+            mNextStarts[mNextSyncedCount] = start;
+            mNextLengths[mNextSyncedCount] = length;
+            mNextGroupFlags[mNextSyncedCount] = groupFlags;
+            mNextParticleFlags[mNextSyncedCount] = particleFlags;
+            ++mNextSyncedCount;
+        }
+        for (int kind = 0; kind < BUFFER_KINDS; ++kind) {
+            long time = timings.begin();
+            copyRuns(ps, kind);
+            int[] runs = mRuns[kind];
+            for (int i = 0; i < mRunCounts[kind]; ++i) {
+                writeVertices(kind, runs[2 * i], runs[2 * i + 1]);
+            }
+            timings.end(COPY_PHASES[kind], time);
+        }
+
+        // The ranges just written become the ones we hold
+        int[] swap = mSyncedStarts;
+        mSyncedStarts = mNextStarts;
+        mNextStarts = swap;
+        swap = mSyncedLengths;
+        mSyncedLengths = mNextLengths;
+        mNextLengths = swap;
+        swap = mSyncedGroupFlags;
+        mSyncedGroupFlags = mNextGroupFlags;
+        mNextGroupFlags = swap;
+        swap = mSyncedParticleFlags;
+        mSyncedParticleFlags = mNextParticleFlags;
+        mNextParticleFlags = swap;
+        mSyncedCount = mNextSyncedCount;
+    }
+
+    /**
+     * @return The index of the synced range with exactly these bounds and
+     *         flags, or -1 if there is none.
+     */
+    private int findSyncedRange(int start, int length, int groupFlags) {
+        int index = Arrays.binarySearch(mSyncedStarts, 0, mSyncedCount, start);
+        if (index < 0 || mSyncedLengths[index] != length ||
+            mSyncedGroupFlags[index] != groupFlags) {
+            return -1;
+        }
+        return index;
+    }
+
+    /** Extends the last range to copy from a buffer, or adds a new one. */
+    private void addToRun(int kind, int start, int length) {
+        int[] runs = mRuns[kind];
+        int count = mRunCounts[kind];
+        if (count > 0 && runs[2 * count - 1] == start) {
+            runs[2 * count - 1] = start + length;
+            return;
+        }
+        runs[2 * count] = start;
+        runs[2 * count + 1] = start + length;
+        mRunCounts[kind] = count + 1;
+    }
+
+    private void copyRuns(ParticleSystem ps, int kind) {
+        int[] runs = mRuns[kind];
+        mBuffers.trimSlices(kind, mRunCounts[kind]);
+        for (int i = 0; i < mRunCounts[kind]; ++i) {
+            int start = runs[2 * i];
+            int count = runs[2 * i + 1] - start;
+            ByteBuffer out =
+                    mBuffers.getSlice(kind, PARTICLE_SIZES[kind] * start);
+            out.clear();
+            switch (kind) {
+                case POSITIONS:
+                    ps.copyPositionBuffer(start, count, out);
+                    break;
+                case COLORS:
+                    ps.copyColorBuffer(start, count, out);
+                    break;
+                default:
+                    ps.copyWeightBuffer(start, count, out);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Writes one buffer kind of the particles in [start, end) to their
+     * interleaved vertices. Absolute reads and writes only: the consumer
+     * may have moved the positions of these buffers.
+     */
+    private void writeVertices(int kind, int start, int end) {
+        Buffers buffers = mBuffers;
+        ByteBuffer vertices = buffers.mVertexBuffer;
+        switch (kind) {
+            case POSITIONS: {
+                FloatBuffer positions = buffers.mPositionFloats;
+                for (int i = start; i < end; ++i) {
+                    int vertex = VERTEX_SIZE * i + VERTEX_POSITION_OFFSET;
+                    vertices.putFloat(vertex, positions.get(2 * i));
+                    vertices.putFloat(vertex + 4, positions.get(2 * i + 1));
+                }
+                break;
+            }
+            case COLORS: {
+                // Copied as an int, so the bytes stay in RGBA order
+                ByteBuffer colors = buffers.mColorBuffer;
+                for (int i = start; i < end; ++i) {
+                    vertices.putInt(VERTEX_SIZE * i + VERTEX_COLOR_OFFSET,
+                                    colors.getInt(4 * i));
+                }
+                break;
+            }
+            default: {
+                ByteBuffer weights = buffers.mWeightBuffer;
+                for (int i = start; i < end; ++i) {
+                    vertices.putFloat(VERTEX_SIZE * i + VERTEX_WEIGHT_OFFSET,
+                                      weights.getFloat(4 * i));
+                }
+                break;
+            }
+        }
+    }
+
+    private void ensureSyncCapacity(int count) {
+        if (count <= mSortedGroups.length) {
+            return;
+        }
+        int capacity = Math.max(count, mSortedGroups.length * 2);
+        mSortedGroups = new long[capacity];
+        mRuns = new int[BUFFER_KINDS][2 * capacity];
+        // The synced ranges are thrown away anyway when the group count
+        // changes, which it must have for us to get here.
+        mSyncedCount = 0;
+        mSyncedStarts = new int[capacity];
+        mSyncedLengths = new int[capacity];
+        mSyncedGroupFlags = new int[capacity];
+        mSyncedParticleFlags = new int[capacity];
+        mNextStarts = new int[capacity];
+        mNextLengths = new int[capacity];
+        mNextGroupFlags = new int[capacity];
+        mNextParticleFlags = new int[capacity];
+    }
+
+    /**
+     * Empties this snapshot, to be filled with appendParticles() and
+     * appendGroup(). capture() does this for a single particle system.
+     * @param previous The previously published snapshot, if positions should
+     *                 be kept for interpolation. May be null.
+     */
+    public void beginCapture(ParticleSnapshot previous) {
+        startCapture(previous);
+        // Filled from elsewhere; the ranges we held are overwritten.
+        mSyncedCount = 0;
+        mSyncedParticleCount = -1;
+        mSyncedGroupCount = -1;
+        mWallVersion = UNTRACKED_WALL_VERSION;
+    }
+
+    /**
+     * Empties this snapshot, keeping the contents of its buffers.
+     * @return True if the buffers were replaced by larger ones
+     */
+    private boolean startCapture(ParticleSnapshot previous) {
+        // Swap in grown buffers; just a reference swap, they were allocated
+        // by reserve().
+        Buffers pending = mPendingBuffers.getAndSet(null);
+        if (pending != null) {
+            mBuffers = pending;
+        }
+        Buffers buffers = mBuffers;
+
+        if (previous != null &&
+            previous.mParticleCount <= buffers.mCapacity) {
+            int previousCount = previous.mParticleCount;
+            ByteBuffer previousPositions = previous.mBuffers.mPositionReadView;
+            previousPositions.clear().limit(2 * 4 * previousCount);
+            buffers.mPreviousPositionBuffer.clear();
+            buffers.mPreviousPositionBuffer.put(previousPositions);
+            mPreviousParticleCount = previousCount;
+        } else {
+            mPreviousParticleCount = 0;
+        }
+
+        buffers.mPositionBuffer.rewind();
+        buffers.mColorBuffer.rewind();
+        buffers.mWeightBuffer.rewind();
+        mParticleCount = 0;
+        mGroupCount = 0;
+        mCanInterpolate = false;
+        return pending != null;
+    }
+
+    /**
+     * Appends count particles after the ones already in this snapshot.
+     * The source buffers are read from their start. Particles that do not
+     * fit are dropped.
+     * @return The buffer index of the first appended particle, to offset
+     *         the group ranges passed to appendGroup()
+     */
+    public int appendParticles(
+            ByteBuffer positions, ByteBuffer colors, ByteBuffer weights,
+            int count) {
+        Buffers buffers = mBuffers;
+        int start = mParticleCount;
+        count = Math.min(count, buffers.mCapacity - start);
+
+        positions.clear().limit(2 * 4 * count);
+        buffers.mPositionBuffer.position(2 * 4 * start);
+        buffers.mPositionBuffer.put(positions);
+        colors.clear().limit(4 * count);
+        buffers.mColorBuffer.position(4 * start);
+        buffers.mColorBuffer.put(colors);
+        weights.clear().limit(4 * count);
+        buffers.mWeightBuffer.position(4 * start);
+        buffers.mWeightBuffer.put(weights);
+        for (int kind = 0; kind < BUFFER_KINDS; ++kind) {
+            writeVertices(kind, start, start + count);
+        }
+
+        mParticleCount = start + count;
+        return start;
+    }
+
+    /**
+     * Adds the range of a particle group, in buffer indices of this
+     * snapshot.
+     */
+    public void appendGroup(int bufferIndex, int particleCount, int flags) {
+        if (mGroupCount == mGroupBufferIndices.length) {
+            // Only happens when the group count reaches a new high, so this
+            // does not allocate in the steady state.
+            int capacity = mGroupBufferIndices.length * 2;
+            mGroupBufferIndices = Arrays.copyOf(mGroupBufferIndices, capacity);
+            mGroupParticleCounts =
+                    Arrays.copyOf(mGroupParticleCounts, capacity);
+            mGroupFlags = Arrays.copyOf(mGroupFlags, capacity);
+        }
+        mGroupBufferIndices[mGroupCount] = bufferIndex;
+        mGroupParticleCounts[mGroupCount] = particleCount;
+        mGroupFlags[mGroupCount] = flags;
+        ++mGroupCount;
+    }
+
+    public ByteBuffer getPositionBuffer() {
+        return mBuffers.mPositionBuffer;
+    }
+
+    public ByteBuffer getColorBuffer() {
+        return mBuffers.mColorBuffer;
+    }
+
+    public ByteBuffer getWeightBuffer() {
+        return mBuffers.mWeightBuffer;
+    }
+
+    public int getParticleCount() {
+        return mParticleCount;
+    }
+
+    public float getParticlePositionX(int index) {
+        return mBuffers.mPositionFloats.get(2 * index);
+    }
+
+    public float getParticlePositionY(int index) {
+        return mBuffers.mPositionFloats.get(2 * index + 1);
+    }
+
+    /**
+     * @return True if the previous step's positions are available, and line
+     *         up with this step's positions: same particles in the same
+     *         groups, not moved or reordered other than by stepping.
+     */
+    public boolean canInterpolate() {
+        return mCanInterpolate;
+    }
+
+    /**
+     * Returns every particle of this step as one interleaved vertex, laid
+     * out as described by VERTEX_SIZE and friends. Written by the producer
+     * along with the other buffers.
+     */
+    public ByteBuffer getVertexBuffer() {
+        return mBuffers.mVertexBuffer;
+    }
+
+    /**
+     * Writes the vertices of getVertexBuffer() with their positions blended
+     * from the previous step. Only call this if canInterpolate() is true.
+     * @param t How far to blend the positions from the previous step (0)
+     *          to this step (1)
+     * @param out Must hold at least getParticleCount() vertices. Written
+     *            from its start.
+     */
+    public void writeInterpolatedVertices(float t, ByteBuffer out) {
+        Buffers buffers = mBuffers;
+        // The consumer may have moved the position of mVertexBuffer.
+        ByteBuffer vertices = buffers.mVertexReadView;
+        vertices.clear().limit(VERTEX_SIZE * mParticleCount);
+        out.clear();
+        out.put(vertices);
+
+        FloatBuffer previousPositions = buffers.mPreviousPositionFloats;
+        for (int i = 0; i < mParticleCount; ++i) {
+            int vertex = VERTEX_SIZE * i + VERTEX_POSITION_OFFSET;
+            float x = out.getFloat(vertex);
+            float y = out.getFloat(vertex + 4);
+            float previousX = previousPositions.get(2 * i);
+            float previousY = previousPositions.get(2 * i + 1);
+            out.putFloat(vertex, previousX + (x - previousX) * t);
+            out.putFloat(vertex + 4, previousY + (y - previousY) * t);
+        }
+    }
+
+    public int getGroupCount() {
+        return mGroupCount;
+    }
+
+    public int getGroupBufferIndex(int group) {
+        return mGroupBufferIndices[group];
+    }
+
+    public int getGroupParticleCount(int group) {
+        return mGroupParticleCounts[group];
+    }
+
+    public int getGroupFlags(int group) {
+        return mGroupFlags[group];
+    }
+
+    /**
+     * @return The ParticleGroupIndex.getWallVersion() of the groups
+     *         captured, or UNTRACKED_WALL_VERSION if the walls may have
+     *         changed in every snapshot.
+     */
+    public int getWallVersion() {
+        return mWallVersion;
+    }
+}
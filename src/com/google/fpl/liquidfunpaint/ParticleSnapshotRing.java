@@ -0,0 +1,96 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+package com.google.fpl.liquidfunpaint;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A lock-free triple buffer of ParticleSnapshots, for one producer (the
+ * thread stepping the world) and one consumer (the GLSurfaceView thread).
+ *
+ * The producer always owns one snapshot to write into, the consumer always
+ * owns one snapshot to read from, and the third one holds the latest
+ * published snapshot. Publishing and acquiring swap ownership with the
+ * middle slot, so neither side ever waits for the other.
+ */
+public class ParticleSnapshotRing {
+    private static final int SNAPSHOT_COUNT = 3;
+    // Set in mMiddle when it holds a snapshot the consumer has not seen yet.
+    private static final int FRESH_BIT = 1 << 8;
+    private static final int INDEX_MASK = FRESH_BIT - 1;
+
+    private final ParticleSnapshot[] mSnapshots =
+            new ParticleSnapshot[SNAPSHOT_COUNT];
+    // Owned by the producer
+    private int mWriteIndex = 0;
+    private ParticleSnapshot mLastPublished = null;
+    // Shared; index of the latest published snapshot, plus FRESH_BIT
+    private final AtomicInteger mMiddle = new AtomicInteger(1);
+    // Owned by the consumer
+    private int mReadIndex = 2;
+
+    public ParticleSnapshotRing(int capacity) {
+        for (int i = 0; i < SNAPSHOT_COUNT; ++i) {
+            mSnapshots[i] = new ParticleSnapshot(capacity);
+        }
+    }
+
+    /**
+     * Makes every snapshot able to hold at least capacity particles from its
+     * next capture(). Allocates; see ParticleSnapshot.reserve().
+     */
+    public void reserve(int capacity) {
+        for (int i = 0; i < SNAPSHOT_COUNT; ++i) {
+            mSnapshots[i].reserve(capacity);
+        }
+    }
+
+    /**
+     * Producer only. Returns the snapshot to fill in before publish().
+     */
+    public ParticleSnapshot getWriteSnapshot() {
+        return mSnapshots[mWriteIndex];
+    }
+
+    /**
+     * Producer only. Returns the snapshot published last, or null. It may be
+     * concurrently read by the consumer, so it must only be read.
+     */
+    public ParticleSnapshot getLastPublished() {
+        return mLastPublished;
+    }
+
+    /**
+     * Producer only. Makes the write snapshot the latest one, and takes over
+     * the previous latest one for writing.
+     */
+    public void publish() {
+        mLastPublished = mSnapshots[mWriteIndex];
+        mWriteIndex = mMiddle.getAndSet(mWriteIndex | FRESH_BIT) & INDEX_MASK;
+    }
+
+    /**
+     * Consumer only. Returns the latest complete snapshot. It stays valid
+     * until the next call to this function.
+     */
+    public ParticleSnapshot acquireLatest() {
+        if ((mMiddle.get() & FRESH_BIT) != 0) {
+            mReadIndex = mMiddle.getAndSet(mReadIndex) & INDEX_MASK;
+        }
+        return mSnapshots[mReadIndex];
+    }
+}
@@ -0,0 +1,111 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+package com.google.fpl.liquidfunpaint;
+
+import com.google.fpl.liquidfun.ParticleSystem;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Detects when the canvas is at rest: no particle is moving faster than
+ * REST_SPEED, and there has been no input, for REST_TIME seconds.
+ *
+ * Velocities are only checked every CHECK_INTERVAL steps, and are read in
+ * fixed-size batches, so detection costs little and never allocates.
+ */
+public class QuiescenceDetector {
+    // World units per second
+    private static final float REST_SPEED = 0.05f;
+    // Seconds at rest before we report it
+    private static final float REST_TIME = 2f;
+    private static final int CHECK_INTERVAL = 10;
+    // Particles read per copyVelocityBuffer() call
+    private static final int BATCH_SIZE = 1024;
+
+    private final ByteBuffer mVelocityBuffer = ByteBuffer
+            .allocateDirect(2 * 4 * BATCH_SIZE)
+            .order(ByteOrder.nativeOrder());
+    // Set by input threads
+    private volatile boolean mActivity = true;
+    // Owned by the thread stepping the world
+    private float mRestTime = 0;
+    private int mStepsUntilCheck = 0;
+    private boolean mMoving = true;
+
+    /**
+     * Reports input, or anything else that should keep the canvas awake.
+     * Can be called from any thread.
+     */
+    public void onActivity() {
+        mActivity = true;
+    }
+
+    /** @return True if onActivity() was called since the last update(). */
+    public boolean hasPendingActivity() {
+        return mActivity;
+    }
+
+    /**
+     * Called after every step, or every frame the world was not stepped,
+     * while holding the world lock.
+     * @param simulating False if the world is paused, in which case only
+     *                   input keeps the canvas awake
+     * @return True if the canvas is at rest
+     */
+    public boolean update(ParticleSystem ps, float dt, boolean simulating) {
+        if (mActivity) {
+            mActivity = false;
+            mRestTime = 0;
+            mStepsUntilCheck = 0;
+            mMoving = true;
+            return false;
+        }
+
+        if (simulating) {
+            if (--mStepsUntilCheck <= 0) {
+                mStepsUntilCheck = CHECK_INTERVAL;
+                mMoving = isMoving(ps);
+            }
+            if (mMoving) {
+                mRestTime = 0;
+                return false;
+            }
+        }
+
+        mRestTime += dt;
+        return mRestTime >= REST_TIME;
+    }
+
+    private boolean isMoving(ParticleSystem ps) {
+        float restSpeedSquared = REST_SPEED * REST_SPEED;
+        int particleCount = ps.getParticleCount();
+        for (int start = 0; start < particleCount; start += BATCH_SIZE) {
+            int count = Math.min(BATCH_SIZE, particleCount - start);
+            mVelocityBuffer.rewind();
+            ps.copyVelocityBuffer(start, count, mVelocityBuffer);
+            for (int i = 0; i < count; ++i) {
+                float vx = mVelocityBuffer.getFloat(8 * i);
+                float vy = mVelocityBuffer.getFloat(8 * i + 4);
+                if (vx * vx + vy * vy > restSpeedSquared) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
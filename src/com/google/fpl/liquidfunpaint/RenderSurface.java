@@ -16,6 +16,7 @@
 */
 package com.google.fpl.liquidfunpaint;
 
+import com.google.fpl.liquidfunpaint.shader.RenderBackend;
 import com.google.fpl.liquidfunpaint.shader.Texture;
 
 import android.graphics.Color;
@@ -36,65 +37,84 @@ public class RenderSurface {
         mWidth = width;
         mHeight = height;
 
-        GLES20.glGenFramebuffers(1, mFrameBuffer, 0);
+        RenderBackend gl = RenderBackend.get();
+        gl.glGenFramebuffers(1, mFrameBuffer, 0);
         mTexture = new Texture();
 
         // Bind the texture object
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture.getTextureId());
+        gl.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture.getTextureId());
 
         // Set default filtering modes
         // We could have them pass in through the parameters in the future.
-        GLES20.glTexParameteri(
+        gl.glTexParameteri(
                 GLES20.GL_TEXTURE_2D,
                 GLES20.GL_TEXTURE_MIN_FILTER,
                 GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(
+        gl.glTexParameteri(
                 GLES20.GL_TEXTURE_2D,
                 GLES20.GL_TEXTURE_MAG_FILTER,
                 GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(
+        gl.glTexParameteri(
                 GLES20.GL_TEXTURE_2D,
                 GLES20.GL_TEXTURE_WRAP_S,
                 GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(
+        gl.glTexParameteri(
                 GLES20.GL_TEXTURE_2D,
                 GLES20.GL_TEXTURE_WRAP_T,
                 GLES20.GL_CLAMP_TO_EDGE);
 
         // Generate the texture
-        GLES20.glTexImage2D(
+        gl.glTexImage2D(
                 GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mWidth, mHeight, 0,
                 GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
 
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffer[0]);
-        GLES20.glFramebufferTexture2D(
+        gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffer[0]);
+        gl.glFramebufferTexture2D(
                 GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
                 GLES20.GL_TEXTURE_2D, mTexture.getTextureId(), 0);
 
-        final int status =
-                GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        final int status = gl.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
         if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
             throw new RuntimeException(
                     "Failed to initialize framebuffer object " + status);
         }
 
         // Bind the screen frame buffer
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    /**
+     * Reallocates the texture at a new size, keeping the frame buffer and
+     * texture objects. The contents are undefined until drawn again.
+     */
+    public void resize(int width, int height) {
+        if (width == mWidth && height == mHeight) {
+            return;
+        }
+        mWidth = width;
+        mHeight = height;
+
+        RenderBackend gl = RenderBackend.get();
+        gl.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture.getTextureId());
+        gl.glTexImage2D(
+                GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mWidth, mHeight, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
     }
 
     public void beginRender(int clearMask) {
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffer[0]);
-        GLES20.glViewport(0, 0, mWidth, mHeight);
+        RenderBackend gl = RenderBackend.get();
+        gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffer[0]);
+        gl.glViewport(0, 0, mWidth, mHeight);
         if (clearMask != 0) {
-            GLES20.glClearColor(
+            gl.glClearColor(
                 Color.red(mClearColor), Color.blue(mClearColor),
                 Color.green(mClearColor), Color.alpha(mClearColor));
-            GLES20.glClear(clearMask);
+            gl.glClear(clearMask);
         }
     }
 
     public void endRender() {
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        RenderBackend.get().glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
     }
 
     public Texture getTexture() {
@@ -17,22 +17,35 @@
 package com.google.fpl.liquidfunpaint;
 
 import com.google.fpl.liquidfun.Body;
-import com.google.fpl.liquidfun.BodyDef;
 import com.google.fpl.liquidfun.Draw;
+import com.google.fpl.liquidfun.ParticleGroup;
 import com.google.fpl.liquidfun.ParticleSystem;
-import com.google.fpl.liquidfun.ParticleSystemDef;
-import com.google.fpl.liquidfun.PolygonShape;
 import com.google.fpl.liquidfun.World;
+import com.google.fpl.liquidfunpaint.FrameTimings.TimingPhase;
+import com.google.fpl.liquidfunpaint.shader.RecordingBackend;
+import com.google.fpl.liquidfunpaint.shader.RenderBackend;
 import com.google.fpl.liquidfunpaint.shader.ShaderProgram;
+import com.google.fpl.liquidfunpaint.tool.Tool;
 
 import android.app.Activity;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
 import android.util.Log;
 import android.widget.TextView;
 
-import java.util.Observable;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -46,23 +59,57 @@ import javax.microedition.khronos.opengles.GL10;
  * thread-safety is to called acquireWorld to obtain a thread-safe world
  * pointer, and releaseWorld when you are done with the object.
  */
-public class Renderer extends Observable implements GLSurfaceView.Renderer {
+public class Renderer implements GLSurfaceView.Renderer, WorldHost {
     // Private constants
     private static final Renderer _instance = new Renderer();
     private static final String TAG = "Renderer";
     private static final int ONE_SEC = 1000000000;
-    private static final float WORLD_HEIGHT = 3f;
-    public static final int MAX_PARTICLE_COUNT = 5000;
-    public static final float PARTICLE_RADIUS = 0.06f;
-    public static final float PARTICLE_REPULSIVE_STRENGTH = 0.5f;
+    static final float WORLD_HEIGHT = 3f;
+    public static final int DEFAULT_MAX_PARTICLE_COUNT = 5000;
+    // Particle capacities for devices with more memory, which are usually
+    // also the ones with faster CPUs. See getDeviceMaxParticleCount().
+    private static final int LARGE_MAX_PARTICLE_COUNT = 10000;
+    private static final int XLARGE_MAX_PARTICLE_COUNT = 20000;
+    private static final int LARGE_MEMORY_CLASS = 96;
+    private static final int XLARGE_MEMORY_CLASS = 192;
+    // Height of the thumbnail written next to a saved canvas, in pixels
+    private static final int THUMBNAIL_HEIGHT = 256;
+    public static final String THUMBNAIL_SUFFIX = ".png";
+    public static final float PARTICLE_RADIUS =
+            SimulationWorld.PARTICLE_RADIUS;
+    public static final float PARTICLE_REPULSIVE_STRENGTH =
+            SimulationWorld.PARTICLE_REPULSIVE_STRENGTH;
     public static final boolean DEBUG_DRAW = false;
+    // Renders through a RecordingBackend, and logs and checks its counts
+    // once a second
+    public static final boolean RECORD_RENDER_STATS = false;
+
+    /**
+     * Where and how the world is stepped.
+     * RENDER_THREAD steps once per frame on the GLSurfaceView thread, right
+     * before drawing, always by TIME_STEP.
+     * FIXED_TIMESTEP also steps on the GLSurfaceView thread, but accumulates
+     * the real frame time and steps by TIME_STEP as many times as needed to
+     * keep up, then interpolates particle positions between the last two
+     * steps. Simulation speed then does not depend on the display rate.
+     * SIMULATION_THREAD steps at a fixed rate on a separate
+     * SimulationThread, and the GLSurfaceView thread only draws.
+     * EXTERNAL never steps on its own; the world only moves when update()
+     * is called, e.g. by an InputReplayer. The GLSurfaceView thread only
+     * draws.
+     */
+    public enum SimulationMode {
+        RENDER_THREAD, FIXED_TIMESTEP, SIMULATION_THREAD, EXTERNAL,
+    }
+    private static final SimulationMode DEFAULT_SIMULATION_MODE =
+            SimulationMode.RENDER_THREAD;
 
     // Parameters for world simulation
-    private static final float TIME_STEP = 1 / 60f; // 60 fps
-    private static final int VELOCITY_ITERATIONS = 6;
-    private static final int POSITION_ITERATIONS = 2;
-    private static final int PARTICLE_ITERATIONS = 5;
-    private static final float BOUNDARY_THICKNESS = 20.0f;
+    private static final float TIME_STEP = SimulationWorld.TIME_STEP;
+    // Maximum number of steps we take in one frame to catch up with real
+    // time, in FIXED_TIMESTEP mode. Time beyond that is dropped, so a long
+    // stall slows the simulation down instead of freezing the frame.
+    private static final int MAX_CATCHUP_STEPS = 4;
 
     // Public static constants; variables for reuse
     public static final float MAT4X4_IDENTITY[];
@@ -83,15 +130,89 @@ public class Renderer extends Observable implements GLSurfaceView.Renderer {
     // Variables for thread synchronization
     private volatile boolean mSimulation = false;
     private Lock mWorldLock = new ReentrantLock();
+    private volatile SimulationMode mSimulationMode = DEFAULT_SIMULATION_MODE;
+    private SimulationThread mSimulationThread = null;
+    private boolean mResumed = false;
+    // Frame time not yet simulated, in FIXED_TIMESTEP mode. These and
+    // mLastDrawTime are owned by the GLSurfaceView thread; other threads
+    // ask for a reset with mResetFrameTimes.
+    private float mTimeAccumulator = 0;
+    private long mLastFrameTime = 0;
+    private volatile boolean mResetFrameTimes = false;
+    // Number of calls to update() so far, plus the steps we skipped while
+    // idle; input is stamped with it
+    private final AtomicLong mUpdateCount = new AtomicLong();
+    // Changed whenever particles may move, change color or be reordered
+    // other than by stepping, so snapshots copy them again. Only accessed
+    // while holding the world lock.
+    private int mParticleContentVersion = 0;
+    // Cached group list for the snapshots
+    private final ParticleGroupIndex mGroupIndex = new ParticleGroupIndex();
+    // Particle state published after each step, for lock-free rendering
+    private final ParticleSnapshotRing mSnapshotRing =
+            new ParticleSnapshotRing(DEFAULT_MAX_PARTICLE_COUNT);
+    // Particle capacity of the particle system, and of our buffers. The
+    // buffers grow geometrically, so they may be larger.
+    private volatile int mMaxParticleCount = DEFAULT_MAX_PARTICLE_COUNT;
+    private int mBufferCapacity = DEFAULT_MAX_PARTICLE_COUNT;
+    // Optional canvas split into strips stepped in parallel; replaces
+    // mWorld for simulation and drawing while set.
+    private TiledWorld mTiledWorld = null;
+    private int mStripCount = 1;
+    private AutosaveService mAutosave = null;
+    // World mutations queued by input threads, applied before each step
+    private final WorldCommandQueue mWorldCommandQueue =
+            new WorldCommandQueue();
+    // Listeners for the phases of each frame
+    private final FrameScheduler mFrameScheduler = new FrameScheduler();
+    private long mLastDrawTime = 0;
+    // Retires old particles before the particle system fills up
+    private final ParticleBudget mParticleBudget = new ParticleBudget(this);
+    private final UndoHistory mUndoHistory = new UndoHistory(this);
+    // Idles the frame loop while the canvas is at rest
+    private final QuiescenceDetector mQuiescenceDetector =
+            new QuiescenceDetector();
+    private final AtomicBoolean mIdle = new AtomicBoolean(false);
+    // System.nanoTime() at which we last went idle
+    private volatile long mIdleStartTime = 0;
+    private final Object mIdleLock = new Object();
+    // Reads back every frame while capturing, null otherwise
+    private volatile FrameCapture mFrameCapture = null;
+    private GLSurfaceView mSurfaceView = null;
+    // Per-phase timing histograms
+    private final FrameTimings mFrameTimings = new FrameTimings();
 
     private ParticleRenderer mParticleRenderer;
     protected DebugRenderer mDebugRenderer = null;
+    private RecordingBackend mRecordingBackend = null;
 
     // Measure the frame rate
     long totalFrames = -10000;
     private int mFrames;
     private long mStartTime;
     private long mTime;
+    // Values shown by the debug overlay, written once a second
+    private volatile float mOverlayFps;
+    private volatile int mOverlayParticleCount;
+    private volatile int mOverlayGroupCount;
+    private volatile int mOverlayBodyCount;
+    // Reused by the UI thread to build the overlay text
+    private final StringBuilder mOverlayText = new StringBuilder();
+    private final Runnable mOverlayUpdater = new Runnable() {
+        @Override
+        public void run() {
+            mOverlayText.setLength(0);
+            mOverlayText.append(MainActivity.sVersionName).append('\n')
+                        .append(mOverlayFps).append(" fps\n")
+                        .append(mOverlayParticleCount).append(" particles\n")
+                        .append(mOverlayGroupCount)
+                        .append(" particle groups\n")
+                        .append(mOverlayBodyCount).append(" bodies\n");
+            mFrameTimings.dump(mOverlayText);
+            ((TextView) mActivity.findViewById(R.id.fps))
+                    .setText(mOverlayText);
+        }
+    };
 
     static {
         MAT4X4_IDENTITY = new float[16];
@@ -118,19 +239,41 @@ public class Renderer extends Observable implements GLSurfaceView.Renderer {
 
     public void init(Activity activity) {
         mActivity = activity;
+        if (mAutosave != null) {
+            // The activity was recreated while the process lived on. Save
+            // the painting now, and keep the world it is about to be wiped
+            // from out of the autosave; enableAutosave() brings it back.
+            World world = acquireWorld();
+            try {
+                if (mTiledWorld == null) {
+                    mAutosave.flush();
+                }
+                mAutosave.stop();
+            } finally {
+                releaseWorld();
+            }
+        }
+
+        mMaxParticleCount = getDeviceMaxParticleCount(activity);
+        mBufferCapacity = Math.max(mBufferCapacity, mMaxParticleCount);
+        mSnapshotRing.reserve(mBufferCapacity);
+
+        mFrameScheduler.addListener(FramePhase.STEP, mParticleBudget);
 
         // Initialize all the different renderers
-        mParticleRenderer = new ParticleRenderer();
+        mParticleRenderer = new ParticleRenderer(mBufferCapacity);
         if (DEBUG_DRAW) {
             mDebugRenderer = new DebugRenderer();
             mDebugRenderer.setFlags(Draw.SHAPE_BIT | Draw.PARTICLE_BIT);
         }
 
-        reset();
+        resetWorld(false);
     }
 
     @Override
     public void onDrawFrame(GL10 gl) {
+        long frameStartTime = mFrameTimings.begin();
+
         // Show the frame rate
         if (BuildConfig.DEBUG) {
             long time = System.nanoTime();
@@ -139,48 +282,78 @@ public class Renderer extends Observable implements GLSurfaceView.Renderer {
                     totalFrames = 0;
                     mStartTime = time - 1;
                 }
-                final float fps = mFrames / ((float) time - mTime) * ONE_SEC;
+                float fps = mFrames / ((float) time - mTime) * ONE_SEC;
                 float avefps = totalFrames / ((float) time - mStartTime) * ONE_SEC;
-                final int count = mParticleSystem.getParticleCount();
+                World world = acquireWorld();
+                try {
+                    mOverlayParticleCount = (mTiledWorld != null) ?
+                            mTiledWorld.getParticleCount() :
+                            mParticleSystem.getParticleCount();
+                    mOverlayGroupCount =
+                            mParticleSystem.getParticleGroupCount();
+                    mOverlayBodyCount = world.getBodyCount();
+                } finally {
+                    releaseWorld();
+                }
+                mOverlayFps = fps;
                 Log.d(TAG, fps + " fps (Now)");
                 Log.d(TAG, avefps + " fps (Average)");
-                Log.d(TAG, count + " particles");
+                Log.d(TAG, mOverlayParticleCount + " particles");
+                if (mRecordingBackend != null) {
+                    checkRenderStats();
+                }
                 mTime = time;
                 mFrames = 0;
 
-                mActivity.runOnUiThread(new Runnable() {
-                        @Override
-                    public void run() {
-                        String message = MainActivity.sVersionName + '\n'
-                                + fps + " fps\n"
-                                + count + " particles\n"
-                                + mParticleSystem.getParticleGroupCount()
-                                + " particle groups\n"
-                                + mWorld.getBodyCount() + " bodies\n";
-                        ((TextView) mActivity.findViewById(R.id.fps))
-                                .setText(message);
-                    }
-                });
+                mActivity.runOnUiThread(mOverlayUpdater);
             }
             mFrames++;
             totalFrames++;
         }
 
-        update(TIME_STEP);
+        if (mResetFrameTimes) {
+            mResetFrameTimes = false;
+            mLastFrameTime = 0;
+            mLastDrawTime = 0;
+            mTimeAccumulator = 0;
+            mParticleRenderer.setInterpolation(1);
+        }
+
+        switch (mSimulationMode) {
+            case RENDER_THREAD:
+                update(TIME_STEP);
+                break;
+            case FIXED_TIMESTEP:
+                updateFixedTimestep();
+                break;
+            default:
+                break;
+        }
+
+        long drawTime = System.nanoTime();
+        float drawDt = (mLastDrawTime == 0) ?
+                TIME_STEP : (float) (drawTime - mLastDrawTime) / ONE_SEC;
+        mLastDrawTime = drawTime;
+        mFrameScheduler.dispatch(FramePhase.PRE_RENDER, drawDt);
+
         render();
+        RenderBackend.get().endFrame();
+
+        mFrameTimings.end(TimingPhase.FRAME, frameStartTime);
     }
 
     @Override
     public void onSurfaceChanged(GL10 gl, int width, int height) {
-        GLES20.glViewport(0, 0, width, height);
+        RenderBackend.get().glViewport(0, 0, width, height);
 
+        float oldWorldWidth = sRenderWorldWidth;
+        float oldWorldHeight = sRenderWorldHeight;
         sRenderWorldHeight = WORLD_HEIGHT;
         sRenderWorldWidth = width * WORLD_HEIGHT / height;
         sScreenWidth = width;
         sScreenHeight = height;
 
-        // Reset the boundary
-        initBoundaries();
+        resizeCanvas(oldWorldWidth, oldWorldHeight);
 
         mParticleRenderer.onSurfaceChanged(width, height);
 
@@ -195,6 +368,11 @@ public class Renderer extends Observable implements GLSurfaceView.Renderer {
             throw new IllegalStateException("Init world before rendering");
         }
 
+        if (RECORD_RENDER_STATS && mRecordingBackend == null) {
+            mRecordingBackend = new RecordingBackend(RenderBackend.get());
+            RenderBackend.set(mRecordingBackend);
+        }
+
         // Load all shaders
         ShaderProgram.loadAllShaders(mActivity.getAssets());
 
@@ -207,33 +385,266 @@ public class Renderer extends Observable implements GLSurfaceView.Renderer {
         }
     }
 
-    /** Update function for render loop */
-    private void update(float dt) {
+    /**
+     * Logs the counts of the last frame rendered through the
+     * RecordingBackend, and warns if they break what every frame must do:
+     * clear, draw, and end up back on the screen.
+     */
+    private void checkRenderStats() {
+        RecordingBackend.FrameStats stats = mRecordingBackend.getLastFrame();
+        Log.d(TAG, "Last frame: " + stats);
+        if (mRecordingBackend.getFrameCount() == 0) {
+            return;
+        }
+        if (stats.mClears == 0 || stats.mDrawCalls == 0) {
+            Log.w(TAG, "Last frame did not clear and draw: " + stats);
+        }
+        if (mRecordingBackend.getBoundFramebuffer() != 0) {
+            Log.w(TAG, "Frame ended on framebuffer " +
+                  mRecordingBackend.getBoundFramebuffer());
+        }
+    }
+
+    /**
+     * Update function for the simulation loop.
+     * Called from the GLSurfaceView thread or from the SimulationThread,
+     * depending on the SimulationMode. Always finishes by publishing a
+     * ParticleSnapshot, even when the simulation is paused, so that newly
+     * drawn particles show up. The step phases of the FrameScheduler are
+     * only dispatched when the world is actually stepped.
+     */
+    void update(float dt) {
+        mUpdateCount.incrementAndGet();
         if (mSimulation) {
-            setChanged();
-            notifyObservers(dt);
+            mFrameScheduler.dispatch(FramePhase.PRE_STEP, dt);
 
             mParticleRenderer.update(dt);
+        }
 
-            World world = acquireWorld();
-            try {
-                world.step(
-                        dt, VELOCITY_ITERATIONS,
-                        POSITION_ITERATIONS, PARTICLE_ITERATIONS);
-            } finally {
-                releaseWorld();
+        boolean atRest = false;
+        World world = acquireWorld();
+        try {
+            if (mTiledWorld != null) {
+                updateTiledWorld(dt);
+            } else {
+                if (mWorldCommandQueue.applyAll(world, mParticleSystem)) {
+                    ++mParticleContentVersion;
+                }
+                if (mSimulation) {
+                    long stepStartTime = mFrameTimings.begin();
+                    SimulationWorld.step(world, dt);
+                    mFrameTimings.end(TimingPhase.WORLD_STEP, stepStartTime);
+                    mFrameScheduler.dispatch(FramePhase.STEP, dt);
+                }
+                publishParticleSnapshot();
+
+                atRest = !mIdle.get() && mQuiescenceDetector.update(
+                        mParticleSystem, dt, mSimulation);
             }
+        } finally {
+            releaseWorld();
+        }
+        // Outside the world lock, so the render mode switch never holds up
+        // the threads waiting on it.
+        if (atRest) {
+            enterIdle();
+        }
+
+        if (mSimulation) {
+            mFrameScheduler.dispatch(FramePhase.POST_STEP, dt);
         }
     }
 
+    /**
+     * The tiled counterpart of update(), stepping all strips in parallel.
+     * Must be called while holding the world lock. Snapshots are not
+     * interpolated, and the canvas is never considered at rest.
+     */
+    private void updateTiledWorld(float dt) {
+        mWorldCommandQueue.applyAll(mTiledWorld);
+        if (mSimulation) {
+            long stepStartTime = mFrameTimings.begin();
+            mTiledWorld.step(dt);
+            mFrameTimings.end(TimingPhase.WORLD_STEP, stepStartTime);
+            mFrameScheduler.dispatch(FramePhase.STEP, dt);
+        }
+        mTiledWorld.capture(mSnapshotRing.getWriteSnapshot(), mFrameTimings);
+        mSnapshotRing.publish();
+    }
+
+    /**
+     * Copies the particle state into the next ParticleSnapshot and publishes
+     * it. Must be called while holding the world lock.
+     */
+    private void publishParticleSnapshot() {
+        // Keep the previous positions only if we are going to interpolate.
+        ParticleSnapshot previous =
+                (mSimulationMode == SimulationMode.FIXED_TIMESTEP) ?
+                mSnapshotRing.getLastPublished() : null;
+        mGroupIndex.refresh(mParticleSystem);
+        mSnapshotRing.getWriteSnapshot().capture(
+                mParticleSystem, mGroupIndex, previous,
+                mParticleContentVersion, mFrameTimings);
+        mSnapshotRing.publish();
+    }
+
+    /**
+     * Returns the latest complete particle state. This does not take the
+     * world lock. Only call this from the GLSurfaceView thread; the returned
+     * snapshot stays valid until the next call.
+     */
+    public ParticleSnapshot acquireParticleSnapshot() {
+        return mSnapshotRing.acquireLatest();
+    }
+
+    /**
+     * Returns the last published particle state, or null. Only call this
+     * from the thread stepping the world, e.g. from an update() observer.
+     * The snapshot may be read concurrently by the GLSurfaceView thread, so
+     * it must not be modified.
+     */
+    @Override
+    public ParticleSnapshot getLastPublishedSnapshot() {
+        return mSnapshotRing.getLastPublished();
+    }
+
+    /**
+     * Returns the queue through which input threads mutate the world without
+     * taking the world lock. Commands are applied at the start of the next
+     * update().
+     */
+    @Override
+    public WorldCommandQueue getWorldCommandQueue() {
+        return mWorldCommandQueue;
+    }
+
+    /**
+     * Returns the scheduler that subsystems register with to run code at a
+     * given phase of each frame.
+     */
+    @Override
+    public FrameScheduler getFrameScheduler() {
+        return mFrameScheduler;
+    }
+
+    @Override
+    public float getWorldWidth() {
+        return sRenderWorldWidth;
+    }
+
+    @Override
+    public float getWorldHeight() {
+        return sRenderWorldHeight;
+    }
+
+    /**
+     * Starts reading back every rendered frame into capture, replacing any
+     * capture already running.
+     */
+    public void startFrameCapture(FrameCapture capture) {
+        stopFrameCapture();
+        capture.start();
+        mFrameCapture = capture;
+    }
+
+    /**
+     * Stops the running frame capture, if any, and waits for its queued
+     * frames to be encoded.
+     */
+    public void stopFrameCapture() {
+        FrameCapture capture = mFrameCapture;
+        mFrameCapture = null;
+        if (capture != null) {
+            capture.stop();
+        }
+    }
+
+    /**
+     * Returns the cached group list, to be told about groups created or
+     * joined. Only use it while holding the world lock.
+     */
+    @Override
+    public ParticleGroupIndex getParticleGroupIndex() {
+        return mGroupIndex;
+    }
+
+    public UndoHistory getUndoHistory() {
+        return mUndoHistory;
+    }
+
+    @Override
+    public void markStroke() {
+        mUndoHistory.markStroke();
+    }
+
+    /**
+     * Returns the budget that tools report the particle groups they create
+     * to. Only use it while holding the world lock.
+     */
+    @Override
+    public ParticleBudget getParticleBudget() {
+        return mParticleBudget;
+    }
+
+    /**
+     * Returns the per-phase timing histograms. They can be read from any
+     * thread.
+     */
+    public FrameTimings getFrameTimings() {
+        return mFrameTimings;
+    }
+
+    /**
+     * Appends the p50/p95/p99 and jank count of every timed phase to out.
+     * Does not allocate unless out has to grow.
+     */
+    public void dumpFrameTimings(StringBuilder out) {
+        mFrameTimings.dump(out);
+    }
+
+    /**
+     * Steps the world by TIME_STEP as many times as the real time since the
+     * last frame allows, up to MAX_CATCHUP_STEPS. The leftover time is passed
+     * to the ParticleRenderer as an interpolation factor between the last
+     * two steps.
+     */
+    private void updateFixedTimestep() {
+        long time = System.nanoTime();
+        float frameTime = (mLastFrameTime == 0) ?
+                TIME_STEP : (float) (time - mLastFrameTime) / ONE_SEC;
+        mLastFrameTime = time;
+
+        mTimeAccumulator += frameTime;
+        int steps = 0;
+        while (mTimeAccumulator >= TIME_STEP && steps < MAX_CATCHUP_STEPS) {
+            update(TIME_STEP);
+            mTimeAccumulator -= TIME_STEP;
+            ++steps;
+        }
+        if (steps == MAX_CATCHUP_STEPS) {
+            // Drop whatever we could not catch up on.
+            mTimeAccumulator = Math.min(mTimeAccumulator, TIME_STEP);
+        }
+
+        mParticleRenderer.setInterpolation(mTimeAccumulator / TIME_STEP);
+    }
+
     /** Render function for render loop */
     private void render() {
-        GLES20.glClearColor(1, 1, 1, 1);
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        RenderBackend.get().glClearColor(1, 1, 1, 1);
+        RenderBackend.get().glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
         // Draw particles
         mParticleRenderer.draw();
 
+        FrameCapture capture = mFrameCapture;
+        if (capture != null) {
+            long time = mFrameTimings.begin();
+            capture.capture(
+                    sScreenWidth, sScreenHeight, FrameCapture.GL_PIXEL_SOURCE);
+            mFrameTimings.end(TimingPhase.CAPTURE_READBACK, time);
+        }
+
         if (DEBUG_DRAW) {
             mDebugRenderer.draw();
         }
@@ -241,16 +652,164 @@ public class Renderer extends Observable implements GLSurfaceView.Renderer {
 
     public void pauseSimulation() {
         mSimulation = false;
+        wake();
     }
 
     public void startSimulation() {
         mSimulation = true;
+        wake();
+    }
+
+    /**
+     * Sets the view we render into, so we can stop it from rendering
+     * continuously while the canvas is at rest. Call after
+     * GLSurfaceView.setRenderer().
+     */
+    public void setSurfaceView(GLSurfaceView view) {
+        mSurfaceView = view;
+    }
+
+    public boolean isIdle() {
+        return mIdle.get();
+    }
+
+    /**
+     * Stops stepping and rendering until wake() is called. The frame that
+     * detected rest has already published its state, so the last rendered
+     * frame is up to date.
+     */
+    private void enterIdle() {
+        mIdleStartTime = System.nanoTime();
+        if (!mIdle.compareAndSet(false, true)) {
+            return;
+        }
+        setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+        // wake() may have raced with us; it sets the activity before reading
+        // mIdle, and we set mIdle before reading the activity.
+        if (mQuiescenceDetector.hasPendingActivity()) {
+            wake();
+        }
+        // If it woke us before we switched the render mode, switch back.
+        if (!mIdle.get()) {
+            setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
+        }
+    }
+
+    /**
+     * Resumes stepping and rendering right away, if we were idle. Call this
+     * on any input that may change the canvas. Can be called from any thread.
+     */
+    public void wake() {
+        mQuiescenceDetector.onActivity();
+        long idleSteps = getIdleSteps();
+        if (mIdle.compareAndSet(true, false)) {
+            mUpdateCount.addAndGet(idleSteps);
+            setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
+            synchronized (mIdleLock) {
+                mIdleLock.notifyAll();
+            }
+        }
+    }
+
+    private void setRenderMode(int renderMode) {
+        GLSurfaceView view = mSurfaceView;
+        if (view != null) {
+            view.setRenderMode(renderMode);
+        }
+    }
+
+    /** Returns the number of steps we would have taken since going idle. */
+    private long getIdleSteps() {
+        return (System.nanoTime() - mIdleStartTime) /
+                (long) (TIME_STEP * ONE_SEC);
+    }
+
+    /**
+     * Blocks the calling thread while we are idle. Used by the
+     * SimulationThread.
+     * @throws InterruptedException If the thread was interrupted while
+     *                              waiting
+     */
+    void waitWhileIdle() throws InterruptedException {
+        synchronized (mIdleLock) {
+            while (mIdle.get()) {
+                mIdleLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Called from the Activity when it is resumed. Starts the
+     * SimulationThread if the current mode requires one.
+     */
+    public void onResume() {
+        mResumed = true;
+        // Don't count the time we were paused as frame time.
+        mResetFrameTimes = true;
+        updateSimulationThread();
+    }
+
+    /**
+     * Called from the Activity when it is paused. Stops the SimulationThread
+     * so we do not keep stepping in the background.
+     */
+    public void onPause() {
+        mResumed = false;
+        updateSimulationThread();
+        // We may not come back; save what was drawn since the last capture.
+        if (mAutosave != null && mTiledWorld == null) {
+            mAutosave.flush();
+        }
+    }
+
+    /**
+     * Returns the number of world updates so far, whether or not the world
+     * was stepped. Time spent idle counts as the updates that would have
+     * run in it, so the count keeps advancing while the canvas is at rest.
+     * Input recorded between two updates is stamped with it.
+     */
+    public long getUpdateCount() {
+        long count = mUpdateCount.get();
+        return mIdle.get() ? count + getIdleSteps() : count;
+    }
+
+    public SimulationMode getSimulationMode() {
+        return mSimulationMode;
+    }
+
+    /**
+     * Switches between stepping on the GLSurfaceView thread and on a
+     * dedicated SimulationThread. Should be called from the UI thread.
+     */
+    public void setSimulationMode(SimulationMode mode) {
+        wake();
+        mSimulationMode = mode;
+        // Done by the next frame, on the thread owning the frame times
+        mResetFrameTimes = true;
+        updateSimulationThread();
+    }
+
+    /** Starts or stops the SimulationThread to match the current state. */
+    private void updateSimulationThread() {
+        boolean needsThread =
+                mResumed && mSimulationMode == SimulationMode.SIMULATION_THREAD;
+        if (needsThread && mSimulationThread == null) {
+            mSimulationThread = new SimulationThread(this, TIME_STEP);
+            mSimulationThread.start();
+        } else if (!needsThread && mSimulationThread != null) {
+            mSimulationThread.quit();
+            mSimulationThread = null;
+        }
     }
 
     private void deleteWorld() {
         World world = acquireWorld();
 
         try {
+            if (mTiledWorld != null) {
+              mTiledWorld.delete();
+              mTiledWorld = null;
+            }
             if (mBoundaryBody != null) {
               mBoundaryBody.delete();
               mBoundaryBody = null;
@@ -270,19 +829,344 @@ public class Renderer extends Observable implements GLSurfaceView.Renderer {
      * Initializes the boundaries and reset the ParticleRenderer as well.
      */
     public void reset() {
+        resetWorld(true);
+    }
+
+    /**
+     * @param checkpoint Whether the autosave should checkpoint the empty
+     *                   canvas. Not when the canvas is about to be restored
+     *                   from the autosave itself.
+     */
+    private void resetWorld(boolean checkpoint) {
+        wake();
         World world = acquireWorld();
         try {
+            // Queued commands may refer to the old world's particles
+            mWorldCommandQueue.discardAll();
+            mParticleBudget.reset();
             deleteWorld();
             mWorld = new World(0, 0);
+            mGroupIndex.clear();
+            mWorld.setDestructionListener(
+                    mGroupIndex.getDestructionListener());
 
             initParticleSystem();
             initBoundaries();
+            rebuildTiledWorld();
 
             if (DEBUG_DRAW) {
                 mWorld.setDebugDraw(mDebugRenderer);
             }
 
             mParticleRenderer.reset();
+            ++mParticleContentVersion;
+            mUndoHistory.clear(mWorld, mParticleSystem);
+            if (checkpoint && mAutosave != null) {
+                mAutosave.requestCheckpoint();
+            }
+        } finally {
+            releaseWorld();
+        }
+    }
+
+    /**
+     * Saves the painting to file, with CanvasFile, and a thumbnail of it
+     * next to it, named file plus THUMBNAIL_SUFFIX. Can be called from any
+     * thread but the GLSurfaceView thread; holds the world lock while
+     * writing the canvas.
+     */
+    public void saveCanvas(File file) throws IOException {
+        World world = acquireWorld();
+        try {
+            if (mTiledWorld != null) {
+                throw new IOException("Cannot save a tiled canvas");
+            }
+            CanvasFile.save(file, world, mParticleSystem,
+                            sRenderWorldWidth, sRenderWorldHeight);
+        } finally {
+            releaseWorld();
+        }
+        int width = Math.round(
+                THUMBNAIL_HEIGHT * sRenderWorldWidth / sRenderWorldHeight);
+        saveThumbnail(new File(file.getPath() + THUMBNAIL_SUFFIX),
+                      width, THUMBNAIL_HEIGHT);
+    }
+
+    /**
+     * Writes a width x height PNG of the painting. It is drawn on the CPU
+     * by a SoftwareParticleRenderer, so it does not need the GLSurfaceView,
+     * and is only as expensive as a few frames. Call from any thread but
+     * the GLSurfaceView thread.
+     */
+    public void saveThumbnail(File file, int width, int height)
+            throws IOException {
+        ParticleSnapshot snapshot = new ParticleSnapshot(mBufferCapacity);
+        World world = acquireWorld();
+        try {
+            if (mTiledWorld != null) {
+                mTiledWorld.capture(snapshot, new FrameTimings());
+            } else {
+                mGroupIndex.refresh(mParticleSystem);
+                snapshot.capture(mParticleSystem, mGroupIndex, null,
+                                 mParticleContentVersion, new FrameTimings());
+            }
+        } finally {
+            releaseWorld();
+        }
+
+        ByteBuffer pixels = ByteBuffer.allocateDirect(4 * width * height)
+                .order(ByteOrder.nativeOrder());
+        SoftwareParticleRenderer renderer = new SoftwareParticleRenderer(
+                mActivity, Runtime.getRuntime().availableProcessors());
+        try {
+            renderer.setWorldSize(sRenderWorldWidth, sRenderWorldHeight);
+            renderer.render(snapshot, 1);
+            renderer.readPixels(width, height, pixels);
+        } catch (IllegalStateException ex) {
+            throw new IOException("Cannot draw thumbnail: " + ex.getMessage());
+        } finally {
+            renderer.release();
+        }
+
+        // The pixels are bottom row first; Bitmap wants the top row first.
+        ByteBuffer flipped = ByteBuffer.allocateDirect(4 * width * height)
+                .order(ByteOrder.nativeOrder());
+        int rowSize = 4 * width;
+        for (int y = height - 1; y >= 0; --y) {
+            pixels.limit(rowSize * (y + 1)).position(rowSize * y);
+            flipped.put(pixels);
+        }
+        flipped.flip();
+        Bitmap bitmap = Bitmap.createBitmap(
+                width, height, Bitmap.Config.ARGB_8888);
+        bitmap.copyPixelsFromBuffer(flipped);
+        OutputStream out =
+                new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        } finally {
+            out.close();
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Replaces the painting with one saved by saveCanvas(). Grows the
+     * particle capacity if needed. Should be called from the UI thread,
+     * along with resetting the tools.
+     */
+    public void loadCanvas(File file) throws IOException {
+        if (mTiledWorld != null) {
+            throw new IOException("Cannot load into a tiled canvas");
+        }
+        CanvasFile.Header header = CanvasFile.readHeader(file);
+        if (header.mParticleCount > mMaxParticleCount) {
+            setMaxParticleCount(header.mParticleCount);
+        }
+
+        World world = acquireWorld();
+        try {
+            reset();
+            CanvasFile.load(file, mWorld, mParticleSystem);
+            // The canvas may have been saved in another orientation
+            SimulationWorld.remapParticles(
+                    mParticleSystem, header.mWorldWidth, header.mWorldHeight,
+                    sRenderWorldWidth, sRenderWorldHeight);
+            ++mParticleContentVersion;
+            trackLoadedGroups();
+            mUndoHistory.clear(mWorld, mParticleSystem);
+        } finally {
+            releaseWorld();
+        }
+    }
+
+    /**
+     * Keeps saving the painting in the background, into directory, and
+     * restores what was saved there last, e.g. before the process was
+     * killed or the activity recreated. Should be called from the UI
+     * thread, after each init().
+     */
+    public void enableAutosave(File directory) {
+        if (mAutosave == null) {
+            mAutosave = new AutosaveService(this, directory);
+        }
+        CanvasFile.Image image = mAutosave.recover();
+        if (image != null && mTiledWorld == null) {
+            int count = image.getHeader().mParticleCount;
+            if (count > mMaxParticleCount) {
+                setMaxParticleCount(count);
+            }
+            World world = acquireWorld();
+            try {
+                reset();
+                image.restore(mWorld, mParticleSystem);
+                SimulationWorld.remapParticles(
+                        mParticleSystem, image.getHeader().mWorldWidth,
+                        image.getHeader().mWorldHeight,
+                        sRenderWorldWidth, sRenderWorldHeight);
+                ++mParticleContentVersion;
+                trackLoadedGroups();
+                mUndoHistory.clear(mWorld, mParticleSystem);
+            } finally {
+                releaseWorld();
+            }
+        }
+        if (mTiledWorld == null) {
+            mFrameScheduler.addListener(FramePhase.STEP, mAutosave);
+        }
+        mAutosave.start();
+    }
+
+    /** Let the budget evict loaded groups like drawn ones. */
+    private void trackLoadedGroups() {
+        mGroupIndex.markDirty();
+        ParticleGroup group = mParticleSystem.getParticleGroupList();
+        while (group != null) {
+            ParticleGroup next = group.getNext();
+            mParticleBudget.onGroupTouched(
+                    group,
+                    ParticleBudget.guessToolType(mParticleSystem, group));
+            group = next;
+        }
+    }
+
+    @Override
+    public void onGroupDestroyed(ParticleGroup group) {
+        mParticleBudget.onGroupDestroyed(group);
+        Tool.releaseGroup(group);
+    }
+
+    /** Lets the budget evict a group recreated by the UndoHistory. */
+    @Override
+    public void onGroupRestored(ParticleGroup group) {
+        mGroupIndex.markDirty();
+        if (ParticleGroupIndex.isWallGroup(group.getGroupFlags())) {
+            mGroupIndex.markWallsChanged();
+        }
+        mParticleBudget.onGroupTouched(
+                group, ParticleBudget.guessToolType(mParticleSystem, group));
+    }
+
+    /**
+     * Picks a particle capacity for this device from its memory class.
+     */
+    private static int getDeviceMaxParticleCount(Context context) {
+        ActivityManager activityManager = (ActivityManager)
+                context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClass = activityManager.getMemoryClass();
+        if (memoryClass >= XLARGE_MEMORY_CLASS) {
+            return XLARGE_MAX_PARTICLE_COUNT;
+        } else if (memoryClass >= LARGE_MEMORY_CLASS) {
+            return LARGE_MAX_PARTICLE_COUNT;
+        }
+        return DEFAULT_MAX_PARTICLE_COUNT;
+    }
+
+    public int getMaxParticleCount() {
+        return mMaxParticleCount;
+    }
+
+    /**
+     * Changes the maximum number of particles at runtime. Should be called
+     * from the UI thread.
+     *
+     * If the particle buffers are too small, they grow to at least twice
+     * their size here, before the particle system is allowed to grow, so
+     * the frame loop only ever swaps in buffers that are already allocated.
+     * Buffers never shrink. The capacity cannot go below the current
+     * particle count. While the canvas is split into strips, each strip
+     * gets this capacity, as with setStripCount().
+     */
+    public void setMaxParticleCount(int count) {
+        reserveBuffers(count * mStripCount);
+
+        ParticleSystem ps = acquireParticleSystem();
+        try {
+            if (count < ps.getParticleCount()) {
+                Log.w(TAG, "Cannot lower the particle capacity below the " +
+                      "current particle count of " + ps.getParticleCount());
+                count = ps.getParticleCount();
+            }
+            ps.setMaxParticleCount(count);
+            if (mTiledWorld != null) {
+                int stripCapacity = mTiledWorld.setCapacity(count);
+                if (stripCapacity > count) {
+                    Log.w(TAG, "Cannot lower the strip capacity below the " +
+                          "particle count of a strip: " + stripCapacity);
+                    reserveBuffers(stripCapacity * mStripCount);
+                }
+            }
+            mMaxParticleCount = count;
+        } finally {
+            releaseParticleSystem();
+        }
+    }
+
+    /**
+     * Splits the canvas into count strips, each with its own world stepped
+     * on its own thread, or goes back to a single world if count is 1.
+     * Each strip can hold the maximum particle count. Should be called from
+     * the UI thread. Clears the canvas.
+     */
+    public void setStripCount(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException(
+                    "Strip count must be at least 1: " + count);
+        }
+        reserveBuffers(count * mMaxParticleCount);
+
+        World world = acquireWorld();
+        try {
+            mWorldCommandQueue.discardAll();
+            mStripCount = count;
+            rebuildTiledWorld();
+            if (mAutosave != null) {
+                // Only the single world is autosaved.
+                if (mTiledWorld != null) {
+                    mFrameScheduler.removeListener(FramePhase.STEP, mAutosave);
+                } else {
+                    mFrameScheduler.addListener(FramePhase.STEP, mAutosave);
+                }
+            }
+            mParticleRenderer.reset();
+        } finally {
+            releaseWorld();
+        }
+        wake();
+    }
+
+    public int getStripCount() {
+        return mStripCount;
+    }
+
+    /**
+     * Grows the particle buffers to hold at least count particles, to at
+     * least twice their size, so this rarely allocates.
+     */
+    private void reserveBuffers(int count) {
+        if (count > mBufferCapacity) {
+            mBufferCapacity = Math.max(count, 2 * mBufferCapacity);
+            mSnapshotRing.reserve(mBufferCapacity);
+            mParticleRenderer.reserve(mBufferCapacity);
+        }
+    }
+
+    /**
+     * Replaces the tiled canvas with an empty one of the current size and
+     * strip count, or removes it if we only have one strip.
+     */
+    private void rebuildTiledWorld() {
+        World world = acquireWorld();
+        try {
+            if (mTiledWorld != null) {
+                mTiledWorld.delete();
+                mTiledWorld = null;
+            }
+            if (mStripCount > 1) {
+                mTiledWorld = new TiledWorld(
+                        mStripCount, sRenderWorldWidth, sRenderWorldHeight,
+                        mMaxParticleCount);
+            }
         } finally {
             releaseWorld();
         }
@@ -293,12 +1177,42 @@ public class Renderer extends Observable implements GLSurfaceView.Renderer {
         World world = acquireWorld();
         try {
             // Create a new particle system; we only use one.
-            ParticleSystemDef psDef = new ParticleSystemDef();
-            psDef.setRadius(PARTICLE_RADIUS);
-            psDef.setRepulsiveStrength(PARTICLE_REPULSIVE_STRENGTH);
-            mParticleSystem = mWorld.createParticleSystem(psDef);
-            mParticleSystem.setMaxParticleCount(MAX_PARTICLE_COUNT);
-            psDef.delete();
+            mParticleSystem = SimulationWorld.createParticleSystem(
+                    world, mMaxParticleCount);
+        } finally {
+            releaseWorld();
+        }
+    }
+
+    /**
+     * Fits the canvas to the current world size, e.g. after the screen
+     * rotated: moves the boundaries and stretches the particles to the new
+     * extents, rather than starting over.
+     */
+    private void resizeCanvas(float oldWorldWidth, float oldWorldHeight) {
+        if (oldWorldWidth == sRenderWorldWidth &&
+            oldWorldHeight == sRenderWorldHeight && mBoundaryBody != null) {
+            return;
+        }
+        acquireWorld();
+        try {
+            if (mBoundaryBody == null) {
+                initBoundaries();
+            } else {
+                SimulationWorld.resizeBoundaries(
+                        mBoundaryBody, sRenderWorldWidth, sRenderWorldHeight,
+                        true, true);
+            }
+            SimulationWorld.remapParticles(
+                    mParticleSystem, oldWorldWidth, oldWorldHeight,
+                    sRenderWorldWidth, sRenderWorldHeight);
+            ++mParticleContentVersion;
+            // The walls moved, but their groups stayed the same
+            mGroupIndex.markWallsChanged();
+            // The strips are laid out for the old width
+            rebuildTiledWorld();
+            // Undo entries hold positions in the old extents
+            mUndoHistory.resize(mParticleSystem);
         } finally {
             releaseWorld();
         }
@@ -314,49 +1228,8 @@ public class Renderer extends Observable implements GLSurfaceView.Renderer {
                 world.destroyBody(mBoundaryBody);
             }
 
-            // Create native objects
-            BodyDef bodyDef = new BodyDef();
-            PolygonShape boundaryPolygon = new PolygonShape();
-
-            mBoundaryBody = world.createBody(bodyDef);
-
-            // boundary definitions
-            // top
-            boundaryPolygon.setAsBox(
-                    sRenderWorldWidth,
-                    BOUNDARY_THICKNESS,
-                    sRenderWorldWidth / 2,
-                    sRenderWorldHeight + BOUNDARY_THICKNESS,
-                    0);
-            mBoundaryBody.createFixture(boundaryPolygon, 0.0f);
-            // bottom
-            boundaryPolygon.setAsBox(
-                    sRenderWorldWidth,
-                    BOUNDARY_THICKNESS,
-                    sRenderWorldWidth / 2,
-                    -BOUNDARY_THICKNESS,
-                    0);
-            mBoundaryBody.createFixture(boundaryPolygon, 0.0f);
-            // left
-            boundaryPolygon.setAsBox(
-                    BOUNDARY_THICKNESS,
-                    sRenderWorldHeight,
-                    -BOUNDARY_THICKNESS,
-                    sRenderWorldHeight / 2,
-                    0);
-            mBoundaryBody.createFixture(boundaryPolygon, 0.0f);
-            // right
-            boundaryPolygon.setAsBox(
-                    BOUNDARY_THICKNESS,
-                    sRenderWorldHeight,
-                    sRenderWorldWidth + BOUNDARY_THICKNESS,
-                    sRenderWorldHeight / 2,
-                    0);
-            mBoundaryBody.createFixture(boundaryPolygon, 0.0f);
-
-            // Clean up native objects
-            bodyDef.delete();
-            boundaryPolygon.delete();
+            mBoundaryBody = SimulationWorld.createBoundaries(
+                    world, sRenderWorldWidth, sRenderWorldHeight);
         } finally {
           releaseWorld();
         }
@@ -365,6 +1238,7 @@ public class Renderer extends Observable implements GLSurfaceView.Renderer {
     /**
      * Acquire the world for thread-safe operations.
      */
+    @Override
     public World acquireWorld() {
         mWorldLock.lock();
         return mWorld;
@@ -373,6 +1247,7 @@ public class Renderer extends Observable implements GLSurfaceView.Renderer {
     /**
      * Release the world after thread-safe operations.
      */
+    @Override
     public void releaseWorld() {
         mWorldLock.unlock();
     }
@@ -384,6 +1259,7 @@ public class Renderer extends Observable implements GLSurfaceView.Renderer {
      * don't want to call ParticleSystem.createParticleGroup() at the same
      * time.
      */
+    @Override
     public ParticleSystem acquireParticleSystem() {
         mWorldLock.lock();
         return mParticleSystem;
@@ -392,6 +1268,7 @@ public class Renderer extends Observable implements GLSurfaceView.Renderer {
     /**
      * Release the world after thread-safe operations.
      */
+    @Override
     public void releaseParticleSystem() {
         mWorldLock.unlock();
     }
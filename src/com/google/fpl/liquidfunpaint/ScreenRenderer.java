@@ -17,6 +17,7 @@
 package com.google.fpl.liquidfunpaint;
 
 import com.google.fpl.liquidfunpaint.shader.Material;
+import com.google.fpl.liquidfunpaint.shader.RenderBackend;
 import com.google.fpl.liquidfunpaint.shader.ShaderProgram;
 import com.google.fpl.liquidfunpaint.shader.Texture;
 import com.google.fpl.liquidfunpaint.util.RenderHelper;
@@ -75,14 +76,14 @@ public class ScreenRenderer {
                 "aTexCoord", RenderHelper.SCREEN_QUAD_VERTEX_BUFFER, 3);
 
         // Set per draw uniforms
-        GLES20.glUniformMatrix4fv(
+        RenderBackend.get().glUniformMatrix4fv(
                 mMaterial.getUniformLocation("uMvpTransform"), 1, false,
                 transformFromTexture, 0);
-        GLES20.glUniform1f(
+        RenderBackend.get().glUniform1f(
                 mMaterial.getUniformLocation("uAlphaThreshold"),
                 mAlphaThreshold);
 
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_FAN, 0, 4);
+        RenderBackend.get().glDrawArrays(GLES20.GL_TRIANGLE_FAN, 0, 4);
 
         mMaterial.endRender();
     }
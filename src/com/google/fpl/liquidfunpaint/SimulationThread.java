@@ -0,0 +1,101 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+package com.google.fpl.liquidfunpaint;
+
+import android.util.Log;
+
+/**
+ * Steps the LiquidFun world at a fixed rate, independently of the
+ * GLSurfaceView thread.
+ *
+ * Each tick calls Renderer.update(), which steps the world and hands the
+ * resulting particle state over to the ParticleRenderer. The render thread
+ * then only draws whatever state was last handed over, so a slow step does
+ * not drop frames, and a slow frame does not slow down the physics.
+ */
+public class SimulationThread extends Thread {
+    private static final String TAG = "SimulationThread";
+    private static final long NANOS_PER_MILLI = 1000000;
+    // If we fall behind by more than this many steps, we stop trying to
+    // catch up and reset the schedule instead.
+    private static final int MAX_LAG_STEPS = 5;
+
+    private final Renderer mRenderer;
+    private final float mTimeStep;
+    private final long mStepNanos;
+    private volatile boolean mRunning = true;
+
+    public SimulationThread(Renderer renderer, float timeStep) {
+        super(TAG);
+        mRenderer = renderer;
+        mTimeStep = timeStep;
+        mStepNanos = (long) (timeStep * 1000000000L);
+    }
+
+    @Override
+    public void run() {
+        long nextStepTime = System.nanoTime();
+        while (mRunning) {
+            mRenderer.update(mTimeStep);
+
+            if (mRenderer.isIdle()) {
+                // The canvas is at rest; sleep until there is input.
+                try {
+                    mRenderer.waitWhileIdle();
+                } catch (InterruptedException ex) {
+                    // We were interrupted by quit()
+                    continue;
+                }
+                nextStepTime = System.nanoTime();
+            }
+
+            // Schedule the next step on a fixed grid, so the simulation rate
+            // does not drift with the time it takes to step.
+            nextStepTime += mStepNanos;
+            long sleepNanos = nextStepTime - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    Thread.sleep(sleepNanos / NANOS_PER_MILLI,
+                                 (int) (sleepNanos % NANOS_PER_MILLI));
+                } catch (InterruptedException ex) {
+                    // We were interrupted by quit(); the loop condition
+                    // takes care of exiting.
+                }
+            } else if (-sleepNanos > MAX_LAG_STEPS * mStepNanos) {
+                Log.w(TAG, "Simulation is running behind; skipping ahead.");
+                nextStepTime = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Stops the thread and waits for the current step to finish.
+     */
+    public void quit() {
+        mRunning = false;
+        interrupt();
+        boolean joined = false;
+        while (!joined) {
+            try {
+                join();
+                joined = true;
+            } catch (InterruptedException ex) {
+                // Keep waiting; the world must not be touched mid-step.
+            }
+        }
+    }
+}
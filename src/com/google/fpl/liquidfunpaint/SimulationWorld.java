@@ -0,0 +1,210 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+package com.google.fpl.liquidfunpaint;
+
+import com.google.fpl.liquidfun.Body;
+import com.google.fpl.liquidfun.BodyDef;
+import com.google.fpl.liquidfun.Fixture;
+import com.google.fpl.liquidfun.ParticleSystem;
+import com.google.fpl.liquidfun.ParticleSystemDef;
+import com.google.fpl.liquidfun.PolygonShape;
+import com.google.fpl.liquidfun.World;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Creates and steps LiquidFun worlds the way LiquidFunPaint configures them.
+ * Shared by the Renderer and the HeadlessSimulation, so both simulate the
+ * exact same thing.
+ */
+public final class SimulationWorld {
+    // Parameters for world simulation
+    public static final float TIME_STEP = 1 / 60f; // 60 fps
+    public static final float PARTICLE_RADIUS = 0.06f;
+    public static final float PARTICLE_REPULSIVE_STRENGTH = 0.5f;
+    private static final int VELOCITY_ITERATIONS = 6;
+    private static final int POSITION_ITERATIONS = 2;
+    private static final int PARTICLE_ITERATIONS = 5;
+    private static final float BOUNDARY_THICKNESS = 20.0f;
+    // Smallest step that still lets LiquidFun remove destroyed particles
+    private static final float FLUSH_TIME_STEP = 1e-6f;
+
+    private SimulationWorld() {}
+
+    /** Create a new particle system; we only use one per world. */
+    public static ParticleSystem createParticleSystem(
+            World world, int maxParticleCount) {
+        ParticleSystemDef psDef = new ParticleSystemDef();
+        psDef.setRadius(PARTICLE_RADIUS);
+        psDef.setRepulsiveStrength(PARTICLE_REPULSIVE_STRENGTH);
+        ParticleSystem ps = world.createParticleSystem(psDef);
+        ps.setMaxParticleCount(maxParticleCount);
+        psDef.delete();
+        return ps;
+    }
+
+    /**
+     * Constructs boundaries around a width x height canvas, with its lower
+     * left corner at the origin.
+     * @return The static body holding the boundary fixtures
+     */
+    public static Body createBoundaries(
+            World world, float width, float height) {
+        return createBoundaries(world, width, height, true, true);
+    }
+
+    /**
+     * Constructs boundaries around a width x height canvas, optionally
+     * leaving the left or right side open.
+     * @return The static body holding the boundary fixtures
+     */
+    public static Body createBoundaries(
+            World world, float width, float height,
+            boolean closeLeft, boolean closeRight) {
+        BodyDef bodyDef = new BodyDef();
+        Body boundaryBody = world.createBody(bodyDef);
+        bodyDef.delete();
+        createBoundaryFixtures(
+                boundaryBody, width, height, closeLeft, closeRight);
+        return boundaryBody;
+    }
+
+    /**
+     * Moves the boundaries of a body made by createBoundaries() around a
+     * width x height canvas. Keeps the body, so anything referring to it
+     * stays valid; only its fixtures are replaced.
+     */
+    public static void resizeBoundaries(
+            Body boundaryBody, float width, float height,
+            boolean closeLeft, boolean closeRight) {
+        Fixture fixture = boundaryBody.getFixtureList();
+        while (fixture != null) {
+            Fixture next = fixture.getNext();
+            boundaryBody.destroyFixture(fixture);
+            fixture = next;
+        }
+        createBoundaryFixtures(
+                boundaryBody, width, height, closeLeft, closeRight);
+    }
+
+    private static void createBoundaryFixtures(
+            Body boundaryBody, float width, float height,
+            boolean closeLeft, boolean closeRight) {
+        PolygonShape boundaryPolygon = new PolygonShape();
+
+        // boundary definitions
+        // top
+        boundaryPolygon.setAsBox(
+                width,
+                BOUNDARY_THICKNESS,
+                width / 2,
+                height + BOUNDARY_THICKNESS,
+                0);
+        boundaryBody.createFixture(boundaryPolygon, 0.0f);
+        // bottom
+        boundaryPolygon.setAsBox(
+                width,
+                BOUNDARY_THICKNESS,
+                width / 2,
+                -BOUNDARY_THICKNESS,
+                0);
+        boundaryBody.createFixture(boundaryPolygon, 0.0f);
+        // left
+        if (closeLeft) {
+            boundaryPolygon.setAsBox(
+                    BOUNDARY_THICKNESS,
+                    height,
+                    -BOUNDARY_THICKNESS,
+                    height / 2,
+                    0);
+            boundaryBody.createFixture(boundaryPolygon, 0.0f);
+        }
+        // right
+        if (closeRight) {
+            boundaryPolygon.setAsBox(
+                    BOUNDARY_THICKNESS,
+                    height,
+                    width + BOUNDARY_THICKNESS,
+                    height / 2,
+                    0);
+            boundaryBody.createFixture(boundaryPolygon, 0.0f);
+        }
+
+        // Clean up native objects
+        boundaryPolygon.delete();
+    }
+
+    /**
+     * Stretches the particles of a fromWidth x fromHeight canvas to fill a
+     * toWidth x toHeight one, e.g. when the screen rotates. Each axis is
+     * scaled separately, so shapes get stretched but everything drawn stays
+     * where it was relative to the edges, and scaling back undoes it.
+     * Velocities are kept.
+     */
+    public static void remapParticles(
+            ParticleSystem ps, float fromWidth, float fromHeight,
+            float toWidth, float toHeight) {
+        int count = ps.getParticleCount();
+        if (count == 0 ||
+            (fromWidth == toWidth && fromHeight == toHeight)) {
+            return;
+        }
+        float scaleX = toWidth / fromWidth;
+        float scaleY = toHeight / fromHeight;
+        // Particles sitting against a wall must stay clear of it, or they
+        // get pushed out with a large velocity on the next step.
+        float radius = ps.getRadius();
+        float maxX = toWidth - radius;
+        float maxY = toHeight - radius;
+
+        // The bindings can read all positions at once, but only write them
+        // one by one.
+        ByteBuffer positions = ByteBuffer.allocateDirect(2 * 4 * count)
+                .order(ByteOrder.nativeOrder());
+        ps.copyPositionBuffer(0, count, positions);
+        for (int i = 0; i < count; ++i) {
+            float x = positions.getFloat(8 * i) * scaleX;
+            float y = positions.getFloat(8 * i + 4) * scaleY;
+            ps.setParticlePosition(
+                    i, Math.max(radius, Math.min(maxX, x)),
+                    Math.max(radius, Math.min(maxY, y)));
+        }
+    }
+
+    /**
+     * Removes the particles marked by destroyParticle() and friends right
+     * away, instead of at the next step, so their slots can be reused
+     * before then. Everything else stays where it is: the particle system
+     * is paused for a step too short to move the static boundary.
+     */
+    public static void removeDestroyedParticles(
+            World world, ParticleSystem ps) {
+        boolean paused = ps.getPaused();
+        ps.setPaused(true);
+        // LiquidFun skips the whole step for a time step of 0.
+        world.step(FLUSH_TIME_STEP, 1, 1, 1);
+        ps.setPaused(paused);
+    }
+
+    /** Steps the world with LiquidFunPaint's iteration counts. */
+    public static void step(World world, float dt) {
+        world.step(
+                dt, VELOCITY_ITERATIONS,
+                POSITION_ITERATIONS, PARTICLE_ITERATIONS);
+    }
+}
@@ -0,0 +1,719 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package com.google.fpl.liquidfunpaint;
+
+import com.google.fpl.liquidfunpaint.util.FileHelper;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Draws the look of ParticleRenderer on the CPU, for thumbnails, golden
+ * images and previews where there is no GPU.
+ *
+ * It runs the same three steps on the same ParticleSnapshots, with the
+ * parameters from the same particlerenderer.json:
+ * 1) Splats the particles of each pass as point sprites into a
+ *    ParticleRenderer.FB_SIZE square buffer
+ * 2) Blurs them with the 5 tap gaussian of blur.glslf, through a
+ *    BlurRenderer.FB_SIZE square buffer
+ * 3) Applies the alpha threshold of screen.glslf, composited over the paper.
+ * Like ParticleRenderer, it draws the walls, the water and the other
+ * particles as three layers, composited in that order.
+ * Texture filtering, clamping and blending follow what the GL path sets up,
+ * so the images match it up to the 8 bit rounding of its framebuffers.
+ *
+ * Every step is split into bands of rows, which a fixed pool of threads
+ * works on in parallel. Each band draws all particles in order, so the
+ * result does not depend on the number of threads.
+ *
+ * render() and readPixels() must be called from one thread at a time. The
+ * snapshot must not change during render(): when drawing outside the
+ * GLSurfaceView thread, capture a ParticleSnapshot of your own.
+ */
+public class SoftwareParticleRenderer implements FrameCapture.PixelSource {
+    private static final String TAG = "SwPtlRenderer";
+
+    private static final int FB_SIZE = ParticleRenderer.FB_SIZE;
+    private static final int BLUR_SIZE = BlurRenderer.FB_SIZE;
+    // Same weights as blur.glslf. Sigma: 2.3, kernel size: 5.
+    private static final float[] BLUR_WEIGHTS = {
+        0.164074f, 0.216901f, 0.23805f, 0.216901f, 0.164074f
+    };
+    private static final int BLUR_RADIUS = BLUR_WEIGHTS.length / 2;
+
+    // Steps done by the worker threads, one band of rows at a time
+    private static final int STEP_SPLAT = 0;
+    private static final int STEP_BLUR_X = 1;
+    private static final int STEP_BLUR_Y = 2;
+    private static final int STEP_COMPOSITE = 3;
+    private static final int STEP_COUNT = 4;
+
+    /** A texture in RGBA floats with premultiplied alpha, as GL sees it. */
+    private static class Image {
+        final int mWidth;
+        final int mHeight;
+        final float[] mRgba;
+
+        Image(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+            mRgba = new float[4 * width * height];
+        }
+
+        /**
+         * Keeps the rows in bitmap order: textures loaded from assets are
+         * not flipped, so their first row is at texture coordinate 0.
+         */
+        static Image fromBitmap(Bitmap bitmap) {
+            int width = bitmap.getWidth();
+            int height = bitmap.getHeight();
+            int[] pixels = new int[width * height];
+            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+
+            // Android bitmaps are uploaded with premultiplied alpha
+            Image image = new Image(width, height);
+            for (int i = 0; i < pixels.length; ++i) {
+                int pixel = pixels[i];
+                float alpha = (pixel >>> 24) / 255f;
+                image.mRgba[4 * i] = ((pixel >> 16) & 0xff) / 255f * alpha;
+                image.mRgba[4 * i + 1] = ((pixel >> 8) & 0xff) / 255f * alpha;
+                image.mRgba[4 * i + 2] = (pixel & 0xff) / 255f * alpha;
+                image.mRgba[4 * i + 3] = alpha;
+            }
+            return image;
+        }
+    }
+
+    /** One of the layers of ParticleRenderer, and its buffers. */
+    private static class Layer {
+        final int mPass;
+        Image mSprite = new Image(1, 1);
+        float mParticleSizeScale = 1;
+        float mAlphaThreshold = 0;
+        // Point size in pixels of the splat buffer, for the current world
+        float mPointSize;
+
+        final float[] mSplat = new float[4 * FB_SIZE * FB_SIZE];
+        final float[] mBlurX = new float[4 * BLUR_SIZE * BLUR_SIZE];
+        final float[] mBlurred = new float[4 * FB_SIZE * FB_SIZE];
+
+        Layer(int pass) {
+            mPass = pass;
+        }
+    }
+
+    /** Runs one step on one band of rows. */
+    private class BandTask implements Callable<Void> {
+        private final int mStep;
+        private final int mBand;
+        // Blurred row of the blur buffer, before upsampling
+        private final float[] mLine = new float[4 * BLUR_SIZE];
+
+        BandTask(int step, int band) {
+            mStep = step;
+            mBand = band;
+        }
+
+        @Override
+        public Void call() {
+            switch (mStep) {
+                case STEP_SPLAT:
+                    splat(bandStart(FB_SIZE, mBand),
+                          bandStart(FB_SIZE, mBand + 1));
+                    break;
+                case STEP_BLUR_X:
+                    blurX(bandStart(BLUR_SIZE, mBand),
+                          bandStart(BLUR_SIZE, mBand + 1));
+                    break;
+                case STEP_BLUR_Y:
+                    blurY(bandStart(FB_SIZE, mBand),
+                          bandStart(FB_SIZE, mBand + 1), mLine);
+                    break;
+                case STEP_COMPOSITE:
+                    composite(bandStart(mOutputHeight, mBand),
+                              bandStart(mOutputHeight, mBand + 1));
+                    break;
+                default:
+                    break;
+            }
+            return null;
+        }
+    }
+
+    private final ExecutorService mExecutor;
+    private final int mBandCount;
+    private final List<List<BandTask>> mTasks =
+            new ArrayList<List<BandTask>>(STEP_COUNT);
+
+    private final Layer mWallLayer = new Layer(ParticleDrawList.WALL_PASS);
+    private final Layer mWaterLayer = new Layer(ParticleDrawList.WATER_PASS);
+    private final Layer mMovingLayer =
+            new Layer(ParticleDrawList.MOVING_PASS);
+    // In the order ParticleRenderer composites them to screen
+    private final Layer[] mLayers = { mWallLayer, mWaterLayer, mMovingLayer };
+    // Parameters for adding in particle weight, as in WaterParticleMaterial
+    private final float[] mWeightParams = { 1, 0, 1 };
+    private Image mPaper = new Image(1, 1);
+
+    private float mWorldWidth = Renderer.WORLD_HEIGHT;
+    private float mWorldHeight = Renderer.WORLD_HEIGHT;
+
+    // The particles of the snapshot being drawn, for the splat step
+    private final ParticleDrawList mDrawList = new ParticleDrawList();
+    // The vertices of the snapshot, or mVertexData when interpolating
+    private ByteBuffer mFrameVertices = null;
+    private ByteBuffer mVertexData = null;
+    // Lower left corner of each point sprite, in splat buffer pixels
+    private float[] mSpriteLeft = new float[0];
+    private float[] mSpriteBottom = new float[0];
+    // Vertex color of each particle, in RGBA floats
+    private float[] mColor = new float[0];
+
+    // Set for the composite step
+    private int mOutputWidth;
+    private int mOutputHeight;
+    private ByteBuffer mOutput;
+
+    /**
+     * @param threadCount Number of worker threads. Pass
+     *     Runtime.getRuntime().availableProcessors() to use every core.
+     */
+    public SoftwareParticleRenderer(Context context, int threadCount) {
+        mBandCount = Math.max(1, threadCount);
+        mExecutor = Executors.newFixedThreadPool(
+                mBandCount, new ThreadFactory() {
+                    private int mCount = 0;
+
+                    @Override
+                    public synchronized Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, TAG + mCount++);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        for (int step = 0; step < STEP_COUNT; ++step) {
+            List<BandTask> tasks = new ArrayList<BandTask>(mBandCount);
+            for (int band = 0; band < mBandCount; ++band) {
+                tasks.add(new BandTask(step, band));
+            }
+            mTasks.add(tasks);
+        }
+
+        loadMaterials(context);
+        setWorldSize(mWorldWidth, mWorldHeight);
+    }
+
+    /**
+     * Reads the parameters and textures ParticleRenderer reads, from the
+     * same json file.
+     */
+    private void loadMaterials(Context context) {
+        String materialFile = FileHelper.loadAsset(
+                context.getAssets(), ParticleRenderer.JSON_FILE);
+        try {
+            JSONObject json = new JSONObject(materialFile);
+
+            Layer water = mWaterLayer;
+            JSONObject waterParticle = json.getJSONObject(
+                    ParticleRenderer.WATER_PARTICLE_MATERIAL_NAME);
+            loadSprite(context, water, waterParticle);
+            mWeightParams[0] =
+                    (float) waterParticle.optDouble("weightScale", 1.0);
+            mWeightParams[1] =
+                    (float) waterParticle.optDouble("weightRangeShift", 0.0);
+            mWeightParams[2] =
+                    (float) waterParticle.optDouble("weightCutoff", 1.0);
+            water.mAlphaThreshold = (float) json.getJSONObject(
+                    ParticleRenderer.WATER_SCREEN_MATERIAL_NAME)
+                    .optDouble("alphaThreshold", 0.0);
+
+            // Walls are drawn like the other non-water particles
+            JSONObject otherParticle = json.getJSONObject(
+                    ParticleRenderer.OTHER_PARTICLE_MATERIAL_NAME);
+            float otherThreshold = (float) json.getJSONObject(
+                    ParticleRenderer.OTHER_SCREEN_MATERIAL_NAME)
+                    .optDouble("alphaThreshold", 0.0);
+            for (Layer other : new Layer[] { mWallLayer, mMovingLayer }) {
+                loadSprite(context, other, otherParticle);
+                other.mAlphaThreshold = otherThreshold;
+            }
+
+            Image paper = loadImage(context, json
+                    .getJSONObject(ParticleRenderer.PAPER_MATERIAL_NAME)
+                    .getString(ParticleRenderer.DIFFUSE_TEXTURE_NAME));
+            if (paper != null) {
+                mPaper = paper;
+            }
+        } catch (JSONException ex) {
+            Log.e(TAG, "Cannot parse" + ParticleRenderer.JSON_FILE + "\n" +
+                  ex.getMessage());
+        }
+    }
+
+    private static void loadSprite(
+            Context context, Layer layer, JSONObject json)
+            throws JSONException {
+        layer.mParticleSizeScale =
+                (float) json.optDouble("particleSizeScale", 1.0);
+        Image sprite = loadImage(
+                context, json.getString(ParticleRenderer.DIFFUSE_TEXTURE_NAME));
+        if (sprite != null) {
+            layer.mSprite = sprite;
+        }
+    }
+
+    private static Image loadImage(Context context, String assetName) {
+        Bitmap bitmap = FileHelper.loadBitmap(context.getAssets(), assetName);
+        if (bitmap == null) {
+            Log.e(TAG, "Cannot load " + assetName);
+            return null;
+        }
+        Image image = Image.fromBitmap(bitmap);
+        bitmap.recycle();
+        return image;
+    }
+
+    /**
+     * Sets the size of the world shown, as Renderer.onSurfaceChanged() does
+     * for the GL path. The images have the aspect ratio of the world.
+     */
+    public void setWorldSize(float worldWidth, float worldHeight) {
+        mWorldWidth = worldWidth;
+        mWorldHeight = worldHeight;
+        // Same point size as the particle materials
+        for (Layer layer : mLayers) {
+            layer.mPointSize = Math.max(
+                    1.0f, layer.mParticleSizeScale * FB_SIZE *
+                    (Renderer.PARTICLE_RADIUS / worldHeight));
+        }
+    }
+
+    /**
+     * Splats and blurs the particles of snapshot. Call readPixels() to
+     * composite them at any size.
+     * @param interpolation How far to blend the positions from the previous
+     *     step (0) to the latest step (1), as ParticleRenderer does.
+     * @throws IllegalStateException If interrupted while rendering
+     */
+    public void render(ParticleSnapshot snapshot, float interpolation) {
+        prepareParticles(snapshot, interpolation);
+        runStep(STEP_SPLAT);
+        runStep(STEP_BLUR_X);
+        runStep(STEP_BLUR_Y);
+    }
+
+    /**
+     * Composites the particles drawn by the last render() over the paper,
+     * scaled to width x height.
+     */
+    @Override
+    public void readPixels(int width, int height, ByteBuffer out) {
+        mOutputWidth = width;
+        mOutputHeight = height;
+        mOutput = out;
+        runStep(STEP_COMPOSITE);
+        mOutput = null;
+    }
+
+    /** Stops the worker threads. The renderer cannot be used afterwards. */
+    public void release() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Runs a step on all bands, and waits for them. Submitting the tasks
+     * publishes the fields they read; waiting publishes what they wrote.
+     * @throws IllegalStateException If we were interrupted, leaving the
+     *     image unfinished, or a band failed
+     */
+    private void runStep(int step) {
+        try {
+            List<Future<Void>> results = mExecutor.invokeAll(mTasks.get(step));
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while rendering", ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Failed to render", ex.getCause());
+        }
+    }
+
+    /** Returns the first row of band, out of rowCount rows. */
+    private int bandStart(int rowCount, int band) {
+        return rowCount * band / mBandCount;
+    }
+
+    /**
+     * Works out where each particle is splatted, and with which color, in
+     * the same way as the vertex shaders of the particle materials.
+     */
+    private void prepareParticles(
+            ParticleSnapshot snapshot, float interpolation) {
+        int count = snapshot.getParticleCount();
+        if (mSpriteLeft.length < count) {
+            mSpriteLeft = new float[count];
+            mSpriteBottom = new float[count];
+            mColor = new float[4 * count];
+        }
+        if (interpolation < 1 && snapshot.canInterpolate()) {
+            if (mVertexData == null || mVertexData.capacity() <
+                    ParticleSnapshot.VERTEX_SIZE * count) {
+                mVertexData = ByteBuffer
+                        .allocateDirect(ParticleSnapshot.VERTEX_SIZE * count)
+                        .order(ByteOrder.nativeOrder());
+            }
+            snapshot.writeInterpolatedVertices(interpolation, mVertexData);
+            mFrameVertices = mVertexData;
+        } else {
+            mFrameVertices = snapshot.getVertexBuffer();
+        }
+        mDrawList.build(snapshot);
+
+        // The world is fit to the width of the splat buffer, and centered
+        // vertically; see ParticleRenderer.onSurfaceChanged().
+        float ratio = mWorldHeight / mWorldWidth;
+        float scaleX = FB_SIZE / mWorldWidth;
+        float scaleY = FB_SIZE * ratio / mWorldHeight;
+        float offsetY = FB_SIZE * (1 - ratio) / 2;
+
+        for (Layer layer : mLayers) {
+            float halfSize = layer.mPointSize / 2;
+            boolean weighted = (layer.mPass == ParticleDrawList.WATER_PASS);
+            for (int draw = 0; draw < mDrawList.getDrawCount(layer.mPass);
+                    ++draw) {
+                int first = mDrawList.getFirst(layer.mPass, draw);
+                int end = first + mDrawList.getCount(layer.mPass, draw);
+                for (int i = first; i < end; ++i) {
+                    prepareParticle(
+                            i, scaleX, scaleY, offsetY, halfSize, weighted);
+                }
+            }
+        }
+    }
+
+    private void prepareParticle(
+            int i, float scaleX, float scaleY, float offsetY, float halfSize,
+            boolean weighted) {
+        int vertex = ParticleSnapshot.VERTEX_SIZE * i;
+        float x = mFrameVertices.getFloat(
+                vertex + ParticleSnapshot.VERTEX_POSITION_OFFSET);
+        float y = mFrameVertices.getFloat(
+                vertex + ParticleSnapshot.VERTEX_POSITION_OFFSET + 4);
+        mSpriteLeft[i] = x * scaleX - halfSize;
+        mSpriteBottom[i] = y * scaleY + offsetY - halfSize;
+
+        int color = vertex + ParticleSnapshot.VERTEX_COLOR_OFFSET;
+        for (int c = 0; c < 4; ++c) {
+            mColor[4 * i + c] = (mFrameVertices.get(color + c) & 0xff) / 255f;
+        }
+        if (weighted) {
+            // As in water_particle.glslv
+            float weight = mFrameVertices.getFloat(
+                    vertex + ParticleSnapshot.VERTEX_WEIGHT_OFFSET);
+            weight = weight * weight * mWeightParams[0] + mWeightParams[1];
+            if (weight > mWeightParams[2]) {
+                for (int c = 0; c < 3; ++c) {
+                    mColor[4 * i + c] /= weight;
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws rows [rowStart, rowEnd) of the splat buffer of all layers, with
+     * the ONE, ONE_MINUS_SRC_ALPHA blending of the particle materials.
+     */
+    private void splat(int rowStart, int rowEnd) {
+        for (Layer layer : mLayers) {
+            // Cleared to the clear color of ParticleRenderer's surfaces
+            float[] dst = layer.mSplat;
+            for (int i = 4 * FB_SIZE * rowStart; i < 4 * FB_SIZE * rowEnd;
+                    i += 4) {
+                dst[i] = 1;
+                dst[i + 1] = 1;
+                dst[i + 2] = 1;
+                dst[i + 3] = 0;
+            }
+
+            for (int draw = 0; draw < mDrawList.getDrawCount(layer.mPass);
+                    ++draw) {
+                int first = mDrawList.getFirst(layer.mPass, draw);
+                int end = first + mDrawList.getCount(layer.mPass, draw);
+                for (int i = first; i < end; ++i) {
+                    splatParticle(layer, i, rowStart, rowEnd);
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws one point sprite, covering the pixels whose centers are inside
+     * it. Texture coordinates follow gl_PointCoord, which starts at the top
+     * of the sprite; sampling is nearest, as set up by Texture.
+     */
+    private void splatParticle(Layer layer, int i, int rowStart, int rowEnd) {
+        float size = layer.mPointSize;
+        float left = mSpriteLeft[i];
+        float bottom = mSpriteBottom[i];
+        int x0 = Math.max(0, (int) Math.ceil(left - 0.5f));
+        int x1 = Math.min(FB_SIZE, (int) Math.ceil(left + size - 0.5f));
+        int y0 = Math.max(rowStart, (int) Math.ceil(bottom - 0.5f));
+        int y1 = Math.min(rowEnd, (int) Math.ceil(bottom + size - 0.5f));
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+
+        Image sprite = layer.mSprite;
+        float[] texels = sprite.mRgba;
+        float[] dst = layer.mSplat;
+        float r = mColor[4 * i];
+        float g = mColor[4 * i + 1];
+        float b = mColor[4 * i + 2];
+        float a = mColor[4 * i + 3];
+        for (int y = y0; y < y1; ++y) {
+            float t = 1 - (y + 0.5f - bottom) / size;
+            int row = Math.min((int) (t * sprite.mHeight), sprite.mHeight - 1);
+            for (int x = x0; x < x1; ++x) {
+                float s = (x + 0.5f - left) / size;
+                int column =
+                        Math.min((int) (s * sprite.mWidth), sprite.mWidth - 1);
+                int texel = 4 * (row * sprite.mWidth + column);
+                float srcR = texels[texel] * r;
+                float srcG = texels[texel + 1] * g;
+                float srcB = texels[texel + 2] * b;
+                float srcA = texels[texel + 3] * a;
+
+                int pixel = 4 * (y * FB_SIZE + x);
+                float keep = 1 - srcA;
+                dst[pixel] = srcR + dst[pixel] * keep;
+                dst[pixel + 1] = srcG + dst[pixel + 1] * keep;
+                dst[pixel + 2] = srcB + dst[pixel + 2] * keep;
+                dst[pixel + 3] = srcA + dst[pixel + 3] * keep;
+            }
+        }
+    }
+
+    /**
+     * Blurs rows [rowStart, rowEnd) of the blur buffer horizontally, as
+     * x_blur.glslv does. Its texture coordinates land between pixels of the
+     * splat buffer, so linear filtering averages 2x2 of them per tap.
+     */
+    private void blurX(int rowStart, int rowEnd) {
+        for (Layer layer : mLayers) {
+            float[] src = layer.mSplat;
+            float[] dst = layer.mBlurX;
+            for (int y = rowStart; y < rowEnd; ++y) {
+                int row0 = 4 * FB_SIZE * (2 * y);
+                int row1 = row0 + 4 * FB_SIZE;
+                for (int x = 0; x < BLUR_SIZE; ++x) {
+                    int pixel = 4 * (y * BLUR_SIZE + x);
+                    for (int c = 0; c < 4; ++c) {
+                        dst[pixel + c] = 0;
+                    }
+                    for (int k = 0; k < BLUR_WEIGHTS.length; ++k) {
+                        int tap = x + k - BLUR_RADIUS;
+                        int column0 = 4 * clamp(2 * tap, FB_SIZE);
+                        int column1 = 4 * clamp(2 * tap + 1, FB_SIZE);
+                        float weight = BLUR_WEIGHTS[k] * 0.25f;
+                        for (int c = 0; c < 4; ++c) {
+                            dst[pixel + c] += weight *
+                                    (src[row0 + column0 + c] +
+                                     src[row0 + column1 + c] +
+                                     src[row1 + column0 + c] +
+                                     src[row1 + column1 + c]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Blurs vertically into rows [rowStart, rowEnd) of the splat buffer
+     * size, as y_blur.glslv does: every tap filters the blur buffer
+     * linearly, so we blur a row of it first and then upsample that row.
+     * @param line Scratch space for one row of the blur buffer
+     */
+    private void blurY(int rowStart, int rowEnd, float[] line) {
+        for (Layer layer : mLayers) {
+            float[] src = layer.mBlurX;
+            float[] dst = layer.mBlurred;
+            for (int y = rowStart; y < rowEnd; ++y) {
+                // Position of this row among the rows of the blur buffer
+                float v = (y + 0.5f) * BLUR_SIZE / FB_SIZE - 0.5f;
+                int v0 = (int) Math.floor(v);
+                float fraction = v - v0;
+
+                for (int i = 0; i < line.length; ++i) {
+                    line[i] = 0;
+                }
+                for (int k = 0; k < BLUR_WEIGHTS.length; ++k) {
+                    int tap = v0 + k - BLUR_RADIUS;
+                    int row0 = 4 * BLUR_SIZE * clamp(tap, BLUR_SIZE);
+                    int row1 = 4 * BLUR_SIZE * clamp(tap + 1, BLUR_SIZE);
+                    float weight0 = BLUR_WEIGHTS[k] * (1 - fraction);
+                    float weight1 = BLUR_WEIGHTS[k] * fraction;
+                    for (int i = 0; i < line.length; ++i) {
+                        line[i] += weight0 * src[row0 + i] +
+                                   weight1 * src[row1 + i];
+                    }
+                }
+
+                for (int x = 0; x < FB_SIZE; ++x) {
+                    sampleRow(line, BLUR_SIZE,
+                              (x + 0.5f) * BLUR_SIZE / FB_SIZE - 0.5f,
+                              dst, 4 * (y * FB_SIZE + x));
+                }
+            }
+        }
+    }
+
+    /**
+     * Composites rows [rowStart, rowEnd) of the output: the paper as
+     * TextureRenderer draws it over the white clear color, then the
+     * layers in order, as ScreenRenderer draws them.
+     */
+    private void composite(int rowStart, int rowEnd) {
+        int width = mOutputWidth;
+        int height = mOutputHeight;
+        ByteBuffer out = mOutput;
+        float ratio = mWorldHeight / mWorldWidth;
+        float[] color = new float[4];
+        float[] sample = new float[4];
+        for (int y = rowStart; y < rowEnd; ++y) {
+            float screenV = (y + 0.5f) / height;
+            // The layers cover the world, centered vertically
+            float layerV = ((2 * screenV - 1) * ratio + 1) / 2;
+            boolean covered = (layerV >= 0 && layerV <= 1);
+            int paperRow = Math.min(
+                    (int) (screenV * mPaper.mHeight), mPaper.mHeight - 1);
+
+            for (int x = 0; x < width; ++x) {
+                float screenU = (x + 0.5f) / width;
+
+                // Paper, blended with ONE, ONE_MINUS_SRC_ALPHA
+                int paperColumn = Math.min(
+                        (int) (screenU * mPaper.mWidth), mPaper.mWidth - 1);
+                int texel = 4 * (paperRow * mPaper.mWidth + paperColumn);
+                float keep = 1 - mPaper.mRgba[texel + 3];
+                for (int c = 0; c < 4; ++c) {
+                    color[c] = mPaper.mRgba[texel + c] + keep;
+                }
+
+                if (covered) {
+                    for (Layer layer : mLayers) {
+                        sampleLinear(layer.mBlurred, FB_SIZE, screenU, layerV,
+                                     sample);
+                        compositeLayer(sample, layer.mAlphaThreshold, color);
+                    }
+                }
+
+                int pixel = 4 * (y * width + x);
+                for (int c = 0; c < 4; ++c) {
+                    out.put(pixel + c, toByte(color[c]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the alpha threshold of screen.glslf to sample, and blends it
+     * into color with SRC_ALPHA, ONE_MINUS_SRC_ALPHA.
+     */
+    private static void compositeLayer(
+            float[] sample, float alphaThreshold, float[] color) {
+        float alpha = (sample[3] > alphaThreshold) ? sample[3] : 0;
+        if (alpha == 0) {
+            return;
+        }
+        float keep = 1 - alpha;
+        for (int c = 0; c < 3; ++c) {
+            color[c] = sample[c] * alpha + color[c] * keep;
+        }
+        color[3] = alpha * alpha + color[3] * keep;
+    }
+
+    /**
+     * Samples a square RGBA image of size pixels at texture coordinates
+     * (u, v), with linear filtering and clamping to the edges.
+     */
+    private static void sampleLinear(
+            float[] image, int size, float u, float v, float[] out) {
+        float x = u * size - 0.5f;
+        int x0 = (int) Math.floor(x);
+        float fractionX = x - x0;
+        int column0 = 4 * clamp(x0, size);
+        int column1 = 4 * clamp(x0 + 1, size);
+
+        float y = v * size - 0.5f;
+        int y0 = (int) Math.floor(y);
+        float fractionY = y - y0;
+        int row0 = 4 * size * clamp(y0, size);
+        int row1 = 4 * size * clamp(y0 + 1, size);
+
+        for (int c = 0; c < 4; ++c) {
+            float bottom = image[row0 + column0 + c] * (1 - fractionX) +
+                           image[row0 + column1 + c] * fractionX;
+            float top = image[row1 + column0 + c] * (1 - fractionX) +
+                        image[row1 + column1 + c] * fractionX;
+            out[c] = bottom * (1 - fractionY) + top * fractionY;
+        }
+    }
+
+    /**
+     * Samples a row of RGBA pixels at pixel coordinate x, with linear
+     * filtering and clamping to the edges, into out at offset.
+     */
+    private static void sampleRow(
+            float[] row, int size, float x, float[] out, int offset) {
+        int x0 = (int) Math.floor(x);
+        float fraction = x - x0;
+        int column0 = 4 * clamp(x0, size);
+        int column1 = 4 * clamp(x0 + 1, size);
+        for (int c = 0; c < 4; ++c) {
+            out[offset + c] = row[column0 + c] * (1 - fraction) +
+                              row[column1 + c] * fraction;
+        }
+    }
+
+    private static int clamp(int i, int size) {
+        return Math.max(0, Math.min(size - 1, i));
+    }
+
+    private static byte toByte(float value) {
+        return (byte) Math.round(Math.max(0, Math.min(1, value)) * 255);
+    }
+}
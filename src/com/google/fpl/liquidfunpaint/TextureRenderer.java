@@ -18,6 +18,7 @@
 package com.google.fpl.liquidfunpaint;
 
 import com.google.fpl.liquidfunpaint.shader.Material;
+import com.google.fpl.liquidfunpaint.shader.RenderBackend;
 import com.google.fpl.liquidfunpaint.shader.ShaderProgram;
 import com.google.fpl.liquidfunpaint.shader.Texture;
 
@@ -35,6 +36,8 @@ import java.util.Arrays;
 public class TextureRenderer {
     private ShaderProgram mTextureShader;
     private Material mTextureMaterial;
+    // Same shader, without blending, to copy textures as they are
+    private Material mCopyMaterial;
 
     // Temporary variables for drawing purposes
     private float[] uvTransform = new float[16];
@@ -77,6 +80,24 @@ public class TextureRenderer {
         mTextureMaterial.setBlendFunc(
                 Material.BlendFactor.ONE,
                 Material.BlendFactor.ONE_MINUS_SRC_ALPHA);
+
+        mCopyMaterial = new Material(mTextureShader);
+        mCopyMaterial.addAttribute(
+                "aPosition", 2, Material.AttrComponentType.FLOAT, 4, false, 0);
+        mCopyMaterial.addAttribute(
+                "aTexCoord", 2, Material.AttrComponentType.FLOAT, 4, false, 0);
+    }
+
+    /**
+     * Copy a texture over the whole viewport, replacing what was there,
+     * alpha included.
+     *
+     * @param texture A texture to copy
+     */
+    public void copyTexture(Texture texture) {
+        drawTexture(
+                mCopyMaterial, texture, Renderer.MAT4X4_IDENTITY,
+                Renderer.MAT4X4_IDENTITY, -1, -1, 1, 1, 1.0f, false);
     }
 
     /**
@@ -116,6 +137,15 @@ public class TextureRenderer {
             Texture texture, float inTransform[], float inUvTransform[],
             float left, float bottom, float right, float top,
             float alphaScale, boolean noScale) {
+        drawTexture(
+                mTextureMaterial, texture, inTransform, inUvTransform,
+                left, bottom, right, top, alphaScale, noScale);
+    }
+
+    private void drawTexture(
+            Material material, Texture texture, float inTransform[],
+            float inUvTransform[], float left, float bottom, float right,
+            float top, float alphaScale, boolean noScale) {
         setRect(left, bottom, right, top);
 
         uvTransform = Arrays.copyOf(inUvTransform, uvTransform.length);
@@ -139,34 +169,35 @@ public class TextureRenderer {
         mTexCoordBuffer.rewind();
         mPositionBuffer.rewind();
 
-        mTextureMaterial.beginRender();
+        material.beginRender();
 
         // We set our own texture here to be bound
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture.getTextureId());
+        RenderBackend.get().glActiveTexture(GLES20.GL_TEXTURE0);
+        RenderBackend.get().glBindTexture(
+                GLES20.GL_TEXTURE_2D, texture.getTextureId());
 
         // Set attribute arrays
-        mTextureMaterial.setVertexAttributeBuffer(
+        material.setVertexAttributeBuffer(
                 "aPosition", mPositionBuffer, 0);
-        mTextureMaterial.setVertexAttributeBuffer(
+        material.setVertexAttributeBuffer(
                 "aTexCoord", mTexCoordBuffer, 0);
 
         // Set uniforms
         // Set texture uniform explicitly here because it is passed in
-        GLES20.glUniform1i(
-                mTextureMaterial.getUniformLocation("uDiffuseTexture"), 0);
-        GLES20.glUniformMatrix4fv(
-                mTextureMaterial.getUniformLocation("uMvpTransform"),
+        RenderBackend.get().glUniform1i(
+                material.getUniformLocation("uDiffuseTexture"), 0);
+        RenderBackend.get().glUniformMatrix4fv(
+                material.getUniformLocation("uMvpTransform"),
                 1, false, inTransform, 0);
-        GLES20.glUniformMatrix4fv(
-                mTextureMaterial.getUniformLocation("uUvTransform"),
+        RenderBackend.get().glUniformMatrix4fv(
+                material.getUniformLocation("uUvTransform"),
                 1, false, uvTransform, 0);
-        GLES20.glUniform1f(
-              mTextureMaterial.getUniformLocation("uAlphaScale"), alphaScale);
+        RenderBackend.get().glUniform1f(
+              material.getUniformLocation("uAlphaScale"), alphaScale);
 
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        RenderBackend.get().glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 
-        mTextureMaterial.endRender();
+        material.endRender();
     }
 
     private void setRect(float left, float bottom, float right, float top) {
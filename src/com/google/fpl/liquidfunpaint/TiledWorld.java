@@ -0,0 +1,698 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+package com.google.fpl.liquidfunpaint;
+
+import com.google.fpl.liquidfun.Body;
+import com.google.fpl.liquidfun.ParticleColor;
+import com.google.fpl.liquidfun.ParticleFlag;
+import com.google.fpl.liquidfun.ParticleGroup;
+import com.google.fpl.liquidfun.ParticleGroupDef;
+import com.google.fpl.liquidfun.ParticleGroupFlag;
+import com.google.fpl.liquidfun.ParticleSystem;
+import com.google.fpl.liquidfun.World;
+import com.google.fpl.liquidfunpaint.FrameTimings.TimingPhase;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.WeakHashMap;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * The canvas split into vertical strips, each with its own World and
+ * ParticleSystem, stepped in parallel.
+ *
+ * Each step has three stages:
+ * 1. Ghosts: particles within GHOST_WIDTH of a seam are mirrored into the
+ *    neighboring strip as wall particles, so fluid pushes against fluid
+ *    across the seam instead of flowing into empty space.
+ * 2. All strips step at once, one per thread.
+ * 3. Handoff: particles that left their strip are destroyed there and
+ *    recreated, with their velocity, color and flags, in the neighbor.
+ *
+ * Stages 1 and 3 run on the calling thread, between the parallel steps, so
+ * no strip is ever touched by two threads at once. Handed-off particles are
+ * created in one group per strip and flag combination, not one by one.
+ * ForkJoinPool is not available on our minimum API level, so the strips are
+ * stepped by dedicated worker threads that meet at CyclicBarriers; this
+ * allocates nothing per step.
+ *
+ * Particles of rigid groups are never handed off, since that would tear
+ * the body apart; they stay in the strip they were created in.
+ *
+ * The whole TiledWorld is guarded by the Renderer's world lock.
+ */
+public class TiledWorld {
+    private static final String TAG = "TiledWorld";
+    // Width of the ghost rows at each seam, in particle diameters
+    private static final float GHOST_WIDTH =
+            2 * 2 * SimulationWorld.PARTICLE_RADIUS;
+
+    /**
+     * One strip of the canvas.
+     */
+    private static class Strip {
+        final World mWorld;
+        final ParticleSystem mParticleSystem;
+        final Body mBoundaryBody;
+        // Range of x owned by this strip
+        final float mMinX;
+        final float mMaxX;
+
+        // Scratch copies of the particle buffers, sized to the capacity
+        ByteBuffer mPositionBuffer;
+        ByteBuffer mColorBuffer;
+        ByteBuffer mWeightBuffer;
+        int mParticleCount;
+
+        // Ghosts mirrored from the neighbors for the current step. Emptied
+        // and forgotten right after it.
+        ParticleGroup mGhostGroup = null;
+        ByteBuffer mGhostPositions;
+        int mGhostCount;
+        // Range of the destroyed ghosts, which stay in the buffers until the
+        // start of the next step
+        int mOldGhostStart = 0;
+        int mOldGhostEnd = 0;
+
+        // Ranges of rigid groups, which we never hand off
+        int[] mPinnedStarts = new int[16];
+        int[] mPinnedEnds = new int[16];
+        int mPinnedCount;
+
+        // Particles arriving from the neighbors, as x, y, vx, vy, and color
+        // and flags
+        float[] mIncoming = new float[4 * 64];
+        // Positions of the incoming particles created in one batch
+        ByteBuffer mIncomingPositions = ByteBuffer.allocateDirect(2 * 4 * 64)
+                .order(ByteOrder.nativeOrder());
+        int[] mIncomingColors = new int[64];
+        int[] mIncomingFlags = new int[64];
+        int mIncomingCount;
+        // Groups holding handed-off particles, one per flag combination
+        final List<ParticleGroup> mHandoffGroups =
+                new ArrayList<ParticleGroup>();
+        final List<Integer> mHandoffGroupFlags = new ArrayList<Integer>();
+
+        // Groups of the strokes drawn into this strip, by pointer
+        final WeakHashMap<Object, ParticleGroup> mStrokeGroups =
+                new WeakHashMap<Object, ParticleGroup>();
+
+        Strip(float minX, float maxX, float worldWidth, float height,
+              int capacity) {
+            mMinX = minX;
+            mMaxX = maxX;
+            mWorld = new World(0, 0);
+            mParticleSystem =
+                    SimulationWorld.createParticleSystem(mWorld, capacity);
+            // Only the sides of the strip that are edges of the canvas get a
+            // wall; the seams are open.
+            mBoundaryBody = SimulationWorld.createBoundaries(
+                    mWorld, worldWidth, height,
+                    minX <= 0, maxX >= worldWidth);
+            allocateBuffers(capacity);
+        }
+
+        private void allocateBuffers(int capacity) {
+            mPositionBuffer = ByteBuffer.allocateDirect(2 * 4 * capacity)
+                    .order(ByteOrder.nativeOrder());
+            mColorBuffer = ByteBuffer.allocateDirect(4 * capacity)
+                    .order(ByteOrder.nativeOrder());
+            mWeightBuffer = ByteBuffer.allocateDirect(4 * capacity)
+                    .order(ByteOrder.nativeOrder());
+            mGhostPositions = ByteBuffer.allocateDirect(2 * 4 * capacity)
+                    .order(ByteOrder.nativeOrder());
+        }
+
+        /** Changes the capacity. The scratch buffers only grow. */
+        void setCapacity(int capacity) {
+            mParticleSystem.setMaxParticleCount(capacity);
+            if (4 * capacity > mColorBuffer.capacity()) {
+                allocateBuffers(capacity);
+            }
+        }
+
+        void delete() {
+            mBoundaryBody.delete();
+            mWorld.delete();
+        }
+    }
+
+    /**
+     * Steps one strip each time the start barrier trips.
+     */
+    private class Worker extends Thread {
+        private final Strip mStrip;
+
+        Worker(Strip strip, int index) {
+            super(TAG + index);
+            mStrip = strip;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    mStartBarrier.await();
+                    if (mQuit) {
+                        return;
+                    }
+                    stepStrip(mStrip);
+                    mEndBarrier.await();
+                    if (mFailure != null) {
+                        // step() throws from now on; we are not needed.
+                        return;
+                    }
+                }
+            } catch (InterruptedException ex) {
+                // Quitting
+            } catch (BrokenBarrierException ex) {
+                // Another party quit
+            }
+        }
+    }
+
+    private final Strip[] mStrips;
+    private final Worker[] mWorkers;
+    private final CyclicBarrier mStartBarrier;
+    private final CyclicBarrier mEndBarrier;
+    private volatile float mTimeStep;
+    private volatile boolean mQuit = false;
+    // The first exception thrown while stepping a strip, if any
+    private volatile RuntimeException mFailure = null;
+
+    // Consumer-side native objects, reused
+    private final ParticleGroupDef mGroupDef = new ParticleGroupDef();
+    private final ParticleColor mColor = new ParticleColor();
+
+    /**
+     * Splits a width x height canvas into stripCount strips, each able to
+     * hold capacity particles.
+     */
+    public TiledWorld(
+            int stripCount, float width, float height, int capacity) {
+        mStrips = new Strip[stripCount];
+        float stripWidth = width / stripCount;
+        for (int i = 0; i < stripCount; ++i) {
+            mStrips[i] = new Strip(
+                    i * stripWidth, (i + 1) * stripWidth, width, height,
+                    capacity);
+        }
+
+        // The calling thread steps strip 0 itself.
+        mStartBarrier = new CyclicBarrier(stripCount);
+        mEndBarrier = new CyclicBarrier(stripCount);
+        mWorkers = new Worker[stripCount - 1];
+        for (int i = 0; i < mWorkers.length; ++i) {
+            mWorkers[i] = new Worker(mStrips[i + 1], i + 1);
+            mWorkers[i].start();
+        }
+    }
+
+    /** Stops the workers and deletes all worlds. */
+    public void delete() {
+        mQuit = true;
+        for (int i = 0; i < mWorkers.length; ++i) {
+            mWorkers[i].interrupt();
+        }
+        for (int i = 0; i < mWorkers.length; ++i) {
+            try {
+                mWorkers[i].join();
+            } catch (InterruptedException ex) {
+                Log.w(TAG, "Interrupted while stopping workers");
+            }
+        }
+        for (int i = 0; i < mStrips.length; ++i) {
+            mStrips[i].delete();
+        }
+        mGroupDef.delete();
+        mColor.delete();
+    }
+
+    public int getStripCount() {
+        return mStrips.length;
+    }
+
+    public World getWorld(int strip) {
+        return mStrips[strip].mWorld;
+    }
+
+    public ParticleSystem getParticleSystem(int strip) {
+        return mStrips[strip].mParticleSystem;
+    }
+
+    /** @return The index of the strip owning x; outside x are clamped. */
+    public int getStripAt(float x) {
+        for (int i = 0; i < mStrips.length - 1; ++i) {
+            if (x < mStrips[i].mMaxX) {
+                return i;
+            }
+        }
+        return mStrips.length - 1;
+    }
+
+    /**
+     * Changes how many particles each strip can hold, keeping the canvas.
+     * It cannot go below the particle count of any strip. Call this between
+     * steps.
+     * @return The new capacity of each strip
+     */
+    public int setCapacity(int capacity) {
+        for (int i = 0; i < mStrips.length; ++i) {
+            capacity = Math.max(
+                    capacity, mStrips[i].mParticleSystem.getParticleCount());
+        }
+        for (int i = 0; i < mStrips.length; ++i) {
+            mStrips[i].setCapacity(capacity);
+        }
+        return capacity;
+    }
+
+    public int getParticleCount() {
+        int count = 0;
+        for (int i = 0; i < mStrips.length; ++i) {
+            count += mStrips[i].mParticleSystem.getParticleCount();
+        }
+        return count;
+    }
+
+    public void setGravity(float x, float y) {
+        for (int i = 0; i < mStrips.length; ++i) {
+            mStrips[i].mWorld.setGravity(x, y);
+        }
+    }
+
+    /**
+     * Creates a particle group in a strip, and joins it with the group
+     * previously created for the same stroke in that strip.
+     * @param stroke Identifies the stroke, e.g. its PointerInfo
+     */
+    public void createParticleGroup(
+            int strip, ParticleGroupDef pgd, Object stroke) {
+        Strip s = mStrips[strip];
+        // Stroke groups are kept alive even if erased, so we never join
+        // into a destroyed group.
+        pgd.setGroupFlags(
+                pgd.getGroupFlags() |
+                ParticleGroupFlag.particleGroupCanBeEmpty);
+        ParticleGroup group = s.mParticleSystem.createParticleGroup(pgd);
+        ParticleGroup strokeGroup = s.mStrokeGroups.get(stroke);
+        if (strokeGroup == null) {
+            s.mStrokeGroups.put(stroke, group);
+        } else {
+            s.mParticleSystem.joinParticleGroups(strokeGroup, group);
+        }
+    }
+
+    /**
+     * Steps all strips by dt, in parallel, with ghosts and handoff around
+     * the parallel part. Must be called while holding the world lock.
+     * @throws IllegalStateException If a strip failed to step, now or
+     *                               before; the TiledWorld is unusable then
+     */
+    public void step(float dt) {
+        checkFailure();
+        for (int i = 0; i < mStrips.length; ++i) {
+            readPositions(mStrips[i]);
+        }
+        for (int i = 0; i < mStrips.length; ++i) {
+            createGhosts(i);
+        }
+
+        mTimeStep = dt;
+        try {
+            mStartBarrier.await();
+            stepStrip(mStrips[0]);
+            mEndBarrier.await();
+        } catch (InterruptedException ex) {
+            Log.e(TAG, "Interrupted while stepping strips");
+            Thread.currentThread().interrupt();
+            return;
+        } catch (BrokenBarrierException ex) {
+            Log.e(TAG, "A strip failed to step");
+            return;
+        }
+        checkFailure();
+
+        for (int i = 0; i < mStrips.length; ++i) {
+            destroyGhosts(mStrips[i]);
+        }
+        for (int i = 0; i < mStrips.length; ++i) {
+            readPositions(mStrips[i]);
+            handOff(i);
+        }
+        for (int i = 0; i < mStrips.length; ++i) {
+            receive(mStrips[i]);
+        }
+    }
+
+    /**
+     * Steps a strip by the current time step. Failures are recorded rather
+     * than thrown, so every thread still meets the others at the end
+     * barrier, instead of leaving them, and the world lock, hanging.
+     */
+    private void stepStrip(Strip s) {
+        try {
+            SimulationWorld.step(s.mWorld, mTimeStep);
+        } catch (RuntimeException ex) {
+            Log.e(TAG, "Failed to step a strip", ex);
+            if (mFailure == null) {
+                mFailure = ex;
+            }
+        }
+    }
+
+    private void checkFailure() {
+        if (mFailure != null) {
+            throw new IllegalStateException(
+                    "A strip failed to step", mFailure);
+        }
+    }
+
+    /**
+     * Copies all strips into one snapshot, as if they were one particle
+     * system, leaving out the ghosts. Must be called while holding the world
+     * lock.
+     */
+    public void capture(ParticleSnapshot snapshot, FrameTimings timings) {
+        // Particles change order in the handoff, so positions of the
+        // previous step can not be interpolated.
+        snapshot.beginCapture(null);
+        for (int i = 0; i < mStrips.length; ++i) {
+            Strip s = mStrips[i];
+            ParticleSystem ps = s.mParticleSystem;
+            int count = ps.getParticleCount();
+            s.mPositionBuffer.rewind();
+            s.mColorBuffer.rewind();
+            s.mWeightBuffer.rewind();
+
+            long time = timings.begin();
+            ps.copyPositionBuffer(0, count, s.mPositionBuffer);
+            time = timings.end(TimingPhase.COPY_POSITION, time);
+            ps.copyColorBuffer(0, count, s.mColorBuffer);
+            time = timings.end(TimingPhase.COPY_COLOR, time);
+            ps.copyWeightBuffer(0, count, s.mWeightBuffer);
+            timings.end(TimingPhase.COPY_WEIGHT, time);
+
+            int base = snapshot.appendParticles(
+                    s.mPositionBuffer, s.mColorBuffer, s.mWeightBuffer,
+                    count);
+            ParticleGroup currGroup = ps.getParticleGroupList();
+            while (currGroup != null) {
+                if (currGroup.getParticleCount() > 0 &&
+                    !isOldGhost(s, currGroup.getBufferIndex())) {
+                    snapshot.appendGroup(
+                            base + currGroup.getBufferIndex(),
+                            currGroup.getParticleCount(),
+                            currGroup.getGroupFlags());
+                }
+                currGroup = currGroup.getNext();
+            }
+        }
+    }
+
+    private static void readPositions(Strip s) {
+        s.mParticleCount = s.mParticleSystem.getParticleCount();
+        s.mPositionBuffer.rewind();
+        s.mParticleSystem.copyPositionBuffer(
+                0, s.mParticleCount, s.mPositionBuffer);
+    }
+
+    /**
+     * Mirrors the particles of the neighbors that are near our seams into
+     * strip i, as wall particles.
+     */
+    private void createGhosts(int i) {
+        Strip s = mStrips[i];
+        s.mGhostCount = 0;
+        if (i > 0) {
+            addGhosts(s, mStrips[i - 1], s.mMinX - GHOST_WIDTH, s.mMinX);
+        }
+        if (i < mStrips.length - 1) {
+            addGhosts(s, mStrips[i + 1], s.mMaxX, s.mMaxX + GHOST_WIDTH);
+        }
+        if (s.mGhostCount == 0) {
+            return;
+        }
+
+        mGroupDef.setFlags(ParticleFlag.wallParticle);
+        mGroupDef.setGroupFlags(0);
+        mGroupDef.setParticleCount(s.mGhostCount);
+        s.mGhostPositions.rewind();
+        mGroupDef.setPositionData(s.mGhostPositions);
+        s.mGhostGroup = s.mParticleSystem.createParticleGroup(mGroupDef);
+    }
+
+    private static void addGhosts(
+            Strip s, Strip neighbor, float minX, float maxX) {
+        for (int j = 0; j < neighbor.mParticleCount; ++j) {
+            float x = neighbor.mPositionBuffer.getFloat(8 * j);
+            // Skip the neighbor's own ghosts from the last step; they are
+            // mirrors of our particles.
+            if (x >= minX && x < maxX && !isOldGhost(neighbor, j)) {
+                int offset = 8 * s.mGhostCount;
+                s.mGhostPositions.putFloat(offset, x);
+                s.mGhostPositions.putFloat(
+                        offset + 4, neighbor.mPositionBuffer.getFloat(8 * j + 4));
+                ++s.mGhostCount;
+            }
+        }
+    }
+
+    /**
+     * Destroys this step's ghosts. They are removed at the start of the next
+     * step, and the group with them, so we forget it right away.
+     */
+    private static void destroyGhosts(Strip s) {
+        if (s.mGhostGroup != null) {
+            s.mOldGhostStart = s.mGhostGroup.getBufferIndex();
+            s.mOldGhostEnd =
+                    s.mOldGhostStart + s.mGhostGroup.getParticleCount();
+            s.mGhostGroup.destroyParticles(false);
+            s.mGhostGroup = null;
+        } else {
+            s.mOldGhostStart = 0;
+            s.mOldGhostEnd = 0;
+        }
+    }
+
+    private static boolean isOldGhost(Strip s, int index) {
+        return index >= s.mOldGhostStart && index < s.mOldGhostEnd;
+    }
+
+    /**
+     * Moves the particles that left strip i to the incoming lists of its
+     * neighbors, and destroys them here.
+     */
+    private void handOff(int i) {
+        Strip s = mStrips[i];
+        ParticleSystem ps = s.mParticleSystem;
+        findPinnedRanges(s);
+        for (int j = 0; j < s.mParticleCount; ++j) {
+            float x = s.mPositionBuffer.getFloat(8 * j);
+            Strip target;
+            if (x < s.mMinX && i > 0) {
+                target = mStrips[i - 1];
+            } else if (x >= s.mMaxX && i < mStrips.length - 1) {
+                target = mStrips[i + 1];
+            } else {
+                continue;
+            }
+            if (isOldGhost(s, j) || isPinned(s, j)) {
+                continue;
+            }
+            int flags = ps.getParticleFlags(j);
+            if ((flags & ParticleFlag.zombieParticle) != 0) {
+                continue;
+            }
+
+            ensureIncomingCapacity(target);
+            int k = target.mIncomingCount;
+            target.mIncoming[4 * k] = x;
+            target.mIncoming[4 * k + 1] = s.mPositionBuffer.getFloat(8 * j + 4);
+            target.mIncoming[4 * k + 2] = ps.getParticleVelocityX(j);
+            target.mIncoming[4 * k + 3] = ps.getParticleVelocityY(j);
+            target.mIncomingFlags[k] = flags;
+            target.mIncomingColors[k] = getColor(s, j);
+            ++target.mIncomingCount;
+
+            ps.destroyParticle(j);
+        }
+    }
+
+    private static int getColor(Strip s, int index) {
+        s.mColorBuffer.rewind();
+        s.mParticleSystem.copyColorBuffer(index, 1, s.mColorBuffer);
+        return s.mColorBuffer.getInt(0);
+    }
+
+    /** Collects the ranges of rigid groups, which we never hand off. */
+    private static void findPinnedRanges(Strip s) {
+        s.mPinnedCount = 0;
+        ParticleGroup currGroup = s.mParticleSystem.getParticleGroupList();
+        while (currGroup != null) {
+            if ((currGroup.getGroupFlags() &
+                 ParticleGroupFlag.rigidParticleGroup) != 0) {
+                if (s.mPinnedCount == s.mPinnedStarts.length) {
+                    s.mPinnedStarts = Arrays.copyOf(
+                            s.mPinnedStarts, 2 * s.mPinnedCount);
+                    s.mPinnedEnds = Arrays.copyOf(
+                            s.mPinnedEnds, 2 * s.mPinnedCount);
+                }
+                int start = currGroup.getBufferIndex();
+                s.mPinnedStarts[s.mPinnedCount] = start;
+                s.mPinnedEnds[s.mPinnedCount] =
+                        start + currGroup.getParticleCount();
+                ++s.mPinnedCount;
+            }
+            currGroup = currGroup.getNext();
+        }
+    }
+
+    private static boolean isPinned(Strip s, int index) {
+        for (int i = 0; i < s.mPinnedCount; ++i) {
+            if (index >= s.mPinnedStarts[i] && index < s.mPinnedEnds[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void ensureIncomingCapacity(Strip s) {
+        if (s.mIncomingCount == s.mIncomingFlags.length) {
+            // Grows to the largest handoff seen, then stays there.
+            int capacity = 2 * s.mIncomingCount;
+            s.mIncoming = Arrays.copyOf(s.mIncoming, 4 * capacity);
+            s.mIncomingColors =
+                    Arrays.copyOf(s.mIncomingColors, capacity);
+            s.mIncomingFlags =
+                    Arrays.copyOf(s.mIncomingFlags, capacity);
+            s.mIncomingPositions = ByteBuffer
+                    .allocateDirect(2 * 4 * capacity)
+                    .order(ByteOrder.nativeOrder());
+        }
+    }
+
+    /**
+     * Creates the particles handed off to strip s. Each flag combination is
+     * created as one group and joined into the handoff group for it, since
+     * adding particles to a group one by one moves the buffers every time.
+     */
+    private void receive(Strip s) {
+        ParticleSystem ps = s.mParticleSystem;
+        while (s.mIncomingCount > 0) {
+            // One batch for the flags of the first particle
+            int flags = s.mIncomingFlags[0];
+            int batchCount = 0;
+            for (int k = 0; k < s.mIncomingCount; ++k) {
+                if (s.mIncomingFlags[k] == flags) {
+                    s.mIncomingPositions.putFloat(
+                            8 * batchCount, s.mIncoming[4 * k]);
+                    s.mIncomingPositions.putFloat(
+                            8 * batchCount + 4, s.mIncoming[4 * k + 1]);
+                    ++batchCount;
+                }
+            }
+
+            int firstColor = s.mIncomingColors[0];
+            setColor(firstColor);
+            mGroupDef.setFlags(flags);
+            mGroupDef.setGroupFlags(getHandoffGroupFlags(flags));
+            mGroupDef.setColor(mColor);
+            mGroupDef.setParticleCount(batchCount);
+            s.mIncomingPositions.rewind();
+            mGroupDef.setPositionData(s.mIncomingPositions);
+            ParticleGroup batch = ps.createParticleGroup(mGroupDef);
+
+            // Velocities and mixed colors can only be set per particle.
+            // Particles of later batches are moved to the front meanwhile.
+            int base = batch.getBufferIndex();
+            int i = 0;
+            int remaining = 0;
+            for (int k = 0; k < s.mIncomingCount; ++k) {
+                if (s.mIncomingFlags[k] != flags) {
+                    moveIncoming(s, k, remaining);
+                    ++remaining;
+                    continue;
+                }
+                ps.setParticleVelocity(base + i,
+                        s.mIncoming[4 * k + 2], s.mIncoming[4 * k + 3]);
+                if (s.mIncomingColors[k] != firstColor) {
+                    setColor(s.mIncomingColors[k]);
+                    ps.setParticleColor(base + i, mColor);
+                }
+                ++i;
+            }
+            s.mIncomingCount = remaining;
+
+            ParticleGroup group = getHandoffGroup(s, flags);
+            if (group == null) {
+                s.mHandoffGroups.add(batch);
+                s.mHandoffGroupFlags.add(flags);
+            } else {
+                ps.joinParticleGroups(group, batch);
+            }
+        }
+    }
+
+    /** Moves incoming particle from to index to, which is free. */
+    private static void moveIncoming(Strip s, int from, int to) {
+        if (from != to) {
+            System.arraycopy(s.mIncoming, 4 * from, s.mIncoming, 4 * to, 4);
+            s.mIncomingColors[to] = s.mIncomingColors[from];
+            s.mIncomingFlags[to] = s.mIncomingFlags[from];
+        }
+    }
+
+    private void setColor(int color) {
+        mColor.set(
+                (short) (color & 0xFF), (short) (color >> 8 & 0xFF),
+                (short) (color >> 16 & 0xFF), (short) (color >> 24 & 0xFF));
+    }
+
+    /**
+     * Returns the group holding the particles handed off to s with the
+     * given flags, or null before the first of them arrives. Particles have
+     * to be in a group to be drawn.
+     */
+    private static ParticleGroup getHandoffGroup(Strip s, int flags) {
+        for (int i = 0; i < s.mHandoffGroupFlags.size(); ++i) {
+            if (s.mHandoffGroupFlags.get(i) == flags) {
+                return s.mHandoffGroups.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Matches the group flags of the tools, so the ParticleRenderer draws
+     * water in the water pass, and walls with the other particles. Handoff
+     * groups are kept even when empty, so we can keep joining into them.
+     */
+    private static int getHandoffGroupFlags(int flags) {
+        int groupFlags = ParticleGroupFlag.particleGroupCanBeEmpty;
+        if ((flags & ParticleFlag.wallParticle) != 0) {
+            groupFlags |= ParticleGroupFlag.solidParticleGroup;
+        }
+        return groupFlags;
+    }
+}
@@ -0,0 +1,495 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+package com.google.fpl.liquidfunpaint;
+
+import com.google.fpl.liquidfun.ParticleGroup;
+import com.google.fpl.liquidfun.ParticleGroupFlag;
+import com.google.fpl.liquidfun.ParticleSystem;
+import com.google.fpl.liquidfun.World;
+import com.google.fpl.liquidfunpaint.WorldCommandQueue.WorldCallback;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Undo and redo of strokes.
+ *
+ * Tools mark the end of each stroke; the canvas state is then recorded on
+ * the thread stepping the world, once all of the stroke's particles exist.
+ * Each entry only holds what changed structurally: groups are compared in
+ * buffer order, and the ones after the leading groups that kept their
+ * range and flags are stored, as they were before and after the stroke.
+ * Drawing appends at the end of the buffers, so that is usually just the
+ * new stroke, or the one group it was joined to.
+ *
+ * Undo and redo destroy the live particles after those leading groups and
+ * recreate the stored ones. The leading groups are left alone, where the
+ * simulation has taken them since. If the live canvas no longer has the
+ * same leading groups, e.g. because the ParticleBudget retired some, the
+ * whole canvas is rebuilt instead; the World itself is never recreated.
+ *
+ * Entries are deflated, and the oldest ones are dropped to stay within a
+ * byte budget. All world access happens through WorldCommandQueue
+ * callbacks, so the public methods can be called from the UI thread.
+ */
+public class UndoHistory {
+    private static final String TAG = "UndoHistory";
+    private static final int DEFAULT_BYTE_BUDGET = 8 * 1024 * 1024;
+    // Estimated bookkeeping cost of an entry, on top of its data
+    private static final int ENTRY_OVERHEAD = 64;
+
+    /** The change made by one stroke. */
+    private static class Entry {
+        // Leading groups shared by the states before and after the stroke
+        final int mPrefixGroups;
+        final int mPrefixParticles;
+        // Deflated groups and particles after the prefix
+        final byte[] mBefore;
+        final byte[] mAfter;
+        // Size of the canvas the positions were recorded on
+        final float mWorldWidth;
+        final float mWorldHeight;
+
+        Entry(int prefixGroups, int prefixParticles, byte[] before,
+              byte[] after, float worldWidth, float worldHeight) {
+            mPrefixGroups = prefixGroups;
+            mPrefixParticles = prefixParticles;
+            mBefore = before;
+            mAfter = after;
+            mWorldWidth = worldWidth;
+            mWorldHeight = worldHeight;
+        }
+
+        int getSize() {
+            return mBefore.length + mAfter.length + ENTRY_OVERHEAD;
+        }
+    }
+
+    private final WorldHost mHost;
+    private final WorldCommandQueue mQueue;
+
+    // Only touched on the thread stepping the world.
+    // Oldest first; entries before mPosition can be undone, the rest redone
+    private final ArrayDeque<Entry> mEntries = new ArrayDeque<Entry>();
+    private final List<Entry> mRedoEntries = new ArrayList<Entry>();
+    private int mByteCount = 0;
+    private int mByteBudget = DEFAULT_BYTE_BUDGET;
+    // The recorded state we are at. Its leading groups may be older than
+    // the live ones, but its structure always matches the history.
+    private CanvasFile.Image mHead = new CanvasFile.Image();
+    private CanvasFile.Image mScratch = new CanvasFile.Image();
+    private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater mInflater = new Inflater();
+    private final List<ParticleGroup> mCreatedGroups =
+            new ArrayList<ParticleGroup>();
+
+    // For the UI
+    private volatile boolean mCanUndo = false;
+    private volatile boolean mCanRedo = false;
+
+    private final WorldCallback mRecordCallback = new WorldCallback() {
+        @Override
+        public void apply(World world, ParticleSystem ps) {
+            record(world, ps);
+        }
+    };
+
+    private final WorldCallback mUndoCallback = new WorldCallback() {
+        @Override
+        public void apply(World world, ParticleSystem ps) {
+            undo(world, ps);
+        }
+    };
+
+    private final WorldCallback mRedoCallback = new WorldCallback() {
+        @Override
+        public void apply(World world, ParticleSystem ps) {
+            redo(world, ps);
+        }
+    };
+
+    /**
+     * @param host The world to record, and to restore strokes in through its
+     *     WorldCommandQueue
+     */
+    public UndoHistory(WorldHost host) {
+        mHost = host;
+        mQueue = host.getWorldCommandQueue();
+    }
+
+    /**
+     * Marks the end of a stroke. The state is recorded once the commands
+     * queued so far are applied. Can be called from any thread.
+     */
+    public void markStroke() {
+        mQueue.runOnWorld(mRecordCallback);
+    }
+
+    /** Queues an undo of the last stroke. Can be called from any thread. */
+    public void undo() {
+        mQueue.runOnWorld(mUndoCallback);
+    }
+
+    /** Queues a redo of the last undone stroke. */
+    public void redo() {
+        mQueue.runOnWorld(mRedoCallback);
+    }
+
+    public boolean canUndo() {
+        return mCanUndo;
+    }
+
+    public boolean canRedo() {
+        return mCanRedo;
+    }
+
+    /**
+     * Limits the memory used by the history. Older strokes are dropped to
+     * make room. Must be called while holding the world lock.
+     */
+    public void setByteBudget(int bytes) {
+        mByteBudget = bytes;
+        trim();
+    }
+
+    /**
+     * Forgets all strokes, and starts over from the current canvas, e.g.
+     * after a reset or a load. Must be called while holding the world lock.
+     */
+    public void clear(World world, ParticleSystem ps) {
+        mEntries.clear();
+        mRedoEntries.clear();
+        mByteCount = 0;
+        mHead.capture(
+                world, ps, mHost.getWorldWidth(), mHost.getWorldHeight());
+        updateFlags();
+    }
+
+    /**
+     * Scales the recorded canvas to the new size of the host's canvas, as
+     * SimulationWorld.remapParticles() does with the live particles. The
+     * strokes are scaled as they are restored. Must be called while holding
+     * the world lock.
+     */
+    public void resize(ParticleSystem ps) {
+        CanvasFile.Header header = mHead.getHeader();
+        remapPositions(mHead, 0, header.mWorldWidth, header.mWorldHeight,
+                       ps.getRadius());
+    }
+
+    private void record(World world, ParticleSystem ps) {
+        CanvasFile.Image current = mScratch;
+        current.capture(
+                world, ps, mHost.getWorldWidth(), mHost.getWorldHeight());
+
+        int prefixGroups = getCommonPrefix(mHead, current);
+        int prefixParticles = getPrefixParticleCount(mHead, prefixGroups);
+        boolean changed =
+                prefixGroups < mHead.getHeader().mGroupCount ||
+                prefixGroups < current.getHeader().mGroupCount ||
+                mHead.getHeader().mParticleCount !=
+                        current.getHeader().mParticleCount;
+        // A stroke that changed no group, e.g. a move, is not undoable.
+        if (changed) {
+            recordEntry(current, prefixGroups, prefixParticles);
+        }
+
+        // The captured state becomes the head; reuse the old one next time.
+        mScratch = mHead;
+        mHead = current;
+        updateFlags();
+    }
+
+    private void recordEntry(
+            CanvasFile.Image current, int prefixGroups, int prefixParticles) {
+        try {
+            byte[] before = encode(mHead, prefixGroups, prefixParticles);
+            byte[] after = encode(current, prefixGroups, prefixParticles);
+            CanvasFile.Header header = current.getHeader();
+            Entry entry = new Entry(
+                    prefixGroups, prefixParticles, before, after,
+                    header.mWorldWidth, header.mWorldHeight);
+            mRedoEntries.clear();
+            mEntries.addLast(entry);
+            mByteCount += entry.getSize();
+            trim();
+        } catch (IOException ex) {
+            Log.e(TAG, "Cannot record stroke: " + ex.getMessage());
+        }
+    }
+
+    private void undo(World world, ParticleSystem ps) {
+        if (mEntries.isEmpty()) {
+            return;
+        }
+        Entry entry = mEntries.pollLast();
+        mByteCount -= entry.getSize();
+        if (restore(world, ps, entry, entry.mBefore)) {
+            mRedoEntries.add(entry);
+        }
+        updateFlags();
+    }
+
+    private void redo(World world, ParticleSystem ps) {
+        if (mRedoEntries.isEmpty()) {
+            return;
+        }
+        Entry entry = mRedoEntries.remove(mRedoEntries.size() - 1);
+        if (restore(world, ps, entry, entry.mAfter)) {
+            mEntries.addLast(entry);
+            mByteCount += entry.getSize();
+        }
+        updateFlags();
+    }
+
+    /**
+     * Replaces the groups after the entry's prefix, in mHead and in the
+     * live particle system, with the given encoded ones.
+     * @return False if the entry could not be decoded
+     */
+    private boolean restore(
+            World world, ParticleSystem ps, Entry entry, byte[] groups) {
+        int prefixGroups = entry.mPrefixGroups;
+        int prefixParticles = entry.mPrefixParticles;
+
+        // Check whether the live canvas still starts like mHead.
+        mScratch.capture(
+                world, ps, mHost.getWorldWidth(), mHost.getWorldHeight());
+        boolean partial =
+                getCommonPrefix(mHead, mScratch) >= prefixGroups &&
+                mScratch.getHeader().mParticleCount >= prefixParticles;
+
+        try {
+            decode(groups, mHead, prefixGroups, prefixParticles);
+            remapPositions(mHead, prefixParticles, entry.mWorldWidth,
+                           entry.mWorldHeight, ps.getRadius());
+        } catch (IOException ex) {
+            Log.e(TAG, "Cannot restore stroke: " + ex.getMessage());
+            // Drop the whole history rather than leave it inconsistent.
+            mEntries.clear();
+            mRedoEntries.clear();
+            mByteCount = 0;
+            return false;
+        }
+
+        int firstParticle = partial ? prefixParticles : 0;
+        int firstGroup = partial ? prefixGroups : 0;
+        releaseGroups(ps, firstParticle);
+        for (int i = ps.getParticleCount() - 1; i >= firstParticle; --i) {
+            ps.destroyParticle(i);
+        }
+        SimulationWorld.removeDestroyedParticles(world, ps);
+
+        mCreatedGroups.clear();
+        mHead.restoreGroups(ps, firstGroup, firstParticle, mCreatedGroups);
+        for (int i = 0; i < mCreatedGroups.size(); ++i) {
+            mHost.onGroupRestored(mCreatedGroups.get(i));
+        }
+        mCreatedGroups.clear();
+        return true;
+    }
+
+    /**
+     * Lets go of the groups that are destroyed with the particles from
+     * firstParticle on, and of groups that are empty already. The tools
+     * keep adding strokes to their last group, and make it able to be
+     * empty, so LiquidFun would otherwise keep them around empty.
+     */
+    private void releaseGroups(ParticleSystem ps, int firstParticle) {
+        for (ParticleGroup group = ps.getParticleGroupList(); group != null;
+             group = group.getNext()) {
+            if (group.getParticleCount() == 0 ||
+                group.getBufferIndex() >= firstParticle) {
+                mHost.onGroupDestroyed(group);
+                group.setGroupFlags(group.getGroupFlags() &
+                        ~ParticleGroupFlag.particleGroupCanBeEmpty);
+            }
+        }
+    }
+
+    /**
+     * Scales the positions of image from particle first on, from the given
+     * canvas size to the host's, and keeps them a particle radius clear of
+     * the walls like SimulationWorld.remapParticles().
+     */
+    private void remapPositions(
+            CanvasFile.Image image, int first, float fromWidth,
+            float fromHeight, float radius) {
+        float toWidth = mHost.getWorldWidth();
+        float toHeight = mHost.getWorldHeight();
+        CanvasFile.Header header = image.getHeader();
+        header.mWorldWidth = toWidth;
+        header.mWorldHeight = toHeight;
+        if (fromWidth == toWidth && fromHeight == toHeight) {
+            return;
+        }
+        float scaleX = toWidth / fromWidth;
+        float scaleY = toHeight / fromHeight;
+        float maxX = toWidth - radius;
+        float maxY = toHeight - radius;
+        ByteBuffer positions = image.mPositions;
+        for (int i = first; i < header.mParticleCount; ++i) {
+            float x = positions.getFloat(8 * i) * scaleX;
+            float y = positions.getFloat(8 * i + 4) * scaleY;
+            positions.putFloat(8 * i, Math.max(radius, Math.min(maxX, x)));
+            positions.putFloat(
+                    8 * i + 4, Math.max(radius, Math.min(maxY, y)));
+        }
+    }
+
+    /** Drops the oldest entries until we are within budget. */
+    private void trim() {
+        while (mByteCount > mByteBudget && !mEntries.isEmpty()) {
+            mByteCount -= mEntries.pollFirst().getSize();
+        }
+        // Redo entries are only kept while they fit too.
+        int redoBytes = 0;
+        for (int i = mRedoEntries.size() - 1; i >= 0; --i) {
+            redoBytes += mRedoEntries.get(i).getSize();
+            if (mByteCount + redoBytes > mByteBudget) {
+                mRedoEntries.subList(0, i + 1).clear();
+                break;
+            }
+        }
+        updateFlags();
+    }
+
+    private void updateFlags() {
+        mCanUndo = !mEntries.isEmpty();
+        mCanRedo = !mRedoEntries.isEmpty();
+    }
+
+    /**
+     * Returns the number of leading groups that have the same range and
+     * flags in both images. Both group tables are in buffer order.
+     */
+    private static int getCommonPrefix(
+            CanvasFile.Image a, CanvasFile.Image b) {
+        int count = Math.min(
+                a.getHeader().mGroupCount, b.getHeader().mGroupCount);
+        int prefix = 0;
+        while (prefix < count &&
+               a.getGroupStart(prefix) == b.getGroupStart(prefix) &&
+               a.getGroupParticleCount(prefix) ==
+                       b.getGroupParticleCount(prefix) &&
+               a.getGroupFlags(prefix) == b.getGroupFlags(prefix)) {
+            ++prefix;
+        }
+        return prefix;
+    }
+
+    private static int getPrefixParticleCount(
+            CanvasFile.Image image, int prefixGroups) {
+        if (prefixGroups == 0) {
+            return 0;
+        }
+        return image.getGroupStart(prefixGroups - 1) +
+               image.getGroupParticleCount(prefixGroups - 1);
+    }
+
+    /**
+     * Deflates the groups and particles of image after the prefix. Each
+     * particle attribute is stored as its own column, which deflates
+     * better.
+     */
+    private byte[] encode(
+            CanvasFile.Image image, int prefixGroups, int prefixParticles)
+            throws IOException {
+        CanvasFile.Header header = image.getHeader();
+        mBytes.reset();
+        mDeflater.reset();
+        DataOutputStream out = new DataOutputStream(
+                new DeflaterOutputStream(mBytes, mDeflater));
+        out.writeInt(header.mGroupCount);
+        out.writeInt(header.mParticleCount);
+        for (int g = prefixGroups; g < header.mGroupCount; ++g) {
+            out.writeInt(image.getGroupStart(g));
+            out.writeInt(image.getGroupParticleCount(g));
+            out.writeInt(image.getGroupFlags(g));
+        }
+        writeColumn(out, image.mPositions, 2, prefixParticles, header);
+        writeColumn(out, image.mVelocities, 2, prefixParticles, header);
+        writeColumn(out, image.mColors, 1, prefixParticles, header);
+        writeColumn(out, image.mFlags, 1, prefixParticles, header);
+        out.close();
+        return mBytes.toByteArray();
+    }
+
+    /**
+     * Inflates groups and particles into image, after the prefix it
+     * already has.
+     */
+    private void decode(
+            byte[] bytes, CanvasFile.Image image, int prefixGroups,
+            int prefixParticles) throws IOException {
+        mInflater.reset();
+        DataInputStream in = new DataInputStream(new InflaterInputStream(
+                new ByteArrayInputStream(bytes), mInflater));
+        int groupCount = in.readInt();
+        int particleCount = in.readInt();
+        if (groupCount < prefixGroups || particleCount < prefixParticles) {
+            throw new IOException("Corrupt undo entry");
+        }
+        image.resize(particleCount, groupCount);
+        for (int g = prefixGroups; g < groupCount; ++g) {
+            image.setGroup(g, in.readInt(), in.readInt(), in.readInt());
+        }
+        CanvasFile.Header header = image.getHeader();
+        readColumn(in, image.mPositions, 2, prefixParticles, header);
+        readColumn(in, image.mVelocities, 2, prefixParticles, header);
+        readColumn(in, image.mColors, 1, prefixParticles, header);
+        readColumn(in, image.mFlags, 1, prefixParticles, header);
+    }
+
+    /**
+     * Writes one 32-bit attribute, or each component of a vector one, of
+     * all particles from first on.
+     */
+    private static void writeColumn(
+            DataOutputStream out, ByteBuffer buffer, int components,
+            int first, CanvasFile.Header header) throws IOException {
+        for (int c = 0; c < components; ++c) {
+            for (int i = first; i < header.mParticleCount; ++i) {
+                out.writeInt(buffer.getInt(4 * (components * i + c)));
+            }
+        }
+    }
+
+    private static void readColumn(
+            DataInputStream in, ByteBuffer buffer, int components,
+            int first, CanvasFile.Header header) throws IOException {
+        for (int c = 0; c < components; ++c) {
+            for (int i = first; i < header.mParticleCount; ++i) {
+                buffer.putInt(4 * (components * i + c), in.readInt());
+            }
+        }
+    }
+}
@@ -0,0 +1,430 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+package com.google.fpl.liquidfunpaint;
+
+import com.google.fpl.liquidfun.CircleShape;
+import com.google.fpl.liquidfun.ParticleColor;
+import com.google.fpl.liquidfun.ParticleGroupDef;
+import com.google.fpl.liquidfun.ParticleSystem;
+import com.google.fpl.liquidfun.Transform;
+import com.google.fpl.liquidfun.Vec2;
+import com.google.fpl.liquidfun.World;
+import com.google.fpl.liquidfunpaint.tool.PointerInfo;
+import com.google.fpl.liquidfunpaint.tool.Tool;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free queue of world mutations.
+ *
+ * Any number of input threads (UI, sensor) can queue commands without taking
+ * the world lock. The thread stepping the world applies them all at the
+ * start of each step, while it holds the world lock anyway.
+ *
+ * All commands are preallocated. A producer obtains a free slot, fills it in
+ * and submits it; nothing is allocated on the way. If the queue is full the
+ * command is dropped, as we never want input threads to wait on physics.
+ */
+public class WorldCommandQueue {
+    private static final String TAG = "WorldCommandQueue";
+    // Must be a power of 2
+    private static final int CAPACITY = 1024;
+    private static final int INDEX_MASK = CAPACITY - 1;
+    /** Maximum number of points, or particles, carried by one command. */
+    public static final int MAX_POINTS = 16;
+    // Minimum time between two warnings about dropped commands
+    private static final long DROP_LOG_INTERVAL = 1000000000L;
+
+    /**
+     * Type of world mutations
+     */
+    public enum CommandType {
+        /**
+         * Creates a particle group from circles at each point, then hands
+         * it to the tool to join with the pointer's existing group.
+         */
+        CREATE_PARTICLE_GROUP,
+        /** Destroys particles in a circle at each point. */
+        DESTROY_PARTICLES_IN_SHAPE,
+        /**
+         * Grabs particles in a circle at (x, y), on behalf of the tool.
+         */
+        QUERY_PARTICLES_IN_SHAPE,
+        /** Sets the velocity of each particle index. */
+        SET_PARTICLE_VELOCITY,
+        /** Sets the world gravity to (x, y). */
+        SET_GRAVITY,
+        /** Runs the callback, in order with the other commands. */
+        CALLBACK,
+    }
+
+    /**
+     * Work that has to run on the thread stepping the world, after the
+     * commands queued before it. Callbacks should be long-lived objects, so
+     * queueing them does not allocate.
+     */
+    public interface WorldCallback {
+        /** Called while holding the world lock. */
+        void apply(World world, ParticleSystem ps);
+    }
+
+    /**
+     * A preallocated command slot. Fields are only valid between obtain()
+     * and submit(), and while the command is being applied.
+     */
+    public static class Command {
+        public CommandType mType;
+        public Tool mTool;
+        public PointerInfo mPointerInfo;
+        public WorldCallback mCallback;
+        public float mX;
+        public float mY;
+        public float mRadius;
+        public int mParticleFlags;
+        public int mParticleGroupFlags;
+        // ABGR, as set on Tool.setColor()
+        public int mColor;
+        public float mVelocityX;
+        public float mVelocityY;
+
+        // Points as x, y pairs; or particle velocities as x, y pairs
+        public final float[] mPoints = new float[2 * MAX_POINTS];
+        // Particle indices, for SET_PARTICLE_VELOCITY
+        public final int[] mIndices = new int[MAX_POINTS];
+        public int mCount;
+
+        // Position of this slot in the queue
+        private long mSequence;
+
+        /**
+         * Copies numPoints (x, y) pairs from a buffer, starting at the byte
+         * offset start. Points past MAX_POINTS are dropped.
+         */
+        public void setPoints(ByteBuffer buffer, int start, int numPoints) {
+            mCount = Math.min(numPoints, MAX_POINTS);
+            for (int i = 0; i < 2 * mCount; ++i) {
+                mPoints[i] = buffer.getFloat(start + 4 * i);
+            }
+        }
+
+        private void clearReferences() {
+            mTool = null;
+            mPointerInfo = null;
+            mCallback = null;
+        }
+    }
+
+    private final Command[] mSlots = new Command[CAPACITY];
+    // Sequence number of each slot. A slot at position p is free for the
+    // producer when its sequence is p, and ready for the consumer when it is
+    // p + 1.
+    private final AtomicLongArray mSequences = new AtomicLongArray(CAPACITY);
+    private final AtomicLong mTail = new AtomicLong(0);
+    // Commands dropped because the queue was full. Counted by producers,
+    // and reported by the consumer, so producers never log.
+    private final AtomicLong mDropped = new AtomicLong(0);
+    // Consumer only
+    private long mHead = 0;
+    private long mReportedDrops = 0;
+    private long mLastDropLogTime = 0;
+
+    // Consumer-owned native objects, reused across commands
+    private final CircleShape mShape = new CircleShape();
+    private final Transform mIdentity = new Transform();
+    private final ParticleColor mColor = new ParticleColor();
+    private final Vec2 mVelocity = new Vec2(0, 0);
+    private final ByteBuffer mPointBuffer;
+    private boolean mWarnedUnsupported = false;
+
+    public WorldCommandQueue() {
+        for (int i = 0; i < CAPACITY; ++i) {
+            mSlots[i] = new Command();
+            mSequences.set(i, i);
+        }
+        mIdentity.setIdentity();
+        mPointBuffer = ByteBuffer.allocateDirect(2 * 4 * MAX_POINTS)
+                .order(ByteOrder.nativeOrder());
+    }
+
+    @Override
+    protected void finalize() {
+        // Clean up native objects
+        mShape.delete();
+        mIdentity.delete();
+        mColor.delete();
+        mVelocity.delete();
+    }
+
+    /**
+     * Producer side. Claims a free command slot.
+     * @return The command to fill in and submit(), or null if the queue is
+     *         full and the command has to be dropped.
+     */
+    public Command obtain(CommandType type) {
+        long pos = mTail.get();
+        while (true) {
+            int index = (int) (pos & INDEX_MASK);
+            long diff = mSequences.get(index) - pos;
+            if (diff == 0) {
+                if (mTail.compareAndSet(pos, pos + 1)) {
+                    Command command = mSlots[index];
+                    command.mSequence = pos;
+                    command.mType = type;
+                    command.mCount = 0;
+                    return command;
+                }
+                pos = mTail.get();
+            } else if (diff < 0) {
+                mDropped.incrementAndGet();
+                return null;
+            } else {
+                // Another producer claimed this slot first
+                pos = mTail.get();
+            }
+        }
+    }
+
+    /**
+     * Producer side. Hands a filled command over to the consumer.
+     */
+    public void submit(Command command) {
+        mSequences.set(
+                (int) (command.mSequence & INDEX_MASK), command.mSequence + 1);
+    }
+
+    /** Producer side. Queues a gravity change. */
+    public void setGravity(float x, float y) {
+        Command command = obtain(CommandType.SET_GRAVITY);
+        if (command != null) {
+            command.mX = x;
+            command.mY = y;
+            submit(command);
+        }
+    }
+
+    /** Producer side. Queues a callback. */
+    public void runOnWorld(WorldCallback callback) {
+        Command command = obtain(CommandType.CALLBACK);
+        if (command != null) {
+            command.mCallback = callback;
+            submit(command);
+        }
+    }
+
+    /**
+     * Consumer side. Applies all submitted commands, in order. Must be
+     * called while holding the world lock.
+     * @return True if any command was applied
+     */
+    public boolean applyAll(World world, ParticleSystem ps) {
+        boolean applied = false;
+        Command command;
+        while ((command = peek()) != null) {
+            apply(command, world, ps);
+            release(command);
+            applied = true;
+        }
+        reportDrops();
+        return applied;
+    }
+
+    /**
+     * Consumer side. Applies all submitted commands to a tiled canvas, in
+     * order. Must be called while holding the world lock.
+     *
+     * New particle groups go to the strip under the first point of each
+     * command, and are joined per stroke within that strip. Destruction
+     * and gravity apply to every strip. Particle queries and velocities
+     * refer to particle indices, which are per strip, so they are dropped.
+     */
+    public void applyAll(TiledWorld tiled) {
+        Command command;
+        while ((command = peek()) != null) {
+            apply(command, tiled);
+            release(command);
+        }
+        reportDrops();
+    }
+
+    /**
+     * Consumer side. Drops all submitted commands without applying them,
+     * e.g. when the world they refer to is deleted. Must be called while
+     * holding the world lock.
+     */
+    public void discardAll() {
+        Command command;
+        while ((command = peek()) != null) {
+            release(command);
+        }
+    }
+
+    /** Warns about dropped commands, at most every DROP_LOG_INTERVAL. */
+    private void reportDrops() {
+        long dropped = mDropped.get();
+        if (dropped == mReportedDrops) {
+            return;
+        }
+        long time = System.nanoTime();
+        if (mLastDropLogTime != 0 &&
+            time - mLastDropLogTime < DROP_LOG_INTERVAL) {
+            return;
+        }
+        Log.w(TAG, "Queue was full; dropped " + (dropped - mReportedDrops) +
+              " commands");
+        mReportedDrops = dropped;
+        mLastDropLogTime = time;
+    }
+
+    private Command peek() {
+        int index = (int) (mHead & INDEX_MASK);
+        if (mSequences.get(index) != mHead + 1) {
+            return null;
+        }
+        return mSlots[index];
+    }
+
+    private void release(Command command) {
+        command.clearReferences();
+        mSequences.set((int) (mHead & INDEX_MASK), mHead + CAPACITY);
+        ++mHead;
+    }
+
+    private void apply(Command command, World world, ParticleSystem ps) {
+        switch (command.mType) {
+            case CREATE_PARTICLE_GROUP:
+                createParticleGroup(command, ps);
+                break;
+            case DESTROY_PARTICLES_IN_SHAPE:
+                // Goes through each (x,y) pair and queries for the particles
+                // in the circle shape to be destroyed.
+                mShape.setRadius(command.mRadius);
+                for (int i = 0; i < command.mCount; ++i) {
+                    mShape.setPosition(
+                            command.mPoints[2 * i], command.mPoints[2 * i + 1]);
+                    ps.destroyParticlesInShape(mShape, mIdentity);
+                }
+                break;
+            case QUERY_PARTICLES_IN_SHAPE:
+                mShape.setPosition(command.mX, command.mY);
+                mShape.setRadius(command.mRadius);
+                command.mTool.queryParticles(
+                        ps, mShape, mIdentity, command.mPointerInfo,
+                        command.mX, command.mY);
+                break;
+            case SET_PARTICLE_VELOCITY: {
+                int particleCount = ps.getParticleCount();
+                for (int i = 0; i < command.mCount; ++i) {
+                    // Indices may have gone stale if particles were destroyed
+                    if (command.mIndices[i] < particleCount) {
+                        ps.setParticleVelocity(
+                                command.mIndices[i],
+                                command.mPoints[2 * i],
+                                command.mPoints[2 * i + 1]);
+                    }
+                }
+                break;
+            }
+            case SET_GRAVITY:
+                world.setGravity(command.mX, command.mY);
+                break;
+            case CALLBACK:
+                command.mCallback.apply(world, ps);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void apply(Command command, TiledWorld tiled) {
+        switch (command.mType) {
+            case CREATE_PARTICLE_GROUP: {
+                if (command.mCount == 0) {
+                    break;
+                }
+                int strip = tiled.getStripAt(command.mPoints[0]);
+                ParticleGroupDef pgd = createParticleGroupDef(command);
+                tiled.createParticleGroup(strip, pgd, command.mPointerInfo);
+                // Clean up native objects
+                pgd.delete();
+                break;
+            }
+            case DESTROY_PARTICLES_IN_SHAPE:
+                mShape.setRadius(command.mRadius);
+                for (int strip = 0; strip < tiled.getStripCount(); ++strip) {
+                    ParticleSystem ps = tiled.getParticleSystem(strip);
+                    for (int i = 0; i < command.mCount; ++i) {
+                        mShape.setPosition(
+                                command.mPoints[2 * i],
+                                command.mPoints[2 * i + 1]);
+                        ps.destroyParticlesInShape(mShape, mIdentity);
+                    }
+                }
+                break;
+            case SET_GRAVITY:
+                tiled.setGravity(command.mX, command.mY);
+                break;
+            default:
+                if (!mWarnedUnsupported) {
+                    Log.w(TAG, command.mType + " is not supported on a " +
+                          "tiled canvas");
+                    mWarnedUnsupported = true;
+                }
+                break;
+        }
+    }
+
+    private void createParticleGroup(Command command, ParticleSystem ps) {
+        ParticleGroupDef pgd = createParticleGroupDef(command);
+        command.mTool.createParticleGroup(ps, pgd, command.mPointerInfo);
+
+        // Clean up native objects
+        pgd.delete();
+    }
+
+    /**
+     * Builds the definition of the group a CREATE_PARTICLE_GROUP command
+     * asks for. The caller must delete it.
+     */
+    private ParticleGroupDef createParticleGroupDef(Command command) {
+        mPointBuffer.clear();
+        for (int i = 0; i < 2 * command.mCount; ++i) {
+            mPointBuffer.putFloat(command.mPoints[i]);
+        }
+        mPointBuffer.flip();
+
+        // Convert ABGR back into ParticleColor
+        int color = command.mColor;
+        mColor.set(
+                (short) (color & 0xFF), (short) (color >> 8 & 0xFF),
+                (short) (color >> 16 & 0xFF), (short) (color >> 24 & 0xFF));
+        mVelocity.set(command.mVelocityX, command.mVelocityY);
+
+        ParticleGroupDef pgd = new ParticleGroupDef();
+        pgd.setFlags(command.mParticleFlags);
+        pgd.setGroupFlags(command.mParticleGroupFlags);
+        pgd.setLinearVelocity(mVelocity);
+        pgd.setColor(mColor);
+        pgd.setCircleShapesFromVertexList(
+                mPointBuffer, command.mCount, command.mRadius);
+        return pgd;
+    }
+}
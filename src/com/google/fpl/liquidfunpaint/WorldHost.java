@@ -0,0 +1,94 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+package com.google.fpl.liquidfunpaint;
+
+import com.google.fpl.liquidfun.ParticleGroup;
+import com.google.fpl.liquidfun.ParticleSystem;
+import com.google.fpl.liquidfun.World;
+
+/**
+ * Something that owns a LiquidFun world. The convention for thread-safety is
+ * to call acquireWorld to obtain a thread-safe world pointer, and
+ * releaseWorld when you are done with the object. The particle system is
+ * guarded by the same lock.
+ */
+public interface WorldHost {
+    /** Acquire the world for thread-safe operations. */
+    World acquireWorld();
+
+    /** Release the world after thread-safe operations. */
+    void releaseWorld();
+
+    /** Acquire the particle system for thread-safe operations. */
+    ParticleSystem acquireParticleSystem();
+
+    /** Release the particle system after thread-safe operations. */
+    void releaseParticleSystem();
+
+    /**
+     * Returns the scheduler that subsystems register with to run code at a
+     * given phase of each step.
+     */
+    FrameScheduler getFrameScheduler();
+
+    /**
+     * Returns the queue that tools submit world changes to. The host
+     * applies them on the thread stepping the world, before each step.
+     */
+    WorldCommandQueue getWorldCommandQueue();
+
+    /** Returns the budget that tools report the groups they draw to. */
+    ParticleBudget getParticleBudget();
+
+    /**
+     * Returns the index of particle groups, which tools mark dirty when they
+     * change the groups.
+     */
+    ParticleGroupIndex getParticleGroupIndex();
+
+    /** Width of the canvas the world is bounded by, in world units. */
+    float getWorldWidth();
+
+    /** Height of the canvas the world is bounded by, in world units. */
+    float getWorldHeight();
+
+    /**
+     * Returns the particle state published after the last step, or null.
+     * Only call this from the thread stepping the world; the snapshot must
+     * not be modified.
+     */
+    ParticleSnapshot getLastPublishedSnapshot();
+
+    /**
+     * Marks the end of a tool's stroke, a point that undo can go back to.
+     * Hosts without undo ignore it. Can be called from any thread.
+     */
+    void markStroke();
+
+    /**
+     * Called on the thread stepping the world when an undo or redo is about
+     * to destroy group with its particles. Whatever holds on to it, e.g. the
+     * ParticleBudget or a tool adding strokes to it, must let it go.
+     */
+    void onGroupDestroyed(ParticleGroup group);
+
+    /**
+     * Called on the thread stepping the world for each group recreated by
+     * an undo or redo, so it is tracked like a drawn one.
+     */
+    void onGroupRestored(ParticleGroup group);
+}
@@ -99,17 +99,28 @@ public class Material {
         int mComponentSize;
         boolean mNormalized;
         int mStride;
+        // Offset of the attribute within an interleaved vertex, in bytes
+        int mOffset;
         int mLocation;
 
         public AttributeInfo(
                 String name, int numComponents, AttrComponentType componentType,
                 int componentSize, boolean normalized, int stride, int location) {
+            this(name, numComponents, componentType, componentSize,
+                 normalized, stride, 0, location);
+        }
+
+        public AttributeInfo(
+                String name, int numComponents, AttrComponentType componentType,
+                int componentSize, boolean normalized, int stride, int offset,
+                int location) {
             mName = name;
             mNumComponents = numComponents;
             mComponentType = componentType;
             mComponentSize = componentSize;
             mNormalized = normalized;
             mStride = stride;
+            mOffset = offset;
             mLocation = location;
 
             if (location < 0) {
@@ -135,6 +146,8 @@ public class Material {
         new HashMap<String, AttributeInfo>();
     private Map<String, Texture> mTextures = new HashMap<String, Texture>(1);
     private RenderState mRenderState = new RenderState();
+    // True if an attribute reads from a VertexBuffer during this render
+    private boolean mVertexBufferBound = false;
 
     /// Member methods
 
@@ -152,10 +165,23 @@ public class Material {
     public AttributeInfo addAttribute(
             String name, int numComponents, AttrComponentType componentType,
             int componentSize, boolean normalized, int stride) {
+        return addAttribute(name, numComponents, componentType,
+                            componentSize, normalized, stride, 0);
+    }
+
+    /**
+     * Adds an attribute stored in an interleaved vertex format.
+     * @param stride Size of a whole vertex, in bytes
+     * @param offset Offset of this attribute within a vertex, in bytes.
+     *               Added to the offset given to setVertexAttributeBuffer().
+     */
+    public AttributeInfo addAttribute(
+            String name, int numComponents, AttrComponentType componentType,
+            int componentSize, boolean normalized, int stride, int offset) {
         int location = mShader.getAttributeLocation(name);
         AttributeInfo attr = new AttributeInfo(
                 name, numComponents, componentType,
-                componentSize, normalized, stride, location);
+                componentSize, normalized, stride, offset, location);
         mVertexAttributes.put(name, attr);
         return attr;
     }
@@ -175,26 +201,27 @@ public class Material {
 
         // Set render states
         if (mRenderState.mEnableBlend) {
-            GLES20.glEnable(GLES20.GL_BLEND);
-            GLES20.glBlendFunc(
+            RenderBackend.get().glEnable(GLES20.GL_BLEND);
+            RenderBackend.get().glBlendFunc(
                     mRenderState.mBlendColorSFactor.getGlType(),
                     mRenderState.mBlendColorDFactor.getGlType());
         }
 
         // enable all vertex attributes we have info on
         for (AttributeInfo attr : mVertexAttributes.values()) {
-            GLES20.glEnableVertexAttribArray(attr.mLocation);
+            RenderBackend.get().glEnableVertexAttribArray(attr.mLocation);
         }
 
         // enable all textures
         int textureIdx = 0;
         for (Entry<String, Texture> texture : mTextures.entrySet()) {
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + textureIdx);
-            GLES20.glBindTexture(
+            RenderBackend.get().glActiveTexture(
+                    GLES20.GL_TEXTURE0 + textureIdx);
+            RenderBackend.get().glBindTexture(
                     GLES20.GL_TEXTURE_2D, texture.getValue().getTextureId());
 
             // Set the correct uniform
-            GLES20.glUniform1i(
+            RenderBackend.get().glUniform1i(
                     getUniformLocation(texture.getKey()), textureIdx);
 
             // Get next texture index
@@ -205,18 +232,24 @@ public class Material {
     public void endRender() {
         // disable all textures
         for (int i = 0; i < mTextures.size(); ++i) {
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+            RenderBackend.get().glActiveTexture(GLES20.GL_TEXTURE0 + i);
+            RenderBackend.get().glBindTexture(GLES20.GL_TEXTURE_2D, 0);
         }
 
         // enable all vertex attributes
         for (AttributeInfo attr : mVertexAttributes.values()) {
-            GLES20.glDisableVertexAttribArray(attr.mLocation);
+            RenderBackend.get().glDisableVertexAttribArray(attr.mLocation);
+        }
+
+        // Leave client-side arrays usable for the next material
+        if (mVertexBufferBound) {
+            VertexBuffer.unbind();
+            mVertexBufferBound = false;
         }
 
         // Reset render states
         if (mRenderState.mEnableBlend) {
-            GLES20.glDisable(GLES20.GL_BLEND);
+            RenderBackend.get().glDisable(GLES20.GL_BLEND);
         }
 
         mShader.endRender();
@@ -224,8 +257,8 @@ public class Material {
 
     public void setVertexAttributeBuffer(
             AttributeInfo attr, Buffer buffer, int offset) {
-        buffer.position(offset);
-        GLES20.glVertexAttribPointer(
+        buffer.position(offset + attr.mOffset);
+        RenderBackend.get().glVertexAttribPointer(
                 attr.mLocation, attr.mNumComponents,
                 attr.mComponentType.getGlType(), attr.mNormalized,
                 attr.mStride, buffer);
@@ -234,13 +267,28 @@ public class Material {
     public void setVertexAttributeBuffer(
             String name, Buffer buffer, int offset) {
         AttributeInfo attr = mVertexAttributes.get(name);
-        buffer.position(offset);
-        GLES20.glVertexAttribPointer(
+        buffer.position(offset + attr.mOffset);
+        RenderBackend.get().glVertexAttribPointer(
                 attr.mLocation, attr.mNumComponents,
                 attr.mComponentType.getGlType(), attr.mNormalized,
                 attr.mStride, buffer);
     }
 
+    /**
+     * Reads the attribute from a buffer object, starting at offset bytes
+     * into it. Must be called between beginRender() and endRender().
+     */
+    public void setVertexAttributeBuffer(
+            String name, VertexBuffer buffer, int offset) {
+        AttributeInfo attr = mVertexAttributes.get(name);
+        buffer.bind();
+        mVertexBufferBound = true;
+        RenderBackend.get().glVertexAttribPointer(
+                attr.mLocation, attr.mNumComponents,
+                attr.mComponentType.getGlType(), attr.mNormalized,
+                attr.mStride, offset + attr.mOffset);
+    }
+
     /**
      * Provide access to the ShaderProgram function
      */
@@ -20,7 +20,6 @@ import com.google.fpl.liquidfunpaint.ParticleRenderer;
 import com.google.fpl.liquidfunpaint.Renderer;
 
 import android.content.Context;
-import android.opengl.GLES20;
 import android.util.Log;
 
 import org.json.JSONException;
@@ -57,7 +56,7 @@ public class ParticleMaterial extends Material {
         super.beginRender();
 
         // Specific uniforms to this material
-        GLES20.glUniform1f(
+        RenderBackend.get().glUniform1f(
                 getUniformLocation("uPointSize"),
                 Math.max(1.0f, mParticleSizeScale * ParticleRenderer.FB_SIZE *
                     (Renderer.PARTICLE_RADIUS /
@@ -0,0 +1,709 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package com.google.fpl.liquidfunpaint.shader;
+
+import android.opengl.GLES20;
+
+import java.nio.Buffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Counts what the renderers ask of OpenGL each frame: draw calls, state
+ * changes, bytes uploaded, and program, texture, buffer and framebuffer
+ * binds.
+ *
+ * In front of another backend, e.g. a GLES20Backend, it forwards every call
+ * and measures a real device. On its own it stands in for a driver, so the
+ * whole pipeline can run on a plain JVM: objects get fresh names, shaders
+ * always compile, and their attributes and uniforms are read from the
+ * declarations in their source, so Materials find their locations.
+ */
+public class RecordingBackend extends RenderBackend {
+    // Declarations we expose as active attributes and uniforms, headless
+    private static final Pattern ATTRIBUTE_PATTERN =
+            Pattern.compile("\\battribute\\s+\\w+\\s+(\\w+)\\s*;");
+    private static final Pattern UNIFORM_PATTERN = Pattern.compile(
+            "\\buniform\\s+(?:\\w+\\s+)?\\w+\\s+(\\w+)" +
+            "\\s*(?:\\[[^]]*\\])?\\s*;");
+
+    /** Counts for one frame. */
+    public static class FrameStats {
+        public int mDrawCalls;
+        public long mVertices;
+        public int mClears;
+        /** Enables, blend functions, viewports, vertex attributes, etc. */
+        public int mStateChanges;
+        public int mUniformUpdates;
+        /** Buffer and texture uploads */
+        public long mBytesUploaded;
+        public int mProgramBinds;
+        /** Binds of a texture; unbinding with texture 0 is not counted */
+        public int mTextureBinds;
+        public int mBufferBinds;
+        /** Binds of a different framebuffer than the bound one */
+        public int mFramebufferSwitches;
+
+        void add(FrameStats other) {
+            mDrawCalls += other.mDrawCalls;
+            mVertices += other.mVertices;
+            mClears += other.mClears;
+            mStateChanges += other.mStateChanges;
+            mUniformUpdates += other.mUniformUpdates;
+            mBytesUploaded += other.mBytesUploaded;
+            mProgramBinds += other.mProgramBinds;
+            mTextureBinds += other.mTextureBinds;
+            mBufferBinds += other.mBufferBinds;
+            mFramebufferSwitches += other.mFramebufferSwitches;
+        }
+
+        void copyFrom(FrameStats other) {
+            clear();
+            add(other);
+        }
+
+        void clear() {
+            mDrawCalls = 0;
+            mVertices = 0;
+            mClears = 0;
+            mStateChanges = 0;
+            mUniformUpdates = 0;
+            mBytesUploaded = 0;
+            mProgramBinds = 0;
+            mTextureBinds = 0;
+            mBufferBinds = 0;
+            mFramebufferSwitches = 0;
+        }
+
+        @Override
+        public String toString() {
+            return "draws " + mDrawCalls + " (" + mVertices + " vertices)" +
+                   ", clears " + mClears +
+                   ", state changes " + mStateChanges +
+                   ", uniforms " + mUniformUpdates +
+                   ", uploaded " + mBytesUploaded + " bytes" +
+                   ", program binds " + mProgramBinds +
+                   ", texture binds " + mTextureBinds +
+                   ", buffer binds " + mBufferBinds +
+                   ", framebuffer switches " + mFramebufferSwitches;
+        }
+    }
+
+    // Null when standing in for a driver
+    private final RenderBackend mDelegate;
+    private final FrameStats mCurrentFrame = new FrameStats();
+    private final FrameStats mLastFrame = new FrameStats();
+    private final FrameStats mTotal = new FrameStats();
+    private int mFrameCount = 0;
+    private int mBoundFramebuffer = 0;
+
+    // Headless state
+    private int mNextName = 1;
+    private int mCurrentProgram = 0;
+    private final Map<Integer, List<String>> mAttributes =
+            new HashMap<Integer, List<String>>();
+    private final Map<Integer, List<String>> mUniforms =
+            new HashMap<Integer, List<String>>();
+
+    /** Stands in for a driver. */
+    public RecordingBackend() {
+        this(null);
+    }
+
+    /** Records the calls, and forwards them to delegate. */
+    public RecordingBackend(RenderBackend delegate) {
+        mDelegate = delegate;
+    }
+
+    /** Returns the counts of the last complete frame. */
+    public FrameStats getLastFrame() {
+        FrameStats stats = new FrameStats();
+        stats.copyFrom(mLastFrame);
+        return stats;
+    }
+
+    /** Returns the counts of all complete frames so far. */
+    public FrameStats getTotal() {
+        FrameStats stats = new FrameStats();
+        stats.copyFrom(mTotal);
+        return stats;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /** Returns the framebuffer bound last, 0 being the screen. */
+    public int getBoundFramebuffer() {
+        return mBoundFramebuffer;
+    }
+
+    /** Forgets all counts, e.g. after warming up. */
+    public void resetStats() {
+        mCurrentFrame.clear();
+        mLastFrame.clear();
+        mTotal.clear();
+        mFrameCount = 0;
+    }
+
+    @Override
+    public void endFrame() {
+        mLastFrame.copyFrom(mCurrentFrame);
+        mTotal.add(mCurrentFrame);
+        mCurrentFrame.clear();
+        ++mFrameCount;
+        if (mDelegate != null) {
+            mDelegate.endFrame();
+        }
+    }
+
+    private int generateName() {
+        return mNextName++;
+    }
+
+    private void generateNames(int n, int[] names, int offset) {
+        for (int i = 0; i < n; ++i) {
+            names[offset + i] = generateName();
+        }
+    }
+
+    @Override
+    public void glActiveTexture(int texture) {
+        ++mCurrentFrame.mStateChanges;
+        if (mDelegate != null) {
+            mDelegate.glActiveTexture(texture);
+        }
+    }
+
+    @Override
+    public void glAttachShader(int program, int shader) {
+        if (mDelegate != null) {
+            mDelegate.glAttachShader(program, shader);
+            return;
+        }
+        addAll(mAttributes, program, mAttributes.get(shader));
+        addAll(mUniforms, program, mUniforms.get(shader));
+    }
+
+    private static void addAll(
+            Map<Integer, List<String>> map, int key, List<String> names) {
+        List<String> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<String>();
+            map.put(key, list);
+        }
+        if (names != null) {
+            for (String name : names) {
+                if (!list.contains(name)) {
+                    list.add(name);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void glBindBuffer(int target, int buffer) {
+        ++mCurrentFrame.mBufferBinds;
+        if (mDelegate != null) {
+            mDelegate.glBindBuffer(target, buffer);
+        }
+    }
+
+    @Override
+    public void glBindFramebuffer(int target, int framebuffer) {
+        if (framebuffer != mBoundFramebuffer) {
+            ++mCurrentFrame.mFramebufferSwitches;
+            mBoundFramebuffer = framebuffer;
+        }
+        if (mDelegate != null) {
+            mDelegate.glBindFramebuffer(target, framebuffer);
+        }
+    }
+
+    @Override
+    public void glBindTexture(int target, int texture) {
+        if (texture != 0) {
+            ++mCurrentFrame.mTextureBinds;
+        }
+        if (mDelegate != null) {
+            mDelegate.glBindTexture(target, texture);
+        }
+    }
+
+    @Override
+    public void glBlendFunc(int sfactor, int dfactor) {
+        ++mCurrentFrame.mStateChanges;
+        if (mDelegate != null) {
+            mDelegate.glBlendFunc(sfactor, dfactor);
+        }
+    }
+
+    @Override
+    public void glBufferData(int target, int size, Buffer data, int usage) {
+        if (data != null) {
+            mCurrentFrame.mBytesUploaded += size;
+        }
+        if (mDelegate != null) {
+            mDelegate.glBufferData(target, size, data, usage);
+        }
+    }
+
+    @Override
+    public void glBufferSubData(int target, int offset, int size, Buffer data) {
+        mCurrentFrame.mBytesUploaded += size;
+        if (mDelegate != null) {
+            mDelegate.glBufferSubData(target, offset, size, data);
+        }
+    }
+
+    @Override
+    public int glCheckFramebufferStatus(int target) {
+        if (mDelegate != null) {
+            return mDelegate.glCheckFramebufferStatus(target);
+        }
+        return GLES20.GL_FRAMEBUFFER_COMPLETE;
+    }
+
+    @Override
+    public void glClear(int mask) {
+        ++mCurrentFrame.mClears;
+        if (mDelegate != null) {
+            mDelegate.glClear(mask);
+        }
+    }
+
+    @Override
+    public void glClearColor(float red, float green, float blue, float alpha) {
+        ++mCurrentFrame.mStateChanges;
+        if (mDelegate != null) {
+            mDelegate.glClearColor(red, green, blue, alpha);
+        }
+    }
+
+    @Override
+    public void glCompileShader(int shader) {
+        if (mDelegate != null) {
+            mDelegate.glCompileShader(shader);
+        }
+    }
+
+    @Override
+    public int glCreateProgram() {
+        if (mDelegate != null) {
+            return mDelegate.glCreateProgram();
+        }
+        return generateName();
+    }
+
+    @Override
+    public int glCreateShader(int type) {
+        if (mDelegate != null) {
+            return mDelegate.glCreateShader(type);
+        }
+        return generateName();
+    }
+
+    @Override
+    public void glDeleteBuffers(int n, int[] buffers, int offset) {
+        if (mDelegate != null) {
+            mDelegate.glDeleteBuffers(n, buffers, offset);
+        }
+    }
+
+    @Override
+    public void glDeleteShader(int shader) {
+        if (mDelegate != null) {
+            mDelegate.glDeleteShader(shader);
+        }
+    }
+
+    @Override
+    public void glDisable(int cap) {
+        ++mCurrentFrame.mStateChanges;
+        if (mDelegate != null) {
+            mDelegate.glDisable(cap);
+        }
+    }
+
+    @Override
+    public void glDisableVertexAttribArray(int index) {
+        ++mCurrentFrame.mStateChanges;
+        if (mDelegate != null) {
+            mDelegate.glDisableVertexAttribArray(index);
+        }
+    }
+
+    @Override
+    public void glDrawArrays(int mode, int first, int count) {
+        ++mCurrentFrame.mDrawCalls;
+        mCurrentFrame.mVertices += count;
+        if (mDelegate != null) {
+            mDelegate.glDrawArrays(mode, first, count);
+        }
+    }
+
+    @Override
+    public void glEnable(int cap) {
+        ++mCurrentFrame.mStateChanges;
+        if (mDelegate != null) {
+            mDelegate.glEnable(cap);
+        }
+    }
+
+    @Override
+    public void glEnableVertexAttribArray(int index) {
+        ++mCurrentFrame.mStateChanges;
+        if (mDelegate != null) {
+            mDelegate.glEnableVertexAttribArray(index);
+        }
+    }
+
+    @Override
+    public void glFlush() {
+        if (mDelegate != null) {
+            mDelegate.glFlush();
+        }
+    }
+
+    @Override
+    public void glFramebufferTexture2D(
+            int target, int attachment, int textarget, int texture,
+            int level) {
+        ++mCurrentFrame.mStateChanges;
+        if (mDelegate != null) {
+            mDelegate.glFramebufferTexture2D(
+                    target, attachment, textarget, texture, level);
+        }
+    }
+
+    @Override
+    public void glGenBuffers(int n, int[] buffers, int offset) {
+        if (mDelegate != null) {
+            mDelegate.glGenBuffers(n, buffers, offset);
+        } else {
+            generateNames(n, buffers, offset);
+        }
+    }
+
+    @Override
+    public void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+        if (mDelegate != null) {
+            mDelegate.glGenFramebuffers(n, framebuffers, offset);
+        } else {
+            generateNames(n, framebuffers, offset);
+        }
+    }
+
+    @Override
+    public void glGenTextures(int n, int[] textures, int offset) {
+        if (mDelegate != null) {
+            mDelegate.glGenTextures(n, textures, offset);
+        } else {
+            generateNames(n, textures, offset);
+        }
+    }
+
+    @Override
+    public void glGetActiveAttrib(
+            int program, int index, int bufsize, int[] length,
+            int lengthOffset, int[] size, int sizeOffset, int[] type,
+            int typeOffset, byte[] name, int nameOffset) {
+        if (mDelegate != null) {
+            mDelegate.glGetActiveAttrib(
+                    program, index, bufsize, length, lengthOffset, size,
+                    sizeOffset, type, typeOffset, name, nameOffset);
+            return;
+        }
+        getActive(mAttributes.get(program), index, bufsize, length,
+                  lengthOffset, size, sizeOffset, type, typeOffset, name,
+                  nameOffset);
+    }
+
+    @Override
+    public void glGetActiveUniform(
+            int program, int index, int bufsize, int[] length,
+            int lengthOffset, int[] size, int sizeOffset, int[] type,
+            int typeOffset, byte[] name, int nameOffset) {
+        if (mDelegate != null) {
+            mDelegate.glGetActiveUniform(
+                    program, index, bufsize, length, lengthOffset, size,
+                    sizeOffset, type, typeOffset, name, nameOffset);
+            return;
+        }
+        getActive(mUniforms.get(program), index, bufsize, length,
+                  lengthOffset, size, sizeOffset, type, typeOffset, name,
+                  nameOffset);
+    }
+
+    private static void getActive(
+            List<String> names, int index, int bufsize, int[] length,
+            int lengthOffset, int[] size, int sizeOffset, int[] type,
+            int typeOffset, byte[] name, int nameOffset) {
+        byte[] bytes = names.get(index).getBytes();
+        int count = Math.min(bytes.length, bufsize - 1);
+        System.arraycopy(bytes, 0, name, nameOffset, count);
+        length[lengthOffset] = count;
+        size[sizeOffset] = 1;
+        type[typeOffset] = 0;
+    }
+
+    @Override
+    public int glGetAttribLocation(int program, String name) {
+        if (mDelegate != null) {
+            return mDelegate.glGetAttribLocation(program, name);
+        }
+        return indexOf(mAttributes.get(program), name);
+    }
+
+    private static int indexOf(List<String> names, String name) {
+        return (names == null) ? -1 : names.indexOf(name);
+    }
+
+    @Override
+    public int glGetError() {
+        if (mDelegate != null) {
+            return mDelegate.glGetError();
+        }
+        return GLES20.GL_NO_ERROR;
+    }
+
+    @Override
+    public void glGetIntegerv(int pname, int[] params, int offset) {
+        if (mDelegate != null) {
+            mDelegate.glGetIntegerv(pname, params, offset);
+        } else if (pname == GLES20.GL_CURRENT_PROGRAM) {
+            params[offset] = mCurrentProgram;
+        } else {
+            params[offset] = 0;
+        }
+    }
+
+    @Override
+    public String glGetProgramInfoLog(int program) {
+        if (mDelegate != null) {
+            return mDelegate.glGetProgramInfoLog(program);
+        }
+        return "";
+    }
+
+    @Override
+    public void glGetProgramiv(
+            int program, int pname, int[] params, int offset) {
+        if (mDelegate != null) {
+            mDelegate.glGetProgramiv(program, pname, params, offset);
+            return;
+        }
+        switch (pname) {
+            case GLES20.GL_LINK_STATUS:
+                params[offset] = GLES20.GL_TRUE;
+                break;
+            case GLES20.GL_ACTIVE_ATTRIBUTES:
+                params[offset] = count(mAttributes.get(program));
+                break;
+            case GLES20.GL_ACTIVE_UNIFORMS:
+                params[offset] = count(mUniforms.get(program));
+                break;
+            case GLES20.GL_ACTIVE_ATTRIBUTE_MAX_LENGTH:
+                params[offset] = maxLength(mAttributes.get(program));
+                break;
+            case GLES20.GL_ACTIVE_UNIFORM_MAX_LENGTH:
+                params[offset] = maxLength(mUniforms.get(program));
+                break;
+            default:
+                params[offset] = 0;
+                break;
+        }
+    }
+
+    private static int count(List<String> names) {
+        return (names == null) ? 0 : names.size();
+    }
+
+    /** Longest name plus the terminating null, as GL reports it. */
+    private static int maxLength(List<String> names) {
+        int length = 0;
+        if (names != null) {
+            for (String name : names) {
+                length = Math.max(length, name.getBytes().length + 1);
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public String glGetShaderInfoLog(int shader) {
+        if (mDelegate != null) {
+            return mDelegate.glGetShaderInfoLog(shader);
+        }
+        return "";
+    }
+
+    @Override
+    public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+        if (mDelegate != null) {
+            mDelegate.glGetShaderiv(shader, pname, params, offset);
+        } else if (pname == GLES20.GL_COMPILE_STATUS) {
+            params[offset] = GLES20.GL_TRUE;
+        } else {
+            params[offset] = 0;
+        }
+    }
+
+    @Override
+    public int glGetUniformLocation(int program, String name) {
+        if (mDelegate != null) {
+            return mDelegate.glGetUniformLocation(program, name);
+        }
+        return indexOf(mUniforms.get(program), name);
+    }
+
+    @Override
+    public void glLinkProgram(int program) {
+        if (mDelegate != null) {
+            mDelegate.glLinkProgram(program);
+        }
+    }
+
+    @Override
+    public void glReadPixels(
+            int x, int y, int width, int height, int format, int type,
+            Buffer pixels) {
+        if (mDelegate != null) {
+            mDelegate.glReadPixels(x, y, width, height, format, type, pixels);
+        }
+    }
+
+    @Override
+    public void glShaderSource(int shader, String string) {
+        if (mDelegate != null) {
+            mDelegate.glShaderSource(shader, string);
+            return;
+        }
+        mAttributes.put(shader, findNames(ATTRIBUTE_PATTERN, string));
+        mUniforms.put(shader, findNames(UNIFORM_PATTERN, string));
+    }
+
+    private static List<String> findNames(Pattern pattern, String source) {
+        List<String> names = new ArrayList<String>();
+        Matcher matcher = pattern.matcher(source);
+        while (matcher.find()) {
+            names.add(matcher.group(1));
+        }
+        return names;
+    }
+
+    @Override
+    public void glTexImage2D(
+            int target, int level, int internalformat, int width, int height,
+            int border, int format, int type, Buffer pixels) {
+        if (pixels != null) {
+            mCurrentFrame.mBytesUploaded += 4L * width * height;
+        }
+        if (mDelegate != null) {
+            mDelegate.glTexImage2D(
+                    target, level, internalformat, width, height, border,
+                    format, type, pixels);
+        }
+    }
+
+    @Override
+    public void glTexParameteri(int target, int pname, int param) {
+        ++mCurrentFrame.mStateChanges;
+        if (mDelegate != null) {
+            mDelegate.glTexParameteri(target, pname, param);
+        }
+    }
+
+    @Override
+    public void glUniform1f(int location, float x) {
+        ++mCurrentFrame.mUniformUpdates;
+        if (mDelegate != null) {
+            mDelegate.glUniform1f(location, x);
+        }
+    }
+
+    @Override
+    public void glUniform1i(int location, int x) {
+        ++mCurrentFrame.mUniformUpdates;
+        if (mDelegate != null) {
+            mDelegate.glUniform1i(location, x);
+        }
+    }
+
+    @Override
+    public void glUniform3fv(int location, int count, float[] v, int offset) {
+        ++mCurrentFrame.mUniformUpdates;
+        if (mDelegate != null) {
+            mDelegate.glUniform3fv(location, count, v, offset);
+        }
+    }
+
+    @Override
+    public void glUniformMatrix4fv(
+            int location, int count, boolean transpose, float[] value,
+            int offset) {
+        ++mCurrentFrame.mUniformUpdates;
+        if (mDelegate != null) {
+            mDelegate.glUniformMatrix4fv(
+                    location, count, transpose, value, offset);
+        }
+    }
+
+    @Override
+    public void glUseProgram(int program) {
+        ++mCurrentFrame.mProgramBinds;
+        mCurrentProgram = program;
+        if (mDelegate != null) {
+            mDelegate.glUseProgram(program);
+        }
+    }
+
+    @Override
+    public void glVertexAttribPointer(
+            int index, int size, int type, boolean normalized, int stride,
+            Buffer ptr) {
+        ++mCurrentFrame.mStateChanges;
+        if (mDelegate != null) {
+            mDelegate.glVertexAttribPointer(
+                    index, size, type, normalized, stride, ptr);
+        }
+    }
+
+    @Override
+    public void glVertexAttribPointer(
+            int index, int size, int type, boolean normalized, int stride,
+            int offset) {
+        ++mCurrentFrame.mStateChanges;
+        if (mDelegate != null) {
+            mDelegate.glVertexAttribPointer(
+                    index, size, type, normalized, stride, offset);
+        }
+    }
+
+    @Override
+    public void glViewport(int x, int y, int width, int height) {
+        ++mCurrentFrame.mStateChanges;
+        if (mDelegate != null) {
+            mDelegate.glViewport(x, y, width, height);
+        }
+    }
+}
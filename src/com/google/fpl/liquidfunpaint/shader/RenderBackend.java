@@ -0,0 +1,128 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package com.google.fpl.liquidfunpaint.shader;
+
+import java.nio.Buffer;
+
+/**
+ * The OpenGL ES 2.0 calls the renderers make, so they can run against
+ * something other than the device driver.
+ *
+ * Every renderer goes through get() instead of calling GLES20 directly.
+ * GLES20Backend forwards to the driver and is the default. RecordingBackend
+ * counts the calls per frame, on its own for headless runs, or in front of
+ * another backend to measure a device.
+ *
+ * The methods mirror their GLES20 counterparts, so they take the GLES20
+ * constants. The backend is only used from the GLSurfaceView thread, or the
+ * thread standing in for it; set() it before any GL object is created.
+ */
+public abstract class RenderBackend {
+    private static RenderBackend sBackend = new GLES20Backend();
+
+    /** Returns the backend all rendering goes through. */
+    public static RenderBackend get() {
+        return sBackend;
+    }
+
+    /**
+     * Replaces the backend. Objects created through the old one, e.g.
+     * textures and shaders, must be created again.
+     */
+    public static void set(RenderBackend backend) {
+        sBackend = backend;
+    }
+
+    /** Marks the end of a frame. */
+    public abstract void endFrame();
+
+    public abstract void glActiveTexture(int texture);
+    public abstract void glAttachShader(int program, int shader);
+    public abstract void glBindBuffer(int target, int buffer);
+    public abstract void glBindFramebuffer(int target, int framebuffer);
+    public abstract void glBindTexture(int target, int texture);
+    public abstract void glBlendFunc(int sfactor, int dfactor);
+    public abstract void glBufferData(
+            int target, int size, Buffer data, int usage);
+    public abstract void glBufferSubData(
+            int target, int offset, int size, Buffer data);
+    public abstract int glCheckFramebufferStatus(int target);
+    public abstract void glClear(int mask);
+    public abstract void glClearColor(
+            float red, float green, float blue, float alpha);
+    public abstract void glCompileShader(int shader);
+    public abstract int glCreateProgram();
+    public abstract int glCreateShader(int type);
+    public abstract void glDeleteBuffers(int n, int[] buffers, int offset);
+    public abstract void glDeleteShader(int shader);
+    public abstract void glDisable(int cap);
+    public abstract void glDisableVertexAttribArray(int index);
+    public abstract void glDrawArrays(int mode, int first, int count);
+    public abstract void glEnable(int cap);
+    public abstract void glEnableVertexAttribArray(int index);
+    public abstract void glFlush();
+    public abstract void glFramebufferTexture2D(
+            int target, int attachment, int textarget, int texture,
+            int level);
+    public abstract void glGenBuffers(int n, int[] buffers, int offset);
+    public abstract void glGenFramebuffers(
+            int n, int[] framebuffers, int offset);
+    public abstract void glGenTextures(int n, int[] textures, int offset);
+    public abstract void glGetActiveAttrib(
+            int program, int index, int bufsize, int[] length,
+            int lengthOffset, int[] size, int sizeOffset, int[] type,
+            int typeOffset, byte[] name, int nameOffset);
+    public abstract void glGetActiveUniform(
+            int program, int index, int bufsize, int[] length,
+            int lengthOffset, int[] size, int sizeOffset, int[] type,
+            int typeOffset, byte[] name, int nameOffset);
+    public abstract int glGetAttribLocation(int program, String name);
+    public abstract int glGetError();
+    public abstract void glGetIntegerv(int pname, int[] params, int offset);
+    public abstract String glGetProgramInfoLog(int program);
+    public abstract void glGetProgramiv(
+            int program, int pname, int[] params, int offset);
+    public abstract String glGetShaderInfoLog(int shader);
+    public abstract void glGetShaderiv(
+            int shader, int pname, int[] params, int offset);
+    public abstract int glGetUniformLocation(int program, String name);
+    public abstract void glLinkProgram(int program);
+    public abstract void glReadPixels(
+            int x, int y, int width, int height, int format, int type,
+            Buffer pixels);
+    public abstract void glShaderSource(int shader, String string);
+    public abstract void glTexImage2D(
+            int target, int level, int internalformat, int width, int height,
+            int border, int format, int type, Buffer pixels);
+    public abstract void glTexParameteri(int target, int pname, int param);
+    public abstract void glUniform1f(int location, float x);
+    public abstract void glUniform1i(int location, int x);
+    public abstract void glUniform3fv(
+            int location, int count, float[] v, int offset);
+    public abstract void glUniformMatrix4fv(
+            int location, int count, boolean transpose, float[] value,
+            int offset);
+    public abstract void glUseProgram(int program);
+    public abstract void glVertexAttribPointer(
+            int index, int size, int type, boolean normalized, int stride,
+            Buffer ptr);
+    public abstract void glVertexAttribPointer(
+            int index, int size, int type, boolean normalized, int stride,
+            int offset);
+    public abstract void glViewport(int x, int y, int width, int height);
+}
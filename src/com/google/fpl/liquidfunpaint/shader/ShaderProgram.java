@@ -83,7 +83,8 @@ public class ShaderProgram {
      */
     private static void checkGlError(String glFunction) {
         int error;
-        while ((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR) {
+        RenderBackend gl = RenderBackend.get();
+        while ((error = gl.glGetError()) != GLES20.GL_NO_ERROR) {
                 Log.e(TAG, glFunction + ": glError " + error);
         }
     }
@@ -94,17 +95,18 @@ public class ShaderProgram {
      */
     private static int loadShader(
             int shaderType, String shaderName, String shaderSource) {
-        int shaderProg = GLES20.glCreateShader(shaderType);
-        GLES20.glShaderSource(shaderProg, shaderSource);
-        GLES20.glCompileShader(shaderProg);
+        int shaderProg = RenderBackend.get().glCreateShader(shaderType);
+        RenderBackend.get().glShaderSource(shaderProg, shaderSource);
+        RenderBackend.get().glCompileShader(shaderProg);
 
         // Check for errors
         int[] status = new int[1];
-        GLES20.glGetShaderiv(shaderProg, GLES20.GL_COMPILE_STATUS, status, 0);
+        RenderBackend.get().glGetShaderiv(
+                shaderProg, GLES20.GL_COMPILE_STATUS, status, 0);
         if (status[0] == 0) {
             Log.e(TAG, "Could not compile shader " + shaderName + ":");
-            Log.e(TAG, GLES20.glGetShaderInfoLog(shaderProg));
-            GLES20.glDeleteShader(shaderProg);
+            Log.e(TAG, RenderBackend.get().glGetShaderInfoLog(shaderProg));
+            RenderBackend.get().glDeleteShader(shaderProg);
             shaderProg = 0;
         }
 
@@ -145,18 +147,18 @@ public class ShaderProgram {
     }
 
     /**
-     * Wrapper for GLES20.glGetProgramiv with a better return interface.
+     * Wrapper for glGetProgramiv with a better return interface.
      */
     private static int getProgramiv(int program, int pname) {
-        GLES20.glGetProgramiv(program, pname, sGlParams, 0);
+        RenderBackend.get().glGetProgramiv(program, pname, sGlParams, 0);
         return sGlParams[0];
     }
 
     /**
-     * Wrapper for GLES20.glGetIntegerv with a better return interface.
+     * Wrapper for glGetIntegerv with a better return interface.
      */
     private static int getIntegerv(int pname) {
-        GLES20.glGetIntegerv(pname, sGlParams, 0);
+        RenderBackend.get().glGetIntegerv(pname, sGlParams, 0);
         return sGlParams[0];
     }
 
@@ -175,25 +177,26 @@ public class ShaderProgram {
      * Creates a shader program.
      */
     private void createProgram(String vsName, String psName) {
-        int program = GLES20.glCreateProgram();
+        int program = RenderBackend.get().glCreateProgram();
 
         // Technically, we could cache the compiled shader,
         // since a lot of shaders might share the same VS or FS. Unless the
         // number of reused shaders get large, there's not much of a gain.
         int vertexShaderProg = COMPILED_SHADERS.get(vsName);
-        GLES20.glAttachShader(program, vertexShaderProg);
+        RenderBackend.get().glAttachShader(program, vertexShaderProg);
 
         int fragmentShaderProg = COMPILED_SHADERS.get(psName);
-        GLES20.glAttachShader(program, fragmentShaderProg);
+        RenderBackend.get().glAttachShader(program, fragmentShaderProg);
 
         // Check for errors
-        GLES20.glLinkProgram(program);
+        RenderBackend.get().glLinkProgram(program);
         int[] status = new int[1];
-        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        RenderBackend.get().glGetProgramiv(
+                program, GLES20.GL_LINK_STATUS, status, 0);
         if (status[0] == 0) {
             Log.e(TAG, "Could not link shaders " + vsName + " and "
                       + psName + ". OpenGL log:");
-            Log.e(TAG, GLES20.glGetProgramInfoLog(program));
+            Log.e(TAG, RenderBackend.get().glGetProgramInfoLog(program));
             program = 0;
         }
 
@@ -216,11 +219,12 @@ public class ShaderProgram {
 
         byte[] nameBuffer = new byte[maxNameSize];
         for (int i = 0; i < numAttributes; ++i) {
-            GLES20.glGetActiveAttrib(
+            RenderBackend.get().glGetActiveAttrib(
                     mProgram, i, maxNameSize, sGlParams, 0, sGlParams, 1,
                     sGlParams, 2, nameBuffer, 0);
             String name = new String(nameBuffer, 0, sGlParams[0]);
-            int location = GLES20.glGetAttribLocation(mProgram, name);
+            int location =
+                    RenderBackend.get().glGetAttribLocation(mProgram, name);
             mVertexAttributes.put(name, new ParamInfo(
                     name, sGlParams[1], sGlParams[2], location));
         }
@@ -244,11 +248,12 @@ public class ShaderProgram {
 
         byte[] nameBuffer = new byte[maxNameSize];
         for (int i = 0; i < numUniforms; ++i) {
-            GLES20.glGetActiveUniform(
+            RenderBackend.get().glGetActiveUniform(
                     mProgram, i, maxNameSize, sGlParams, 0, sGlParams, 1,
                     sGlParams, 2, nameBuffer, 0);
             String name = new String(nameBuffer, 0, sGlParams[0]);
-            int location = GLES20.glGetUniformLocation(mProgram, name);
+            int location =
+                    RenderBackend.get().glGetUniformLocation(mProgram, name);
             mUniforms.put(name, new ParamInfo(
                     name, sGlParams[1], sGlParams[2], location));
         }
@@ -265,7 +270,7 @@ public class ShaderProgram {
     protected void beginRender() {
         // Only reset the program and bindings if it's not the same one.
         if (getIntegerv(GLES20.GL_CURRENT_PROGRAM) != mProgram) {
-            GLES20.glUseProgram(mProgram);
+            RenderBackend.get().glUseProgram(mProgram);
         }
     }
 
@@ -23,7 +23,9 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
 import android.opengl.GLES20;
-import android.opengl.GLUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * A texture.
@@ -124,7 +126,7 @@ public class Texture {
     }
 
     private void generateTexture() {
-        GLES20.glGenTextures(1, mTextureId, 0);
+        RenderBackend.get().glGenTextures(1, mTextureId, 0);
     }
 
     /**
@@ -158,26 +160,42 @@ public class Texture {
         mWidth = bitmap.getWidth();
         mHeight = bitmap.getHeight();
 
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId[0]);
+        RenderBackend.get().glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId[0]);
 
-        GLES20.glTexParameteri(
+        RenderBackend.get().glTexParameteri(
                 GLES20.GL_TEXTURE_2D,
                 GLES20.GL_TEXTURE_MAG_FILTER,
                 GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(
+        RenderBackend.get().glTexParameteri(
                 GLES20.GL_TEXTURE_2D,
                 GLES20.GL_TEXTURE_MIN_FILTER,
                 GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(
+        RenderBackend.get().glTexParameteri(
                 GLES20.GL_TEXTURE_2D,
                 GLES20.GL_TEXTURE_WRAP_S,
                 wrapS.getGlType());
-        GLES20.glTexParameteri(
+        RenderBackend.get().glTexParameteri(
                 GLES20.GL_TEXTURE_2D,
                 GLES20.GL_TEXTURE_WRAP_T,
                 wrapT.getGlType());
 
-        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+        // The backend only takes raw pixels. ARGB_8888 bitmaps keep theirs
+        // as RGBA bytes, the layout GL_RGBA expects.
+        Bitmap pixelBitmap = bitmap;
+        if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            pixelBitmap = bitmap.copy(Bitmap.Config.ARGB_8888, false);
+        }
+        ByteBuffer pixels = ByteBuffer.allocateDirect(4 * mWidth * mHeight)
+                .order(ByteOrder.nativeOrder());
+        pixelBitmap.copyPixelsToBuffer(pixels);
+        pixels.rewind();
+        if (pixelBitmap != bitmap) {
+            pixelBitmap.recycle();
+        }
+
+        RenderBackend.get().glTexImage2D(
+                GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mWidth, mHeight, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
     }
 
     /**
@@ -0,0 +1,89 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package com.google.fpl.liquidfunpaint.shader;
+
+import android.opengl.GLES20;
+
+import java.nio.Buffer;
+
+/**
+ * A GL_ARRAY_BUFFER for vertex data that changes every frame.
+ *
+ * Each frame, beginUpload() orphans the previous contents, so the driver
+ * can hand us fresh storage instead of waiting for the GPU to finish
+ * drawing from it, and upload() fills it with glBufferSubData(). Draw calls
+ * then read from the buffer at byte offsets, set up with
+ * Material.setVertexAttributeBuffer(), instead of having the driver copy
+ * client memory again for every draw.
+ *
+ * Like Texture, it must be created on the GLSurfaceView thread, and again
+ * whenever the GL context is recreated.
+ */
+public class VertexBuffer {
+    private int[] mBufferId = new int[1];
+    // Size of the storage we last allocated, in bytes
+    private int mCapacity = 0;
+
+    public VertexBuffer() {
+        RenderBackend.get().glGenBuffers(1, mBufferId, 0);
+    }
+
+    /**
+     * Binds the buffer and replaces its storage with size bytes of
+     * undefined contents, to be filled by upload().
+     */
+    public void beginUpload(int size) {
+        bind();
+        // Orphan the old storage. Grow geometrically so the size of the
+        // allocation, which drivers may keep around, changes rarely.
+        if (size > mCapacity) {
+            mCapacity = Math.max(size, mCapacity * 2);
+        }
+        RenderBackend.get().glBufferData(
+                GLES20.GL_ARRAY_BUFFER, mCapacity, null,
+                GLES20.GL_STREAM_DRAW);
+    }
+
+    /**
+     * Copies size bytes from data, starting at its position, to offset in
+     * the buffer. Only call between beginUpload() and the draws reading it.
+     */
+    public void upload(int offset, Buffer data, int size) {
+        RenderBackend.get().glBufferSubData(
+                GLES20.GL_ARRAY_BUFFER, offset, size, data);
+    }
+
+    public void bind() {
+        RenderBackend.get().glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBufferId[0]);
+    }
+
+    /** Goes back to client-side vertex arrays. */
+    public static void unbind() {
+        RenderBackend.get().glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    public int getBufferId() {
+        return mBufferId[0];
+    }
+
+    public void delete() {
+        RenderBackend.get().glDeleteBuffers(1, mBufferId, 0);
+        mBufferId[0] = 0;
+        mCapacity = 0;
+    }
+}
@@ -20,7 +20,6 @@ import com.google.fpl.liquidfunpaint.ParticleRenderer;
 import com.google.fpl.liquidfunpaint.Renderer;
 
 import android.content.Context;
-import android.opengl.GLES20;
 import android.util.Log;
 
 import org.json.JSONException;
@@ -76,12 +75,12 @@ public class WaterParticleMaterial extends Material {
         super.beginRender();
 
         // Specific uniforms to this material
-        GLES20.glUniform1f(
+        RenderBackend.get().glUniform1f(
                 getUniformLocation("uPointSize"),
                 Math.max(1.0f, mParticleSizeScale * ParticleRenderer.FB_SIZE *
                     (Renderer.PARTICLE_RADIUS /
                     Renderer.getInstance().sRenderWorldHeight)));
-        GLES20.glUniform3fv(
+        RenderBackend.get().glUniform3fv(
                 getUniformLocation("uWeightParams"), 1, mWeightParams, 0);
     }
 }
@@ -17,6 +17,7 @@
 package com.google.fpl.liquidfunpaint.tool;
 
 import com.google.fpl.liquidfunpaint.tool.Tool.ToolOperation;
+import com.google.fpl.liquidfunpaint.WorldHost;
 
 /**
  * Eraser tool
@@ -24,8 +25,8 @@ import com.google.fpl.liquidfunpaint.tool.Tool.ToolOperation;
  * particles.
  */
 public class EraserTool extends Tool {
-    public EraserTool() {
-        super(ToolType.ERASER);
+    public EraserTool(WorldHost host) {
+        super(ToolType.ERASER, host);
         // Set the eraser tool size a bit bigger to make it easier to erase
         mBrushSize = MINIMUM_BRUSHSIZE * 1.25f;
         mOperations.remove(ToolOperation.ADD_PARTICLES);
@@ -19,15 +19,21 @@ package com.google.fpl.liquidfunpaint.tool;
 import com.google.fpl.liquidfun.Fixture;
 import com.google.fpl.liquidfun.ParticleSystem;
 import com.google.fpl.liquidfun.QueryCallback;
-import com.google.fpl.liquidfunpaint.Renderer;
+import com.google.fpl.liquidfun.Shape;
+import com.google.fpl.liquidfun.Transform;
+import com.google.fpl.liquidfunpaint.FramePhase;
+import com.google.fpl.liquidfunpaint.FramePhaseListener;
+import com.google.fpl.liquidfunpaint.ParticleSnapshot;
+import com.google.fpl.liquidfunpaint.WorldCommandQueue;
+import com.google.fpl.liquidfunpaint.WorldCommandQueue.Command;
+import com.google.fpl.liquidfunpaint.WorldCommandQueue.CommandType;
 import com.google.fpl.liquidfunpaint.util.Vector2f;
+import com.google.fpl.liquidfunpaint.WorldHost;
 
 import android.util.SparseArray;
 import android.view.MotionEvent;
 import android.view.View;
 
-import java.util.Observable;
-import java.util.Observer;
 import java.util.Vector;
 
 /**
@@ -35,8 +41,10 @@ import java.util.Vector;
  * We create particle groups per draw, but we don't need to join them.
  * Particle groups are merely used to mimic the shape of a stroke.
  */
-public class MoveTool extends Tool implements Observer {
+public class MoveTool extends Tool implements FramePhaseListener {
     private MoveQueryCallback mCb = new MoveQueryCallback();
+    // Filled by queries on the thread stepping the world, read there every
+    // step, and cleared on the UI thread. Guarded by its own lock.
     private SparseArray<Vector<ParticleQueryResult>> mPointerResultList =
             new SparseArray<Vector<ParticleQueryResult>>();
 
@@ -81,12 +89,17 @@ public class MoveTool extends Tool implements Observer {
          * the current location of the pointer.
          */
         private PointerInfo mPInfo;
+        /**
+         * Location of the pointer when the query was queued.
+         */
+        private Vector2f mQueryPoint = new Vector2f(0, 0);
 
         private MoveQueryCallback() {}
 
-        public void set(MoveTool tool, PointerInfo pInfo) {
+        public void set(MoveTool tool, PointerInfo pInfo, float x, float y) {
             mMoveTool = tool;
             mPInfo = pInfo;
+            mQueryPoint.set(x, y);
         }
 
         @Override
@@ -101,7 +114,7 @@ public class MoveTool extends Tool implements Observer {
             Vector2f p = new Vector2f(
                     ps.getParticlePositionX(index),
                     ps.getParticlePositionY(index));
-            Vector2f delta = mPInfo.getWorldPoint().sub(p);
+            Vector2f delta = mQueryPoint.sub(p);
 
             mMoveTool.addParticle(
                     mPInfo.getPointerId(),
@@ -110,8 +123,8 @@ public class MoveTool extends Tool implements Observer {
         }
     }
 
-    public MoveTool() {
-        super(ToolType.MOVE);
+    public MoveTool(WorldHost host) {
+        super(ToolType.MOVE, host);
         // Set the move tool size a bit bigger to make it easier to move
         mBrushSize = MINIMUM_BRUSHSIZE * 1.5f;
         mOperations.remove(ToolOperation.ADD_PARTICLES);
@@ -134,21 +147,35 @@ public class MoveTool extends Tool implements Observer {
         pInfo.init(worldPoint, false);
     }
 
+    /**
+     * Queues a query for the particles under the pointer. We grab onto them
+     * when the simulation applies the query, in queryParticles().
+     */
     @Override
     protected void updatePointerInfo(PointerInfo pInfo, Vector2f worldPoint) {
         if (pInfo.isNewPointer()) {
-            ParticleSystem ps = Renderer.getInstance().acquireParticleSystem();
-            try {
-                mCb.set(this, pInfo);
-                mShape.setPosition(worldPoint.x, worldPoint.y);
-                mShape.setRadius(mBrushSize / 2);
-                ps.queryShapeAABB(mCb, mShape, MAT_IDENTITY);
-            } finally {
-                Renderer.getInstance().releaseParticleSystem();
+            WorldCommandQueue queue = mHost.getWorldCommandQueue();
+            Command command =
+                    queue.obtain(CommandType.QUERY_PARTICLES_IN_SHAPE);
+            if (command != null) {
+                command.mTool = this;
+                command.mPointerInfo = pInfo;
+                command.mX = worldPoint.x;
+                command.mY = worldPoint.y;
+                command.mRadius = mBrushSize / 2;
+                queue.submit(command);
             }
         }
     }
 
+    @Override
+    public void queryParticles(
+            ParticleSystem ps, Shape shape, Transform xf, PointerInfo pInfo,
+            float x, float y) {
+        mCb.set(this, pInfo, x, y);
+        ps.queryShapeAABB(mCb, shape, xf);
+    }
+
 
     /**
      * The move tool only needs to know where the touch point is at the moment
@@ -166,79 +193,112 @@ public class MoveTool extends Tool implements Observer {
     protected void endAction(int pointerId) {
         super.endAction(pointerId);
 
-        Vector<ParticleQueryResult> particleList =
-            mPointerResultList.get(pointerId);
-        if (particleList != null) {
-            particleList.clear();
+        synchronized (mPointerResultList) {
+            Vector<ParticleQueryResult> particleList =
+                mPointerResultList.get(pointerId);
+            if (particleList != null) {
+                particleList.clear();
+            }
         }
     }
 
     @Override
     public void deactivate() {
-        Renderer.getInstance().deleteObserver(this);
+        mHost.getFrameScheduler().removeListener(
+                FramePhase.PRE_STEP, this);
     }
 
     @Override
     public void activate() {
-        Renderer.getInstance().addObserver(this);
+        mHost.getFrameScheduler().addListener(
+                FramePhase.PRE_STEP, this);
     }
 
     /**
      * Adds a particle with its position delta to the center of the touch event.
      */
     protected void addParticle(int pointerId, ParticleQueryResult pResult) {
-        Vector<ParticleQueryResult> particleList =
-                mPointerResultList.get(pointerId);
-        if (particleList == null) {
-            particleList = new Vector<ParticleQueryResult>();
-            mPointerResultList.put(pointerId, particleList);
+        synchronized (mPointerResultList) {
+            Vector<ParticleQueryResult> particleList =
+                    mPointerResultList.get(pointerId);
+            if (particleList == null) {
+                particleList = new Vector<ParticleQueryResult>();
+                mPointerResultList.put(pointerId, particleList);
+            }
+            particleList.add(pResult);
         }
-        particleList.add(pResult);
     }
 
-    // This is called from the Update thread. We only update particle velocity
-    // once per frame.
+    // This is called from the thread stepping the world, in the PRE_STEP
+    // phase. We only update particle velocity once per frame. Positions are
+    // read from the last published snapshot, and the new velocities are
+    // queued, so we never take the world lock here. This runs every frame
+    // while moving, so it must not allocate.
     @Override
-    public void update(Observable obj, Object arg) {
+    public void onFramePhase(FramePhase phase, float dt) {
         // Scale the velocity by the framerate. However the max is still
         // limited by LiquidFun so the particles won't snap to finger.
-        assert arg instanceof Float;
-        float velocityScale = 1 / (Float) arg;
+        float velocityScale = 1 / dt;
+
+        ParticleSnapshot snapshot = mHost.getLastPublishedSnapshot();
+        if (snapshot == null) {
+            return;
+        }
+        WorldCommandQueue queue = mHost.getWorldCommandQueue();
+        Command command = null;
 
-        ParticleSystem ps = Renderer.getInstance().acquireParticleSystem();
-        try {
+        synchronized (mPointerResultList) {
             for (int i = 0; i < mPointerResultList.size(); ++i) {
                 Vector<ParticleQueryResult> particleList =
                         mPointerResultList.valueAt(i);
-                for (ParticleQueryResult particle : particleList) {
-                    Vector2f p = new Vector2f(
-                            ps.getParticlePositionX(particle.mIndex),
-                            ps.getParticlePositionY(particle.mIndex));
+                for (int j = 0; j < particleList.size(); ++j) {
+                    ParticleQueryResult particle = particleList.get(j);
+                    if (particle.mIndex >= snapshot.getParticleCount()) {
+                        continue;
+                    }
+                    float px = snapshot.getParticlePositionX(particle.mIndex);
+                    float py = snapshot.getParticlePositionY(particle.mIndex);
 
                     // We don't want all our particles to move to the same
                     // point as it will cause instability.
                     // Account for the delta that we stored earlier.
-                    Vector2f projectedP =
-                            particle.mPInfo.getWorldPoint().sub(particle.mDelta);
+                    Vector2f pointer = particle.mPInfo.getWorldPoint();
+                    float projectedX = pointer.x - particle.mDelta.x;
+                    float projectedY = pointer.y - particle.mDelta.y;
 
                     // The net velocity is:
-                    // [(Particle's new location relative to current pointer loc)
-                    // - (particle's old location)]
-                    // The reason for not using the velocity vector [(current
-                    // pointer location) - (previous pointer location)] is
-                    // because we are adding impulses to the particles directly,
-                    // and they might not have arrived at the previous pointer
-                    // location due to velocity limits and other calculations in
-                    // LiquidFun.
-                    Vector2f velocity = projectedP.sub(p);
-                    velocity = velocity.mul(velocityScale);
-
-                    ps.setParticleVelocity(
-                            particle.mIndex, velocity.x, velocity.y);
+                    // [(Particle's new location relative to current
+                    // pointer loc) - (particle's old location)]
+                    // The reason for not using the velocity vector
+                    // [(current pointer location) - (previous pointer
+                    // location)] is because we are adding impulses to the
+                    // particles directly, and they might not have arrived
+                    // at the previous pointer location due to velocity
+                    // limits and other calculations in LiquidFun.
+                    float velocityX = (projectedX - px) * velocityScale;
+                    float velocityY = (projectedY - py) * velocityScale;
+
+                    if (command == null ||
+                            command.mCount == WorldCommandQueue.MAX_POINTS) {
+                        if (command != null) {
+                            queue.submit(command);
+                        }
+                        command = queue.obtain(
+                                CommandType.SET_PARTICLE_VELOCITY);
+                        if (command == null) {
+                            return;
+                        }
+                    }
+                    command.mIndices[command.mCount] = particle.mIndex;
+                    command.mPoints[2 * command.mCount] = velocityX;
+                    command.mPoints[2 * command.mCount + 1] = velocityY;
+                    ++command.mCount;
                 }
             }
-        } finally {
-            Renderer.getInstance().releaseParticleSystem();
+        }
+
+        if (command != null) {
+            queue.submit(command);
         }
     }
 }
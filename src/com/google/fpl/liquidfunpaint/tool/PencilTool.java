@@ -19,7 +19,10 @@ package com.google.fpl.liquidfunpaint.tool;
 import com.google.fpl.liquidfun.ParticleColor;
 import com.google.fpl.liquidfun.ParticleFlag;
 import com.google.fpl.liquidfun.ParticleGroup;
-import com.google.fpl.liquidfun.ParticleGroupFlag;
+import com.google.fpl.liquidfun.ParticleGroupDef;
+import com.google.fpl.liquidfun.ParticleSystem;
+import com.google.fpl.liquidfunpaint.ParticleGroupIndex;
+import com.google.fpl.liquidfunpaint.WorldHost;
 
 /**
  * Pencil tool
@@ -32,14 +35,12 @@ public class PencilTool extends Tool {
     private ParticleGroup mParticleGroup = null;
     private ParticleColor mTempColor = new ParticleColor();
 
-    public PencilTool() {
-        super(ToolType.PENCIL);
+    public PencilTool(WorldHost host) {
+        super(ToolType.PENCIL, host);
         mParticleFlags =
                 ParticleFlag.wallParticle |
                 ParticleFlag.barrierParticle;
-        mParticleGroupFlags =
-                ParticleGroupFlag.solidParticleGroup |
-                ParticleGroupFlag.particleGroupCanBeEmpty;
+        mParticleGroupFlags = ParticleGroupIndex.WALL_GROUP_FLAGS;
     }
 
     @Override
@@ -52,7 +53,8 @@ public class PencilTool extends Tool {
       * @param pInfo The pointer info containing the previous group info
       */
     @Override
-    protected void applyTool(PointerInfo pInfo) {
+    public void createParticleGroup(
+            ParticleSystem ps, ParticleGroupDef pgd, PointerInfo pInfo) {
         // If we have a ParticleGroup saved already, assign it to pInfo.
         // If not, we take the first ParticleGroup created for wall particles,
         // which will be contained in pInfo.
@@ -62,11 +64,18 @@ public class PencilTool extends Tool {
             mParticleGroup = pInfo.getParticleGroup();
         }
 
-        super.applyTool(pInfo);
+        super.createParticleGroup(ps, pgd, pInfo);
     }
 
     @Override
     protected void reset() {
         mParticleGroup = null;
     }
+
+    @Override
+    protected void onGroupReleased(ParticleGroup group) {
+        if (mParticleGroup == group) {
+            mParticleGroup = null;
+        }
+    }
 }
@@ -18,14 +18,15 @@ package com.google.fpl.liquidfunpaint.tool;
 
 import com.google.fpl.liquidfun.ParticleFlag;
 import com.google.fpl.liquidfun.ParticleGroupFlag;
+import com.google.fpl.liquidfunpaint.WorldHost;
 
 /**
  * Rigid tool
  * We create particle groups per draw, and join them so they act in one piece.
  */
 public class RigidTool extends Tool {
-    public RigidTool() {
-        super(ToolType.RIGID);
+    public RigidTool(WorldHost host) {
+        super(ToolType.RIGID, host);
         mParticleFlags = ParticleFlag.repulsiveParticle;
         mParticleGroupFlags =
                 ParticleGroupFlag.rigidParticleGroup |
@@ -16,14 +16,19 @@
 */
 package com.google.fpl.liquidfunpaint.tool;
 
-import com.google.fpl.liquidfun.CircleShape;
-import com.google.fpl.liquidfun.ParticleColor;
 import com.google.fpl.liquidfun.ParticleGroup;
 import com.google.fpl.liquidfun.ParticleGroupDef;
+import com.google.fpl.liquidfun.ParticleGroupFlag;
 import com.google.fpl.liquidfun.ParticleSystem;
+import com.google.fpl.liquidfun.Shape;
 import com.google.fpl.liquidfun.Transform;
 import com.google.fpl.liquidfun.Vec2;
-import com.google.fpl.liquidfunpaint.Renderer;
+import com.google.fpl.liquidfunpaint.ParticleBudget;
+import com.google.fpl.liquidfunpaint.ParticleGroupIndex;
+import com.google.fpl.liquidfunpaint.WorldCommandQueue;
+import com.google.fpl.liquidfunpaint.WorldCommandQueue.Command;
+import com.google.fpl.liquidfunpaint.WorldCommandQueue.CommandType;
+import com.google.fpl.liquidfunpaint.WorldHost;
 import com.google.fpl.liquidfunpaint.util.Vector2f;
 
 import android.util.SparseArray;
@@ -40,9 +45,7 @@ import java.util.EnumSet;
 public abstract class Tool {
     private static final String TAG = "Tool";
     // static members of the class
-    private static final EnumMap<ToolType, Tool> TOOL_MAP =
-            new EnumMap<ToolType, Tool>(constructToolMap());
-    protected static final Transform MAT_IDENTITY;
+    private static EnumMap<ToolType, Tool> sToolMap = null;
     // The size of the circle shape we use to create ParticleGroups with.
     // Independent from the particle radius, but should not be smaller than it.
     protected static final float MINIMUM_BRUSHSIZE = 0.18f;
@@ -68,6 +71,8 @@ public abstract class Tool {
 
     // Member variables of the class
     private ToolType mType;
+    // The world the tool draws into
+    protected final WorldHost mHost;
     protected int mParticleFlags = 0;
     protected int mParticleGroupFlags = 0;
     protected float mBrushSize = MINIMUM_BRUSHSIZE;
@@ -75,35 +80,41 @@ public abstract class Tool {
     protected EnumSet<ToolOperation> mOperations =
             EnumSet.allOf(ToolOperation.class);
 
+    // Color in ABGR, as LiquidFun stores it.
+    protected int mColor = 0;
+
     // member native (C++) variables
-    protected ParticleColor mColor = new ParticleColor();
     protected Vec2 mVelocity = new Vec2(0, 0);
-    // This variable is a temporary variable to allow us to destroy particles.
-    protected CircleShape mShape = new CircleShape();
 
-    static {
-        MAT_IDENTITY = new Transform();
-        MAT_IDENTITY.setIdentity();
+    /**
+     * Initializes all the different tools, drawing into host. Must be called
+     * before getTool(). Does nothing if the tools already draw into host.
+     */
+    public static void createTools(WorldHost host) {
+        if (sToolMap != null && sToolMap.get(ToolType.MOVE).mHost == host) {
+            return;
+        }
+        sToolMap = constructToolMap(host);
     }
 
     /** Initializes all the different tools */
-    private static EnumMap<ToolType, Tool> constructToolMap() {
+    private static EnumMap<ToolType, Tool> constructToolMap(WorldHost host) {
         EnumMap<ToolType, Tool> toolMap =
                 new EnumMap<ToolType, Tool>(ToolType.class);
 
-        Tool moveTool = new MoveTool();
+        Tool moveTool = new MoveTool(host);
         toolMap.put(ToolType.MOVE, moveTool);
 
-        Tool eraserTool = new EraserTool();
+        Tool eraserTool = new EraserTool(host);
         toolMap.put(ToolType.ERASER, eraserTool);
 
-        Tool waterTool = new WaterTool();
+        Tool waterTool = new WaterTool(host);
         toolMap.put(ToolType.WATER, waterTool);
 
-        Tool pencilTool = new PencilTool();
+        Tool pencilTool = new PencilTool(host);
         toolMap.put(ToolType.PENCIL, pencilTool);
 
-        Tool rigidTool = new RigidTool();
+        Tool rigidTool = new RigidTool(host);
         toolMap.put(ToolType.RIGID, rigidTool);
 
         return toolMap;
@@ -111,41 +122,54 @@ public abstract class Tool {
 
     /** Returns the tool based on the type */
     public static Tool getTool(ToolType type) {
-        return TOOL_MAP.get(type);
+        return sToolMap.get(type);
     }
 
     /** Goes through all tools and call reset() */
     public static void resetAllTools() {
-        for (Tool tool : TOOL_MAP.values()) {
+        for (Tool tool : sToolMap.values()) {
             tool.reset();
         }
     }
 
-    public Tool(ToolType type) {
+    /**
+     * Makes all tools stop adding strokes to group, e.g. before it is
+     * destroyed. Call this on the thread stepping the world.
+     */
+    public static void releaseGroup(ParticleGroup group) {
+        if (sToolMap == null) {
+            return;
+        }
+        for (Tool tool : sToolMap.values()) {
+            tool.onGroupReleased(group);
+        }
+    }
+
+    public Tool(ToolType type, WorldHost host) {
         mType = type;
+        mHost = host;
     }
 
     @Override
     protected void finalize() {
         // clean up native variables
-        mColor.delete();
         mVelocity.delete();
-        mShape.delete();
     }
 
     public ToolType getType() {
         return mType;
     }
 
+    /**
+     * @param color Color in ABGR. It is converted back into a ParticleColor
+     *              when the particle group is created.
+     */
     public void setColor (int color) {
-        // Convert ABGR back into ParticleColor
-        // Box2D doesn't have this functionality,
-        // check why color is stored as an int to begin with.
-        short a = (short) (color >> 24 & 0xFF);
-        short b = (short) (color >> 16 & 0xFF);
-        short g = (short) (color >> 8 & 0xFF);
-        short r = (short) (color & 0xFF);
-        mColor.set(r, g, b, a);
+        mColor = color;
+    }
+
+    public int getColor() {
+        return mColor;
     }
 
     public int getParticleGroupFlags() {
@@ -210,11 +234,11 @@ public abstract class Tool {
         worldPoint.x = Math.max(border,
                 Math.min(
                     worldPoint.x,
-                    Renderer.getInstance().sRenderWorldWidth - border));
+                    mHost.getWorldWidth() - border));
         worldPoint.y = Math.max(border,
                 Math.min(
                     worldPoint.y,
-                    Renderer.getInstance().sRenderWorldHeight - border));
+                    mHost.getWorldHeight() - border));
     }
 
     /**
@@ -256,9 +280,8 @@ public abstract class Tool {
         float radius = mBrushSize / 2;
 
         Vector2f worldPoint = new Vector2f(
-                Renderer.getInstance().sRenderWorldWidth
-                    * screenX / v.getWidth(),
-                Renderer.getInstance().sRenderWorldHeight *
+                mHost.getWorldWidth() * screenX / v.getWidth(),
+                mHost.getWorldHeight() *
                     (v.getHeight() - screenY)
                 / v.getHeight());
         clampToWorld(worldPoint, radius);
@@ -323,8 +346,12 @@ public abstract class Tool {
                 interpolatePoints);
     }
 
-    /** End this tool's current action */
+    /**
+     * End this tool's current action. The end of every action is a point
+     * the UndoHistory can go back to.
+     */
     protected void endAction(int pointerId) {
+        mHost.markStroke();
         mGroupMap.remove(pointerId);
         if (mGroupMap.size() == 0) {
             PointerInfo.resetGlobalBuffer();
@@ -337,6 +364,16 @@ public abstract class Tool {
     }
 
     /**
+     * Lets go of group if the tool keeps adding strokes to it. Runs on the
+     * thread stepping the world.
+     */
+    protected void onGroupReleased(ParticleGroup group) {
+    }
+
+    /**
+      * Queues the particle creation and destruction for this flush of points.
+      * This runs on the UI thread and does not touch the world; the
+      * simulation applies the commands at the next step.
       * @param pInfo The pointer info containing information for creating
       *              particle groups.
       */
@@ -344,54 +381,83 @@ public abstract class Tool {
         float radius = mBrushSize / 2;
 
         ByteBuffer buffer = pInfo.getRawPointsBuffer();
+        WorldCommandQueue queue = mHost.getWorldCommandQueue();
+
+        if (mOperations.contains(ToolOperation.REMOVE_PARTICLES)) {
+            Command command =
+                    queue.obtain(CommandType.DESTROY_PARTICLES_IN_SHAPE);
+            if (command != null) {
+                command.setPoints(
+                        buffer, pInfo.getBufferStart(), pInfo.getNumPoints());
+                command.mRadius = radius;
+                queue.submit(command);
+            }
+        }
 
-        ParticleGroupDef pgd = null;
         if (mOperations.contains(ToolOperation.ADD_PARTICLES)) {
-            pgd = new ParticleGroupDef();
-            pgd.setFlags(mParticleFlags);
-            pgd.setGroupFlags(mParticleGroupFlags);
-            pgd.setLinearVelocity(mVelocity);
-            pgd.setColor(mColor);
-            buffer.position(pInfo.getBufferStart());
-            pgd.setCircleShapesFromVertexList(
-                    buffer.slice(), pInfo.getNumPoints(),
-                    radius);
+            Command command = queue.obtain(CommandType.CREATE_PARTICLE_GROUP);
+            if (command != null) {
+                command.setPoints(
+                        buffer, pInfo.getBufferStart(), pInfo.getNumPoints());
+                command.mRadius = radius;
+                command.mTool = this;
+                command.mPointerInfo = pInfo;
+                command.mParticleFlags = mParticleFlags;
+                command.mParticleGroupFlags = mParticleGroupFlags;
+                command.mColor = mColor;
+                command.mVelocityX = mVelocity.getX();
+                command.mVelocityY = mVelocity.getY();
+                queue.submit(command);
+            }
         }
+    }
 
-        ParticleSystem ps = Renderer.getInstance().acquireParticleSystem();
-        try {
-            if (mOperations.contains(ToolOperation.REMOVE_PARTICLES)) {
-                buffer.position(pInfo.getBufferStart());
-                mShape.setRadius(radius);
-                // Goes through each (x,y) pair and queries for the particles in
-                // the circle shape to be destroyed.
-                for (int i = 0; i < pInfo.getNumPoints(); ++i) {
-                    mShape.setPosition(
-                            buffer.getFloat(), buffer.getFloat());
-                    ps.destroyParticlesInShape(mShape, MAT_IDENTITY);
-                }
-            }
+    /**
+     * Creates the particle group queued by applyTool(), and joins it to the
+     * pointer's existing group if the group has the same flags.
+     * Called by WorldCommandQueue on the thread stepping the world, while
+     * holding the world lock.
+     */
+    public void createParticleGroup(
+            ParticleSystem ps, ParticleGroupDef pgd, PointerInfo pInfo) {
+        ParticleGroup pGroup = ps.createParticleGroup(pgd);
+        ParticleGroup existingGroup = pInfo.getParticleGroup();
+        // The ParticleBudget may have made the existing group able to be
+        // empty, so ignore that flag when comparing.
+        int ignoredFlags = ParticleGroupFlag.particleGroupCanBeEmpty;
+        if ((existingGroup == null) ||
+            ((existingGroup.getGroupFlags() & ~ignoredFlags) !=
+             (pgd.getGroupFlags() & ~ignoredFlags))) {
+            pInfo.setParticleGroup(pGroup);
+        } else {
+            ps.joinParticleGroups(existingGroup, pGroup);
+        }
 
-            // Create ParticleGroup
-            if (pgd != null) {
-                // Join to existing group if the group has the same flags
-                ParticleGroup pGroup = ps.createParticleGroup(pgd);
-                ParticleGroup existingGroup = pInfo.getParticleGroup();
-                if ((existingGroup == null) ||
-                    (existingGroup.getGroupFlags() != pgd.getGroupFlags())) {
-                    pInfo.setParticleGroup(pGroup);
-                } else {
-                    ps.joinParticleGroups(existingGroup, pGroup);
-                }
-
-                // Clean up native objects
-                pgd.delete();
-            }
-        } finally {
-            Renderer.getInstance().releaseParticleSystem();
+        ParticleGroupIndex index = mHost.getParticleGroupIndex();
+        index.markDirty();
+        if (ParticleGroupIndex.isWallGroup(pGroup.getGroupFlags())) {
+            // Even if it takes the range of a wall destroyed this step
+            index.markWallsChanged();
+        }
+        ParticleBudget budget = mHost.getParticleBudget();
+        budget.onGroupTouched(pInfo.getParticleGroup(), mType);
+        if (ps.getParticleCount() >= ps.getMaxParticleCount()) {
+            budget.onCapacityExhausted();
         }
     }
 
+    /**
+     * Handles a QUERY_PARTICLES_IN_SHAPE command queued by this tool.
+     * Called by WorldCommandQueue on the thread stepping the world, while
+     * holding the world lock.
+     * @param x The x coordinate the query was queued with
+     * @param y The y coordinate the query was queued with
+     */
+    public void queryParticles(
+            ParticleSystem ps, Shape shape, Transform xf, PointerInfo pInfo,
+            float x, float y) {
+    }
+
     /**
      * These methods are called by Controller, when new tools are selected.
      * It allows for the tools to register/de-register themselves from different
@@ -18,7 +18,10 @@ package com.google.fpl.liquidfunpaint.tool;
 
 import com.google.fpl.liquidfun.ParticleFlag;
 import com.google.fpl.liquidfun.ParticleGroup;
-import com.google.fpl.liquidfun.ParticleGroupFlag;
+import com.google.fpl.liquidfun.ParticleGroupDef;
+import com.google.fpl.liquidfun.ParticleSystem;
+import com.google.fpl.liquidfunpaint.ParticleGroupIndex;
+import com.google.fpl.liquidfunpaint.WorldHost;
 
 /**
  * Water tool
@@ -28,19 +31,20 @@ import com.google.fpl.liquidfun.ParticleGroupFlag;
 public class WaterTool extends Tool {
     private ParticleGroup mParticleGroup = null;
 
-    public WaterTool() {
-        super(ToolType.WATER);
+    public WaterTool(WorldHost host) {
+        super(ToolType.WATER, host);
         mParticleFlags =
                 ParticleFlag.waterParticle |
                 ParticleFlag.colorMixingParticle;
-        mParticleGroupFlags = ParticleGroupFlag.particleGroupCanBeEmpty;
+        mParticleGroupFlags = ParticleGroupIndex.WATER_GROUP_FLAGS;
     }
 
     /**
       * @param pInfo The pointer info containing the previous group info
       */
     @Override
-    protected void applyTool(PointerInfo pInfo) {
+    public void createParticleGroup(
+            ParticleSystem ps, ParticleGroupDef pgd, PointerInfo pInfo) {
         // If we have a ParticleGroup saved already, assign it to pInfo.
         // If not, we take the first ParticleGroup created for wall particles,
         // which will be contained in pInfo.
@@ -50,11 +54,18 @@ public class WaterTool extends Tool {
             mParticleGroup = pInfo.getParticleGroup();
         }
 
-        super.applyTool(pInfo);
+        super.createParticleGroup(ps, pgd, pInfo);
     }
 
     @Override
     protected void reset() {
         mParticleGroup = null;
     }
+
+    @Override
+    protected void onGroupReleased(ParticleGroup group) {
+        if (mParticleGroup == group) {
+            mParticleGroup = null;
+        }
+    }
 }
@@ -0,0 +1,140 @@
+/**
+* Copyright (c) 2014 Google, Inc. All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+package com.google.fpl.liquidfunpaint.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, lock-free histogram of durations.
+ *
+ * Durations are bucketed in microseconds on a log scale with 8 buckets per
+ * power of two, so percentiles are accurate to within 12.5%, from 1us up to
+ * about a second. Recording is a couple of atomic increments; any thread can
+ * record, and any thread can read, without locks or allocation.
+ */
+public class TimingHistogram {
+    private static final long NANOS_PER_MICRO = 1000;
+    // Buckets per power of two, as a shift
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // Highest power of two we bucket; about a second in microseconds
+    private static final int MAX_EXPONENT = 20;
+    private static final int BUCKET_COUNT =
+            (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mJankCount = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+    private final long mJankThresholdNanos;
+
+    /**
+     * @param jankThresholdNanos Samples longer than this are counted as jank
+     */
+    public TimingHistogram(long jankThresholdNanos) {
+        mJankThresholdNanos = jankThresholdNanos;
+    }
+
+    /** Records one duration, in nanoseconds. */
+    public void record(long nanos) {
+        mBuckets.incrementAndGet(getBucket(nanos / NANOS_PER_MICRO));
+        mCount.incrementAndGet();
+        if (nanos > mJankThresholdNanos) {
+            mJankCount.incrementAndGet();
+        }
+        long max = mMaxNanos.get();
+        while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+            max = mMaxNanos.get();
+        }
+    }
+
+    /**
+     * Clears all samples. Samples recorded concurrently may or may not
+     * survive.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mJankCount.set(0);
+        mMaxNanos.set(0);
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getJankCount() {
+        return mJankCount.get();
+    }
+
+    public long getMaxNanos() {
+        return mMaxNanos.get();
+    }
+
+    /**
+     * Returns the duration below which the given percentage of samples
+     * fall, or 0 if there are no samples. While other threads record, the
+     * result is approximate.
+     * @param percentile In [0, 100]
+     */
+    public long getPercentileNanos(float percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            total += mBuckets.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        // Nearest rank
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) {
+                return getBucketMidpoint(i) * NANOS_PER_MICRO;
+            }
+        }
+        return getBucketMidpoint(BUCKET_COUNT - 1) * NANOS_PER_MICRO;
+    }
+
+    private static int getBucket(long micros) {
+        if (micros < SUB_BUCKET_COUNT) {
+            return (int) Math.max(micros, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (micros >> shift) & (SUB_BUCKET_COUNT - 1);
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long getBucketMidpoint(int bucket) {
+        if (bucket < SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKET_COUNT - 1;
+        long lower = (long) (SUB_BUCKET_COUNT + bucket % SUB_BUCKET_COUNT)
+                << shift;
+        return lower + ((1L << shift) >> 1);
+    }
+}